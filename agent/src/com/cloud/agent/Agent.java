@@ -50,9 +50,11 @@ import com.cloud.agent.api.StartupAnswer;
 import com.cloud.agent.api.StartupCommand;
 import com.cloud.agent.api.UpgradeAnswer;
 import com.cloud.agent.api.UpgradeCommand;
+import com.cloud.agent.transport.CompressionCodec;
 import com.cloud.agent.transport.Request;
 import com.cloud.agent.transport.Response;
 import com.cloud.exception.AgentControlChannelException;
+import com.cloud.exception.UnsupportedVersionException;
 import com.cloud.resource.ServerResource;
 import com.cloud.utils.PropertiesUtil;
 import com.cloud.utils.backoff.BackoffAlgorithm;
@@ -117,6 +119,10 @@ public class Agent implements HandlerFactory, IAgentControl {
 
     StartupTask                 _startup              = null;
     boolean                     _reconnectAllowed     = true;
+    // Request version agreed on with the management server at startup
+    volatile Request.Version    _wireVersion          = Request.Version.v1;
+    volatile CompressionCodec   _compression          = CompressionCodec.GZIP;
+    volatile int                _compressionThreshold = Request.DEFAULT_COMPRESSION_THRESHOLD;
     //For time sentitive task, e.g. PingTask
     private ThreadPoolExecutor     _ugentTaskPool;
 
@@ -240,6 +246,7 @@ public class Agent implements HandlerFactory, IAgentControl {
             try {
                 if (_link != null) {
                     Request req = new Request((_id != null ? _id : -1), -1, cmd, false);
+                    prepare(req);
                     _link.send(req.toBytes());
                 }
             } catch (final ClosedChannelException e) {
@@ -298,6 +305,14 @@ public class Agent implements HandlerFactory, IAgentControl {
         }
     }
 
+    /**
+     * Puts the request in the format agreed on with the management server.
+     */
+    protected void prepare(Request request) {
+        request.setVersion(_wireVersion);
+        request.setCompression(_compression, _compressionThreshold, null);
+    }
+
     public void sendStartup(Link link) {
         final StartupCommand[] startup = _resource.initialize();
         final Command[] commands = new Command[startup.length];
@@ -306,6 +321,10 @@ public class Agent implements HandlerFactory, IAgentControl {
             commands[i] = startup[i];
         }
 
+        // Always start out in v1 and gzip until the server tells us otherwise.
+        _wireVersion = Request.Version.v1;
+        _compression = CompressionCodec.GZIP;
+        _compressionThreshold = Request.DEFAULT_COMPRESSION_THRESHOLD;
         final Request request = new Request(_id != null ? _id : -1, -1, commands, false, false);
         request.setSequence(getNextSequence());
 
@@ -347,6 +366,8 @@ public class Agent implements HandlerFactory, IAgentControl {
         startup.setGuid(getResourceGuid());
         startup.setResourceName(getResourceName());
         startup.setVersion(getVersion());
+        startup.setWireVersion(Request.Version.v4.ordinal());
+        startup.setCompressionCodecs(CompressionCodec.getSupportedNames());
     }
 
     @Override
@@ -429,6 +450,19 @@ public class Agent implements HandlerFactory, IAgentControl {
 
         setId(startup.getHostId());
         _pingInterval = startup.getPingInterval() * 1000; // change to ms.
+        if (startup.getWireVersion() > 0) {
+            try {
+                _wireVersion = Request.Version.get((byte)startup.getWireVersion());
+                s_logger.info("Switching to wire version " + _wireVersion);
+            } catch (UnsupportedVersionException e) {
+                s_logger.warn("Management server asked for an unknown wire version " + startup.getWireVersion() + ", staying with " + _wireVersion);
+            }
+        }
+        if (startup.getCompressionCodec() != null) {
+            _compression = CompressionCodec.get(startup.getCompressionCodec());
+            _compressionThreshold = startup.getCompressionThreshold();
+            s_logger.info("Compressing messages of " + _compressionThreshold + " bytes or more with " + (_compression != null ? _compression : "none"));
+        }
 
         setLastPingResponseTime();
         scheduleWatch(link, response, _pingInterval, _pingInterval);
@@ -528,6 +562,7 @@ public class Agent implements HandlerFactory, IAgentControl {
 
             if (response != null) {
                 try {
+                    prepare(response);
                     link.send(response.toBytes());
                 } catch (final ClosedChannelException e) {
                     s_logger.warn("Unable to send response: " + response.toString());
@@ -568,6 +603,7 @@ public class Agent implements HandlerFactory, IAgentControl {
             final PingCommand ping = _resource.getCurrentStatus(getId());
             final Request request = new Request(_id, -1, ping, false);
             request.setSequence(getNextSequence());
+            prepare(request);
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("Sending ping: " + request.toString());
             }
@@ -594,6 +630,7 @@ public class Agent implements HandlerFactory, IAgentControl {
                     s_logger.debug("Watch Sent: " + response.toString());
                 }
                 try {
+                    prepare(response);
                     task.getLink().send(response.toBytes());
                 } catch (final ClosedChannelException e) {
                     s_logger.warn("Unable to send response: " + response.toString());
@@ -679,6 +716,7 @@ public class Agent implements HandlerFactory, IAgentControl {
     private void postRequest(Request request) throws AgentControlChannelException {
         if (_link != null) {
             try {
+                prepare(request);
                 _link.send(request.toBytes());
             } catch (final ClosedChannelException e) {
                 s_logger.warn("Unable to post agent control reques: " + request.toString());
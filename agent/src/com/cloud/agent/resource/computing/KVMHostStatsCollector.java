@@ -0,0 +1,238 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.cloud.agent.resource.computing;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.Pair;
+
+/**
+ * Reads host cpu, memory and nic counters straight from /proc and /sys instead of forking top, free
+ * and cat for every sample. Cpu utilization is computed from the difference between two consecutive
+ * reads of /proc/stat; the first read reports the average since boot, as top -n 1 does.
+ * 
+ * All files are read into one reusable buffer, so callers share a single instance and the methods
+ * are synchronized.
+ */
+public class KVMHostStatsCollector {
+    private static final Logger s_logger = Logger.getLogger(KVMHostStatsCollector.class);
+
+    private static final byte[] CPU = "cpu".getBytes();
+    private static final byte[] MEM_TOTAL = "MemTotal:".getBytes();
+    private static final byte[] MEM_FREE = "MemFree:".getBytes();
+    private static final byte[] BUFFERS = "Buffers:".getBytes();
+    private static final byte[] CACHED = "Cached:".getBytes();
+
+    private final File _procStat;
+    private final File _procMeminfo;
+    private final File _sysNet;
+
+    private byte[] _buf = new byte[8192];
+    private int _len;
+    private int _pos;
+
+    private long _lastCpuTotal = -1;
+    private long _lastCpuIdle;
+    private int _cpus;
+
+    public KVMHostStatsCollector() {
+        this("/");
+    }
+
+    /**
+     * @param root directory that holds the proc and sys trees, "/" on a real host.
+     */
+    public KVMHostStatsCollector(String root) {
+        _procStat = new File(root, "proc/stat");
+        _procMeminfo = new File(root, "proc/meminfo");
+        _sysNet = new File(root, "sys/class/net");
+    }
+
+    /**
+     * @return percentage of cpu time spent not idle since the previous call.
+     */
+    public synchronized double getCpuUtilization() throws IOException {
+        read(_procStat);
+        if (!startsWith(0, CPU)) {
+            throw new IOException("Unexpected content in " + _procStat);
+        }
+
+        //cpu  user nice system idle iowait irq softirq steal [guest guest_nice]; guest time is already part of user
+        _pos = CPU.length;
+        long total = 0;
+        long idle = 0;
+        for (int i = 0; i < 8 && nextNumberOnLine(); i++) {
+            long value = parseNumber();
+            total += value;
+            if (i == 3) {
+                idle = value;
+            }
+        }
+        _cpus = countCpuLines();
+
+        long deltaTotal = total;
+        long deltaIdle = idle;
+        if (_lastCpuTotal >= 0 && total > _lastCpuTotal) {
+            deltaTotal = total - _lastCpuTotal;
+            deltaIdle = idle - _lastCpuIdle;
+        }
+        _lastCpuTotal = total;
+        _lastCpuIdle = idle;
+        if (deltaTotal <= 0) {
+            return 0;
+        }
+        return 100.0D * (deltaTotal - deltaIdle) / deltaTotal;
+    }
+
+    /**
+     * @return number of online cpus listed in /proc/stat.
+     */
+    public synchronized int getCpuCount() throws IOException {
+        if (_cpus == 0) {
+            read(_procStat);
+            _cpus = countCpuLines();
+            if (_cpus == 0) {
+                throw new IOException("No cpus listed in " + _procStat);
+            }
+        }
+        return _cpus;
+    }
+
+    /**
+     * @return total and free memory in KB. Free memory counts buffers and page cache, matching the
+     *         -/+ buffers/cache line of free.
+     */
+    public synchronized Pair<Long, Long> getMemory() throws IOException {
+        read(_procMeminfo);
+        long total = -1;
+        long free = 0;
+        for (_pos = 0; _pos < _len; skipLine()) {
+            if (startsWith(_pos, MEM_TOTAL)) {
+                total = valueAfter(MEM_TOTAL);
+            } else if (startsWith(_pos, MEM_FREE)) {
+                free += valueAfter(MEM_FREE);
+            } else if (startsWith(_pos, BUFFERS)) {
+                free += valueAfter(BUFFERS);
+            } else if (startsWith(_pos, CACHED)) {
+                free += valueAfter(CACHED);
+            }
+        }
+        if (total < 0) {
+            throw new IOException("No MemTotal in " + _procMeminfo);
+        }
+        return new Pair<Long, Long>(total, free);
+    }
+
+    /**
+     * @return received and transmitted bytes of the device, 0 for a counter that cannot be read.
+     */
+    public synchronized Pair<Double, Double> getNicStats(String nicName) {
+        File stats = new File(new File(_sysNet, nicName), "statistics");
+        return new Pair<Double, Double>((double)readCounter(new File(stats, "rx_bytes")), (double)readCounter(new File(stats, "tx_bytes")));
+    }
+
+    private long readCounter(File file) {
+        try {
+            read(file);
+            _pos = 0;
+            if (!nextNumberOnLine()) {
+                return 0;
+            }
+            return parseNumber();
+        } catch (IOException e) {
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Unable to read " + file + ": " + e.getMessage());
+            }
+            return 0;
+        }
+    }
+
+    private void read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            _len = 0;
+            int n;
+            while ((n = in.read(_buf, _len, _buf.length - _len)) > 0) {
+                _len += n;
+                if (_len == _buf.length) {
+                    byte[] bigger = new byte[_buf.length * 2];
+                    System.arraycopy(_buf, 0, bigger, 0, _len);
+                    _buf = bigger;
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private int countCpuLines() {
+        int cpus = 0;
+        for (_pos = 0; _pos < _len; skipLine()) {
+            if (startsWith(_pos, CPU) && _pos + CPU.length < _len && isDigit(_buf[_pos + CPU.length])) {
+                cpus++;
+            }
+        }
+        return cpus;
+    }
+
+    private long valueAfter(byte[] key) {
+        _pos += key.length;
+        return nextNumberOnLine() ? parseNumber() : 0;
+    }
+
+    private boolean startsWith(int offset, byte[] prefix) {
+        if (offset + prefix.length > _len) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (_buf[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean nextNumberOnLine() {
+        while (_pos < _len && _buf[_pos] != '\n' && !isDigit(_buf[_pos])) {
+            _pos++;
+        }
+        return _pos < _len && isDigit(_buf[_pos]);
+    }
+
+    private long parseNumber() {
+        long value = 0;
+        while (_pos < _len && isDigit(_buf[_pos])) {
+            value = value * 10 + (_buf[_pos++] - '0');
+        }
+        return value;
+    }
+
+    private void skipLine() {
+        while (_pos < _len && _buf[_pos++] != '\n') {
+        }
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+}
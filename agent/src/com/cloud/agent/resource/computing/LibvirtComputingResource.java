@@ -50,6 +50,7 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
@@ -125,6 +126,7 @@ import com.cloud.agent.api.RebootCommand;
 import com.cloud.agent.api.RebootRouterCommand;
 import com.cloud.agent.api.SecurityIngressRuleAnswer;
 import com.cloud.agent.api.SecurityIngressRulesCmd;
+import com.cloud.agent.api.SecurityIngressRulesDeltaCmd;
 import com.cloud.agent.api.StartAnswer;
 import com.cloud.agent.api.StartCommand;
 import com.cloud.agent.api.StartupCommand;
@@ -303,6 +305,15 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 	protected String _localStorageUUID;
 	private Pair<String, String> _pifs;
 	private final Map<String, vmStats> _vmStats = new ConcurrentHashMap<String, vmStats>();
+	private final KVMHostStatsCollector _hostStats = new KVMHostStatsCollector();
+	
+	/*starts of different vms run in parallel, up to vm.start.concurrency at a time*/
+	protected Semaphore _startPermits = new Semaphore(8);
+	private final ConcurrentHashMap<String, Object> _vmLocks = new ConcurrentHashMap<String, Object>();
+	private final ConcurrentHashMap<String, Object> _vnetLocks = new ConcurrentHashMap<String, Object>();
+	/*vnets that starting vms are plugging into, cleanupVnet leaves their bridges alone*/
+	private final Map<String, Integer> _vnetsInUse = new HashMap<String, Integer>();
+	private final Object _controlNetworkLock = new Object();
 	
 	
 	protected boolean _disconnected = true;
@@ -609,6 +620,9 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         
         value = (String)params.get("host.reserved.mem.mb");
         _dom0MinMem = NumbersUtil.parseInt(value, 0)*1024*1024;
+        
+        value = (String)params.get("vm.start.concurrency");
+        _startPermits = new Semaphore(Math.max(1, NumbersUtil.parseInt(value, 8)), true);
          
         
         value = (String)params.get("debug.mode");
@@ -907,6 +921,8 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
                 return execute((ModifyStoragePoolCommand) cmd);
             } else if (cmd instanceof SecurityIngressRulesCmd) {
                 return execute((SecurityIngressRulesCmd) cmd);
+            } else if (cmd instanceof SecurityIngressRulesDeltaCmd) {
+                return execute((SecurityIngressRulesDeltaCmd) cmd);
             } else if (cmd instanceof DeleteStoragePoolCommand) {
                 return execute((DeleteStoragePoolCommand) cmd);
             } else if (cmd instanceof FenceCommand ) {
@@ -1646,6 +1662,37 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     		return new SecurityIngressRuleAnswer(cmd);
     	}
     }
+
+    private Answer execute(SecurityIngressRulesDeltaCmd cmd) {
+        if (!_can_bridge_firewall) {
+            return new SecurityIngressRuleAnswer(cmd, false, "Host cannot do bridge firewalling", 
+                                                 SecurityIngressRuleAnswer.FailureReason.CANNOT_BRIDGE_FIREWALL);
+        }
+        Script script = new Script(_securityGroupPath, _timeout, s_logger);
+        script.add("add_network_rules_delta");
+        script.add("--vmname", cmd.getVmName());
+        script.add("--vmid", Long.toString(cmd.getVmId()));
+        script.add("--vmip", cmd.getGuestIp());
+        script.add("--sig", cmd.getSignature());
+        script.add("--prevsig", cmd.getPreviousSignature());
+        script.add("--seq", Long.toString(cmd.getSeqNum()));
+        script.add("--added", cmd.stringifyAddedRules().replace(" ", ";"));
+        script.add("--revoked", cmd.stringifyRevokedRules().replace(" ", ";"));
+        String result = script.execute();
+
+        if (result != null && result.contains("signature_mismatch")) {
+            s_logger.debug("Host does not hold the previous ruleset of vm " + cmd.getVmName() + ", full ruleset needed");
+            return new SecurityIngressRuleAnswer(cmd, false, "previous ruleset signature mismatch", 
+                                                 SecurityIngressRuleAnswer.FailureReason.SIGNATURE_MISMATCH);
+        } else if (result != null) {
+            s_logger.warn("Failed to program network rule delta for vm " + cmd.getVmName());
+            return new SecurityIngressRuleAnswer(cmd, false, "programming network rules failed", 
+                                                 SecurityIngressRuleAnswer.FailureReason.PROGRAMMING_FAILED);
+        } else {
+            s_logger.debug("Programmed network rule delta for vm " + cmd.getVmName() + " guestIp=" + cmd.getGuestIp() + ", numcidrs=" + cmd.getTotalNumCidrs());
+            return new SecurityIngressRuleAnswer(cmd);
+        }
+    }
     
     private Answer execute(CleanupNetworkRulesCmd cmd) {
         boolean result = cleanup_rules();
@@ -1947,44 +1994,19 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 	}
 	
 	private Answer execute(GetHostStatsCommand cmd) {
-		final Script cpuScript = new Script("/bin/bash", s_logger);
-		cpuScript.add("-c");
-		cpuScript.add("idle=$(top -b -n 1|grep Cpu\\(s\\):|cut -d% -f4|cut -d, -f2);echo $idle");
-		
-		final OutputInterpreter.OneLineParser parser = new OutputInterpreter.OneLineParser();
-		String result = cpuScript.execute(parser);
-		if (result != null) {
-			s_logger.debug("Unable to get the host CPU state: " + result);
-			return new Answer(cmd, false, result);
-		}
-		double cpuUtil = (100.0D - Double.parseDouble(parser.getLine()));
-		
-		long freeMem = 0;
-		final Script memScript = new Script("/bin/bash", s_logger);
-		memScript.add("-c");
-		memScript.add("freeMem=$(free|grep cache:|awk '{print $4}');echo $freeMem");
-		final OutputInterpreter.OneLineParser Memparser = new OutputInterpreter.OneLineParser();
-		result = memScript.execute(Memparser);
-		if (result != null) {
-			s_logger.debug("Unable to get the host Mem state: " + result);
-			return new Answer(cmd, false, result);
-		}
-		freeMem = Long.parseLong(Memparser.getLine());
-		
-		Script totalMem = new Script("/bin/bash", s_logger);
-		totalMem.add("-c");
-		totalMem.add("free|grep Mem:|awk '{print $2}'");
-		final OutputInterpreter.OneLineParser totMemparser = new OutputInterpreter.OneLineParser();
-		result = totalMem.execute(totMemparser);
-		if (result != null) {
-			s_logger.debug("Unable to get the host Mem state: " + result);
-			return new Answer(cmd, false, result);
+		double cpuUtil;
+		Pair<Long, Long> mem;
+		try {
+			cpuUtil = _hostStats.getCpuUtilization();
+			mem = _hostStats.getMemory();
+		} catch (IOException e) {
+			s_logger.debug("Unable to get the host CPU/Mem state: " + e.toString());
+			return new Answer(cmd, false, e.toString());
 		}
-		long totMem = Long.parseLong(totMemparser.getLine());
 		
 		Pair<Double, Double> nicStats = getNicStats(_publicBridgeName);
 		
-		HostStatsEntry hostStats = new HostStatsEntry(cmd.getHostId(), cpuUtil, nicStats.first()/1000, nicStats.second()/1000, "host", totMem, freeMem, 0, 0);
+		HostStatsEntry hostStats = new HostStatsEntry(cmd.getHostId(), cpuUtil, nicStats.first()/1000, nicStats.second()/1000, "host", mem.first(), mem.second(), 0, 0);
 		return new GetHostStatsAnswer(cmd, hostStats);
 	}
 	
@@ -2255,15 +2277,37 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 	}
 	
 
-	protected synchronized StartAnswer execute(StartCommand cmd) {
+	protected StartAnswer execute(StartCommand cmd) {
+		String vmName = cmd.getVirtualMachine().getName();
+		synchronized (getLock(_vmLocks, vmName)) {
+			try {
+				_startPermits.acquire();
+			} catch (InterruptedException e) {
+				return new StartAnswer(cmd, "Interrupted while waiting to start " + vmName);
+			}
+			try {
+				return startVM(cmd);
+			} finally {
+				_startPermits.release();
+			}
+		}
+	}
+	
+	protected Connect getConnection() throws LibvirtException {
+		return LibvirtConnection.getConnection();
+	}
+	
+	private StartAnswer startVM(StartCommand cmd) {
 		VirtualMachineTO vmSpec = cmd.getVirtualMachine();
 		String vmName = vmSpec.getName();
 		LibvirtVMDef vm = null;
+		List<String> vnets = getVnets(vmSpec.getNics());
 		
 		State state = State.Stopped;
 		Connect conn = null;
+		acquireVnets(vnets);
 		try {
-			conn = LibvirtConnection.getConnection();
+			conn = getConnection();
 			synchronized (_vms) {
 				_vms.put(vmName, State.Starting);
 			}
@@ -2300,11 +2344,16 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 			return new StartAnswer(cmd);
 		} catch (Exception e) {
 			s_logger.warn("Exception ", e);
+			releaseVnets(vnets);
+			vnets = null;
 			if (conn != null) {
                 handleVmStartFailure(conn, vmName, vm);
             }
 			return new StartAnswer(cmd, e.getMessage());
 		} finally {
+			if (vnets != null) {
+				releaseVnets(vnets);
+			}
 			synchronized (_vms) {
 				if (state != State.Stopped) {
 					_vms.put(vmName, state);
@@ -2397,10 +2446,69 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
 
 	private String createVlanBr(String vlanId, String nic) throws InternalErrorException{
 		String brName = setVnetBrName(vlanId);
-		createVnet(vlanId, nic);
+		synchronized (getLock(_vnetLocks, vlanId)) {
+			createVnet(vlanId, nic);
+		}
 		return brName;
 	}
 	
+	private static String getVlanId(NicTO nic) {
+		if ((nic.getType() == TrafficType.Guest || nic.getType() == TrafficType.Public) && nic.getBroadcastType() == BroadcastDomainType.Vlan) {
+			String vlanId = nic.getBroadcastUri().getHost();
+			if (!vlanId.equalsIgnoreCase("untagged")) {
+				return vlanId;
+			}
+		}
+		return null;
+	}
+	
+	private static List<String> getVnets(NicTO[] nics) {
+		List<String> vnets = new ArrayList<String>();
+		if (nics != null) {
+			for (NicTO nic : nics) {
+				String vlanId = getVlanId(nic);
+				if (vlanId != null) {
+					vnets.add(vlanId);
+				}
+			}
+		}
+		return vnets;
+	}
+	
+	private void acquireVnets(List<String> vnets) {
+		synchronized (_vnetsInUse) {
+			for (String vnet : vnets) {
+				Integer count = _vnetsInUse.get(vnet);
+				_vnetsInUse.put(vnet, count == null ? 1 : count + 1);
+			}
+		}
+	}
+	
+	private void releaseVnets(List<String> vnets) {
+		synchronized (_vnetsInUse) {
+			for (String vnet : vnets) {
+				Integer count = _vnetsInUse.get(vnet);
+				if (count == null || count <= 1) {
+					_vnetsInUse.remove(vnet);
+				} else {
+					_vnetsInUse.put(vnet, count - 1);
+				}
+			}
+		}
+	}
+	
+	private static Object getLock(ConcurrentHashMap<String, Object> locks, String name) {
+		Object lock = locks.get(name);
+		if (lock == null) {
+			Object newLock = new Object();
+			lock = locks.putIfAbsent(name, newLock);
+			if (lock == null) {
+				lock = newLock;
+			}
+		}
+		return lock;
+	}
+	
 	private InterfaceDef createVif(Connect conn, NicTO nic, InterfaceDef.nicModel model) throws InternalErrorException, LibvirtException {
 	    InterfaceDef intf = new InterfaceDef();
 
@@ -3088,20 +3196,28 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
             return null;
         }
 
-		final List<String> names = getAllVmNames(conn);
-		
-		if (!names.isEmpty()) {
-			for (final String name : names) {
-				if (VirtualMachineName.getVnet(name).equals(vnetId)) {
-					return null;    // Can't remove the vnet yet.
+		synchronized (getLock(_vnetLocks, vnetId)) {
+			synchronized (_vnetsInUse) {
+				if (_vnetsInUse.containsKey(vnetId)) {
+					return null;    // A vm being started is using it.
 				}
 			}
+			
+			final List<String> names = getAllVmNames(conn);
+			
+			if (!names.isEmpty()) {
+				for (final String name : names) {
+					if (VirtualMachineName.getVnet(name).equals(vnetId)) {
+						return null;    // Can't remove the vnet yet.
+					}
+				}
+			}
+			
+	        final Script command = new Script(_modifyVlanPath, _timeout, s_logger);
+	        command.add("-o", "delete");
+	        command.add("-v", vnetId);
+	        return command.execute();
 		}
-		
-        final Script command = new Script(_modifyVlanPath, _timeout, s_logger);
-        command.add("-o", "delete");
-        command.add("-v", vnetId);
-        return command.execute();
     }
 
     protected Integer getVncPort(Connect conn, String vmName) throws LibvirtException {
@@ -3345,8 +3461,13 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     			elapsedTime = now.getTimeInMillis() - oldStats._timestamp.getTimeInMillis();
     			double utilization = (info.cpuTime - oldStats._usedTime)/((double)elapsedTime*1000000);
 
-    			NodeInfo node = conn.nodeInfo();
-    			utilization = utilization/node.cpus;
+    			int cpus;
+    			try {
+    				cpus = _hostStats.getCpuCount();
+    			} catch (IOException e) {
+    				cpus = conn.nodeInfo().cpus;
+    			}
+    			utilization = utilization/cpus;
     			stats.setCPUUtilization(utilization*100);
     		}
 			
@@ -3589,25 +3710,13 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
     }
     
     private Pair<Double, Double> getNicStats(String nicName) {
-    	double rx = 0.0;
-		OutputInterpreter.OneLineParser rxParser = new  OutputInterpreter.OneLineParser();
-		String result = executeBashScript("cat /sys/class/net/" + nicName + "/statistics/rx_bytes", rxParser);
-		if (result == null && rxParser.getLine() != null) {
-			rx = Double.parseDouble(rxParser.getLine());
-		}
-		
-		double tx = 0.0;
-		OutputInterpreter.OneLineParser txParser = new  OutputInterpreter.OneLineParser();
-		result = executeBashScript("cat /sys/class/net/" + nicName + "/statistics/tx_bytes", txParser);
-		if (result == null && txParser.getLine() != null) {
-			tx = Double.parseDouble(txParser.getLine());
-		}
-		
-		return new Pair<Double, Double>(rx, tx);
+    	return _hostStats.getNicStats(nicName);
     }
     
     private void createControlNetwork(Connect conn) throws LibvirtException {
-        _virtRouterResource.createControlNetwork(_linkLocalBridgeName);
+        synchronized (_controlNetworkLock) {
+            _virtRouterResource.createControlNetwork(_linkLocalBridgeName);
+        }
     }
 
     private Answer execute(NetworkRulesSystemVmCommand cmd) {
@@ -0,0 +1,123 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.cloud.agent.resource.computing;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import com.cloud.utils.Pair;
+
+public class KVMHostStatsCollectorTest extends TestCase {
+    File _root;
+    KVMHostStatsCollector _collector;
+
+    @Override
+    protected void setUp() throws Exception {
+        _root = File.createTempFile("kvmstats", "");
+        _root.delete();
+        _root.mkdirs();
+        _collector = new KVMHostStatsCollector(_root.getAbsolutePath());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(_root);
+    }
+
+    public void testCpuUtilization() throws IOException {
+        write("proc/stat", "cpu  100 0 100 700 100 0 0 0 0 0\n" +
+                           "cpu0 50 0 50 350 50 0 0 0 0 0\n" +
+                           "cpu1 50 0 50 350 50 0 0 0 0 0\n" +
+                           "intr 12345 0 0\n" +
+                           "ctxt 67890\n");
+        //since boot: 300 of 1000 jiffies were not idle
+        assertEquals(30.0D, _collector.getCpuUtilization(), 0.001);
+        assertEquals(2, _collector.getCpuCount());
+
+        //100 busy and 300 idle jiffies later
+        write("proc/stat", "cpu  150 0 150 1000 100 0 0 0 0 0\n" +
+                           "cpu0 75 0 75 500 50 0 0 0 0 0\n" +
+                           "cpu1 75 0 75 500 50 0 0 0 0 0\n");
+        assertEquals(25.0D, _collector.getCpuUtilization(), 0.001);
+
+        //nothing changed, the next sample falls back to the average since boot
+        assertEquals(100.0D * 400 / 1400, _collector.getCpuUtilization(), 0.001);
+    }
+
+    public void testMemory() throws IOException {
+        write("proc/meminfo", "MemTotal:        8062560 kB\n" +
+                              "MemFree:         1000000 kB\n" +
+                              "Buffers:          200000 kB\n" +
+                              "Cached:          3000000 kB\n" +
+                              "SwapCached:         1234 kB\n" +
+                              "Active:          4000000 kB\n");
+        Pair<Long, Long> mem = _collector.getMemory();
+        assertEquals(8062560L, mem.first().longValue());
+        assertEquals(4200000L, mem.second().longValue());
+    }
+
+    public void testNicStats() throws IOException {
+        write("sys/class/net/cloudbr0/statistics/rx_bytes", "123456789012\n");
+        write("sys/class/net/cloudbr0/statistics/tx_bytes", "42\n");
+        Pair<Double, Double> stats = _collector.getNicStats("cloudbr0");
+        assertEquals(123456789012.0D, stats.first(), 0);
+        assertEquals(42.0D, stats.second(), 0);
+
+        stats = _collector.getNicStats("nosuchnic");
+        assertEquals(0.0D, stats.first(), 0);
+        assertEquals(0.0D, stats.second(), 0);
+    }
+
+    public void testLargeStatFile() throws IOException {
+        StringBuilder stat = new StringBuilder("cpu  1000 0 1000 8000 0 0 0 0 0 0\n");
+        for (int i = 0; i < 256; i++) {
+            stat.append("cpu").append(i).append(" 4 0 4 32 0 0 0 0 0 0\n");
+        }
+        for (int i = 0; i < 1000; i++) {
+            stat.append("intr 0 0 0 0 0 0 0 0 0 0 0 0 0 0 0 0 0 0 0 0\n");
+        }
+        write("proc/stat", stat.toString());
+        assertEquals(20.0D, _collector.getCpuUtilization(), 0.001);
+        assertEquals(256, _collector.getCpuCount());
+    }
+
+    private void write(String path, String content) throws IOException {
+        File file = new File(_root, path);
+        file.getParentFile().mkdirs();
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
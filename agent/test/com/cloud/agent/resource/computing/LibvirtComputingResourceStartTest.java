@@ -0,0 +1,162 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.cloud.agent.resource.computing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.libvirt.Connect;
+import org.libvirt.LibvirtException;
+
+import com.cloud.agent.api.StartAnswer;
+import com.cloud.agent.api.StartCommand;
+import com.cloud.agent.api.to.NicTO;
+import com.cloud.agent.api.to.VirtualMachineTO;
+import com.cloud.agent.resource.computing.LibvirtVMDef.DiskDef;
+import com.cloud.exception.InternalErrorException;
+import com.cloud.template.VirtualMachineTemplate.BootloaderType;
+import com.cloud.vm.VirtualMachine;
+
+/**
+ * Fires concurrent StartCommands at a LibvirtComputingResource whose libvirt calls are faked, and
+ * checks that different vms start in parallel within vm.start.concurrency while starts of the same vm
+ * are serialized.
+ */
+public class LibvirtComputingResourceStartTest extends TestCase {
+
+    static class FakeLibvirtComputingResource extends LibvirtComputingResource {
+        final AtomicInteger _running = new AtomicInteger();
+        final AtomicInteger _maxRunning = new AtomicInteger();
+        final List<String> _events = Collections.synchronizedList(new ArrayList<String>());
+        final long _diskPrepMs;
+
+        FakeLibvirtComputingResource(int concurrency, long diskPrepMs) {
+            _startPermits = new Semaphore(concurrency, true);
+            _diskPrepMs = diskPrepMs;
+        }
+
+        @Override
+        protected Connect getConnection() throws LibvirtException {
+            return null;
+        }
+
+        @Override
+        protected void createVbd(Connect conn, VirtualMachineTO vmSpec, String vmName, LibvirtVMDef vm) {
+            int running = _running.incrementAndGet();
+            synchronized (_maxRunning) {
+                if (running > _maxRunning.get()) {
+                    _maxRunning.set(running);
+                }
+            }
+            _events.add("begin " + vmName);
+            DiskDef disk = new DiskDef();
+            disk.defFileBasedDisk("/mnt/primary/" + vmName, 0, DiskDef.diskBus.VIRTIO, DiskDef.diskFmtType.QCOW2);
+            vm.getDevices().addDevice(disk);
+            try {
+                Thread.sleep(_diskPrepMs);
+            } catch (InterruptedException e) {
+            }
+        }
+
+        @Override
+        protected void createVifs(Connect conn, VirtualMachineTO vmSpec, LibvirtVMDef vm) {
+        }
+
+        @Override
+        protected String startDomain(Connect conn, String vmName, String domainXML) throws LibvirtException, InternalErrorException {
+            _events.add("end " + vmName);
+            _running.decrementAndGet();
+            return null;
+        }
+    }
+
+    static StartCommand startCommand(String vmName) {
+        VirtualMachineTO vm = new VirtualMachineTO(1, vmName, VirtualMachine.Type.User, 1, 500, 512 * 1024 * 1024L, 512 * 1024 * 1024L, BootloaderType.HVM, "CentOS 5.5", false, false, "password");
+        vm.setNics(new NicTO[0]);
+        return new StartCommand(vm);
+    }
+
+    static List<StartAnswer> startAll(final LibvirtComputingResource resource, List<String> vmNames) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(vmNames.size());
+        try {
+            List<Future<StartAnswer>> futures = new ArrayList<Future<StartAnswer>>();
+            for (final String vmName : vmNames) {
+                futures.add(executor.submit(new Callable<StartAnswer>() {
+                    @Override
+                    public StartAnswer call() {
+                        return resource.execute(startCommand(vmName));
+                    }
+                }));
+            }
+            List<StartAnswer> answers = new ArrayList<StartAnswer>();
+            for (Future<StartAnswer> future : futures) {
+                answers.add(future.get());
+            }
+            return answers;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testStartsRunInParallelUpToTheCap() throws Exception {
+        FakeLibvirtComputingResource resource = new FakeLibvirtComputingResource(4, 200);
+        List<String> vmNames = new ArrayList<String>();
+        for (int i = 0; i < 12; i++) {
+            vmNames.add("i-2-" + i + "-VM");
+        }
+
+        long start = System.currentTimeMillis();
+        for (StartAnswer answer : startAll(resource, vmNames)) {
+            assertTrue(answer.getDetails(), answer.getResult());
+        }
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertEquals(4, resource._maxRunning.get());
+        //three waves of four, a serialized agent would need 12 * 200ms
+        assertTrue("took " + elapsed + "ms", elapsed < 12 * 200);
+        assertEquals(0, resource._running.get());
+    }
+
+    public void testStartsOfTheSameVmAreSerialized() throws Exception {
+        FakeLibvirtComputingResource resource = new FakeLibvirtComputingResource(8, 50);
+        List<String> vmNames = new ArrayList<String>();
+        for (int i = 0; i < 6; i++) {
+            vmNames.add("i-2-100-VM");
+        }
+
+        for (StartAnswer answer : startAll(resource, vmNames)) {
+            assertTrue(answer.getDetails(), answer.getResult());
+        }
+
+        assertEquals(1, resource._maxRunning.get());
+        for (int i = 0; i < resource._events.size(); i += 2) {
+            assertEquals("begin i-2-100-VM", resource._events.get(i));
+            assertEquals("end i-2-100-VM", resource._events.get(i + 1));
+        }
+    }
+}
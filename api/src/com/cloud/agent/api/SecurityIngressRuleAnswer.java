@@ -22,7 +22,8 @@ public class SecurityIngressRuleAnswer extends Answer {
         NONE,
         UNKNOWN,
         PROGRAMMING_FAILED,
-        CANNOT_BRIDGE_FIREWALL
+        CANNOT_BRIDGE_FIREWALL,
+        SIGNATURE_MISMATCH
     }
     Long logSequenceNumber = null;
     Long vmId = null;
@@ -52,6 +53,19 @@ public class SecurityIngressRuleAnswer extends Answer {
         reason = r;
     }
 
+    public SecurityIngressRuleAnswer(SecurityIngressRulesDeltaCmd cmd) {
+        super(cmd);
+        this.logSequenceNumber = cmd.getSeqNum();
+        this.vmId = cmd.getVmId();
+    }
+    
+    public SecurityIngressRuleAnswer(SecurityIngressRulesDeltaCmd cmd, boolean result, String detail, FailureReason r) {
+        super(cmd, result, detail);
+        this.logSequenceNumber = cmd.getSeqNum();
+        this.vmId = cmd.getVmId();
+        reason = r;
+    }
+
 	public Long getLogSequenceNumber() {
 		return logSequenceNumber;
 	}
@@ -128,8 +128,12 @@ public class SecurityIngressRulesCmd extends Command {
     }
 
     public String stringifyRules() {
+        return stringifyRules(getRuleSet());
+    }
+
+    static String stringifyRules(IpPortAndProto[] ruleSet) {
         StringBuilder ruleBuilder = new StringBuilder();
-        for (SecurityIngressRulesCmd.IpPortAndProto ipPandP: getRuleSet()) {
+        for (SecurityIngressRulesCmd.IpPortAndProto ipPandP: ruleSet) {
             ruleBuilder.append(ipPandP.getProto()).append(":").append(ipPandP.getStartPort()).append(":").append(ipPandP.getEndPort()).append(":");
             for (String cidr: ipPandP.getAllowedCidrs()) {
                 ruleBuilder.append(cidr).append(",");
@@ -166,16 +170,10 @@ public class SecurityIngressRulesCmd extends Command {
      * to scale beyond 8k cidrs.
      */
     public String compressStringifiedRules() {
-        StringBuilder ruleBuilder = new StringBuilder();
-        for (SecurityIngressRulesCmd.IpPortAndProto ipPandP: getRuleSet()) {
-            ruleBuilder.append(ipPandP.getProto()).append(":").append(ipPandP.getStartPort()).append(":").append(ipPandP.getEndPort()).append(":");
-            for (String cidr: ipPandP.getAllowedCidrs()) {
-                ruleBuilder.append(cidr).append(",");
-            }
-            ruleBuilder.append("NEXT");
-            ruleBuilder.append(" ");
-        }
-        String stringified = ruleBuilder.toString();
+        return compressRules(stringifyRules());
+    }
+
+    static String compressRules(String stringified) {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
             //Note : not using GZipOutputStream since that is for files
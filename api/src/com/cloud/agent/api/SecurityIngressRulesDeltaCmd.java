@@ -0,0 +1,197 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.agent.api;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.cloud.agent.api.LogLevel.Log4jLevel;
+import com.cloud.agent.api.SecurityIngressRulesCmd.IpPortAndProto;
+
+/**
+ * Incremental form of {@link SecurityIngressRulesCmd}: carries only the cidrs added to and
+ * revoked from the ruleset the host last programmed for the vm. The host applies it only if its
+ * rule log still holds previousSignature, otherwise it answers with
+ * {@link SecurityIngressRuleAnswer.FailureReason#SIGNATURE_MISMATCH} and the full ruleset is resent.
+ */
+public class SecurityIngressRulesDeltaCmd extends Command {
+    String guestIp;
+    String vmName;
+    String guestMac;
+    String signature;
+    String previousSignature;
+    Long seqNum;
+    Long vmId;
+    Long msId;
+    @LogLevel(Log4jLevel.Trace)
+    IpPortAndProto [] addedRules;
+    @LogLevel(Log4jLevel.Trace)
+    IpPortAndProto [] revokedRules;
+
+    protected SecurityIngressRulesDeltaCmd() {
+        super();
+    }
+
+    public SecurityIngressRulesDeltaCmd(String guestIp, String guestMac, String vmName, Long vmId, String signature, String previousSignature, Long seqNum, 
+            IpPortAndProto[] addedRules, IpPortAndProto[] revokedRules) {
+        super();
+        this.guestIp = guestIp;
+        this.guestMac = guestMac;
+        this.vmName = vmName;
+        this.vmId = vmId;
+        this.signature = signature;
+        this.previousSignature = previousSignature;
+        this.seqNum = seqNum;
+        this.addedRules = addedRules;
+        this.revokedRules = revokedRules;
+    }
+
+    /**
+     * Builds the delta that turns the ruleset of previous into the ruleset of current.
+     */
+    public static SecurityIngressRulesDeltaCmd create(SecurityIngressRulesCmd previous, SecurityIngressRulesCmd current) {
+        Map<String, Set<String>> previousCidrs = indexRules(previous.getRuleSet());
+        Map<String, Set<String>> currentCidrs = indexRules(current.getRuleSet());
+        IpPortAndProto[] added = diffRules(current.getRuleSet(), previousCidrs);
+        IpPortAndProto[] revoked = diffRules(previous.getRuleSet(), currentCidrs);
+        SecurityIngressRulesDeltaCmd cmd = new SecurityIngressRulesDeltaCmd(current.getGuestIp(), current.getGuestMac(), current.getVmName(), current.getVmId(), 
+                current.getSignature(), previous.getSignature(), current.getSeqNum(), added, revoked);
+        if (current.getMsId() != null) {
+            cmd.setMsId(current.getMsId());
+        }
+        return cmd;
+    }
+
+    private static String ruleKey(IpPortAndProto rule) {
+        return rule.getProto() + ":" + rule.getStartPort() + ":" + rule.getEndPort();
+    }
+
+    private static Map<String, Set<String>> indexRules(IpPortAndProto[] ruleSet) {
+        Map<String, Set<String>> index = new HashMap<String, Set<String>>();
+        for (IpPortAndProto rule : ruleSet) {
+            Set<String> cidrs = index.get(ruleKey(rule));
+            if (cidrs == null) {
+                cidrs = new HashSet<String>();
+                index.put(ruleKey(rule), cidrs);
+            }
+            for (String cidr : rule.getAllowedCidrs()) {
+                cidrs.add(cidr);
+            }
+        }
+        return index;
+    }
+
+    //the rules of ruleSet with only the cidrs that are missing from the other side
+    private static IpPortAndProto[] diffRules(IpPortAndProto[] ruleSet, Map<String, Set<String>> other) {
+        List<IpPortAndProto> result = new ArrayList<IpPortAndProto>();
+        for (IpPortAndProto rule : ruleSet) {
+            Set<String> otherCidrs = other.get(ruleKey(rule));
+            List<String> cidrs = new ArrayList<String>();
+            for (String cidr : rule.getAllowedCidrs()) {
+                if (otherCidrs == null || !otherCidrs.contains(cidr)) {
+                    cidrs.add(cidr);
+                }
+            }
+            if (cidrs.size() > 0) {
+                result.add(new IpPortAndProto(rule.getProto(), rule.getStartPort(), rule.getEndPort(), cidrs.toArray(new String[cidrs.size()])));
+            }
+        }
+        return result.toArray(new IpPortAndProto[result.size()]);
+    }
+
+    @Override
+    public boolean executeInSequence() {
+        return true;
+    }
+
+    public IpPortAndProto[] getAddedRules() {
+        return addedRules;
+    }
+
+    public IpPortAndProto[] getRevokedRules() {
+        return revokedRules;
+    }
+
+    public String stringifyAddedRules() {
+        return SecurityIngressRulesCmd.stringifyRules(addedRules);
+    }
+
+    public String stringifyRevokedRules() {
+        return SecurityIngressRulesCmd.stringifyRules(revokedRules);
+    }
+
+    public String compressStringifiedAddedRules() {
+        return SecurityIngressRulesCmd.compressRules(stringifyAddedRules());
+    }
+
+    public String compressStringifiedRevokedRules() {
+        return SecurityIngressRulesCmd.compressRules(stringifyRevokedRules());
+    }
+
+    public String getGuestIp() {
+        return guestIp;
+    }
+
+    public String getGuestMac() {
+        return guestMac;
+    }
+
+    public String getVmName() {
+        return vmName;
+    }
+
+    public Long getVmId() {
+        return vmId;
+    }
+
+    public String getSignature() {
+        return signature;
+    }
+
+    public String getPreviousSignature() {
+        return previousSignature;
+    }
+
+    public Long getSeqNum() {
+        return seqNum;
+    }
+
+    public int getTotalNumCidrs() {
+        //useful for logging
+        int count = 0;
+        for (IpPortAndProto i: addedRules) {
+            count += i.allowedCidrs.length;
+        }
+        for (IpPortAndProto i: revokedRules) {
+            count += i.allowedCidrs.length;
+        }
+        return count;
+    }
+
+    public void setMsId(long msId) {
+        this.msId = msId;
+    }
+
+    public Long getMsId() {
+        return msId;
+    }
+}
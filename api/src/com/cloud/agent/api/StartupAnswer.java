@@ -25,6 +25,9 @@ package com.cloud.agent.api;
 public class StartupAnswer extends Answer {
     long hostId;
     int pingInterval;
+    int wireVersion;
+    String compressionCodec;
+    int compressionThreshold;
     
     protected StartupAnswer() {
     }
@@ -46,4 +49,33 @@ public class StartupAnswer extends Answer {
     public int getPingInterval() {
         return pingInterval;
     }
+
+    /**
+     * @return the Request version the agent should use on this connection,
+     *         0 if it should stay with the version it started with.
+     */
+    public int getWireVersion() {
+        return wireVersion;
+    }
+
+    public void setWireVersion(int wireVersion) {
+        this.wireVersion = wireVersion;
+    }
+
+    /**
+     * @return the codec the agent should compress with, "none" to not
+     *         compress or null to keep the default.
+     */
+    public String getCompressionCodec() {
+        return compressionCodec;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    public void setCompression(String codec, int threshold) {
+        this.compressionCodec = codec;
+        this.compressionThreshold = threshold;
+    }
 }
@@ -44,6 +44,8 @@ public class StartupCommand extends Command {
     String agentTag;
     String resourceName;
     String gatewayIpAddress;
+    int wireVersion;
+    String compressionCodecs;
     
     public StartupCommand(Host.Type type) {
         this.type = type;
@@ -278,6 +280,30 @@ public class StartupCommand extends Command {
     public void setGatewayIpAddress(String gatewayIpAddress) {
         this.gatewayIpAddress = gatewayIpAddress;
     }
+
+    /**
+     * @return the highest Request version the agent is able to read.  0 for
+     *         agents that predate the binary marshalling.
+     */
+    public int getWireVersion() {
+        return wireVersion;
+    }
+
+    public void setWireVersion(int wireVersion) {
+        this.wireVersion = wireVersion;
+    }
+
+    /**
+     * @return comma separated compression codecs the agent can decompress.
+     *         null for agents that only know gzip.
+     */
+    public String getCompressionCodecs() {
+        return compressionCodecs;
+    }
+
+    public void setCompressionCodecs(String compressionCodecs) {
+        this.compressionCodecs = compressionCodecs;
+    }
   
     
     @Override
@@ -40,6 +40,9 @@ public class QueryAsyncJobResultCmd extends BaseCmd {
     @Parameter(name=ApiConstants.JOB_ID, type=CommandType.LONG, required=true, description="the ID of the asychronous job")
     private Long id;
 
+    @Parameter(name=ApiConstants.TIMEOUT, type=CommandType.INTEGER, description="if specified, wait up to this many seconds for the job to complete before returning")
+    private Integer timeout;
+
     /////////////////////////////////////////////////////
     /////////////////// Accessors ///////////////////////
     /////////////////////////////////////////////////////
@@ -48,6 +51,10 @@ public class QueryAsyncJobResultCmd extends BaseCmd {
         return id;
     }
 
+    public Integer getTimeout() {
+        return timeout;
+    }
+
     /////////////////////////////////////////////////////
     /////////////// API Implementation///////////////////
     /////////////////////////////////////////////////////
@@ -0,0 +1,133 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.agent.resource.virtualnetwork;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * RouterConfigBundle collects firewall and vm data changes for one router so
+ * they can be shipped in a single transfer and applied by one call to
+ * config_bundle.sh, which rolls all of them back if any one fails.
+ */
+public class RouterConfigBundle {
+    public static final String RESULT_PREFIX = "bundle:";
+    public static final String ROLLED_BACK = "Rolled back";
+    public static final String NOT_APPLIED = "Not applied";
+
+    private final List<String> _lines = new ArrayList<String>();
+
+    public void addFirewallRule(String args) {
+        _lines.add("fw " + args.trim());
+    }
+
+    public void addVmData(String vmIp, String folder, String file, byte[] data) {
+        String encoded = (data == null || data.length == 0) ? "-" : new String(Base64.encodeBase64(data));
+        _lines.add("vmdata " + vmIp + " " + folder + " " + file + " " + encoded);
+    }
+
+    public int size() {
+        return _lines.size();
+    }
+
+    public List<String> getLines() {
+        return _lines;
+    }
+
+    public File write() throws IOException {
+        File file = File.createTempFile("bundle_", null);
+        BufferedWriter out = new BufferedWriter(new FileWriter(file));
+        try {
+            for (String line : _lines) {
+                out.write(line);
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Maps the output of config_bundle.sh back to one result per line, in the
+     * form the rule answers use: null for success, otherwise the reason.  The
+     * line that failed gets "Failed", the lines applied before it
+     * "Rolled back" and the ones after it "Not applied".
+     *
+     * @return null if the output has no verdict, e.g. the router predates
+     *         config_bundle.sh and the changes have to be sent one by one.
+     */
+    public String[] parseResults(String output) {
+        if (output == null) {
+            return null;
+        }
+        String[] results = new String[_lines.size()];
+        boolean rolledBack = false;
+        boolean verdict = false;
+        int failed = -1;
+        for (String line : output.split("\n")) {
+            line = line.trim();
+            if (!line.startsWith(RESULT_PREFIX)) {
+                continue;
+            }
+            String result = line.substring(RESULT_PREFIX.length());
+            if (result.equals("ok")) {
+                verdict = true;
+            } else if (result.equals("rolledback")) {
+                verdict = true;
+                rolledBack = true;
+            } else {
+                int colon = result.indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                int index;
+                try {
+                    index = Integer.parseInt(result.substring(0, colon)) - 1;
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (index >= 0 && index < results.length && !result.substring(colon + 1).equals("0")) {
+                    failed = index;
+                }
+            }
+        }
+
+        if (!verdict) {
+            return null;
+        }
+        if (rolledBack) {
+            for (int i = 0; i < results.length; i++) {
+                if (i < failed) {
+                    results[i] = ROLLED_BACK;
+                } else if (i == failed) {
+                    results[i] = "Failed";
+                } else {
+                    results[i] = NOT_APPLIED;
+                }
+            }
+        }
+        return results;
+    }
+}
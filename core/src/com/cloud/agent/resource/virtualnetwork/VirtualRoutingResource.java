@@ -30,6 +30,7 @@ import java.net.InetSocketAddress;
 import java.net.URL;
 import java.net.URLConnection;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -99,6 +100,7 @@ public class VirtualRoutingResource implements Manager {
     private String _bumpUpPriorityPath;
     private String _l2tpVpnPath;
     private String _getDomRVersionPath;
+    private String _configBundlePath;
 
 
     private int _timeout;
@@ -222,8 +224,112 @@ public class VirtualRoutingResource implements Manager {
         
     }
 
+    private String[] getFirewallArgs(PortForwardingRuleTO rule) {
+        return new String[] {
+                rule.revoked() ? "-D" : "-A",
+                "-P ", rule.getProtocol().toLowerCase(),
+                "-l ", rule.getSrcIp(),
+                "-p ", rule.getStringSrcPortRange(),
+                "-r ", rule.getDstIp(),
+                "-d ", rule.getStringDstPortRange() };
+    }
+
+    private String[] getFirewallArgs(StaticNatRuleTO rule) {
+        List<String> args = new ArrayList<String>();
+        args.add(rule.revoked() ? "-D" : "-A");
+
+        //1:1 NAT needs instanceip;publicip;domrip;op
+        args.add(" -l ");
+        args.add(rule.getSrcIp());
+        args.add(" -r ");
+        args.add(rule.getDstIp());
+
+        if (rule.getProtocol() != null) {
+            args.add(" -P ");
+            args.add(rule.getProtocol().toLowerCase());
+        }
+
+        args.add(" -d ");
+        args.add(rule.getStringSrcPortRange());
+        args.add(" -G ");
+        return args.toArray(new String[args.size()]);
+    }
+
+    private static String join(String[] args) {
+        StringBuilder builder = new StringBuilder();
+        for (String arg : args) {
+            builder.append(arg.trim()).append(' ');
+        }
+        return builder.toString().trim();
+    }
+
+    private static boolean succeeded(String[] results) {
+        for (String result : results) {
+            if (result != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Ships the bundle to the router in one transfer and applies it with a
+     * single call to config_bundle.sh.
+     *
+     * @return one result per bundle line, or null if the bundle could not be
+     *         applied and the changes have to be sent one by one.
+     */
+    protected String[] applyConfigBundle(String routerIp, RouterConfigBundle bundle) {
+        File bundleFile = null;
+        try {
+            bundleFile = bundle.write();
+        } catch (IOException e) {
+            String tmpDir = System.getProperty("java.io.tmpdir");
+            s_logger.warn("Failed to write config bundle for router " + routerIp + ": is " + tmpDir + " full?", e);
+            return null;
+        }
+
+        try {
+            final Script command = new Script(_configBundlePath, _timeout, s_logger);
+            command.add(routerIp);
+            command.add(bundleFile.getAbsolutePath());
+
+            OutputInterpreter.AllLinesParser parser = new OutputInterpreter.AllLinesParser();
+            String result = command.execute(parser);
+            if (result != null) {
+                s_logger.warn("Config bundle of " + bundle.size() + " changes failed on router " + routerIp + ", sending them one by one: " + result);
+                return null;
+            }
+
+            String[] results = bundle.parseResults(parser.getLines());
+            if (results == null) {
+                s_logger.warn("Router " + routerIp + " did not report config bundle results, sending the " + bundle.size() + " changes one by one");
+            } else if (!succeeded(results)) {
+                s_logger.warn("Config bundle of " + bundle.size() + " changes was rolled back on router " + routerIp);
+            }
+            return results;
+        } finally {
+            if (!bundleFile.delete()) {
+                s_logger.warn("Failed to clean up config bundle file " + bundleFile.getAbsolutePath());
+                bundleFile.deleteOnExit();
+            }
+        }
+    }
+
     private Answer execute(SetPortForwardingRulesCommand cmd) {
         String routerIp = cmd.getAccessDetail(NetworkElementCommand.ROUTER_IP);
+
+        if (_configBundlePath != null && cmd.getRules().length > 1) {
+            RouterConfigBundle bundle = new RouterConfigBundle();
+            for (PortForwardingRuleTO rule : cmd.getRules()) {
+                bundle.addFirewallRule(join(getFirewallArgs(rule)));
+            }
+            String[] results = applyConfigBundle(routerIp, bundle);
+            if (results != null) {
+                return new SetPortForwardingRulesAnswer(cmd, results, succeeded(results));
+            }
+        }
+
         String[] results = new String[cmd.getRules().length];
         int i = 0;
         
@@ -233,12 +339,7 @@ public class VirtualRoutingResource implements Manager {
             final Script command = new Script(_firewallPath, _timeout, s_logger);
             
             command.add(routerIp);
-            command.add(rule.revoked() ? "-D" : "-A");
-            command.add("-P ", rule.getProtocol().toLowerCase());
-            command.add("-l ", rule.getSrcIp());
-            command.add("-p ", rule.getStringSrcPortRange());
-            command.add("-r ", rule.getDstIp());
-            command.add("-d ", rule.getStringDstPortRange());
+            command.add(getFirewallArgs(rule));
             result = command.execute();
             if (result == null) {
                 results[i++] = null;
@@ -253,6 +354,18 @@ public class VirtualRoutingResource implements Manager {
     
     private Answer execute(SetStaticNatRulesCommand cmd) {
         String routerIp = cmd.getAccessDetail(NetworkElementCommand.ROUTER_IP);
+
+        if (_configBundlePath != null && cmd.getRules().length > 1) {
+            RouterConfigBundle bundle = new RouterConfigBundle();
+            for (StaticNatRuleTO rule : cmd.getRules()) {
+                bundle.addFirewallRule(join(getFirewallArgs(rule)));
+            }
+            String[] results = applyConfigBundle(routerIp, bundle);
+            if (results != null) {
+                return new SetStaticNatRulesAnswer(cmd, results, succeeded(results));
+            }
+        }
+
         String[] results = new String[cmd.getRules().length];
         int i = 0;
         boolean endResult = true;
@@ -260,18 +373,7 @@ public class VirtualRoutingResource implements Manager {
             String result = null;
             final Script command = new Script(_firewallPath, _timeout, s_logger);
             command.add(routerIp);
-            command.add(rule.revoked() ? "-D" : "-A");
-            
-            //1:1 NAT needs instanceip;publicip;domrip;op
-            command.add(" -l ", rule.getSrcIp());
-            command.add(" -r ", rule.getDstIp());
-            
-            if (rule.getProtocol() != null) { 
-                command.add(" -P ", rule.getProtocol().toLowerCase());
-            }
-            
-            command.add(" -d ", rule.getStringSrcPortRange());
-            command.add(" -G ") ;
+            command.add(getFirewallArgs(rule));
             
             result = command.execute();
             if (result == null) {
@@ -321,23 +423,43 @@ public class VirtualRoutingResource implements Manager {
         }
     }
 
+    private static byte[] getVmDataBytes(String folder, String data) {
+        if (data == null) {
+            return null;
+        }
+        if (folder.equals("userdata")) {
+            return Base64.decodeBase64(data);//userdata is supplied in url-safe unchunked mode
+        }
+        return data.getBytes();
+    }
+
     protected Answer execute(VmDataCommand cmd) {
         List<String[]> vmData = cmd.getVmData();
 
+        if (_configBundlePath != null && vmData.size() > 1) {
+            RouterConfigBundle bundle = new RouterConfigBundle();
+            for (String[] vmDataEntry : vmData) {
+                bundle.addVmData(cmd.getVmIpAddress(), vmDataEntry[0], vmDataEntry[1], getVmDataBytes(vmDataEntry[0], vmDataEntry[2]));
+            }
+            String[] results = applyConfigBundle(cmd.getAccessDetail(NetworkElementCommand.ROUTER_IP), bundle);
+            if (results != null) {
+                for (int i = 0; i < results.length; i++) {
+                    if (results[i] != null) {
+                        String[] vmDataEntry = vmData.get(i);
+                        return new Answer(cmd, false, "Failed to apply vm data bundle at " + vmDataEntry[0] + "/" + vmDataEntry[1] + ": " + results[i]);
+                    }
+                }
+                return new Answer(cmd);
+            }
+        }
+
         for (String[] vmDataEntry : vmData) {
             String folder = vmDataEntry[0];
             String file = vmDataEntry[1];
             String data = vmDataEntry[2];
             File tmpFile = null;
 
-            byte[] dataBytes = null;
-            if (data != null) {
-                if (folder.equals("userdata")) {
-                    dataBytes = Base64.decodeBase64(data);//userdata is supplied in url-safe unchunked mode
-                } else {
-                    dataBytes = data.getBytes();
-                }
-            }
+            byte[] dataBytes = getVmDataBytes(folder, data);
 
             try {
                 tmpFile = File.createTempFile("vmdata_", null);
@@ -829,6 +951,14 @@ public class VirtualRoutingResource implements Manager {
             throw new ConfigurationException("Unable to find user_data.sh");
         }
 
+        value = (String)params.get("router.config.bundle");
+        if (Boolean.parseBoolean(value == null ? "true" : value)) {
+            _configBundlePath = findScript("call_config_bundle.sh");
+            if (_configBundlePath == null) {
+                s_logger.warn("Unable to find call_config_bundle.sh, router rules and vm data will be sent one by one");
+            }
+        }
+
         _getRouterStatusPath = findScript("getRouterStatus.sh");
         if(_getRouterStatusPath == null) {
             throw new ConfigurationException("Unable to find getRouterStatus.sh");
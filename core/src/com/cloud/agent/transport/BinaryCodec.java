@@ -0,0 +1,853 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.agent.transport;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.serializer.GsonHelper;
+import com.cloud.utils.exception.CloudRuntimeException;
+import com.google.gson.Gson;
+
+/**
+ * BinaryCodec is the marshaller for Request.Version.v4.  It walks the
+ * fields of the commands and answers through a schema that is built once
+ * per class by reflection and writes them out as tagged values, which is
+ * considerably cheaper than building and parsing the json text.
+ * 
+ * Every value is self describing, so the decoder can skip values it doesn't
+ * know about.  Class names and the field names of a class are written the
+ * first time they show up in a message and referred to by index after that,
+ * so an agent and a management server with slightly different versions of
+ * a command still understand each other the same way they do with json:
+ * missing fields are left alone and unknown fields are ignored.
+ * 
+ * Like Gson, static, transient and synthetic fields are not sent.
+ */
+public class BinaryCodec {
+    private static final Logger s_logger = Logger.getLogger(BinaryCodec.class);
+
+    protected static final Gson s_gson = GsonHelper.getGson();
+
+    protected static final byte TAG_NULL = 0;
+    protected static final byte TAG_TRUE = 1;
+    protected static final byte TAG_FALSE = 2;
+    protected static final byte TAG_BYTE = 3;
+    protected static final byte TAG_SHORT = 4;
+    protected static final byte TAG_INT = 5;
+    protected static final byte TAG_LONG = 6;
+    protected static final byte TAG_FLOAT = 7;
+    protected static final byte TAG_DOUBLE = 8;
+    protected static final byte TAG_CHAR = 9;
+    protected static final byte TAG_STRING = 10;
+    protected static final byte TAG_ENUM = 11;
+    protected static final byte TAG_BYTES = 12;
+    protected static final byte TAG_ARRAY = 13;
+    protected static final byte TAG_COLLECTION = 14;
+    protected static final byte TAG_MAP = 15;
+    protected static final byte TAG_OBJECT = 16;
+    protected static final byte TAG_DATE = 17;
+    protected static final byte TAG_JSON = 18;
+
+    private static final String s_pkg = "com.cloud.";
+    // Most classes sent are commands and answers so they are sent relative to this package.
+    private static final String s_apiPkg = "com.cloud.agent.api.";
+
+    private static final ConcurrentHashMap<Class<?>, ClassSchema> s_schemas = new ConcurrentHashMap<Class<?>, ClassSchema>();
+    private static final ConcurrentHashMap<String, Class<?>> s_classes = new ConcurrentHashMap<String, Class<?>>();
+    private static final Map<String, Class<?>> s_primitives = new HashMap<String, Class<?>>();
+    static {
+        s_primitives.put("boolean", boolean.class);
+        s_primitives.put("byte", byte.class);
+        s_primitives.put("short", short.class);
+        s_primitives.put("int", int.class);
+        s_primitives.put("long", long.class);
+        s_primitives.put("float", float.class);
+        s_primitives.put("double", double.class);
+        s_primitives.put("char", char.class);
+    }
+
+    private static Object s_unsafe;
+    private static Method s_allocateInstance;
+    static {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field f = unsafeClass.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            s_unsafe = f.get(null);
+            s_allocateInstance = unsafeClass.getMethod("allocateInstance", Class.class);
+        } catch (Exception e) {
+            s_logger.info("Classes without a default constructor can't be decoded: " + e.getMessage());
+        }
+    }
+
+    public static byte[] encode(Object value) {
+        Encoder encoder = new Encoder();
+        encoder.writeValue(value);
+        return encoder.toByteArray();
+    }
+
+    public static Object decode(byte[] bytes, int offset, int length) {
+        Decoder decoder = new Decoder(bytes, offset, length);
+        return decoder.readValue();
+    }
+
+    protected static ClassSchema getSchema(Class<?> clazz) {
+        ClassSchema schema = s_schemas.get(clazz);
+        if (schema == null) {
+            schema = new ClassSchema(clazz);
+            ClassSchema existing = s_schemas.putIfAbsent(clazz, schema);
+            if (existing != null) {
+                schema = existing;
+            }
+        }
+        return schema;
+    }
+
+    protected static Class<?> findClass(String name) {
+        Class<?> clazz = s_primitives.get(name);
+        if (clazz != null) {
+            return clazz;
+        }
+        clazz = s_classes.get(name);
+        if (clazz == null) {
+            try {
+                clazz = Class.forName(name);
+            } catch (ClassNotFoundException e) {
+                throw new CloudRuntimeException("can't find " + name);
+            }
+            s_classes.put(name, clazz);
+        }
+        return clazz;
+    }
+
+    protected static boolean isJdkClass(Class<?> clazz) {
+        String name = clazz.getName();
+        return name.startsWith("java.") || name.startsWith("javax.");
+    }
+
+    /**
+     * Field layout of a class.  Built once per class and shared by all
+     * encoders and decoders.
+     */
+    protected static class ClassSchema {
+        final Class<?> clazz;
+        final FieldInfo[] fields;
+        final Map<String, FieldInfo> byName;
+        final Constructor<?> constructor;
+
+        ClassSchema(Class<?> clazz) {
+            this.clazz = clazz;
+
+            List<FieldInfo> infos = new ArrayList<FieldInfo>();
+            byName = new HashMap<String, FieldInfo>();
+            for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    String name = field.getName();
+                    if (byName.containsKey(name)) {
+                        // shadowed by a subclass
+                        name = c.getSimpleName() + "." + name;
+                    }
+                    FieldInfo info = new FieldInfo(name, field);
+                    infos.add(info);
+                    byName.put(name, info);
+                }
+            }
+            fields = infos.toArray(new FieldInfo[infos.size()]);
+
+            Constructor<?> ctor = null;
+            try {
+                ctor = clazz.getDeclaredConstructor();
+                ctor.setAccessible(true);
+            } catch (NoSuchMethodException e) {
+                ctor = null;
+            }
+            constructor = ctor;
+        }
+
+        Object newInstance() {
+            try {
+                if (constructor != null) {
+                    return constructor.newInstance();
+                }
+                if (s_allocateInstance != null) {
+                    return s_allocateInstance.invoke(s_unsafe, clazz);
+                }
+            } catch (Exception e) {
+                throw new CloudRuntimeException("Unable to instantiate " + clazz.getName(), e);
+            }
+            throw new CloudRuntimeException("Unable to instantiate " + clazz.getName() + " without a default constructor");
+        }
+    }
+
+    protected static class FieldInfo {
+        final String name;
+        final Field field;
+        final Class<?> type;
+
+        FieldInfo(String name, Field field) {
+            this.name = name;
+            this.field = field;
+            this.type = field.getType();
+        }
+
+        void write(Encoder encoder, Object obj) throws IllegalAccessException {
+            if (type == int.class) {
+                encoder.writeByte(TAG_INT);
+                encoder.writeVarLong(field.getInt(obj));
+            } else if (type == long.class) {
+                encoder.writeByte(TAG_LONG);
+                encoder.writeVarLong(field.getLong(obj));
+            } else if (type == boolean.class) {
+                encoder.writeByte(field.getBoolean(obj) ? TAG_TRUE : TAG_FALSE);
+            } else {
+                encoder.writeValue(field.get(obj));
+            }
+        }
+
+        void set(Object obj, Object value) throws IllegalAccessException {
+            if (value == null) {
+                if (!type.isPrimitive()) {
+                    field.set(obj, null);
+                }
+                return;
+            }
+            if (value instanceof Number && !type.isInstance(value)) {
+                Number n = (Number)value;
+                if (type == int.class || type == Integer.class) {
+                    value = n.intValue();
+                } else if (type == long.class || type == Long.class) {
+                    value = n.longValue();
+                } else if (type == short.class || type == Short.class) {
+                    value = n.shortValue();
+                } else if (type == byte.class || type == Byte.class) {
+                    value = n.byteValue();
+                } else if (type == double.class || type == Double.class) {
+                    value = n.doubleValue();
+                } else if (type == float.class || type == Float.class) {
+                    value = n.floatValue();
+                }
+            }
+            try {
+                field.set(obj, value);
+            } catch (IllegalArgumentException e) {
+                s_logger.warn("Ignoring " + value.getClass().getName() + " for " + field.getDeclaringClass().getName() + "." + field.getName() + " of type " + type.getName());
+            }
+        }
+    }
+
+    protected static class Encoder {
+        byte[] _buf = new byte[512];
+        int _len = 0;
+        final Map<String, Integer> _names = new HashMap<String, Integer>();
+        final Map<ClassSchema, Integer> _schemas = new IdentityHashMap<ClassSchema, Integer>();
+
+        byte[] toByteArray() {
+            byte[] result = new byte[_len];
+            System.arraycopy(_buf, 0, result, 0, _len);
+            return result;
+        }
+
+        void ensure(int size) {
+            if (_len + size > _buf.length) {
+                byte[] buf = new byte[Math.max(_buf.length * 2, _len + size)];
+                System.arraycopy(_buf, 0, buf, 0, _len);
+                _buf = buf;
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            _buf[_len++] = (byte)b;
+        }
+
+        void writeVarUInt(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                _buf[_len++] = (byte)((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            _buf[_len++] = (byte)value;
+        }
+
+        void writeVarLong(long value) {
+            ensure(10);
+            long v = (value << 1) ^ (value >> 63);
+            while ((v & ~0x7FL) != 0) {
+                _buf[_len++] = (byte)((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            _buf[_len++] = (byte)v;
+        }
+
+        void writeString(String s) {
+            int length = s.length();
+            boolean ascii = true;
+            for (int i = 0; i < length; i++) {
+                if (s.charAt(i) >= 0x80) {
+                    ascii = false;
+                    break;
+                }
+            }
+            if (ascii) {
+                writeVarUInt(length);
+                ensure(length);
+                for (int i = 0; i < length; i++) {
+                    _buf[_len++] = (byte)s.charAt(i);
+                }
+                return;
+            }
+
+            byte[] bytes;
+            try {
+                bytes = s.getBytes("UTF-8");
+            } catch (java.io.UnsupportedEncodingException e) {
+                throw new CloudRuntimeException("UTF-8 not supported?", e);
+            }
+            writeVarUInt(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, _buf, _len, bytes.length);
+            _len += bytes.length;
+        }
+
+        void writeName(String name) {
+            Integer index = _names.get(name);
+            if (index != null) {
+                writeVarUInt(index);
+            } else {
+                writeVarUInt(_names.size());
+                _names.put(name, _names.size());
+                writeString(name);
+            }
+        }
+
+        void writeClassName(Class<?> clazz) {
+            String name = clazz.getName();
+            if (name.startsWith(s_apiPkg)) {
+                name = name.substring(s_apiPkg.length() - 1);
+            }
+            writeName(name);
+        }
+
+        void writeValue(Object value) {
+            if (value == null) {
+                writeByte(TAG_NULL);
+                return;
+            }
+
+            Class<?> clazz = value.getClass();
+            if (clazz == String.class) {
+                writeByte(TAG_STRING);
+                writeString((String)value);
+            } else if (clazz == Integer.class) {
+                writeByte(TAG_INT);
+                writeVarLong((Integer)value);
+            } else if (clazz == Long.class) {
+                writeByte(TAG_LONG);
+                writeVarLong((Long)value);
+            } else if (clazz == Boolean.class) {
+                writeByte(((Boolean)value) ? TAG_TRUE : TAG_FALSE);
+            } else if (clazz == Double.class) {
+                writeByte(TAG_DOUBLE);
+                writeLong(Double.doubleToLongBits((Double)value));
+            } else if (clazz == Float.class) {
+                writeByte(TAG_FLOAT);
+                writeLong(Float.floatToIntBits((Float)value));
+            } else if (clazz == Short.class) {
+                writeByte(TAG_SHORT);
+                writeVarLong((Short)value);
+            } else if (clazz == Byte.class) {
+                writeByte(TAG_BYTE);
+                writeVarLong((Byte)value);
+            } else if (clazz == Character.class) {
+                writeByte(TAG_CHAR);
+                writeVarUInt((Character)value);
+            } else if (clazz == byte[].class) {
+                byte[] bytes = (byte[])value;
+                writeByte(TAG_BYTES);
+                writeVarUInt(bytes.length);
+                ensure(bytes.length);
+                System.arraycopy(bytes, 0, _buf, _len, bytes.length);
+                _len += bytes.length;
+            } else if (value instanceof Enum) {
+                writeByte(TAG_ENUM);
+                writeClassName(((Enum<?>)value).getDeclaringClass());
+                writeName(((Enum<?>)value).name());
+            } else if (clazz.isArray()) {
+                int length = Array.getLength(value);
+                writeByte(TAG_ARRAY);
+                writeClassName(clazz.getComponentType());
+                writeVarUInt(length);
+                if (value instanceof Object[]) {
+                    for (Object element : (Object[])value) {
+                        writeValue(element);
+                    }
+                } else {
+                    for (int i = 0; i < length; i++) {
+                        writeValue(Array.get(value, i));
+                    }
+                }
+            } else if (value instanceof Collection) {
+                Collection<?> collection = (Collection<?>)value;
+                writeByte(TAG_COLLECTION);
+                writeName(getCollectionClass(collection).getName());
+                writeVarUInt(collection.size());
+                for (Object element : collection) {
+                    writeValue(element);
+                }
+            } else if (value instanceof Map) {
+                Map<?, ?> map = (Map<?, ?>)value;
+                writeByte(TAG_MAP);
+                writeName(getMapClass(map).getName());
+                writeVarUInt(map.size());
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    writeValue(entry.getKey());
+                    writeValue(entry.getValue());
+                }
+            } else if (clazz == Date.class) {
+                writeByte(TAG_DATE);
+                writeVarLong(((Date)value).getTime());
+            } else if (isJdkClass(clazz)) {
+                writeByte(TAG_JSON);
+                writeClassName(clazz);
+                writeString(s_gson.toJson(value));
+            } else if (clazz.isAnonymousClass() || clazz.isLocalClass()) {
+                // Gson doesn't serialize these either.
+                writeByte(TAG_NULL);
+            } else {
+                writeObject(value, getSchema(clazz));
+            }
+        }
+
+        void writeLong(long value) {
+            ensure(8);
+            for (int i = 56; i >= 0; i -= 8) {
+                _buf[_len++] = (byte)(value >>> i);
+            }
+        }
+
+        void writeObject(Object value, ClassSchema schema) {
+            writeByte(TAG_OBJECT);
+            Integer index = _schemas.get(schema);
+            if (index != null) {
+                writeVarUInt(index);
+            } else {
+                writeVarUInt(_schemas.size());
+                _schemas.put(schema, _schemas.size());
+                writeClassName(schema.clazz);
+                writeVarUInt(schema.fields.length);
+                for (FieldInfo field : schema.fields) {
+                    writeName(field.name);
+                }
+            }
+
+            try {
+                for (FieldInfo field : schema.fields) {
+                    field.write(this, value);
+                }
+            } catch (IllegalAccessException e) {
+                throw new CloudRuntimeException("Unable to encode " + schema.clazz.getName(), e);
+            }
+        }
+
+        static Class<?> getCollectionClass(Collection<?> collection) {
+            Class<?> clazz = collection.getClass();
+            if (clazz.getName().startsWith("java.util.") && Modifier.isPublic(clazz.getModifiers()) && hasDefaultConstructor(clazz)) {
+                return clazz;
+            }
+            if (collection instanceof SortedSet) {
+                return TreeSet.class;
+            } else if (collection instanceof Set) {
+                return HashSet.class;
+            }
+            return ArrayList.class;
+        }
+
+        static Class<?> getMapClass(Map<?, ?> map) {
+            Class<?> clazz = map.getClass();
+            if (clazz.getName().startsWith("java.util.") && Modifier.isPublic(clazz.getModifiers()) && hasDefaultConstructor(clazz)) {
+                return clazz;
+            }
+            if (map instanceof SortedMap) {
+                return TreeMap.class;
+            }
+            return HashMap.class;
+        }
+
+        static boolean hasDefaultConstructor(Class<?> clazz) {
+            try {
+                return Modifier.isPublic(clazz.getConstructor().getModifiers());
+            } catch (NoSuchMethodException e) {
+                return false;
+            }
+        }
+    }
+
+    protected static class Decoder {
+        final byte[] _buf;
+        int _pos;
+        final int _end;
+        final List<String> _names = new ArrayList<String>();
+        final List<WireSchema> _schemas = new ArrayList<WireSchema>();
+
+        Decoder(byte[] bytes, int offset, int length) {
+            _buf = bytes;
+            _pos = offset;
+            _end = offset + length;
+        }
+
+        byte readByte() {
+            if (_pos >= _end) {
+                throw new CloudRuntimeException("Unexpected end of binary request at " + _pos);
+            }
+            return _buf[_pos++];
+        }
+
+        int readVarUInt() {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = readByte();
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        long readVarLong() {
+            long v = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = readByte();
+                v |= (long)(b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        long readLong() {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (readByte() & 0xFF);
+            }
+            return value;
+        }
+
+        /**
+         * Checks a peer supplied count of items that take at least one byte each
+         * before anything is allocated for them.
+         */
+        int readLength(String what) {
+            int length = readVarUInt();
+            if (length < 0 || length > _end - _pos) {
+                throw new CloudRuntimeException(what + " runs past the end of the binary request at " + _pos);
+            }
+            return length;
+        }
+
+        String readString() {
+            int length = readLength("String");
+            boolean ascii = true;
+            for (int i = _pos; i < _pos + length; i++) {
+                if (_buf[i] < 0) {
+                    ascii = false;
+                    break;
+                }
+            }
+            String s;
+            if (ascii) {
+                char[] chars = new char[length];
+                for (int i = 0; i < length; i++) {
+                    chars[i] = (char)_buf[_pos + i];
+                }
+                s = new String(chars);
+            } else {
+                try {
+                    s = new String(_buf, _pos, length, "UTF-8");
+                } catch (java.io.UnsupportedEncodingException e) {
+                    throw new CloudRuntimeException("UTF-8 not supported?", e);
+                }
+            }
+            _pos += length;
+            return s;
+        }
+
+        String readName() {
+            int index = readVarUInt();
+            if (index < _names.size()) {
+                return _names.get(index);
+            }
+            if (index != _names.size()) {
+                throw new CloudRuntimeException("Bad name reference " + index + " at " + _pos);
+            }
+            String name = readString();
+            _names.add(name);
+            return name;
+        }
+
+        String readClassName() {
+            String name = readName();
+            if (name.startsWith(".")) {
+                name = s_apiPkg + name.substring(1);
+            }
+            return name;
+        }
+
+        /**
+         * Only loads classes a peer may legitimately send: primitives, our own
+         * classes, jdk classes and arrays of those.
+         */
+        Class<?> readAllowedClass() {
+            String name = readClassName();
+            String element = name;
+            if (name.startsWith("[")) {
+                // component of a nested array, e.g. [I or [Ljava.lang.String;
+                element = name.substring(name.lastIndexOf('[') + 1);
+                if (element.length() == 1) {
+                    return findClass(name);
+                }
+                if (element.startsWith("L") && element.endsWith(";")) {
+                    element = element.substring(1, element.length() - 1);
+                }
+            }
+            if (!s_primitives.containsKey(element) && !element.startsWith(s_pkg) && !element.startsWith("java.")) {
+                throw new CloudRuntimeException("Refusing to decode " + name);
+            }
+            return findClass(name);
+        }
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        Object readValue() {
+            byte tag = readByte();
+            switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_TRUE:
+                return Boolean.TRUE;
+            case TAG_FALSE:
+                return Boolean.FALSE;
+            case TAG_BYTE:
+                return (byte)readVarLong();
+            case TAG_SHORT:
+                return (short)readVarLong();
+            case TAG_INT:
+                return (int)readVarLong();
+            case TAG_LONG:
+                return readVarLong();
+            case TAG_FLOAT:
+                return Float.intBitsToFloat((int)readLong());
+            case TAG_DOUBLE:
+                return Double.longBitsToDouble(readLong());
+            case TAG_CHAR:
+                return (char)readVarUInt();
+            case TAG_STRING:
+                return readString();
+            case TAG_ENUM: {
+                Class<?> clazz = readAllowedClass();
+                String name = readName();
+                if (!clazz.isEnum()) {
+                    throw new CloudRuntimeException(clazz.getName() + " is not an enum");
+                }
+                try {
+                    return Enum.valueOf((Class<Enum>)clazz, name);
+                } catch (IllegalArgumentException e) {
+                    s_logger.warn("Unknown value " + name + " for " + clazz.getName());
+                    return null;
+                }
+            }
+            case TAG_BYTES: {
+                int length = readLength("Byte array");
+                byte[] bytes = new byte[length];
+                System.arraycopy(_buf, _pos, bytes, 0, length);
+                _pos += length;
+                return bytes;
+            }
+            case TAG_ARRAY: {
+                Class<?> component = readAllowedClass();
+                int length = readLength("Array");
+                Object array = Array.newInstance(component, length);
+                for (int i = 0; i < length; i++) {
+                    Object element = readValue();
+                    if (element != null || !component.isPrimitive()) {
+                        if (component.isPrimitive()) {
+                            element = coerce(element, component);
+                        }
+                        Array.set(array, i, element);
+                    }
+                }
+                return array;
+            }
+            case TAG_COLLECTION: {
+                Class<?> clazz = getAllowedClass(readName(), Collection.class);
+                int size = readLength("Collection");
+                Collection collection = (Collection)newInstance(clazz);
+                for (int i = 0; i < size; i++) {
+                    collection.add(readValue());
+                }
+                return collection;
+            }
+            case TAG_MAP: {
+                Class<?> clazz = getAllowedClass(readName(), Map.class);
+                int size = readLength("Map");
+                Map map = (Map)newInstance(clazz);
+                for (int i = 0; i < size; i++) {
+                    Object key = readValue();
+                    map.put(key, readValue());
+                }
+                return map;
+            }
+            case TAG_DATE:
+                return new Date(readVarLong());
+            case TAG_JSON: {
+                Class<?> clazz = readAllowedClass();
+                if (!isJdkClass(clazz)) {
+                    throw new CloudRuntimeException("Json encoding is only used for jdk classes: " + clazz.getName());
+                }
+                return s_gson.fromJson(readString(), clazz);
+            }
+            case TAG_OBJECT:
+                return readObject();
+            default:
+                throw new CloudRuntimeException("Unknown tag " + tag + " at " + (_pos - 1));
+            }
+        }
+
+        Object readObject() {
+            int index = readVarUInt();
+            WireSchema schema;
+            if (index < _schemas.size()) {
+                schema = _schemas.get(index);
+            } else if (index == _schemas.size()) {
+                String name = readClassName();
+                if (!name.startsWith(s_pkg)) {
+                    throw new CloudRuntimeException("Refusing to decode " + name);
+                }
+                Class<?> clazz = findClass(name);
+                ClassSchema local = getSchema(clazz);
+                int count = readVarUInt();
+                FieldInfo[] fields = new FieldInfo[count];
+                for (int i = 0; i < count; i++) {
+                    String fieldName = readName();
+                    fields[i] = local.byName.get(fieldName);
+                    if (fields[i] == null && s_logger.isDebugEnabled()) {
+                        s_logger.debug("Skipping unknown field " + fieldName + " of " + name);
+                    }
+                }
+                schema = new WireSchema(local, fields);
+                _schemas.add(schema);
+            } else {
+                throw new CloudRuntimeException("Bad schema reference " + index + " at " + _pos);
+            }
+
+            Object obj = schema.local.newInstance();
+            try {
+                for (FieldInfo field : schema.fields) {
+                    Object value = readValue();
+                    if (field != null) {
+                        field.set(obj, value);
+                    }
+                }
+            } catch (IllegalAccessException e) {
+                throw new CloudRuntimeException("Unable to decode " + schema.local.clazz.getName(), e);
+            }
+            return obj;
+        }
+
+        static Class<?> getAllowedClass(String name, Class<?> base) {
+            if (!name.startsWith("java.util.")) {
+                throw new CloudRuntimeException("Refusing to decode " + name + " as a " + base.getSimpleName());
+            }
+            Class<?> clazz = findClass(name);
+            if (!base.isAssignableFrom(clazz)) {
+                throw new CloudRuntimeException("Refusing to decode " + name + " as a " + base.getSimpleName());
+            }
+            return clazz;
+        }
+
+        static Object newInstance(Class<?> clazz) {
+            try {
+                return clazz.newInstance();
+            } catch (InstantiationException e) {
+                throw new CloudRuntimeException("Unable to instantiate " + clazz.getName(), e);
+            } catch (IllegalAccessException e) {
+                throw new CloudRuntimeException("Unable to instantiate " + clazz.getName(), e);
+            }
+        }
+
+        static Object coerce(Object value, Class<?> type) {
+            if (!(value instanceof Number)) {
+                return value;
+            }
+            Number n = (Number)value;
+            if (type == int.class) {
+                return n.intValue();
+            } else if (type == long.class) {
+                return n.longValue();
+            } else if (type == short.class) {
+                return n.shortValue();
+            } else if (type == byte.class) {
+                return n.byteValue();
+            } else if (type == double.class) {
+                return n.doubleValue();
+            } else if (type == float.class) {
+                return n.floatValue();
+            }
+            return value;
+        }
+    }
+
+    /**
+     * The field layout of a class as it was written by the other side,
+     * mapped onto the local fields.
+     */
+    protected static class WireSchema {
+        final ClassSchema local;
+        final FieldInfo[] fields;
+
+        WireSchema(ClassSchema local, FieldInfo[] fields) {
+            this.local = local;
+            this.fields = fields;
+        }
+    }
+}
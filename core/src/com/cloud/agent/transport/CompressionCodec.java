@@ -0,0 +1,130 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.agent.transport;
+
+import java.nio.ByteBuffer;
+
+/**
+ * CompressionCodec compresses the payload of a Request once it is larger
+ * than the threshold configured for the connection.  The codec used is
+ * recorded in the flags of the request so the receiving side can pick the
+ * same one without any other state.
+ * 
+ * gzip is what every agent understands.  Other codecs are only used on a
+ * connection after the agent listed them in its StartupCommand.
+ */
+public abstract class CompressionCodec {
+    public static final CompressionCodec GZIP = new GzipCompressionCodec();
+    public static final CompressionCodec LZ4 = new Lz4CompressionCodec();
+
+    private static final CompressionCodec[] s_codecs = new CompressionCodec[] { LZ4, GZIP };
+
+    /**
+     * @return name of the codec as used in the configuration and negotiation.
+     */
+    public abstract String getName();
+
+    /**
+     * @return the flags marking a request compressed by this codec.
+     */
+    protected abstract short getFlags();
+
+    /**
+     * @param buffer uncompressed data from position to limit.
+     * @param length number of bytes to compress.
+     * @return the compressed data from position to limit.
+     */
+    public abstract ByteBuffer compress(ByteBuffer buffer, int length);
+
+    /**
+     * @param buffer compressed data from position to limit.
+     * @param length size of the data before it was compressed.
+     * @return the decompressed data from position to limit.
+     */
+    public abstract ByteBuffer decompress(ByteBuffer buffer, int length);
+
+    /**
+     * @param name name of the codec.
+     * @return the codec or null if name is "none" or not a known codec.
+     */
+    public static CompressionCodec get(String name) {
+        if (name == null) {
+            return null;
+        }
+        for (CompressionCodec codec : s_codecs) {
+            if (codec.getName().equalsIgnoreCase(name.trim())) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param flags flags of a compressed request.
+     * @return the codec that compressed it.
+     */
+    public static CompressionCodec get(short flags) {
+        for (CompressionCodec codec : s_codecs) {
+            if ((flags & Request.FLAG_COMPRESSION_MASK) == codec.getFlags()) {
+                return codec;
+            }
+        }
+        return GZIP;
+    }
+
+    /**
+     * @return comma separated names of the codecs this side can decompress.
+     */
+    public static String getSupportedNames() {
+        StringBuilder names = new StringBuilder();
+        for (CompressionCodec codec : s_codecs) {
+            if (names.length() > 0) {
+                names.append(",");
+            }
+            names.append(codec.getName());
+        }
+        return names.toString();
+    }
+
+    /**
+     * @param names comma separated names as returned by getSupportedNames().
+     * @return true if this codec is one of them.
+     */
+    public boolean isIn(String names) {
+        if (names == null) {
+            return false;
+        }
+        for (String name : names.split(",")) {
+            if (getName().equalsIgnoreCase(name.trim())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+
+    protected static byte[] getArray(ByteBuffer buffer, int length) {
+        byte[] array = new byte[length];
+        buffer.duplicate().get(array);
+        return array;
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.agent.transport;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.mgmt.JmxUtil;
+
+/**
+ * Compression statistics of one connection.  Requests record into it when
+ * they are compressed in toBytes() and when they are decompressed in parse().
+ */
+public class CompressionStats extends StandardMBean implements CompressionStatsMBean {
+    private static final Logger s_logger = Logger.getLogger(CompressionStats.class);
+
+    private volatile CompressionCodec _codec;
+    private volatile int _threshold;
+
+    private final AtomicLong _compressed = new AtomicLong();
+    private final AtomicLong _uncompressed = new AtomicLong();
+    private final AtomicLong _bytesIn = new AtomicLong();
+    private final AtomicLong _bytesOut = new AtomicLong();
+    private final AtomicLong _compressNanos = new AtomicLong();
+    private final AtomicLong _decompressed = new AtomicLong();
+    private final AtomicLong _compressedBytesReceived = new AtomicLong();
+    private final AtomicLong _bytesReceived = new AtomicLong();
+    private final AtomicLong _decompressNanos = new AtomicLong();
+
+    public CompressionStats() {
+        super(CompressionStatsMBean.class, false);
+        _codec = CompressionCodec.GZIP;
+        _threshold = Request.DEFAULT_COMPRESSION_THRESHOLD;
+    }
+
+    public void registerMBean(String name) {
+        try {
+            JmxUtil.registerMBean("AgentCompression", name, this);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register the compression statistics of " + name + " to JMX", e);
+        }
+    }
+
+    public void unregisterMBean(String name) {
+        try {
+            JmxUtil.unregisterMBean("AgentCompression", name);
+        } catch (Exception e) {
+            s_logger.debug("Unable to unregister the compression statistics of " + name + " from JMX: " + e.getMessage());
+        }
+    }
+
+    public void setCompression(CompressionCodec codec, int threshold) {
+        _codec = codec;
+        _threshold = threshold;
+    }
+
+    public void recordCompression(int before, int after, long nanos) {
+        _compressed.incrementAndGet();
+        _bytesIn.addAndGet(before);
+        _bytesOut.addAndGet(after);
+        _compressNanos.addAndGet(nanos);
+    }
+
+    public void recordUncompressed() {
+        _uncompressed.incrementAndGet();
+    }
+
+    public void recordDecompression(int before, int after, long nanos) {
+        _decompressed.incrementAndGet();
+        _compressedBytesReceived.addAndGet(before);
+        _bytesReceived.addAndGet(after);
+        _decompressNanos.addAndGet(nanos);
+    }
+
+    @Override
+    public String getCodec() {
+        CompressionCodec codec = _codec;
+        return codec == null ? "none" : codec.getName();
+    }
+
+    @Override
+    public int getThreshold() {
+        return _threshold;
+    }
+
+    @Override
+    public long getCompressedMessages() {
+        return _compressed.get();
+    }
+
+    @Override
+    public long getUncompressedMessages() {
+        return _uncompressed.get();
+    }
+
+    @Override
+    public long getBytesBeforeCompression() {
+        return _bytesIn.get();
+    }
+
+    @Override
+    public long getBytesAfterCompression() {
+        return _bytesOut.get();
+    }
+
+    @Override
+    public long getBytesSaved() {
+        return (_bytesIn.get() - _bytesOut.get()) + (_bytesReceived.get() - _compressedBytesReceived.get());
+    }
+
+    @Override
+    public long getCompressionTimeMicros() {
+        return _compressNanos.get() / 1000;
+    }
+
+    @Override
+    public long getDecompressedMessages() {
+        return _decompressed.get();
+    }
+
+    @Override
+    public long getBytesBeforeDecompression() {
+        return _compressedBytesReceived.get();
+    }
+
+    @Override
+    public long getBytesAfterDecompression() {
+        return _bytesReceived.get();
+    }
+
+    @Override
+    public long getDecompressionTimeMicros() {
+        return _decompressNanos.get() / 1000;
+    }
+
+    @Override
+    public void reset() {
+        _compressed.set(0);
+        _uncompressed.set(0);
+        _bytesIn.set(0);
+        _bytesOut.set(0);
+        _compressNanos.set(0);
+        _decompressed.set(0);
+        _compressedBytesReceived.set(0);
+        _bytesReceived.set(0);
+        _decompressNanos.set(0);
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.agent.transport;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.log4j.Logger;
+
+/**
+ * gzip compatible with GZIPOutputStream and GZIPInputStream on the other
+ * side but without their buffers and streams.  The Deflater and Inflater are
+ * kept per thread because allocating their native state is a large part of
+ * compressing a small message.
+ */
+public class GzipCompressionCodec extends CompressionCodec {
+    private static final Logger s_logger = Logger.getLogger(GzipCompressionCodec.class);
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final int HEADER_SIZE = 10;
+    private static final int TRAILER_SIZE = 8;
+
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    /* Add default length to support 2.2.8 */
+    private static final int DEFAULT_LENGTH = 65535;
+
+    private static final ThreadLocal<Deflater> s_deflater = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> s_inflater = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    protected GzipCompressionCodec() {
+    }
+
+    @Override
+    public String getName() {
+        return "gzip";
+    }
+
+    @Override
+    protected short getFlags() {
+        return Request.FLAG_COMPRESSED;
+    }
+
+    @Override
+    public ByteBuffer compress(ByteBuffer buffer, int length) {
+        byte[] in;
+        int offset;
+        if (buffer.hasArray()) {
+            in = buffer.array();
+            offset = buffer.arrayOffset() + buffer.position();
+        } else {
+            in = getArray(buffer, length);
+            offset = 0;
+        }
+
+        byte[] out = new byte[HEADER_SIZE + length + (length >> 10) + 64 + TRAILER_SIZE];
+        out[0] = (byte)GZIP_MAGIC;
+        out[1] = (byte)(GZIP_MAGIC >> 8);
+        out[2] = Deflater.DEFLATED;
+
+        Deflater deflater = s_deflater.get();
+        deflater.reset();
+        deflater.setInput(in, offset, length);
+        deflater.finish();
+        int pos = HEADER_SIZE;
+        while (!deflater.finished()) {
+            if (pos == out.length - TRAILER_SIZE) {
+                byte[] bigger = new byte[out.length * 2];
+                System.arraycopy(out, 0, bigger, 0, pos);
+                out = bigger;
+            }
+            pos += deflater.deflate(out, pos, out.length - TRAILER_SIZE - pos);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(in, offset, length);
+        writeInt(out, pos, (int)crc.getValue());
+        writeInt(out, pos + 4, length);
+
+        return ByteBuffer.wrap(out, 0, pos + TRAILER_SIZE);
+    }
+
+    @Override
+    public ByteBuffer decompress(ByteBuffer buffer, int length) {
+        byte[] in;
+        int pos;
+        int end;
+        if (buffer.hasArray()) {
+            in = buffer.array();
+            pos = buffer.arrayOffset() + buffer.position();
+            end = buffer.arrayOffset() + buffer.limit();
+        } else {
+            in = getArray(buffer, buffer.remaining());
+            pos = 0;
+            end = in.length;
+        }
+
+        byte[] out = new byte[length > 0 ? length : DEFAULT_LENGTH];
+        int len = 0;
+        try {
+            pos = skipHeader(in, pos, end);
+
+            Inflater inflater = s_inflater.get();
+            inflater.reset();
+            inflater.setInput(in, pos, end - pos);
+            while (!inflater.finished()) {
+                if (len == out.length) {
+                    byte[] bigger = new byte[out.length * 2];
+                    System.arraycopy(out, 0, bigger, 0, len);
+                    out = bigger;
+                }
+                int n = inflater.inflate(out, len, out.length - len);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated gzip data after " + len + " bytes");
+                }
+                len += n;
+            }
+        } catch (DataFormatException e) {
+            s_logger.error("Fail to decompress the request!", e);
+        }
+        return ByteBuffer.wrap(out, 0, len);
+    }
+
+    protected static int skipHeader(byte[] in, int pos, int end) throws DataFormatException {
+        if (end - pos < HEADER_SIZE || (in[pos] & 0xff) != (GZIP_MAGIC & 0xff) || (in[pos + 1] & 0xff) != (GZIP_MAGIC >> 8) || in[pos + 2] != Deflater.DEFLATED) {
+            throw new DataFormatException("Not in gzip format");
+        }
+        int flags = in[pos + 3] & 0xff;
+        pos += HEADER_SIZE;
+        if ((flags & FEXTRA) != 0) {
+            pos += 2 + ((in[pos] & 0xff) | ((in[pos + 1] & 0xff) << 8));
+        }
+        if ((flags & FNAME) != 0) {
+            while (pos < end && in[pos++] != 0) {
+            }
+        }
+        if ((flags & FCOMMENT) != 0) {
+            while (pos < end && in[pos++] != 0) {
+            }
+        }
+        if ((flags & FHCRC) != 0) {
+            pos += 2;
+        }
+        if (pos > end) {
+            throw new DataFormatException("Truncated gzip header");
+        }
+        return pos;
+    }
+
+    private static void writeInt(byte[] out, int pos, int value) {
+        out[pos] = (byte)value;
+        out[pos + 1] = (byte)(value >> 8);
+        out[pos + 2] = (byte)(value >> 16);
+        out[pos + 3] = (byte)(value >> 24);
+    }
+}
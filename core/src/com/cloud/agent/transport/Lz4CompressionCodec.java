@@ -0,0 +1,259 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.agent.transport;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * Compresses in the LZ4 block format.  It gives up some of the ratio of gzip
+ * for compressing and decompressing several times faster, which is the
+ * better trade for the json and binary payloads on a local network.
+ * 
+ * The size of the uncompressed data is already in the request header so
+ * only the block itself is sent.
+ */
+public class Lz4CompressionCodec extends CompressionCodec {
+    private static final int MIN_MATCH = 4;
+    private static final int HASH_LOG = 12;
+    private static final int MAX_DISTANCE = 65535;
+    // The last match must start at least 12 bytes before the end and the
+    // last 5 bytes are always literals.
+    private static final int MF_LIMIT = 12;
+    private static final int LAST_LITERALS = 5;
+    private static final int SKIP_TRIGGER = 6;
+
+    private static final ThreadLocal<int[]> s_hashTable = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1 << HASH_LOG];
+        }
+    };
+
+    protected Lz4CompressionCodec() {
+    }
+
+    @Override
+    public String getName() {
+        return "lz4";
+    }
+
+    @Override
+    protected short getFlags() {
+        return Request.FLAG_COMPRESSED | Request.FLAG_LZ4;
+    }
+
+    @Override
+    public ByteBuffer compress(ByteBuffer buffer, int length) {
+        byte[] in;
+        int offset;
+        if (buffer.hasArray()) {
+            in = buffer.array();
+            offset = buffer.arrayOffset() + buffer.position();
+        } else {
+            in = getArray(buffer, length);
+            offset = 0;
+        }
+
+        byte[] out = new byte[maxCompressedLength(length)];
+        int len = compress(in, offset, length, out, 0);
+        return ByteBuffer.wrap(out, 0, len);
+    }
+
+    @Override
+    public ByteBuffer decompress(ByteBuffer buffer, int length) {
+        byte[] in;
+        int offset;
+        if (buffer.hasArray()) {
+            in = buffer.array();
+            offset = buffer.arrayOffset() + buffer.position();
+        } else {
+            in = getArray(buffer, buffer.remaining());
+            offset = 0;
+        }
+
+        byte[] out = new byte[length];
+        decompress(in, offset, buffer.remaining(), out, 0, length);
+        return ByteBuffer.wrap(out);
+    }
+
+    public static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    private static int hash(int value) {
+        return (value * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    private static int readInt(byte[] buf, int pos) {
+        return (buf[pos] & 0xff) | ((buf[pos + 1] & 0xff) << 8) | ((buf[pos + 2] & 0xff) << 16) | ((buf[pos + 3] & 0xff) << 24);
+    }
+
+    /**
+     * Compresses src[srcOff, srcOff + srcLen) into dst which must have at
+     * least maxCompressedLength(srcLen) bytes left.
+     * @return number of bytes written to dst.
+     */
+    public static int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+        int[] table = s_hashTable.get();
+        Arrays.fill(table, -1);
+
+        final int end = srcOff + srcLen;
+        final int mfLimit = end - MF_LIMIT;
+        final int matchLimit = end - LAST_LITERALS;
+
+        int anchor = srcOff;
+        int op = dstOff;
+        int ip = srcOff;
+        int searchCount = 1 << SKIP_TRIGGER;
+
+        while (ip < mfLimit) {
+            int sequence = readInt(src, ip);
+            int h = hash(sequence);
+            int ref = table[h];
+            table[h] = ip;
+            if (ref < 0 || ip - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+                // Step faster through data that doesn't compress.
+                ip += searchCount++ >>> SKIP_TRIGGER;
+                continue;
+            }
+            searchCount = 1 << SKIP_TRIGGER;
+
+            while (ip > anchor && ref > srcOff && src[ip - 1] == src[ref - 1]) {
+                ip--;
+                ref--;
+            }
+
+            int matchLen = MIN_MATCH;
+            while (ip + matchLen < matchLimit && src[ip + matchLen] == src[ref + matchLen]) {
+                matchLen++;
+            }
+
+            op = writeSequence(src, anchor, ip - anchor, dst, op, ip - ref, matchLen);
+            ip += matchLen;
+            anchor = ip;
+            if (ip - 2 < mfLimit) {
+                table[hash(readInt(src, ip - 2))] = ip - 2;
+            }
+        }
+
+        return writeSequence(src, anchor, end - anchor, dst, op, 0, 0);
+    }
+
+    private static int writeSequence(byte[] src, int literalOff, int literalLen, byte[] dst, int op, int offset, int matchLen) {
+        int token = op++;
+        if (literalLen >= 15) {
+            dst[token] = (byte)(15 << 4);
+            op = writeLength(dst, op, literalLen - 15);
+        } else {
+            dst[token] = (byte)(literalLen << 4);
+        }
+        System.arraycopy(src, literalOff, dst, op, literalLen);
+        op += literalLen;
+
+        if (matchLen == 0) {
+            return op;
+        }
+
+        dst[op++] = (byte)offset;
+        dst[op++] = (byte)(offset >>> 8);
+        int len = matchLen - MIN_MATCH;
+        if (len >= 15) {
+            dst[token] |= 15;
+            op = writeLength(dst, op, len - 15);
+        } else {
+            dst[token] |= len;
+        }
+        return op;
+    }
+
+    private static int writeLength(byte[] dst, int op, int len) {
+        while (len >= 255) {
+            dst[op++] = (byte)255;
+            len -= 255;
+        }
+        dst[op++] = (byte)len;
+        return op;
+    }
+
+    /**
+     * Decompresses a block into exactly dstLen bytes of dst.
+     */
+    public static void decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen) {
+        final int srcEnd = srcOff + srcLen;
+        final int dstEnd = dstOff + dstLen;
+        int ip = srcOff;
+        int op = dstOff;
+        try {
+            while (true) {
+                int token = src[ip++] & 0xff;
+
+                int literalLen = token >>> 4;
+                if (literalLen == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xff;
+                        literalLen += b;
+                    } while (b == 255);
+                }
+                if (ip + literalLen > srcEnd || op + literalLen > dstEnd) {
+                    throw new CloudRuntimeException("Malformed lz4 block: literals run past the end");
+                }
+                System.arraycopy(src, ip, dst, op, literalLen);
+                ip += literalLen;
+                op += literalLen;
+                if (ip == srcEnd) {
+                    break;
+                }
+
+                int offset = (src[ip] & 0xff) | ((src[ip + 1] & 0xff) << 8);
+                ip += 2;
+                int matchLen = token & 0x0f;
+                if (matchLen == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xff;
+                        matchLen += b;
+                    } while (b == 255);
+                }
+                matchLen += MIN_MATCH;
+
+                int ref = op - offset;
+                if (offset == 0 || ref < dstOff || op + matchLen > dstEnd) {
+                    throw new CloudRuntimeException("Malformed lz4 block: bad match at " + (ip - srcOff));
+                }
+                if (offset >= matchLen) {
+                    System.arraycopy(dst, ref, dst, op, matchLen);
+                    op += matchLen;
+                } else {
+                    for (int i = 0; i < matchLen; i++) {
+                        dst[op++] = dst[ref++];
+                    }
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new CloudRuntimeException("Malformed lz4 block: truncated at " + (ip - srcOff));
+        }
+
+        if (op != dstEnd) {
+            throw new CloudRuntimeException("Malformed lz4 block: decompressed " + (op - dstOff) + " bytes instead of " + dstLen);
+        }
+    }
+}
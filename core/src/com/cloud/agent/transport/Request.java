@@ -17,16 +17,12 @@
  */
 package com.cloud.agent.transport;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.lang.reflect.Array;
 import java.lang.reflect.Type;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -56,6 +52,10 @@ import com.google.gson.JsonSerializer;
  * It does not version the changes in the actual commands. That's expected
  * to be done by adding new classes to the command and answer list.
  * 
+ * Version v4 carries the commands in the BinaryCodec format instead of json.
+ * It is only used on a connection after the agent and the management server
+ * agreed on it during startup; everything else still goes out as v1.
+ * 
  * A request looks as follows:
  * 1. Version - 1 byte;
  * 2. Flags - 3 bytes;
@@ -76,7 +76,8 @@ public class Request {
     public enum Version {
         v1, // using gson to marshall
         v2, // now using gson as marshalled.
-        v3; // Adding routing information into the Request data structure.
+        v3, // Adding routing information into the Request data structure.
+        v4; // same as v1 but marshalled with BinaryCodec.
 
         public static Version get(final byte ver) throws UnsupportedVersionException {
             for (final Version version : Version.values()) {
@@ -95,6 +96,10 @@ public class Request {
     protected static final short       FLAG_FROM_SERVER     = 0x20;
     protected static final short       FLAG_CONTROL         = 0x40;
     protected static final short       FLAG_COMPRESSED      = 0x80;
+    protected static final short       FLAG_LZ4             = 0x100;
+    protected static final short       FLAG_COMPRESSION_MASK = FLAG_COMPRESSED | FLAG_LZ4;
+
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 8192;
 
 
     protected Version   _ver;
@@ -106,6 +111,10 @@ public class Request {
     protected long      _agentId;
     protected Command[] _cmds;
     protected String    _content;
+    protected byte[]    _binaryContent;
+    protected CompressionCodec _compression = CompressionCodec.GZIP;
+    protected int       _compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+    protected CompressionStats _compressionStats;
     
     protected Request() {
     }
@@ -130,6 +139,11 @@ public class Request {
         _content = content;
     }
 
+    protected Request(Version ver, long seq, long agentId, long mgmtId, long via, short flags, final byte[] content) {
+        this(ver, seq, agentId, mgmtId, via, flags, (Command[])null);
+        _binaryContent = content;
+    }
+
     public Request(long agentId, long mgmtId, Command command, boolean fromServer) {
         this(agentId, mgmtId, new Command[] { command }, true, fromServer);
     }
@@ -200,6 +214,22 @@ public class Request {
         return _ver;
     }
 
+    /**
+     * Changes the wire format this request is sent in.  The commands are
+     * deserialized first if this request was received in another version.
+     */
+    public void setVersion(Version ver) {
+        if (ver == _ver) {
+            return;
+        }
+        if (_cmds == null) {
+            _cmds = deserialize(getContentClass());
+        }
+        _content = null;
+        _binaryContent = null;
+        _ver = ver;
+    }
+
     public void setAgentId(long agentId) {
         _agentId = agentId;
     }
@@ -228,15 +258,40 @@ public class Request {
     public Command[] getCommands() {
         if (_cmds == null) {
             try {
-                _cmds = s_gson.fromJson(_content, Command[].class);
+                _cmds = deserialize(Command[].class);
             } catch (RuntimeException e) {
-                s_logger.error("Caught problem with " + _content, e);
+                s_logger.error("Caught problem with " + getContentForLog(), e);
                 throw e;
             }
         }
         return _cmds;
     }
 
+    protected Class<? extends Command[]> getContentClass() {
+        return this instanceof Response ? Answer[].class : Command[].class;
+    }
+
+    protected Command[] deserialize(Class<? extends Command[]> clazz) {
+        if (_binaryContent == null) {
+            return s_gson.fromJson(_content, clazz);
+        }
+
+        Command[] cmds = (Command[])BinaryCodec.decode(_binaryContent, 0, _binaryContent.length);
+        if (cmds != null && !clazz.isInstance(cmds)) {
+            Command[] converted = (Command[])Array.newInstance(clazz.getComponentType(), cmds.length);
+            System.arraycopy(cmds, 0, converted, 0, cmds.length);
+            cmds = converted;
+        }
+        return cmds;
+    }
+
+    protected String getContentForLog() {
+        if (_binaryContent != null) {
+            return "binary content of " + _binaryContent.length + " bytes";
+        }
+        return _content;
+    }
+
     protected String getType() {
         return "Cmd ";
     }
@@ -258,70 +313,52 @@ public class Request {
     }
 
     public static ByteBuffer doDecompress(ByteBuffer buffer, int length) {
-        byte[] byteArrayIn = new byte[1024];
-        int allocLength = length;
-        /* Add default length to support 2.2.8 */
-        if (allocLength < 65535) {
-            allocLength = 65535;
-        }
-        ByteArrayInputStream byteIn;
-        if (buffer.hasArray()) {
-            byteIn = new ByteArrayInputStream(buffer.array(),
-                    buffer.position() + buffer.arrayOffset(),
-                    buffer.remaining());
-        } else {
-            byte[] array = new byte[buffer.limit() - buffer.position()];
-            buffer.get(array);
-            byteIn = new ByteArrayInputStream(array);
-        }
-        ByteBuffer retBuff = ByteBuffer.allocate(allocLength);
-        int len = 0;
-        try {
-            GZIPInputStream in = new GZIPInputStream(byteIn);
-            while ((len = in.read(byteArrayIn)) > 0) {
-                retBuff.put(byteArrayIn, 0, len);
-            }
-            in.close();
-        } catch (IOException e) {
-            s_logger.error("Fail to decompress the request!", e);
-        }
-        retBuff.flip();
-        return retBuff;
+        return CompressionCodec.GZIP.decompress(buffer, length);
     }
     
     public static ByteBuffer doCompress(ByteBuffer buffer, int length) {
-        ByteArrayOutputStream byteOut = new ByteArrayOutputStream(length);
-        byte[] array;
-        if (buffer.hasArray()) {
-            array = buffer.array();
-        } else {
-            array = new byte[buffer.capacity()];
-            buffer.get(array);
-        }
-        try {
-            GZIPOutputStream out = new GZIPOutputStream(byteOut, length);
-            out.write(array);
-            out.finish();
-            out.close();
-        } catch (IOException e) {
-            s_logger.error("Fail to compress the request!", e);
-        }
-        return ByteBuffer.wrap(byteOut.toByteArray());
+        return CompressionCodec.GZIP.compress(buffer, length);
+    }
+
+    /**
+     * Sets how this request is compressed when it's sent.
+     * @param codec codec to use or null to never compress.
+     * @param threshold payloads smaller than this are not compressed.
+     * @param stats statistics of the connection; may be null.
+     */
+    public void setCompression(CompressionCodec codec, int threshold, CompressionStats stats) {
+        _compression = codec;
+        _compressionThreshold = threshold;
+        _compressionStats = stats;
     }
     
     public ByteBuffer[] toBytes() {
         final ByteBuffer[] buffers = new ByteBuffer[2];
         ByteBuffer tmp;
         
-        if (_content == null) {
-            _content = s_gson.toJson(_cmds, _cmds.getClass());
+        if (_ver == Version.v4) {
+            if (_binaryContent == null) {
+                _binaryContent = BinaryCodec.encode(_cmds);
+            }
+            tmp = ByteBuffer.wrap(_binaryContent);
+        } else {
+            if (_content == null) {
+                _content = s_gson.toJson(_cmds, _cmds.getClass());
+            }
+            tmp = ByteBuffer.wrap(_content.getBytes());
         }
-        tmp = ByteBuffer.wrap(_content.getBytes());
         int capacity = tmp.capacity();
         /* Check if we need to compress the data */
-        if (capacity >= 8192) {
-            tmp = doCompress(tmp, capacity);
-            _flags |= FLAG_COMPRESSED;
+        _flags &= ~FLAG_COMPRESSION_MASK;
+        if (_compression != null && capacity >= _compressionThreshold) {
+            long start = System.nanoTime();
+            tmp = _compression.compress(tmp, capacity);
+            _flags |= _compression.getFlags();
+            if (_compressionStats != null) {
+                _compressionStats.recordCompression(capacity, tmp.remaining(), System.nanoTime() - start);
+            }
+        } else if (_compressionStats != null) {
+            _compressionStats.recordUncompressed();
         }
         buffers[1] = tmp;
         buffers[0] = serializeHeader(capacity);
@@ -384,9 +421,9 @@ public class Request {
         if (logContent) {
             if (_cmds == null) {
                 try {
-                    _cmds = s_gson.fromJson(_content, this instanceof Response ? Answer[].class : Command[].class);
+                    _cmds = deserialize(getContentClass());
                 } catch (RuntimeException e) {
-                    s_logger.error("Unable to convert to json: " + _content);
+                    s_logger.error("Unable to convert to json: " + getContentForLog());
                     throw e;
                 }
             }
@@ -406,7 +443,7 @@ public class Request {
             }
         } else {
             if (_cmds == null) {
-                _cmds = s_gson.fromJson(_content, this instanceof Response ? Answer[].class : Command[].class);
+                _cmds = deserialize(getContentClass());
             }
             content.append("{ ");
             for (Command cmd : _cmds) {
@@ -442,10 +479,19 @@ public class Request {
      * @throws
      */
     public static Request parse(final byte[] bytes) throws ClassNotFoundException, UnsupportedVersionException {
+        return parse(bytes, null);
+    }
+
+    /**
+     * @param bytes bytes to be converted.
+     * @param stats compression statistics of the connection the bytes came from; may be null.
+     * @see #parse(byte[])
+     */
+    public static Request parse(final byte[] bytes, CompressionStats stats) throws ClassNotFoundException, UnsupportedVersionException {
         ByteBuffer buff = ByteBuffer.wrap(bytes);
         final byte ver = buff.get();
         final Version version = Version.get(ver);
-        if (version.ordinal() != Version.v1.ordinal() && version.ordinal() != Version.v3.ordinal()) {
+        if (version.ordinal() != Version.v1.ordinal() && version.ordinal() != Version.v3.ordinal() && version.ordinal() != Version.v4.ordinal()) {
             throw new UnsupportedVersionException("This version is no longer supported: " + version.toString(), UnsupportedVersionException.IncompatibleVersion);
         }
         final byte reserved = buff.get(); // tossed away for now.
@@ -459,16 +505,22 @@ public class Request {
         final long agentId = buff.getLong();
         
         long via;
-        if (version.ordinal() == Version.v1.ordinal()) {
+        if (version.ordinal() != Version.v3.ordinal()) {
             via = buff.getLong();
         } else {
             via = agentId;
         }
 
         if ((flags & FLAG_COMPRESSED) != 0) {
-            buff = doDecompress(buff, size);
+            long start = System.nanoTime();
+            int compressedSize = buff.remaining();
+            buff = CompressionCodec.get(flags).decompress(buff, size);
+            if (stats != null) {
+                stats.recordDecompression(compressedSize, buff.remaining(), System.nanoTime() - start);
+            }
         }
         
+        final int length = buff.remaining();
         byte[] command = null;
         int offset = 0;
         if (buff.hasArray()) {
@@ -480,7 +532,17 @@ public class Request {
             offset = 0;
         }
 
-        final String content = new String(command, offset, command.length - offset);
+        if (version == Version.v4) {
+            final byte[] content = new byte[length];
+            System.arraycopy(command, offset, content, 0, length);
+            if (isRequest) {
+                return new Request(version, seq, agentId, mgmtId, via, flags, content);
+            } else {
+                return new Response(version, seq, agentId, mgmtId, via, flags, content);
+            }
+        }
+
+        final String content = new String(command, offset, length);
 
         if (isRequest) {
             return new Request(version, seq, agentId, mgmtId, via, flags, content);
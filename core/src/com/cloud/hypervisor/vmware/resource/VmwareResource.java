@@ -3634,8 +3634,7 @@ public class VmwareResource implements StoragePoolResource, ServerResource, Vmwa
                         continue;
                     }
 
-                    ManagedObjectReference vmMor = hyperHost.findVmOnHyperHost(name).getMor();
-                    assert(vmMor!=null);
+                    ManagedObjectReference vmMor = oc.getObj();
 
                     ArrayList vmNetworkMetrics = new ArrayList();
                     // get all the metrics from the available sample period 
@@ -42,17 +42,13 @@ import java.util.Queue;
 import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
-import javax.xml.parsers.DocumentBuilderFactory;
 
 import org.apache.log4j.Logger;
 import org.apache.xmlrpc.XmlRpcException;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
 
 import com.cloud.agent.IAgentControl;
 import com.cloud.agent.api.Answer;
@@ -121,6 +117,7 @@ import com.cloud.agent.api.SecurityEgressRuleAnswer;
 import com.cloud.agent.api.SecurityEgressRulesCmd;
 import com.cloud.agent.api.SecurityIngressRuleAnswer;
 import com.cloud.agent.api.SecurityIngressRulesCmd;
+import com.cloud.agent.api.SecurityIngressRulesDeltaCmd;
 import com.cloud.agent.api.SetupAnswer;
 import com.cloud.agent.api.SetupCommand;
 import com.cloud.agent.api.StartAnswer;
@@ -280,6 +277,12 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
     // Guest and Host Performance Statistics
     protected String _consolidationFunction = "AVERAGE";
     protected int _pollingIntervalInSeconds = 60;
+    protected final XenServerRRDParser _hostRrdParser = new XenServerRRDParser();
+    protected final XenServerRRDParser _vmRrdParser = new XenServerRRDParser();
+    // vm name to uuid, for the vms whose stats are being collected
+    protected final Map<String, String> _vmUuids = new ConcurrentHashMap<String, String>();
+    // host OpaqueRef to uuid, so vm syncs do not look up the resident host of every vm
+    protected final Map<String, String> _hostUuids = new ConcurrentHashMap<String, String>();
 
     protected boolean _canBridgeFirewall = false;
     protected boolean _isOvs = false;
@@ -487,6 +490,8 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
             return execute((CheckSshCommand)cmd);
         } else if (clazz == SecurityIngressRulesCmd.class) {
             return execute((SecurityIngressRulesCmd) cmd);
+        } else if (clazz == SecurityIngressRulesDeltaCmd.class) {
+            return execute((SecurityIngressRulesDeltaCmd) cmd);
         } else if (clazz == OvsCreateGreTunnelCommand.class) {
         	return execute((OvsCreateGreTunnelCommand)cmd);
         } else if (clazz == OvsSetTagAndFlowCommand.class) {
@@ -1067,6 +1072,7 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
         Connection conn = getConnection();
         VirtualMachineTO vmSpec = cmd.getVirtualMachine();
         String vmName = vmSpec.getName();
+        _vmUuids.remove(vmName);
         State state = State.Stopped;
         VM vm = null;
         try {
@@ -1745,81 +1751,11 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
     }
 
     protected HostStatsEntry getHostStats(Connection conn, GetHostStatsCommand cmd, String hostGuid, long hostId) {
-
-        HostStatsEntry hostStats = new HostStatsEntry(hostId, 0, 0, 0, "host", 0, 0, 0, 0);
-        Object[] rrdData = getRRDData(conn, 1); // call rrd method with 1 for host
-
-        if (rrdData == null) {
+        String stats = getRRDData(conn, 1); // call rrd method with 1 for host
+        if (stats == null) {
             return null;
         }
-
-        Integer numRows = (Integer) rrdData[0];
-        Integer numColumns = (Integer) rrdData[1];
-        Node legend = (Node) rrdData[2];
-        Node dataNode = (Node) rrdData[3];
-
-        NodeList legendChildren = legend.getChildNodes();
-        for (int col = 0; col < numColumns; col++) {
-
-            if (legendChildren == null || legendChildren.item(col) == null) {
-                continue;
-            }
-
-            String columnMetadata = getXMLNodeValue(legendChildren.item(col));
-
-            if (columnMetadata == null) {
-                continue;
-            }
-
-            String[] columnMetadataList = columnMetadata.split(":");
-
-            if (columnMetadataList.length != 4) {
-                continue;
-            }
-
-            String type = columnMetadataList[1];
-            String param = columnMetadataList[3];
-
-            if (type.equalsIgnoreCase("host")) {
-
-                if (param.contains("pif_eth0_rx")) {
-                    hostStats.setNetworkReadKBs(getDataAverage(dataNode, col, numRows));
-                }
-
-                if (param.contains("pif_eth0_tx")) {
-                    hostStats.setNetworkWriteKBs(getDataAverage(dataNode, col, numRows));
-                }
-
-                if (param.contains("memory_total_kib")) {
-                    hostStats.setTotalMemoryKBs(getDataAverage(dataNode, col, numRows));
-                }
-
-                if (param.contains("memory_free_kib")) {
-                    hostStats.setFreeMemoryKBs(getDataAverage(dataNode, col, numRows));
-                }
-
-                if (param.contains("cpu")) {
-                    // hostStats.setNumCpus(hostStats.getNumCpus() + 1);
-                    hostStats.setCpuUtilization(hostStats.getCpuUtilization() + getDataAverage(dataNode, col, numRows));
-                }
-
-/*
-                if (param.contains("loadavg")) {
-                    hostStats.setAverageLoad((hostStats.getAverageLoad() + getDataAverage(dataNode, col, numRows)));
-                }
-*/
-            }
-        }
-
-        // add the host cpu utilization
-/*
-        if (hostStats.getNumCpus() != 0) {
-            hostStats.setCpuUtilization(hostStats.getCpuUtilization() / hostStats.getNumCpus());
-            s_logger.debug("Host cpu utilization " + hostStats.getCpuUtilization());
-        }
-*/
-
-        return hostStats;
+        return _hostRrdParser.parseHostStats(new StringReader(stats), hostId);
     }
 
     protected GetVmStatsAnswer execute( GetVmStatsCommand cmd) {
@@ -1835,8 +1771,13 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
             List<String> vmUUIDs = new ArrayList<String>();
 
             for (String vmName : vmNames) {
-                VM vm = getVM(conn, vmName);
-                vmUUIDs.add(vm.getUuid(conn));
+                String vmUUID = _vmUuids.get(vmName);
+                if (vmUUID == null) {
+                    VM vm = getVM(conn, vmName);
+                    vmUUID = vm.getUuid(conn);
+                    _vmUuids.put(vmName, vmUUID);
+                }
+                vmUUIDs.add(vmUUID);
             }
 
             HashMap<String, VmStatsEntry> vmStatsUUIDMap = getVmStats(conn, cmd, vmUUIDs, cmd.getHostGuid());
@@ -1844,8 +1785,16 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
                 return new GetVmStatsAnswer(cmd, vmStatsNameMap);
             }
           
-            for (String vmUUID : vmStatsUUIDMap.keySet()) {
-                vmStatsNameMap.put(vmNames.get(vmUUIDs.indexOf(vmUUID)), vmStatsUUIDMap.get(vmUUID));
+            for (int i = 0; i < vmNames.size(); i++) {
+                VmStatsEntry vmStats = vmStatsUUIDMap.get(vmUUIDs.get(i));
+                if (vmStats == null) {
+                    continue;
+                }
+                if (vmStats.getNumCPUs() == 0) {
+                    // no rrd data under this uuid, the vm may have been recreated; look it up again next time
+                    _vmUuids.remove(vmNames.get(i));
+                }
+                vmStatsNameMap.put(vmNames.get(i), vmStats);
             }
 
             return new GetVmStatsAnswer(cmd, vmStatsNameMap);
@@ -1861,80 +1810,21 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
     }
 
     protected HashMap<String, VmStatsEntry> getVmStats(Connection conn, GetVmStatsCommand cmd, List<String> vmUUIDs, String hostGuid) {
-        HashMap<String, VmStatsEntry> vmResponseMap = new HashMap<String, VmStatsEntry>();
-
-        for (String vmUUID : vmUUIDs) {
-            vmResponseMap.put(vmUUID, new VmStatsEntry(0, 0, 0, 0, "vm"));
-        }
-
-        Object[] rrdData = getRRDData(conn, 2); // call rrddata with 2 for vm
-
-        if (rrdData == null) {
+        String stats = getRRDData(conn, 2); // call rrddata with 2 for vm
+        if (stats == null) {
             return null;
         }
 
-        Integer numRows = (Integer) rrdData[0];
-        Integer numColumns = (Integer) rrdData[1];
-        Node legend = (Node) rrdData[2];
-        Node dataNode = (Node) rrdData[3];
-
-        NodeList legendChildren = legend.getChildNodes();
-        for (int col = 0; col < numColumns; col++) {
-
-            if (legendChildren == null || legendChildren.item(col) == null) {
-                continue;
-            }
-
-            String columnMetadata = getXMLNodeValue(legendChildren.item(col));
-
-            if (columnMetadata == null) {
-                continue;
-            }
-
-            String[] columnMetadataList = columnMetadata.split(":");
-
-            if (columnMetadataList.length != 4) {
-                continue;
-            }
-
-            String type = columnMetadataList[1];
-            String uuid = columnMetadataList[2];
-            String param = columnMetadataList[3];
-
-            if (type.equals("vm") && vmResponseMap.keySet().contains(uuid)) {
-                VmStatsEntry vmStatsAnswer = vmResponseMap.get(uuid);
-
-                vmStatsAnswer.setEntityType("vm");
-
-                if (param.contains("cpu")) {
-                    vmStatsAnswer.setNumCPUs(vmStatsAnswer.getNumCPUs() + 1);
-                    vmStatsAnswer.setCPUUtilization(((vmStatsAnswer.getCPUUtilization() + getDataAverage(dataNode, col, numRows))));
-                } else if (param.equals("vif_0_rx")) {
-                	vmStatsAnswer.setNetworkReadKBs(getDataAverage(dataNode, col, numRows)/(8*2));
-                } else if (param.equals("vif_0_tx")) {
-                	vmStatsAnswer.setNetworkWriteKBs(getDataAverage(dataNode, col, numRows)/(8*2));
-                }
-            }
-
-        }
-
-        for (String vmUUID : vmResponseMap.keySet()) {
-            VmStatsEntry vmStatsAnswer = vmResponseMap.get(vmUUID);
-
-            if (vmStatsAnswer.getNumCPUs() != 0) {
-                vmStatsAnswer.setCPUUtilization(vmStatsAnswer.getCPUUtilization() / vmStatsAnswer.getNumCPUs());
-            }
-            
-            vmStatsAnswer.setCPUUtilization(vmStatsAnswer.getCPUUtilization()*100);
-            if(s_logger.isDebugEnabled()) {
+        HashMap<String, VmStatsEntry> vmResponseMap = _vmRrdParser.parseVmStats(new StringReader(stats), vmUUIDs);
+        if (vmResponseMap != null && s_logger.isDebugEnabled()) {
+            for (VmStatsEntry vmStatsAnswer : vmResponseMap.values()) {
                 s_logger.debug("Vm cpu utilization " + vmStatsAnswer.getCPUUtilization());
             }
         }
-
         return vmResponseMap;
     }
 
-    protected Object[] getRRDData(Connection conn, int flag) {
+    protected String getRRDData(Connection conn, int flag) {
 
         /*
          * Note: 1 => called from host, hence host stats 2 => called from vm, hence vm stats
@@ -1953,95 +1843,8 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
             return null;
         }
 
-        // s_logger.debug("The raw xml stream is:"+stats);
-        // s_logger.debug("Length of raw xml is:"+stats.length());
-
         //stats are null when the host plugin call fails (host down state)
-        if(stats == null) {
-            return null;
-        }
-        
-        StringReader statsReader = new StringReader(stats);
-        InputSource statsSource = new InputSource(statsReader);
-
-        Document doc = null;
-        try {
-            doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(statsSource);
-        } catch (Exception e) {
-        	s_logger.warn("Exception caught whilst processing the document via document factory:", e);
-        	return null;
-        }
-
-        if(doc==null){
-        	s_logger.warn("Null document found after tryinh to parse the stats source");
-        	return null;
-        }
-        
-        NodeList firstLevelChildren = doc.getChildNodes();
-        NodeList secondLevelChildren = (firstLevelChildren.item(0)).getChildNodes();
-        Node metaNode = secondLevelChildren.item(0);
-        Node dataNode = secondLevelChildren.item(1);
-
-        Integer numRows = 0;
-        Integer numColumns = 0;
-        Node legend = null;
-        NodeList metaNodeChildren = metaNode.getChildNodes();
-        for (int i = 0; i < metaNodeChildren.getLength(); i++) {
-            Node n = metaNodeChildren.item(i);
-            if (n.getNodeName().equals("rows")) {
-                numRows = Integer.valueOf(getXMLNodeValue(n));
-            } else if (n.getNodeName().equals("columns")) {
-                numColumns = Integer.valueOf(getXMLNodeValue(n));
-            } else if (n.getNodeName().equals("legend")) {
-                legend = n;
-            }
-        }
-
-        return new Object[] { numRows, numColumns, legend, dataNode };
-    }
-
-    protected String getXMLNodeValue(Node n) {
-        return n.getChildNodes().item(0).getNodeValue();
-    }
-
-    protected double getDataAverage(Node dataNode, int col, int numRows) {
-        double value = 0;
-        double dummy = 0;
-        int numRowsUsed = 0;
-        for (int row = 0; row < numRows; row++) {
-            Node data = dataNode.getChildNodes().item(numRows - 1 - row).getChildNodes().item(col + 1);
-            Double currentDataAsDouble = Double.valueOf(getXMLNodeValue(data));
-            if (!currentDataAsDouble.equals(Double.NaN)) {
-                numRowsUsed += 1;
-                value += currentDataAsDouble;
-            }
-        }
-
-        if(numRowsUsed == 0)
-        {
-        	if((!Double.isInfinite(value))&&(!Double.isNaN(value)))
-        	{
-        		return value;
-        	}
-        	else
-        	{
-        		s_logger.warn("Found an invalid value (infinity/NaN) in getDataAverage(), numRows=0");
-        		return dummy;
-        	}
-        }
-        else
-        {
-        	if((!Double.isInfinite(value/numRowsUsed))&&(!Double.isNaN(value/numRowsUsed)))
-        	{
-        		return (value/numRowsUsed);
-        	}
-        	else
-        	{
-        		s_logger.warn("Found an invalid value (infinity/NaN) in getDataAverage(), numRows>0");
-        		return dummy;
-        	}
-        }
-        
+        return stats;
     }
 
     protected String getHostStatsRawXML(Connection conn) {
@@ -2099,7 +1902,7 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
             String host_uuid = null;
             if( ! isRefNull(host) ) {
                 try {
-                    host_uuid = host.getUuid(conn);
+                    host_uuid = getHostUuid(conn, host);
                 } catch (BadServerResponse e) {
                     // TODO Auto-generated catch block
                     e.printStackTrace();
@@ -2117,6 +1920,28 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
         return vmStates;
     }
 
+    /**
+     * Resolves a host reference through _hostUuids. An unknown reference reloads the uuids of all the
+     * hosts in the pool with one Host.getAllRecords call.
+     */
+    protected String getHostUuid(Connection conn, Host host) throws BadServerResponse, XenAPIException, XmlRpcException {
+        String ref = host.toWireString();
+        String uuid = _hostUuids.get(ref);
+        if (uuid != null) {
+            return uuid;
+        }
+
+        for (Map.Entry<Host, Host.Record> entry : Host.getAllRecords(conn).entrySet()) {
+            _hostUuids.put(entry.getKey().toWireString(), entry.getValue().uuid);
+        }
+        uuid = _hostUuids.get(ref);
+        if (uuid == null) {
+            uuid = host.getUuid(conn);
+            _hostUuids.put(ref, uuid);
+        }
+        return uuid;
+    }
+
     protected State getVmState(Connection conn, final String vmName) {
         int retry = 3;
         while (retry-- > 0) {
@@ -3071,6 +2896,7 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
     public StopAnswer execute(StopCommand cmd) {
         Connection conn = getConnection();
         String vmName = cmd.getVmName();
+        _vmUuids.remove(vmName);
         try {
             Set<VM> vms = VM.getByNameLabel(conn, vmName);
             // stop vm which is running on this host or is in halted state
@@ -4739,6 +4565,40 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
         }
     }
 
+    private Answer execute(SecurityIngressRulesDeltaCmd cmd) {
+        Connection conn = getConnection();
+        if (!_canBridgeFirewall) {
+            s_logger.warn("Host " + _host.ip + " cannot do bridge firewalling");
+            return new SecurityIngressRuleAnswer(cmd, false, 
+                                                 "Host " + _host.ip + " cannot do bridge firewalling",
+                                                 SecurityIngressRuleAnswer.FailureReason.CANNOT_BRIDGE_FIREWALL);
+        }
+
+        String result = callHostPlugin(conn, "vmops", "network_rules_delta",
+                "vmName", cmd.getVmName(),
+                "vmIP", cmd.getGuestIp(),
+                "vmID", Long.toString(cmd.getVmId()),
+                "signature", cmd.getSignature(),
+                "prevSignature", cmd.getPreviousSignature(),
+                "seqno", Long.toString(cmd.getSeqNum()),
+                "deflated", "true",
+                "added", cmd.compressStringifiedAddedRules(),
+                "revoked", cmd.compressStringifiedRevokedRules());
+
+        if ("signature_mismatch".equals(result)) {
+            s_logger.debug("Host " + _host.ip + " does not hold the previous ruleset of vm " + cmd.getVmName() + ", full ruleset needed");
+            return new SecurityIngressRuleAnswer(cmd, false, "previous ruleset signature mismatch", 
+                                                 SecurityIngressRuleAnswer.FailureReason.SIGNATURE_MISMATCH);
+        } else if (result == null || result.isEmpty() || !Boolean.parseBoolean(result)) {
+            s_logger.warn("Failed to program network rule delta for vm " + cmd.getVmName());
+            return new SecurityIngressRuleAnswer(cmd, false, "programming network rules failed", 
+                                                 SecurityIngressRuleAnswer.FailureReason.PROGRAMMING_FAILED);
+        } else {
+            s_logger.info("Programmed network rule delta for vm " + cmd.getVmName() + " guestIp=" + cmd.getGuestIp() + ", numcidrs=" + cmd.getTotalNumCidrs());
+            return new SecurityIngressRuleAnswer(cmd);
+        }
+    }
+
     protected Answer execute(DeleteStoragePoolCommand cmd) {
         Connection conn = getConnection();
         StorageFilerTO poolTO = cmd.getPool();
@@ -6615,7 +6475,7 @@ public abstract class CitrixResourceBase implements ServerResource, HypervisorRe
                 Host host = record.residentOn;
                 String host_uuid = null;
                 if( ! isRefNull(host) ) {
-                    host_uuid = host.getUuid(conn);
+                    host_uuid = getHostUuid(conn, host);
                     s_vms.put(_cluster, host_uuid, vm_name, state); 
                 }
                 if (s_logger.isTraceEnabled()) {
@@ -0,0 +1,265 @@
+/**
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.hypervisor.xen.resource;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.api.HostStatsEntry;
+import com.cloud.agent.api.VmStatsEntry;
+
+/**
+ * Streams the rrd xport document returned by the gethostvmstats plugin and averages the columns that
+ * host and vm stats need, without building a DOM.
+ * 
+ * The legend is resolved into a per column metric once and reused for as long as the plugin returns
+ * the same legend, so a stats cycle only parses the values of interesting columns. Use one parser for
+ * host stats and one for vm stats, their legends differ.
+ */
+public class XenServerRRDParser {
+    private static final Logger s_logger = Logger.getLogger(XenServerRRDParser.class);
+
+    enum Metric {
+        CPU, NETWORK_READ, NETWORK_WRITE, MEMORY_TOTAL, MEMORY_FREE
+    }
+
+    static class Schema {
+        final String[] _legend;
+        final Metric[] _metrics;
+        final String[] _uuids;
+
+        Schema(String[] legend) {
+            _legend = legend;
+            _metrics = new Metric[legend.length];
+            _uuids = new String[legend.length];
+            for (int col = 0; col < legend.length; col++) {
+                //cf:type:uuid:param, e.g. AVERAGE:vm:ab12...:cpu0
+                String[] columnMetadata = legend[col].split(":");
+                if (columnMetadata.length != 4) {
+                    continue;
+                }
+                String type = columnMetadata[1];
+                String param = columnMetadata[3];
+                if (type.equalsIgnoreCase("host")) {
+                    if (param.contains("pif_eth0_rx")) {
+                        _metrics[col] = Metric.NETWORK_READ;
+                    } else if (param.contains("pif_eth0_tx")) {
+                        _metrics[col] = Metric.NETWORK_WRITE;
+                    } else if (param.contains("memory_total_kib")) {
+                        _metrics[col] = Metric.MEMORY_TOTAL;
+                    } else if (param.contains("memory_free_kib")) {
+                        _metrics[col] = Metric.MEMORY_FREE;
+                    } else if (param.contains("cpu")) {
+                        _metrics[col] = Metric.CPU;
+                    }
+                } else if (type.equals("vm")) {
+                    if (param.contains("cpu")) {
+                        _metrics[col] = Metric.CPU;
+                    } else if (param.equals("vif_0_rx")) {
+                        _metrics[col] = Metric.NETWORK_READ;
+                    } else if (param.equals("vif_0_tx")) {
+                        _metrics[col] = Metric.NETWORK_WRITE;
+                    }
+                    if (_metrics[col] != null) {
+                        _uuids[col] = columnMetadata[2];
+                    }
+                }
+            }
+        }
+    }
+
+    private final XMLInputFactory _factory = XMLInputFactory.newInstance();
+    private Schema _schema;
+    private int _schemaResolutions;
+
+    /**
+     * @return stats of the host, or null if the document cannot be parsed.
+     */
+    public synchronized HostStatsEntry parseHostStats(Reader xml, long hostId) {
+        double[] averages = parse(xml);
+        if (averages == null) {
+            return null;
+        }
+        HostStatsEntry hostStats = new HostStatsEntry(hostId, 0, 0, 0, "host", 0, 0, 0, 0);
+        for (int col = 0; col < averages.length; col++) {
+            Metric metric = _schema._metrics[col];
+            if (metric == null || _schema._uuids[col] != null) {
+                continue;
+            }
+            switch (metric) {
+            case NETWORK_READ:
+                hostStats.setNetworkReadKBs(averages[col]);
+                break;
+            case NETWORK_WRITE:
+                hostStats.setNetworkWriteKBs(averages[col]);
+                break;
+            case MEMORY_TOTAL:
+                hostStats.setTotalMemoryKBs(averages[col]);
+                break;
+            case MEMORY_FREE:
+                hostStats.setFreeMemoryKBs(averages[col]);
+                break;
+            case CPU:
+                hostStats.setCpuUtilization(hostStats.getCpuUtilization() + averages[col]);
+                break;
+            }
+        }
+        return hostStats;
+    }
+
+    /**
+     * @return stats keyed by vm uuid, an entry for every requested uuid; null if the document cannot be parsed.
+     */
+    public synchronized HashMap<String, VmStatsEntry> parseVmStats(Reader xml, Collection<String> vmUuids) {
+        HashMap<String, VmStatsEntry> vmStats = new HashMap<String, VmStatsEntry>();
+        for (String vmUuid : vmUuids) {
+            vmStats.put(vmUuid, new VmStatsEntry(0, 0, 0, 0, "vm"));
+        }
+
+        double[] averages = parse(xml);
+        if (averages == null) {
+            return null;
+        }
+        for (int col = 0; col < averages.length; col++) {
+            Metric metric = _schema._metrics[col];
+            if (metric == null || _schema._uuids[col] == null) {
+                continue;
+            }
+            VmStatsEntry stats = vmStats.get(_schema._uuids[col]);
+            if (stats == null) {
+                continue;
+            }
+            switch (metric) {
+            case CPU:
+                stats.setNumCPUs(stats.getNumCPUs() + 1);
+                stats.setCPUUtilization(stats.getCPUUtilization() + averages[col]);
+                break;
+            case NETWORK_READ:
+                stats.setNetworkReadKBs(averages[col] / (8 * 2));
+                break;
+            case NETWORK_WRITE:
+                stats.setNetworkWriteKBs(averages[col] / (8 * 2));
+                break;
+            default:
+                break;
+            }
+        }
+
+        for (VmStatsEntry stats : vmStats.values()) {
+            if (stats.getNumCPUs() != 0) {
+                stats.setCPUUtilization(stats.getCPUUtilization() / stats.getNumCPUs());
+            }
+            stats.setCPUUtilization(stats.getCPUUtilization() * 100);
+        }
+        return vmStats;
+    }
+
+    /**
+     * @return how many times a new legend had to be resolved.
+     */
+    public synchronized int getSchemaResolutions() {
+        return _schemaResolutions;
+    }
+
+    /**
+     * Reads the document and leaves the resolved legend in _schema.
+     * 
+     * @return per column average over all rows, NaN values skipped; only columns with a metric are filled in.
+     */
+    private double[] parse(Reader xml) {
+        XMLStreamReader reader = null;
+        try {
+            reader = _factory.createXMLStreamReader(xml);
+            List<String> legend = new ArrayList<String>();
+            double[] sums = null;
+            int[] counts = null;
+            Metric[] metrics = null;
+            int col = -1;
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                String name = reader.getLocalName();
+                if (name.equals("entry")) {
+                    legend.add(reader.getElementText());
+                } else if (name.equals("data")) {
+                    resolveSchema(legend);
+                    metrics = _schema._metrics;
+                    sums = new double[metrics.length];
+                    counts = new int[metrics.length];
+                } else if (name.equals("row")) {
+                    col = -1;
+                } else if (name.equals("v") && metrics != null) {
+                    col++;
+                    if (col < metrics.length && metrics[col] != null) {
+                        double value = Double.parseDouble(reader.getElementText().trim());
+                        if (!Double.isNaN(value)) {
+                            sums[col] += value;
+                            counts[col]++;
+                        }
+                    }
+                }
+            }
+            if (sums == null) {
+                s_logger.warn("No data found in the rrd stats");
+                return null;
+            }
+
+            for (col = 0; col < sums.length; col++) {
+                double average = counts[col] == 0 ? sums[col] : sums[col] / counts[col];
+                if (Double.isInfinite(average) || Double.isNaN(average)) {
+                    s_logger.warn("Found an invalid value (infinity/NaN) in the rrd stats for " + _schema._legend[col]);
+                    average = 0;
+                }
+                sums[col] = average;
+            }
+            return sums;
+        } catch (XMLStreamException e) {
+            s_logger.warn("Exception caught whilst parsing the rrd stats", e);
+            return null;
+        } catch (NumberFormatException e) {
+            s_logger.warn("Exception caught whilst parsing the rrd stats", e);
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                }
+            }
+        }
+    }
+
+    private void resolveSchema(List<String> legend) {
+        String[] columns = legend.toArray(new String[legend.size()]);
+        if (_schema == null || !Arrays.equals(_schema._legend, columns)) {
+            _schema = new Schema(columns);
+            _schemaResolutions++;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.network.security;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+/**
+ * Version of a security group's ingress rules and running membership, bumped whenever either changes
+ *
+ */
+@Entity
+@Table(name="op_security_group_version")
+public class SecurityGroupVersionVO {
+    @Id
+    @GeneratedValue(strategy=GenerationType.IDENTITY)
+    @Column(name="id")
+    private Long id;
+
+    @Column(name="security_group_id", updatable=false, nullable=false)
+    private Long securityGroupId;
+
+    @Column(name="version")
+    long version;
+
+    protected SecurityGroupVersionVO() {
+    }
+
+    public SecurityGroupVersionVO(Long securityGroupId) {
+        this.securityGroupId = securityGroupId;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public Long getSecurityGroupId() {
+        return securityGroupId;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+}
@@ -18,13 +18,8 @@
 package com.cloud.storage.resource;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.math.BigInteger;
 import java.net.InetAddress;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -70,7 +65,9 @@ import com.cloud.resource.ServerResourceBase;
 import com.cloud.storage.StorageLayer;
 import com.cloud.storage.template.DownloadManager;
 import com.cloud.storage.template.DownloadManagerImpl;
+import com.cloud.storage.template.TemplateChecksum;
 import com.cloud.storage.template.TemplateInfo;
+import com.cloud.storage.template.TemplateLocation;
 import com.cloud.storage.template.UploadManager;
 import com.cloud.storage.template.UploadManagerImpl;
 import com.cloud.storage.template.DownloadManagerImpl.ZfsPathParser;
@@ -159,48 +156,46 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
             parent += File.separator;
         }
         String absoluteTemplatePath = parent + relativeTemplatePath;
-        MessageDigest digest;
         String checksum = null;
         File f = new File(absoluteTemplatePath);   
-        InputStream is = null;
-        byte[] buffer = new byte[8192];
-        int read = 0;
         if(s_logger.isDebugEnabled()){
             s_logger.debug("parent path " +parent+ " relative template path " +relativeTemplatePath );   
         }
         
+        // answer from the checksum recorded when the template was downloaded, if it is still current
+        TemplateLocation loc = null;
+        if (_storage.exists(f.getParent() + File.separator + TemplateLocation.Filename)) {
+            loc = new TemplateLocation(_storage, f.getParent());
+            try {
+                loc.load();
+                checksum = loc.getChecksum(f.getName());
+            } catch (IOException e) {
+                s_logger.warn("Unable to read the template properties of " + absoluteTemplatePath, e);
+                loc = null;
+            }
+        }
+        if (checksum != null) {
+            if(s_logger.isDebugEnabled()){
+                s_logger.debug("Using recorded checksum for file " +absoluteTemplatePath+ " - " +checksum );   
+            }
+            return new Answer(cmd, true, checksum);
+        }
         
         try {
-            digest = MessageDigest.getInstance("MD5");           
-            is = new FileInputStream(f);     
-            while( (read = is.read(buffer)) > 0) {
-                digest.update(buffer, 0, read);
-            }       
-            byte[] md5sum = digest.digest();
-            BigInteger bigInt = new BigInteger(1, md5sum);
-            checksum = bigInt.toString(16);
+            checksum = TemplateChecksum.compute(f);
             if(s_logger.isDebugEnabled()){
                 s_logger.debug("Successfully calculated checksum for file " +absoluteTemplatePath+ " - " +checksum );   
             }
-        
         }catch(IOException e) {
             String logMsg = "Unable to process file for MD5 - " + absoluteTemplatePath;
             s_logger.error(logMsg);
             return new Answer(cmd, false, checksum); 
-        }catch (NoSuchAlgorithmException e) {         
-            return new Answer(cmd, false, checksum);
         }
-        finally {
-            try {
-            	if(is != null)
-            		is.close();
-            } catch (IOException e) {
-                if(s_logger.isDebugEnabled()){
-                  s_logger.debug("Could not close the file " +absoluteTemplatePath);   
-                }
-                return new Answer(cmd, false, checksum);   
-            }                        
-    }       
+        
+        if (loc != null) {
+            loc.setChecksum(f.getName(), checksum);
+            loc.save();
+        }
 
         return new Answer(cmd, true, checksum);
     }
@@ -170,6 +170,10 @@ public class DownloadManagerImpl implements DownloadManager {
             if (td != null) {
                 String dnldPath = td.getDownloadLocalPath();
                 if (dnldPath != null) {
+                    // a segmented download that failed part way is left for the next job of the template to resume
+                    if (new File(dnldPath + SegmentedHttpTemplateDownloader.PROGRESS_SUFFIX).exists()) {
+                        return;
+                    }
                     File f = new File(dnldPath);
                     File dir = f.getParentFile();
                     f.delete();
@@ -208,6 +212,7 @@ public class DownloadManagerImpl implements DownloadManager {
     private final Map<String, DownloadJob> jobs = new ConcurrentHashMap<String, DownloadJob>();
     private String listTmpltScr;
     private int installTimeoutPerGig = 180 * 60 * 1000;
+    private int _downloadSegments = 4;
     private boolean _sslCopy;
 
     /**
@@ -309,9 +314,25 @@ public class DownloadManagerImpl implements DownloadManager {
 
         scr.add("-t", templatePath);
         scr.add("-f", td.getDownloadLocalPath());
+
+        // the downloader hashed the bytes as it wrote them, so there is no need for the script to read them again
+        String downloadChecksum = td.getDownloadChecksum();
         if (dnld.getChecksum() != null && dnld.getChecksum().length() > 1) {
-            scr.add("-c", dnld.getChecksum());
+            if (downloadChecksum == null) {
+                scr.add("-c", dnld.getChecksum());
+            } else if (!TemplateChecksum.matches(dnld.getChecksum(), downloadChecksum)) {
+                s_logger.warn("Checksum of " + td.getDownloadLocalPath() + " is " + downloadChecksum + ", expected " + dnld.getChecksum());
+                return "Checksum failed, not proceeding with install";
+            }
         }
+        // backdate the download by a second so any rewrite by the script shows in its modification time
+        File downloadedFile = new File(td.getDownloadLocalPath());
+        long downloadedSize = downloadedFile.length();
+        long downloadedModified = (System.currentTimeMillis() / 1000 - 1) * 1000;
+        if (!downloadedFile.setLastModified(downloadedModified)) {
+            downloadChecksum = null;
+        }
+
         scr.add("-u"); // cleanup
         String result;
         result = scr.execute();
@@ -356,6 +377,12 @@ public class DownloadManagerImpl implements DownloadManager {
             }
         }
 
+        // the script moves the file into place untouched unless it had to uncompress or fix it up
+        File installedFile = new File(templatePath + templateFilename);
+        if (downloadChecksum != null && installedFile.length() == downloadedSize && installedFile.lastModified() == downloadedModified) {
+            loc.setChecksum(templateFilename, downloadChecksum);
+        }
+
         if (!loc.save()) {
             s_logger.warn("Cleaning up because we're unable to save the formats");
             loc.purge();
@@ -408,7 +435,7 @@ public class DownloadManagerImpl implements DownloadManager {
             TemplateDownloader td;
             if ((uri != null) && (uri.getScheme() != null)) {
                 if (uri.getScheme().equalsIgnoreCase("http") || uri.getScheme().equalsIgnoreCase("https")) {
-                    td = new HttpTemplateDownloader(_storage, url, tmpDir, new Completion(jobId), maxTemplateSizeInBytes, user, password);
+                    td = createHttpDownloader(url, tmpDir, new Completion(jobId), maxTemplateSizeInBytes, user, password);
                 } else if (uri.getScheme().equalsIgnoreCase("file")) {
                     td = new LocalTemplateDownloader(_storage, url, tmpDir, maxTemplateSizeInBytes, new Completion(jobId));
                 } else if (uri.getScheme().equalsIgnoreCase("scp")) {
@@ -434,6 +461,13 @@ public class DownloadManagerImpl implements DownloadManager {
         }
     }
 
+    protected TemplateDownloader createHttpDownloader(String url, String tmpDir, DownloadCompleteCallback callback, long maxTemplateSizeInBytes, String user, String password) {
+        if (_downloadSegments > 1) {
+            return new SegmentedHttpTemplateDownloader(_storage, url, tmpDir, callback, maxTemplateSizeInBytes, user, password, _downloadSegments);
+        }
+        return new HttpTemplateDownloader(_storage, url, tmpDir, callback, maxTemplateSizeInBytes, user, password);
+    }
+
     @Override
     public String getDownloadError(String jobId) {
         DownloadJob dj = jobs.get(jobId);
@@ -772,6 +806,10 @@ public class DownloadManagerImpl implements DownloadManager {
         value = (String) params.get("install.numthreads");
         final int numInstallThreads = NumbersUtil.parseInt(value, 10);
 
+        // concurrent ranges per http download, 1 keeps the single stream downloader
+        value = (String) params.get("download.segments");
+        _downloadSegments = NumbersUtil.parseInt(value, 4);
+
         String scriptsDir = (String) params.get("template.scripts.dir");
         if (scriptsDir == null) {
             scriptsDir = "scripts/storage/secondary";
@@ -45,6 +45,7 @@ public class FtpTemplateUploader implements TemplateUploader {
     private BufferedInputStream inputStream = null;
     private BufferedOutputStream outputStream = null;
 	private static final int CHUNK_SIZE = 1024*1024; //1M
+	private TemplateChecksum checksum;
 	
 	public FtpTemplateUploader(String sourcePath, String url, UploadCompleteCallback callback, long entitySizeinBytes){
 		
@@ -94,6 +95,7 @@ public class FtpTemplateUploader implements TemplateUploader {
 		            outputStream = new BufferedOutputStream( urlc.getOutputStream() );
 		            inputStream = new BufferedInputStream( new FileInputStream(sourceFile) );            
 
+		            checksum = new TemplateChecksum();
 		            status = TemplateUploader.Status.IN_PROGRESS;
 
 		            int bytes = 0;
@@ -101,7 +103,8 @@ public class FtpTemplateUploader implements TemplateUploader {
 		            boolean done=false;
 		            while (!done && status != Status.ABORTED ) {
 		            	if ( (bytes = inputStream.read(block, 0, CHUNK_SIZE)) > -1) {
-		            		outputStream.write(block,0, bytes);		            			            				            			            		
+		            		outputStream.write(block,0, bytes);
+		            		checksum.update(block, 0, bytes);		            			            				            			            		
 		            		totalBytes += bytes;
 		            	} else {
 		            		done = true;
@@ -185,6 +188,11 @@ public class FtpTemplateUploader implements TemplateUploader {
 		return totalBytes;
 	}
 
+	@Override
+	public String getUploadChecksum() {
+		return checksum != null ? checksum.getChecksum() : null;
+	}
+
 	@Override
 	public void setResume(boolean resume) {
 		this.resume = resume;
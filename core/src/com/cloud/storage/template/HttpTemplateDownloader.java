@@ -69,6 +69,7 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 	private GetMethod request;
 	private boolean resume = false;
 	private DownloadCompleteCallback completionCallback;
+	private TemplateChecksum checksum;
 	StorageLayer _storage;
 	boolean inited = true;
 
@@ -148,7 +149,7 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 	}
 	
 
-	private  Pair<String, Integer> validateUrl(String url) throws IllegalArgumentException {
+	static Pair<String, Integer> validateUrl(String url) throws IllegalArgumentException {
 		try {
 			URI uri = new URI(url);
 			if (!uri.getScheme().equalsIgnoreCase("http") && !uri.getScheme().equalsIgnoreCase("https") ) {
@@ -262,6 +263,11 @@ public class HttpTemplateDownloader implements TemplateDownloader {
             RandomAccessFile out = new RandomAccessFile(file, "rwd");
             out.seek(localFileSize);
 
+            checksum = new TemplateChecksum();
+            if (localFileSize > 0) {
+            	checksum.update(file, localFileSize);
+            }
+
             s_logger.info("Starting download from " + getDownloadUrl() + " to " + toFile + " remoteSize=" + remoteSize + " , max size=" + MAX_TEMPLATE_SIZE_IN_BYTES);
             
             byte[] block = new byte[CHUNK_SIZE];
@@ -271,6 +277,7 @@ public class HttpTemplateDownloader implements TemplateDownloader {
             while (!done && status != Status.ABORTED && offset <= remoteSize) {
             	if ( (bytes = in.read(block, 0, CHUNK_SIZE)) > -1) {
             		out.write(block, 0, bytes);
+            		checksum.update(block, 0, bytes);
             		offset +=bytes;
             		out.seek(offset);
             		totalBytes += bytes;
@@ -331,6 +338,11 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 		return totalBytes;
 	}
 
+	@Override
+	public String getDownloadChecksum() {
+		return checksum != null ? checksum.getChecksum() : null;
+	}
+
 	@Override
 	@SuppressWarnings("fallthrough")
 	public boolean stopDownload() {
@@ -93,11 +93,13 @@ public class LocalTemplateDownloader extends TemplateDownloaderBase implements T
             
             _remoteSize = src.length();
             this._totalBytes = 0;
+            _checksum = new TemplateChecksum();
             _status = TemplateDownloader.Status.IN_PROGRESS;
             
             try {
                 while (_status != Status.ABORTED && fic.read(buffer) != -1) {
                     buffer.flip();
+                    _checksum.update(buffer.duplicate());
                     int count = foc.write(buffer);
                     _totalBytes += count;
                     buffer.clear();
@@ -0,0 +1,664 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.storage.template;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.httpclient.Credentials;
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.log4j.Logger;
+
+import com.cloud.storage.StorageLayer;
+import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.Pair;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * Download a template file using concurrent HTTP Range requests, each writing
+ * its own segment of a pre-allocated file.  The progress of every segment is
+ * kept in a properties file next to the download, so a new job for the same
+ * template, e.g. after the secondary storage VM restarted, only fetches what
+ * is missing.  Origins that don't support Range get a single stream.
+ *
+ * The MD5 of the file is computed along the way over the part the segments
+ * have written contiguously from its start, so mostly while that part is
+ * still in the page cache.
+ *
+ * Network errors and 5xx responses are retried, and the file and its progress
+ * are kept even once the downloader gives up, for the next job of the template
+ * to pick up.  Only a refusal of the origin (4xx), a file over the size limit
+ * or a stopped download throw away what was downloaded.
+ */
+public class SegmentedHttpTemplateDownloader extends TemplateDownloaderBase implements TemplateDownloader {
+    public static final Logger s_logger = Logger.getLogger(SegmentedHttpTemplateDownloader.class);
+
+    public static final String DOWNLOAD_FILENAME = "dnld_segmented.tmp";
+    public static final String PROGRESS_SUFFIX = ".segments";
+
+    private static final int BLOCK_SIZE = 256 * 1024;
+    private static final long MIN_SEGMENT_SIZE = 16L * 1024 * 1024;
+    private static final int MAX_RETRIES = 3;
+    private static final long PROGRESS_INTERVAL = 5000;
+    // attempts in a row without progress before the download is given up
+    static final int MAX_ATTEMPTS = 5;
+    private static final long RETRY_INTERVAL = 30000;
+
+    private final int _segmentCount;
+    private final File _progressFile;
+    private final HttpClient _client;
+    private final MultiThreadedHttpConnectionManager _connectionManager;
+    private final List<HttpMethod> _requests = Collections.synchronizedList(new ArrayList<HttpMethod>());
+    private Segment[] _segments;
+    private long _retryInterval = RETRY_INTERVAL;
+    private int _failedAttempts;
+    private boolean _discard;
+    private volatile boolean _refused;
+
+    static class Segment {
+        final long start;
+        final long end;
+        volatile long done;
+
+        Segment(long start, long end, long done) {
+            this.start = start;
+            this.end = end;
+            this.done = done;
+        }
+
+        long position() {
+            return start + done;
+        }
+
+        boolean isComplete() {
+            return start + done >= end;
+        }
+    }
+
+    public SegmentedHttpTemplateDownloader(StorageLayer storage, String downloadUrl, String toDir, DownloadCompleteCallback callback, long maxTemplateSizeInBytes, String user, String password, int segments) {
+        this(storage, downloadUrl, toDir, callback, maxTemplateSizeInBytes, user, password, segments, true);
+    }
+
+    SegmentedHttpTemplateDownloader(StorageLayer storage, String downloadUrl, String toDir, DownloadCompleteCallback callback, long maxTemplateSizeInBytes, String user, String password, int segments, boolean checkUrl) {
+        super(storage, downloadUrl, toDir, maxTemplateSizeInBytes, callback);
+        _segmentCount = Math.max(1, segments);
+        _toFile = new File(toDir, DOWNLOAD_FILENAME).getAbsolutePath();
+        _progressFile = new File(_toFile + PROGRESS_SUFFIX);
+
+        _connectionManager = new MultiThreadedHttpConnectionManager();
+        _connectionManager.getParams().setDefaultMaxConnectionsPerHost(_segmentCount + 1);
+        _connectionManager.getParams().setMaxTotalConnections(_segmentCount + 1);
+        _client = new HttpClient(_connectionManager);
+
+        try {
+            Pair<String, Integer> hostAndPort;
+            if (checkUrl) {
+                hostAndPort = HttpTemplateDownloader.validateUrl(downloadUrl);
+            } else {
+                URI uri = new URI(downloadUrl);
+                hostAndPort = new Pair<String, Integer>(uri.getHost(), uri.getPort());
+            }
+
+            if (user != null && password != null) {
+                _client.getParams().setAuthenticationPreemptive(true);
+                Credentials defaultcreds = new UsernamePasswordCredentials(user, password);
+                _client.getState().setCredentials(new AuthScope(hostAndPort.first(), hostAndPort.second(), AuthScope.ANY_REALM), defaultcreds);
+            }
+
+            File file = new File(_toFile);
+            if (file.createNewFile() && _storage != null) {
+                _storage.setWorldReadableAndWriteable(file);
+            }
+        } catch (IllegalArgumentException e) {
+            _errorString = e.getMessage();
+            _status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
+            _inited = false;
+        } catch (URISyntaxException e) {
+            _errorString = e.getMessage();
+            _status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
+            _inited = false;
+        } catch (IOException e) {
+            s_logger.warn("Unable to create " + _toFile, e);
+            _errorString = "Unable to create " + _toFile;
+            _status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
+            _inited = false;
+        }
+    }
+
+    @Override
+    public long download(boolean resume, DownloadCompleteCallback callback) {
+        switch (_status) {
+        case ABORTED:
+        case UNRECOVERABLE_ERROR:
+        case DOWNLOAD_FINISHED:
+            return 0;
+        default:
+        }
+
+        if (_failedAttempts > 0) {
+            // give the origin some time before asking it again
+            waitToRetry(_retryInterval * _failedAttempts);
+            if (_status == TemplateDownloader.Status.ABORTED) {
+                return 0;
+            }
+        }
+
+        _start = System.currentTimeMillis();
+        _discard = false;
+        File file = new File(_toFile);
+        GetMethod probe = new GetMethod(_downloadUrl);
+        try {
+            // a one byte range tells whether the origin honors ranges and how big the file is
+            probe.addRequestHeader("Range", "bytes=0-0");
+            int responseCode = _client.executeMethod(probe);
+            if (responseCode == HttpStatus.SC_PARTIAL_CONTENT) {
+                long size = getInstanceLength(probe.getResponseHeader("Content-Range"));
+                probe.abort();
+                if (size > 0) {
+                    downloadSegments(file, size);
+                } else {
+                    probe.releaseConnection();
+                    probe = new GetMethod(_downloadUrl);
+                    responseCode = _client.executeMethod(probe);
+                    if (responseCode != HttpStatus.SC_OK) {
+                        fail(" HTTP Server returned " + responseCode + " (expected 200 OK) ", isClientError(responseCode));
+                        return 0;
+                    }
+                    downloadSingleStream(probe, file);
+                }
+            } else if (responseCode == HttpStatus.SC_OK) {
+                downloadSingleStream(probe, file);
+            } else {
+                fail(" HTTP Server returned " + responseCode + " (expected 206 Partial Content) ", isClientError(responseCode));
+                return 0;
+            }
+            return _totalBytes;
+        } catch (IOException e) {
+            s_logger.warn("Unable to download " + _downloadUrl, e);
+            fail(e.toString(), false);
+            return 0;
+        } finally {
+            probe.releaseConnection();
+            _connectionManager.closeIdleConnections(0);
+            _downloadTime += System.currentTimeMillis() - _start;
+            if (_discard) {
+                _progressFile.delete();
+                if (file.exists() && !file.isDirectory()) {
+                    file.delete();
+                }
+            }
+            if (callback != null) {
+                callback.downloadComplete(_status);
+            }
+        }
+    }
+
+    private static boolean isClientError(int responseCode) {
+        return responseCode >= 400 && responseCode < 500;
+    }
+
+    /**
+     * Ends an attempt that failed.  A discarded download is final, anything
+     * else is retried unless MAX_ATTEMPTS attempts in a row got nowhere.
+     */
+    private void fail(String error, boolean discard) {
+        _errorString = error;
+        if (discard) {
+            _status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
+            _discard = true;
+        } else if (++_failedAttempts < MAX_ATTEMPTS) {
+            _status = TemplateDownloader.Status.RECOVERABLE_ERROR;
+        } else {
+            s_logger.warn("Giving up on " + _downloadUrl + " after " + _failedAttempts + " attempts without progress, keeping " + _toFile + " to resume");
+            _status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
+        }
+    }
+
+    private void waitToRetry(long interval) {
+        long until = System.currentTimeMillis() + interval;
+        long now;
+        while (_status != TemplateDownloader.Status.ABORTED && (now = System.currentTimeMillis()) < until) {
+            try {
+                Thread.sleep(Math.min(1000, until - now));
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    void setRetryInterval(long retryInterval) {
+        _retryInterval = retryInterval;
+    }
+
+    private static long getInstanceLength(Header contentRange) {
+        // bytes 0-0/12345
+        if (contentRange == null) {
+            return -1;
+        }
+        String value = contentRange.getValue();
+        int slash = value.lastIndexOf('/');
+        return slash < 0 ? -1 : NumbersUtil.parseLong(value.substring(slash + 1).trim(), -1);
+    }
+
+    private void downloadSegments(File file, long size) throws IOException {
+        if (size > getMaxTemplateSizeInBytes()) {
+            s_logger.info("Remote size is too large: " + size + " , max=" + getMaxTemplateSizeInBytes());
+            fail("Download file size is too large", true);
+            return;
+        }
+        boolean sameSize = _remoteSize == size;
+        _remoteSize = size;
+        _refused = false;
+
+        _segments = null;
+        if (file.length() == size) {
+            _segments = loadProgress(size);
+        }
+        if (_segments == null) {
+            // any progress on record belongs to another file
+            _progressFile.delete();
+            _segments = createSegments(size);
+        }
+        // a retry goes on hashing where the last attempt got, unless the file is not the same any more
+        if (_checksum == null || !sameSize || _checksum.getLength() > getContiguousBytes()) {
+            _checksum = new TemplateChecksum();
+        }
+        long before = getCompletedBytes();
+        _totalBytes = before;
+
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            if (out.length() != size) {
+                out.setLength(size);
+            }
+            FileChannel channel = out.getChannel();
+
+            s_logger.info("Starting download from " + _downloadUrl + " to " + _toFile + " in " + _segments.length + " segments, remoteSize=" + size + ", already downloaded=" + before);
+            _status = TemplateDownloader.Status.IN_PROGRESS;
+
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            ExecutorService executor = Executors.newFixedThreadPool(_segments.length, new NamedThreadFactory("SegmentedDownload"));
+            for (Segment segment : _segments) {
+                if (!segment.isComplete()) {
+                    results.add(executor.submit(new SegmentFetcher(segment, channel)));
+                }
+            }
+            executor.shutdown();
+
+            long lastSaved = System.currentTimeMillis();
+            try {
+                while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    _totalBytes = getCompletedBytes();
+                    updateChecksum(channel);
+                    if (System.currentTimeMillis() - lastSaved >= PROGRESS_INTERVAL) {
+                        saveProgress(channel);
+                        lastSaved = System.currentTimeMillis();
+                    }
+                }
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                stopRequests();
+            }
+
+            String error = null;
+            for (Future<String> result : results) {
+                try {
+                    if (result.isDone() && result.get() != null) {
+                        error = result.get();
+                    }
+                } catch (InterruptedException e) {
+                } catch (ExecutionException e) {
+                    error = e.getCause().toString();
+                }
+            }
+
+            _totalBytes = getCompletedBytes();
+            if (_totalBytes >= size) {
+                // the segments that finished ahead of the lowest one are hashed now
+                updateChecksum(channel);
+                channel.force(false);
+                _progressFile.delete();
+                _status = TemplateDownloader.Status.DOWNLOAD_FINISHED;
+                _errorString = "Downloaded " + _totalBytes + " bytes (download complete remote=" + size + "bytes)";
+                return;
+            }
+
+            saveProgress(channel);
+            if (_status == TemplateDownloader.Status.ABORTED) {
+                return;
+            }
+            String message = "Downloaded " + _totalBytes + " of " + size + " bytes: " + error;
+            if (!_refused && _totalBytes > before) {
+                _failedAttempts = 0;
+                _errorString = message;
+                _status = TemplateDownloader.Status.RECOVERABLE_ERROR;
+            } else {
+                fail(message, _refused);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private void downloadSingleStream(GetMethod request, File file) throws IOException {
+        Header contentLength = request.getResponseHeader("Content-Length");
+        _remoteSize = contentLength != null ? NumbersUtil.parseLong(contentLength.getValue(), 0) : 0;
+        if (_remoteSize > getMaxTemplateSizeInBytes()) {
+            s_logger.info("Remote size is too large: " + _remoteSize + " , max=" + getMaxTemplateSizeInBytes());
+            fail("Download file size is too large", true);
+            return;
+        }
+
+        s_logger.info("Origin of " + _downloadUrl + " does not support ranges, downloading to " + _toFile + " in a single stream, remoteSize=" + _remoteSize);
+        _segments = null;
+        _progressFile.delete();
+        _checksum = new TemplateChecksum();
+        _totalBytes = 0;
+
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.setLength(0);
+            FileChannel channel = out.getChannel();
+            InputStream in = request.getResponseBodyAsStream();
+            byte[] block = new byte[BLOCK_SIZE];
+            int bytes;
+            _status = TemplateDownloader.Status.IN_PROGRESS;
+            while (_status != TemplateDownloader.Status.ABORTED && (bytes = in.read(block)) > -1) {
+                ByteBuffer buffer = ByteBuffer.wrap(block, 0, bytes);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, _totalBytes + buffer.position());
+                }
+                _checksum.update(block, 0, bytes);
+                _totalBytes += bytes;
+                if (_totalBytes > getMaxTemplateSizeInBytes()) {
+                    fail("Download file size is too large", true);
+                    return;
+                }
+            }
+        } finally {
+            out.close();
+        }
+
+        if (_status == TemplateDownloader.Status.ABORTED) {
+            return;
+        }
+        if (_remoteSize == 0 || _totalBytes >= _remoteSize) {
+            _remoteSize = _totalBytes;
+            _status = TemplateDownloader.Status.DOWNLOAD_FINISHED;
+            _errorString = "Downloaded " + _totalBytes + " bytes (download complete remote=" + _remoteSize + "bytes)";
+        } else {
+            fail("Downloaded " + _totalBytes + " of " + _remoteSize + " bytes (incomplete download)", false);
+        }
+    }
+
+    private Segment[] createSegments(long size) {
+        int count = (int)Math.max(1, Math.min(_segmentCount, size / MIN_SEGMENT_SIZE));
+        Segment[] segments = new Segment[count];
+        long length = size / count;
+        for (int i = 0; i < count; i++) {
+            long start = i * length;
+            segments[i] = new Segment(start, i == count - 1 ? size : start + length, 0);
+        }
+        return segments;
+    }
+
+    /**
+     * @return the number of bytes from the start of the file that the segments
+     *         have all written, i.e. up to the position of the lowest
+     *         unfinished segment.
+     */
+    private long getContiguousBytes() {
+        for (Segment segment : _segments) {
+            if (!segment.isComplete()) {
+                return segment.position();
+            }
+        }
+        return _segments[_segments.length - 1].end;
+    }
+
+    private void updateChecksum(FileChannel channel) {
+        if (_checksum == null) {
+            return;
+        }
+        long hashed = _checksum.getLength();
+        long contiguous = getContiguousBytes();
+        if (contiguous > hashed) {
+            try {
+                _checksum.update(channel, hashed, contiguous - hashed);
+            } catch (IOException e) {
+                s_logger.warn("Unable to compute the checksum of " + _toFile + ", leaving it to the install", e);
+                _checksum = null;
+            }
+        }
+    }
+
+    private long getCompletedBytes() {
+        long completed = 0;
+        for (Segment segment : _segments) {
+            completed += segment.done;
+        }
+        return completed;
+    }
+
+    /**
+     * @return the segments recorded for this url and size, or null if there
+     *         is no usable record and the download has to start over.
+     */
+    private Segment[] loadProgress(long size) {
+        if (!_progressFile.exists()) {
+            return null;
+        }
+        Properties props = new Properties();
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(_progressFile);
+            props.load(in);
+        } catch (IOException e) {
+            s_logger.warn("Unable to read " + _progressFile, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        if (!_downloadUrl.equals(props.getProperty("url")) || NumbersUtil.parseLong(props.getProperty("size"), -1) != size) {
+            s_logger.info("Download progress in " + _progressFile + " is for another file, starting over");
+            return null;
+        }
+        int count = NumbersUtil.parseInt(props.getProperty("segments"), 0);
+        if (count <= 0) {
+            return null;
+        }
+        Segment[] segments = new Segment[count];
+        long expectedStart = 0;
+        for (int i = 0; i < count; i++) {
+            long start = NumbersUtil.parseLong(props.getProperty("segment." + i + ".start"), -1);
+            long end = NumbersUtil.parseLong(props.getProperty("segment." + i + ".end"), -1);
+            long done = NumbersUtil.parseLong(props.getProperty("segment." + i + ".done"), -1);
+            if (start != expectedStart || end < start || done < 0 || done > end - start) {
+                s_logger.warn("Download progress in " + _progressFile + " is inconsistent, starting over");
+                return null;
+            }
+            segments[i] = new Segment(start, end, done);
+            expectedStart = end;
+        }
+        if (expectedStart != size) {
+            return null;
+        }
+        s_logger.info("Resuming download of " + _downloadUrl + " from " + _progressFile);
+        return segments;
+    }
+
+    private void saveProgress(FileChannel channel) {
+        // take the counts before flushing so the record never claims more than what is on disk
+        long[] done = new long[_segments.length];
+        for (int i = 0; i < _segments.length; i++) {
+            done[i] = _segments[i].done;
+        }
+
+        Properties props = new Properties();
+        props.setProperty("url", _downloadUrl);
+        props.setProperty("size", Long.toString(_remoteSize));
+        props.setProperty("segments", Integer.toString(_segments.length));
+        for (int i = 0; i < _segments.length; i++) {
+            props.setProperty("segment." + i + ".start", Long.toString(_segments[i].start));
+            props.setProperty("segment." + i + ".end", Long.toString(_segments[i].end));
+            props.setProperty("segment." + i + ".done", Long.toString(done[i]));
+        }
+
+        File tmpFile = new File(_progressFile.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            channel.force(false);
+            out = new FileOutputStream(tmpFile);
+            props.store(out, "");
+        } catch (IOException e) {
+            s_logger.warn("Unable to save the download progress to " + _progressFile, e);
+            return;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        if (!tmpFile.renameTo(_progressFile)) {
+            s_logger.warn("Unable to save the download progress to " + _progressFile);
+        }
+    }
+
+    private class SegmentFetcher implements Callable<String> {
+        private final Segment _segment;
+        private final FileChannel _channel;
+
+        SegmentFetcher(Segment segment, FileChannel channel) {
+            _segment = segment;
+            _channel = channel;
+        }
+
+        @Override
+        public String call() {
+            int failures = 0;
+            String error = null;
+            while (!_segment.isComplete() && _status != TemplateDownloader.Status.ABORTED && !_refused) {
+                long before = _segment.done;
+                error = fetch();
+                if (error == null) {
+                    continue;
+                }
+                if (_segment.done > before) {
+                    failures = 0;
+                } else if (++failures >= MAX_RETRIES) {
+                    s_logger.warn("Giving up on segment " + _segment.start + "-" + _segment.end + " of " + _downloadUrl + ": " + error);
+                    return error;
+                }
+            }
+            return _segment.isComplete() ? null : error;
+        }
+
+        private String fetch() {
+            GetMethod request = new GetMethod(_downloadUrl);
+            _requests.add(request);
+            try {
+                request.addRequestHeader("Range", "bytes=" + _segment.position() + "-" + (_segment.end - 1));
+                int responseCode = _client.executeMethod(request);
+                if (responseCode != HttpStatus.SC_PARTIAL_CONTENT) {
+                    if (isClientError(responseCode)) {
+                        // e.g. the file is gone or shrank, the other segments need not bother either
+                        _refused = true;
+                        stopRequests();
+                    }
+                    return " HTTP Server returned " + responseCode + " (expected 206 Partial Content) ";
+                }
+                Header contentRange = request.getResponseHeader("Content-Range");
+                if (contentRange == null || !contentRange.getValue().trim().startsWith("bytes " + _segment.position() + "-")) {
+                    return " HTTP Server returned a different range than requested: " + (contentRange == null ? null : contentRange.getValue());
+                }
+
+                InputStream in = request.getResponseBodyAsStream();
+                byte[] block = new byte[BLOCK_SIZE];
+                int bytes;
+                while (_status != TemplateDownloader.Status.ABORTED && !_segment.isComplete()
+                        && (bytes = in.read(block, 0, (int)Math.min(block.length, _segment.end - _segment.position()))) > -1) {
+                    ByteBuffer buffer = ByteBuffer.wrap(block, 0, bytes);
+                    long position = _segment.position();
+                    while (buffer.hasRemaining()) {
+                        position += _channel.write(buffer, position);
+                    }
+                    _segment.done += bytes;
+                }
+                return _segment.isComplete() ? null : "Connection closed at " + _segment.position();
+            } catch (IOException e) {
+                return e.toString();
+            } finally {
+                _requests.remove(request);
+                if (!_segment.isComplete()) {
+                    // don't let httpclient drain the rest of the range
+                    request.abort();
+                }
+                request.releaseConnection();
+            }
+        }
+    }
+
+    private void stopRequests() {
+        synchronized (_requests) {
+            for (HttpMethod request : _requests) {
+                request.abort();
+            }
+        }
+    }
+
+    @Override
+    public boolean stopDownload() {
+        boolean stopped = super.stopDownload();
+        stopRequests();
+        _progressFile.delete();
+        return stopped;
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.storage.template;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * MD5 of a template, computed incrementally as its bytes stream through a
+ * downloader or uploader so nobody has to read the file back to get it.
+ */
+public class TemplateChecksum {
+    private static final Logger s_logger = Logger.getLogger(TemplateChecksum.class);
+
+    public static final String ALGORITHM = "MD5";
+
+    private static final long MAP_WINDOW = 64L * 1024 * 1024;
+    private static final int DIRECT_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private final MessageDigest _digest;
+    private long _length;
+
+    public TemplateChecksum() {
+        try {
+            _digest = MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new CloudRuntimeException("Unable to get " + ALGORITHM + " digest", e);
+        }
+    }
+
+    public void update(byte[] bytes, int offset, int length) {
+        _digest.update(bytes, offset, length);
+        _length += length;
+    }
+
+    /**
+     * Consumes the remaining bytes of the buffer.
+     */
+    public void update(ByteBuffer buffer) {
+        _length += buffer.remaining();
+        _digest.update(buffer);
+    }
+
+    /**
+     * Hashes the first length bytes of a file, e.g. the part a resumed
+     * download already has on disk.
+     */
+    public void update(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            update(raf.getChannel(), 0, Math.min(length, raf.length()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Hashes length bytes of the channel from position on, without moving the
+     * channel's own position, so other threads may keep writing to it.
+     */
+    protected void update(FileChannel channel, long position, long length) throws IOException {
+        long end = position + length;
+        try {
+            while (position < end) {
+                long size = Math.min(MAP_WINDOW, end - position);
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+                update(window);
+                position += size;
+            }
+        } catch (IOException e) {
+            // some NFS mounts refuse mmap, read the rest through a direct buffer instead
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Unable to map file at " + position + ", reading it instead: " + e.getMessage());
+            }
+            ByteBuffer buffer = ByteBuffer.allocateDirect(DIRECT_BUFFER_SIZE);
+            while (position < end) {
+                buffer.clear();
+                if (end - position < buffer.capacity()) {
+                    buffer.limit((int)(end - position));
+                }
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    break;
+                }
+                buffer.flip();
+                update(buffer);
+                position += read;
+            }
+        }
+    }
+
+    public long getLength() {
+        return _length;
+    }
+
+    /**
+     * @return checksum of the bytes seen so far, in the form ComputeChecksumCommand
+     *         answers with; the digest keeps accepting updates afterwards.
+     */
+    public String getChecksum() {
+        byte[] md5sum;
+        try {
+            md5sum = ((MessageDigest)_digest.clone()).digest();
+        } catch (CloneNotSupportedException e) {
+            return null;
+        }
+        return new BigInteger(1, md5sum).toString(16);
+    }
+
+    /**
+     * Compares checksums as numbers so leading zeros and case don't matter.
+     */
+    public static boolean matches(String checksum1, String checksum2) {
+        if (checksum1 == null || checksum2 == null) {
+            return false;
+        }
+        try {
+            return new BigInteger(checksum1.trim(), 16).equals(new BigInteger(checksum2.trim(), 16));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Hashes a whole file for templates that have no recorded checksum.
+     */
+    public static String compute(File file) throws IOException {
+        TemplateChecksum checksum = new TemplateChecksum();
+        checksum.update(file, file.length());
+        return checksum.getChecksum();
+    }
+}
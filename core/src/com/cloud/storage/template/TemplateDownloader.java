@@ -76,6 +76,12 @@ public interface TemplateDownloader extends Runnable{
 	 */
 	public long getDownloadedBytes();
 
+	/**
+	 * Get the checksum computed while downloading
+	 * @return MD5 of the bytes downloaded so far, or null if it was not computed
+	 */
+	public String getDownloadChecksum();
+
 	/**
 	 * Get the error if any
 	 * @return error string if any
@@ -39,6 +39,7 @@ public abstract class TemplateDownloaderBase implements TemplateDownloader {
     protected long _start;
     protected StorageLayer _storage;
     protected boolean _inited = false;
+    protected TemplateChecksum _checksum;
     private long MAX_TEMPLATE_SIZE_IN_BYTES;
     
     public TemplateDownloaderBase(StorageLayer storage, String downloadUrl, String toDir, long maxTemplateSizeInBytes, DownloadCompleteCallback callback) {
@@ -81,6 +82,11 @@ public abstract class TemplateDownloaderBase implements TemplateDownloader {
         return _totalBytes;
     }
 
+    @Override
+    public String getDownloadChecksum() {
+        return _checksum != null ? _checksum.getChecksum() : null;
+    }
+
     @Override
     public Status getStatus() {
         return _status;
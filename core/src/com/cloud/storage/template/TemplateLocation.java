@@ -191,6 +191,37 @@ public class TemplateLocation {
         _props.setProperty("virtualsize", Long.toString(virtualSize));
     }
     
+    /**
+     * Records the checksum computed while the file streamed through a
+     * downloader or uploader, along with the size and modification time the
+     * file had so a later change invalidates it.
+     */
+    public void setChecksum(String filename, String checksum) {
+        File file = _storage.getFile(_templatePath + filename);
+        _props.setProperty("md5", checksum);
+        _props.setProperty("md5.filename", filename);
+        _props.setProperty("md5.size", Long.toString(file.length()));
+        _props.setProperty("md5.modified", Long.toString(file.lastModified()));
+    }
+    
+    /**
+     * @return the recorded checksum of filename, or null if none was recorded
+     *         or the file changed since.
+     */
+    public String getChecksum(String filename) {
+        String checksum = _props.getProperty("md5");
+        if (checksum == null || !filename.equals(_props.getProperty("md5.filename"))) {
+            return null;
+        }
+        File file = _storage.getFile(_templatePath + filename);
+        if (file.length() != NumbersUtil.parseLong(_props.getProperty("md5.size"), -1) ||
+            file.lastModified() != NumbersUtil.parseLong(_props.getProperty("md5.modified"), -1)) {
+            s_logger.debug("Recorded checksum of " + _templatePath + filename + " is stale");
+            return null;
+        }
+        return checksum;
+    }
+    
     protected boolean checkFormatValidity(FormatInfo info) {
         return (info.format != null && info.size > 0 && info.virtualSize > 0 && info.filename != null && _storage.exists(_templatePath + info.filename) && _storage.getSize(_templatePath + info.filename) == info.size);
     }
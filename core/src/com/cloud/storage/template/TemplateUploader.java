@@ -72,6 +72,12 @@ public interface TemplateUploader extends Runnable{
 	 */
 	public long getUploadedBytes();
 
+	/**
+	 * Get the checksum computed while uploading
+	 * @return MD5 of the bytes uploaded so far, or null if it was not computed
+	 */
+	public String getUploadChecksum();
+
 	/**
 	 * Get the error if any
 	 * @return error string if any
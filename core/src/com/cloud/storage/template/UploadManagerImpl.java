@@ -19,6 +19,7 @@
 package com.cloud.storage.template;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.text.SimpleDateFormat;
@@ -599,6 +600,27 @@ public class UploadManagerImpl implements UploadManager {
     }
 
 	private String postUpload(String jobId) {
+		UploadJob uj = jobs.get(jobId);
+		TemplateUploader tu = uj.getTemplateUploader();
+
+		// keep the checksum computed while uploading next to the template so it doesn't have to be read again
+		String checksum = tu.getUploadChecksum();
+		File file = new File(tu.getUploadLocalPath());
+		if (checksum != null && file.length() == tu.getUploadedBytes()) {
+			String templatePath = file.getParent();
+			if (_storage.exists(templatePath + File.separator + TemplateLocation.Filename)) {
+				TemplateLocation loc = new TemplateLocation(_storage, templatePath);
+				try {
+					loc.load();
+					if (loc.getChecksum(file.getName()) == null) {
+						loc.setChecksum(file.getName(), checksum);
+						loc.save();
+					}
+				} catch (IOException e) {
+					s_logger.warn("Unable to record the checksum of " + file.getAbsolutePath(), e);
+				}
+			}
+		}
 		return null;
 	}
 
@@ -0,0 +1,63 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.agent.resource.virtualnetwork;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.codec.binary.Base64;
+
+public class RouterConfigBundleTest extends TestCase {
+
+    private RouterConfigBundle createBundle() {
+        RouterConfigBundle bundle = new RouterConfigBundle();
+        bundle.addFirewallRule(" -A -P tcp -l 10.1.1.2 -p 22:22 -r 192.168.0.5 -d 22:22 ");
+        bundle.addVmData("192.168.0.5", "metadata", "local-hostname", "vm-5".getBytes());
+        bundle.addVmData("192.168.0.5", "userdata", "user-data", null);
+        return bundle;
+    }
+
+    public void testLines() {
+        RouterConfigBundle bundle = createBundle();
+        assertEquals(3, bundle.size());
+        assertEquals("fw -A -P tcp -l 10.1.1.2 -p 22:22 -r 192.168.0.5 -d 22:22", bundle.getLines().get(0));
+        String[] vmData = bundle.getLines().get(1).split(" ");
+        assertEquals(5, vmData.length);
+        assertEquals("vm-5", new String(Base64.decodeBase64(vmData[4])));
+        assertEquals("vmdata 192.168.0.5 userdata user-data -", bundle.getLines().get(2));
+    }
+
+    public void testAllApplied() {
+        String[] results = createBundle().parseResults("+ noise\nbundle:1:0\nbundle:2:0\nbundle:3:0\nbundle:ok\n");
+        assertEquals(3, results.length);
+        for (String result : results) {
+            assertNull(result);
+        }
+    }
+
+    public void testRolledBack() {
+        String[] results = createBundle().parseResults("bundle:1:0\nbundle:2:1\nbundle:rolledback\n");
+        assertEquals(RouterConfigBundle.ROLLED_BACK, results[0]);
+        assertEquals("Failed", results[1]);
+        assertEquals(RouterConfigBundle.NOT_APPLIED, results[2]);
+    }
+
+    public void testNoVerdict() {
+        assertNull(createBundle().parseResults("bash: /root/config_bundle.sh: No such file or directory\n"));
+        assertNull(createBundle().parseResults(null));
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.agent.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import com.cloud.storage.Storage.ImageFormat;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+public class BinaryCodecTest extends TestCase {
+
+    /**
+     * Builds a request the way a misbehaving peer could send it.
+     */
+    static class Payload {
+        final ByteArrayOutputStream _out = new ByteArrayOutputStream();
+
+        Payload tag(byte tag) {
+            _out.write(tag);
+            return this;
+        }
+
+        Payload varUInt(int value) {
+            while ((value & ~0x7F) != 0) {
+                _out.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            _out.write(value);
+            return this;
+        }
+
+        Payload newName(String name) {
+            // names are sent once, the first one gets index 0
+            varUInt(0);
+            varUInt(name.length());
+            _out.write(name.getBytes(), 0, name.length());
+            return this;
+        }
+
+        Object decode() {
+            byte[] bytes = _out.toByteArray();
+            return BinaryCodec.decode(bytes, 0, bytes.length);
+        }
+    }
+
+    private void assertRefused(Payload payload, String message) {
+        try {
+            payload.decode();
+            fail("Decoded a payload that should have been refused");
+        } catch (CloudRuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+
+    public void testRoundTripOfArrays() {
+        int[][] ints = new int[][] { { 1, 2 }, { 3 } };
+        byte[] bytes = BinaryCodec.encode(ints);
+        assertTrue(Arrays.deepEquals(ints, (int[][])BinaryCodec.decode(bytes, 0, bytes.length)));
+
+        String[][] strings = new String[][] { { "a" }, { "b", null } };
+        bytes = BinaryCodec.encode(strings);
+        assertTrue(Arrays.deepEquals(strings, (String[][])BinaryCodec.decode(bytes, 0, bytes.length)));
+
+        ImageFormat[] formats = new ImageFormat[] { ImageFormat.QCOW2, ImageFormat.VHD };
+        bytes = BinaryCodec.encode(formats);
+        assertTrue(Arrays.equals(formats, (ImageFormat[])BinaryCodec.decode(bytes, 0, bytes.length)));
+    }
+
+    public void testRefusesForeignEnumClass() {
+        assertRefused(new Payload().tag(BinaryCodec.TAG_ENUM).newName("org.apache.log4j.Level"), "Refusing to decode org.apache.log4j.Level");
+    }
+
+    public void testRefusesForeignArrayComponent() {
+        assertRefused(new Payload().tag(BinaryCodec.TAG_ARRAY).newName("org.apache.log4j.Logger").varUInt(0), "Refusing to decode");
+        assertRefused(new Payload().tag(BinaryCodec.TAG_ARRAY).newName("[Lorg.apache.log4j.Logger;").varUInt(0), "Refusing to decode");
+    }
+
+    public void testRefusesForeignJsonClass() {
+        assertRefused(new Payload().tag(BinaryCodec.TAG_JSON).newName("sun.misc.Unsafe"), "Refusing to decode sun.misc.Unsafe");
+    }
+
+    public void testRefusesArrayLongerThanRequest() {
+        assertRefused(new Payload().tag(BinaryCodec.TAG_ARRAY).newName("long").varUInt(Integer.MAX_VALUE), "Array runs past the end");
+        // each element takes at least a tag byte
+        assertRefused(new Payload().tag(BinaryCodec.TAG_ARRAY).newName("int").varUInt(3).tag(BinaryCodec.TAG_NULL).tag(BinaryCodec.TAG_NULL), "Array runs past the end");
+    }
+
+    public void testRefusesNegativeLength() {
+        assertRefused(new Payload().tag(BinaryCodec.TAG_BYTES).varUInt(-1), "Byte array runs past the end");
+        assertRefused(new Payload().tag(BinaryCodec.TAG_STRING).varUInt(-1), "String runs past the end");
+    }
+}
@@ -0,0 +1,221 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.agent.transport;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.CheckHealthAnswer;
+import com.cloud.agent.api.CheckHealthCommand;
+import com.cloud.agent.api.CheckVirtualMachineAnswer;
+import com.cloud.agent.api.CheckVirtualMachineCommand;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.GetHostStatsAnswer;
+import com.cloud.agent.api.GetHostStatsCommand;
+import com.cloud.agent.api.GetVmStatsAnswer;
+import com.cloud.agent.api.GetVmStatsCommand;
+import com.cloud.agent.api.HostStatsEntry;
+import com.cloud.agent.api.PingAnswer;
+import com.cloud.agent.api.PingRoutingCommand;
+import com.cloud.agent.api.ReadyAnswer;
+import com.cloud.agent.api.ReadyCommand;
+import com.cloud.agent.api.RebootCommand;
+import com.cloud.agent.api.SecStorageFirewallCfgCommand;
+import com.cloud.agent.api.SecurityIngressRulesCmd;
+import com.cloud.agent.api.SecurityIngressRulesCmd.IpPortAndProto;
+import com.cloud.agent.api.StartupAnswer;
+import com.cloud.agent.api.StartupRoutingCommand;
+import com.cloud.agent.api.StartupRoutingCommand.VmState;
+import com.cloud.agent.api.StopAnswer;
+import com.cloud.agent.api.StopCommand;
+import com.cloud.agent.api.VmStatsEntry;
+import com.cloud.agent.api.storage.DownloadAnswer;
+import com.cloud.agent.api.storage.DownloadCommand;
+import com.cloud.agent.transport.Request.Version;
+import com.cloud.host.Host;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.storage.Storage.ImageFormat;
+import com.cloud.storage.Storage.TemplateType;
+import com.cloud.storage.VMTemplateStorageResourceAssoc.Status;
+import com.cloud.storage.VMTemplateVO;
+import com.cloud.vm.VirtualMachine.State;
+
+/**
+ * Compares the json (v1) and binary (v4) marshalling of the commands and
+ * answers that make up most of the agent traffic.  This is not run as part
+ * of the unit tests; run it by hand with
+ * 
+ *   java com.cloud.agent.transport.RequestCodecBenchmark [iterations]
+ * 
+ * For each type it prints the encoded size and the time it takes to
+ * marshall and to unmarshall one request.
+ */
+public class RequestCodecBenchmark {
+
+    static class Sample {
+        final String name;
+        final Request request;
+
+        Sample(String name, Request request) {
+            this.name = name;
+            this.request = request;
+        }
+    }
+
+    static Request request(Command cmd) {
+        Request req = new Request(5, 345043403443l, cmd, true);
+        req.setSequence(1234567);
+        return req;
+    }
+
+    static Response response(Command cmd, Answer answer) {
+        return new Response(request(cmd), answer);
+    }
+
+    static List<Sample> samples() {
+        List<Sample> samples = new ArrayList<Sample>();
+
+        Map<String, State> states = new HashMap<String, State>();
+        Map<String, VmState> vms = new HashMap<String, VmState>();
+        List<String> vmNames = new ArrayList<String>();
+        HashMap<String, VmStatsEntry> vmStats = new HashMap<String, VmStatsEntry>();
+        for (int i = 0; i < 40; i++) {
+            String name = "i-2-" + (100 + i) + "-VM";
+            states.put(name, i % 5 == 0 ? State.Stopped : State.Running);
+            vms.put(name, new VmState(State.Running, null));
+            vmNames.add(name);
+            vmStats.put(name, new VmStatsEntry(0.12 * i, 1024.5 * i, 2048.25 * i, 2, "vm"));
+        }
+
+        PingRoutingCommand ping = new PingRoutingCommand(Host.Type.Routing, 5, states);
+        samples.add(new Sample("PingRoutingCommand", request(ping)));
+        samples.add(new Sample("PingAnswer", response(ping, new PingAnswer(ping))));
+
+        Map<String, String> details = new HashMap<String, String>();
+        details.put("product_version", "5.6.100");
+        details.put("private.network.device", "cloud-private");
+        StartupRoutingCommand startup = new StartupRoutingCommand(8, 2400, 16l * 1024 * 1024 * 1024, 512l * 1024 * 1024, "xen-3.0-x86_64 , hvm-3.0-x86_32", HypervisorType.XenServer, details, vms, "5.6");
+        startup.setGuid("4a9e7b48-2d1c-4a3b-9a31-2c1e1c7fd1e3");
+        startup.setPrivateIpAddress("192.168.1.10");
+        samples.add(new Sample("StartupRoutingCommand", request(startup)));
+        samples.add(new Sample("StartupAnswer", response(startup, new StartupAnswer(startup, 5, 60))));
+
+        GetHostStatsCommand hostStats = new GetHostStatsCommand("4a9e7b48-2d1c-4a3b-9a31-2c1e1c7fd1e3", "host5", 5);
+        samples.add(new Sample("GetHostStatsCommand", request(hostStats)));
+        samples.add(new Sample("GetHostStatsAnswer", response(hostStats, new GetHostStatsAnswer(hostStats, new HostStatsEntry(5, 0.35, 1234.5, 5678.25, "host", 16777216, 8388608, 0, 0.5)))));
+
+        GetVmStatsCommand getVmStats = new GetVmStatsCommand(vmNames, "4a9e7b48-2d1c-4a3b-9a31-2c1e1c7fd1e3", "host5");
+        samples.add(new Sample("GetVmStatsCommand", request(getVmStats)));
+        samples.add(new Sample("GetVmStatsAnswer", response(getVmStats, new GetVmStatsAnswer(getVmStats, vmStats))));
+
+        StopCommand stop = new StopCommand("i-2-100-VM");
+        samples.add(new Sample("StopCommand", request(stop)));
+        samples.add(new Sample("StopAnswer", response(stop, new StopAnswer(stop, "Stop VM i-2-100-VM Succeed", 5900, 1234l, 5678l))));
+
+        RebootCommand reboot = new RebootCommand("i-2-101-VM");
+        samples.add(new Sample("RebootCommand", request(reboot)));
+
+        CheckVirtualMachineCommand check = new CheckVirtualMachineCommand("i-2-102-VM");
+        samples.add(new Sample("CheckVirtualMachineCommand", request(check)));
+        samples.add(new Sample("CheckVirtualMachineAnswer", response(check, new CheckVirtualMachineAnswer(check, State.Running, 5901))));
+
+        CheckHealthCommand health = new CheckHealthCommand();
+        samples.add(new Sample("CheckHealthCommand", request(health)));
+        samples.add(new Sample("CheckHealthAnswer", response(health, new CheckHealthAnswer(health, true))));
+
+        ReadyCommand ready = new ReadyCommand(1l);
+        samples.add(new Sample("ReadyCommand", request(ready)));
+        samples.add(new Sample("ReadyAnswer", response(ready, new ReadyAnswer(ready))));
+
+        IpPortAndProto[] rules = new IpPortAndProto[10];
+        for (int i = 0; i < rules.length; i++) {
+            rules[i] = new IpPortAndProto("tcp", 1000 + i, 2000 + i, new String[] { "10.1.1.0/24", "192.168." + i + ".0/24", "172.16.0.0/12" });
+        }
+        SecurityIngressRulesCmd ingress = new SecurityIngressRulesCmd("10.1.1.23", "02:00:4c:5a:00:12", "i-2-103-VM", 103l, "a1b2c3d4e5f6", 42l, rules);
+        samples.add(new Sample("SecurityIngressRulesCmd", request(ingress)));
+
+        SecStorageFirewallCfgCommand firewall = new SecStorageFirewallCfgCommand();
+        for (int i = 0; i < 10; i++) {
+            firewall.addPortConfig("10.1.1." + i, "80", true, "eth1");
+        }
+        samples.add(new Sample("SecStorageFirewallCfgCommand", request(firewall)));
+
+        VMTemplateVO template = new VMTemplateVO(201, "centos53-x86_64", ImageFormat.VHD, true, true, true, TemplateType.USER, "http://download.cloud.com/templates/centos53.vhd.bz2", true, 64, 1,
+                "f2bc34bc1aa6b1a6b0b4", "CentOS 5.3 (64-bit)", true, 12, true, HypervisorType.XenServer);
+        DownloadCommand download = new DownloadCommand("nfs://10.1.1.2/export/secondary", template, 50l * 1024 * 1024 * 1024);
+        samples.add(new Sample("DownloadCommand", request(download)));
+        samples.add(new Sample("DownloadAnswer", response(download, new DownloadAnswer("d2a5c1f0-1c2b", 50, null, Status.DOWNLOAD_IN_PROGRESS, "/mnt/SecStorage/template/tmpl/2/201",
+                "template/tmpl/2/201/201.vhd", 2147483648l, 1073741824l))));
+
+        return samples;
+    }
+
+    static Request copy(Request req, Version version) throws Exception {
+        Request copy = Request.parse(req.getBytes());
+        copy.setVersion(version);
+        return copy;
+    }
+
+    static long encode(Request req, Version version, int iterations) throws Exception {
+        Command[] cmds = req.getCommands();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            Request r = req instanceof Response ? new Response(req, (Answer[])cmds) : new Request(req, cmds);
+            r.setVersion(version);
+            r.toBytes();
+        }
+        return System.nanoTime() - start;
+    }
+
+    static long decode(byte[] bytes, int iterations) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            Request.parse(bytes).getCommands();
+        }
+        return System.nanoTime() - start;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        List<Sample> samples = samples();
+
+        System.out.println(String.format("%-30s %8s %8s %10s %10s %10s %10s", "type", "v1 B", "v4 B", "v1 enc ns", "v4 enc ns", "v1 dec ns", "v4 dec ns"));
+        long[] totals = new long[6];
+        for (Sample sample : samples) {
+            byte[] json = copy(sample.request, Version.v1).getBytes();
+            byte[] binary = copy(sample.request, Version.v4).getBytes();
+
+            // warm up
+            encode(sample.request, Version.v1, iterations / 10);
+            encode(sample.request, Version.v4, iterations / 10);
+            decode(json, iterations / 10);
+            decode(binary, iterations / 10);
+
+            long[] results = new long[] { json.length, binary.length, encode(sample.request, Version.v1, iterations) / iterations, encode(sample.request, Version.v4, iterations) / iterations,
+                    decode(json, iterations) / iterations, decode(binary, iterations) / iterations };
+            for (int i = 0; i < results.length; i++) {
+                totals[i] += results[i];
+            }
+            System.out.println(String.format("%-30s %8d %8d %10d %10d %10d %10d", sample.name, results[0], results[1], results[2], results[3], results[4], results[5]));
+        }
+        System.out.println(String.format("%-30s %8d %8d %10d %10d %10d %10d", "total", totals[0], totals[1], totals[2], totals[3], totals[4], totals[5]));
+    }
+}
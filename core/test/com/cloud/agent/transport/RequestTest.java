@@ -1,6 +1,11 @@
 package com.cloud.agent.transport;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
 
 import junit.framework.TestCase;
 
@@ -15,6 +20,7 @@ import com.cloud.agent.api.SecStorageFirewallCfgCommand;
 import com.cloud.agent.api.UpdateHostPasswordCommand;
 import com.cloud.agent.api.storage.DownloadAnswer;
 import com.cloud.agent.api.storage.DownloadCommand;
+import com.cloud.agent.transport.Request.Version;
 import com.cloud.exception.UnsupportedVersionException;
 import com.cloud.hypervisor.Hypervisor.HypervisorType;
 import com.cloud.serializer.GsonHelper;
@@ -22,6 +28,7 @@ import com.cloud.storage.Storage.ImageFormat;
 import com.cloud.storage.Storage.TemplateType;
 import com.cloud.storage.VMTemplateStorageResourceAssoc.Status;
 import com.cloud.storage.VMTemplateVO;
+import com.google.gson.Gson;
 
 /**
  *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
@@ -137,6 +144,57 @@ public class RequestTest extends TestCase {
 
     }
 
+    public void testBinarySerDeser() {
+        s_logger.info("Testing the binary marshalling produces the same commands as gson");
+        UpdateHostPasswordCommand cmd1 = new UpdateHostPasswordCommand("abc", "def");
+        SecStorageFirewallCfgCommand cmd2 = new SecStorageFirewallCfgCommand();
+        cmd2.addPortConfig("abc", "24", true, "eth0");
+        cmd2.addPortConfig("127.0.0.1", "44", false, "eth1");
+        GetHostStatsCommand cmd3 = new GetHostStatsCommand("hostguid", "hostname", 101);
+        VMTemplateVO template = new VMTemplateVO(1, "templatename", ImageFormat.QCOW2, true, true, true, TemplateType.USER, "url", true, 32, 1, "chksum", "displayText", true, 30, true,
+                HypervisorType.KVM);
+        DownloadCommand cmd4 = new DownloadCommand("secUrl", template, 30000000l);
+        Request sreq = new Request(2, 3, new Command[] { cmd1, cmd2, cmd3, cmd4 }, true, true);
+        sreq.setSequence(892403717);
+        sreq.setVersion(Version.v4);
+
+        byte[] bytes = sreq.getBytes();
+        assert bytes[0] == Version.v4.ordinal();
+        assert Request.getSequence(bytes) == 892403717;
+        assert Request.getViaAgentId(bytes) == 2;
+
+        Request creq = parse(bytes);
+        compareRequest(creq, sreq);
+        compareContent(creq, sreq);
+
+        DownloadAnswer answer = new DownloadAnswer("jobId", 50, "errorString", Status.ABANDONED, "filesystempath", "installpath", 10000000, 20000000);
+        Response cresp = new Response(creq, new Answer[] { new Answer(cmd1, true, "No Problem"), answer });
+        assert cresp.getVersion() == Version.v4 : "Response should be in the version of the request";
+
+        Response sresp = (Response)parse(cresp.getBytes());
+        compareRequest(cresp, sresp);
+        compareContent(cresp, sresp);
+        assert sresp.getAnswers() instanceof Answer[];
+
+        s_logger.info("Switching a json request to binary");
+        Request jreq = parse(new Request(2, 3, new Command[] { cmd3, cmd4 }, true, true).getBytes());
+        jreq.setVersion(Version.v4);
+        Request breq = parse(jreq.getBytes());
+        assert breq.getVersion() == Version.v4;
+        compareContent(jreq, breq);
+
+        s_logger.info("Large binary requests are compressed");
+        StringBuilder details = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            details.append("line ").append(i).append('\n');
+        }
+        Response large = new Response(creq, new Answer(cmd3, false, details.toString()));
+        bytes = large.getBytes();
+        assert bytes.length < details.length() : "Should have been compressed";
+        Response lresp = (Response)parse(bytes);
+        assert details.toString().equals(lresp.getAnswer().getDetails());
+    }
+
     public void testCompress() {
         s_logger.info("testCompress");
         int len = 800000;
@@ -157,6 +215,60 @@ public class RequestTest extends TestCase {
         }
     }
     
+    public void testCompressionCodecs() throws Exception {
+        s_logger.info("testCompressionCodecs");
+        Random random = new Random(7);
+        byte[] text = new byte[300000];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (byte)("{\"vmName\":\"i-2-".charAt(i % 13) + random.nextInt(3));
+        }
+        byte[] noise = new byte[70000];
+        random.nextBytes(noise);
+        byte[][] inputs = new byte[][] { new byte[0], "abc".getBytes(), "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa".getBytes(), text, noise };
+
+        for (CompressionCodec codec : new CompressionCodec[] { CompressionCodec.GZIP, CompressionCodec.LZ4 }) {
+            for (byte[] input : inputs) {
+                ByteBuffer compressed = codec.compress(ByteBuffer.wrap(input), input.length);
+                ByteBuffer decompressed = codec.decompress(compressed, input.length);
+                byte[] output = new byte[decompressed.remaining()];
+                decompressed.get(output);
+                Assert.assertTrue(codec + " failed on " + input.length + " bytes", Arrays.equals(input, output));
+            }
+        }
+
+        s_logger.info("gzip should still be readable by GZIPInputStream");
+        ByteBuffer compressed = CompressionCodec.GZIP.compress(ByteBuffer.wrap(text), text.length);
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed.array(), compressed.position(), compressed.remaining()));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int len;
+        while ((len = in.read(buf)) > 0) {
+            out.write(buf, 0, len);
+        }
+        Assert.assertTrue(Arrays.equals(text, out.toByteArray()));
+
+        s_logger.info("Requests record the codec they are compressed with");
+        GetHostStatsCommand cmd = new GetHostStatsCommand("hostguid", "hostname", 101);
+        Request req = new Request(2, 3, cmd, true);
+        Response resp = new Response(req, new Answer(cmd, false, new String(text)));
+        CompressionStats stats = new CompressionStats();
+        resp.setCompression(CompressionCodec.LZ4, 1024, stats);
+        byte[] bytes = resp.getBytes();
+        Assert.assertEquals(1, stats.getCompressedMessages());
+        Assert.assertEquals(bytes.length - 40, stats.getBytesAfterCompression());
+
+        CompressionStats received = new CompressionStats();
+        Response parsed = (Response)Request.parse(bytes, received);
+        Assert.assertEquals(new String(text), parsed.getAnswer().getDetails());
+        Assert.assertEquals(1, received.getDecompressedMessages());
+        Assert.assertTrue(received.getBytesSaved() > 0);
+
+        resp.setCompression(null, 0, stats);
+        bytes = resp.getBytes();
+        Assert.assertEquals(1, stats.getUncompressedMessages());
+        Assert.assertEquals(new String(text), ((Response)Request.parse(bytes)).getAnswer().getDetails());
+    }
+
     public void testLogging() {
         s_logger.info("Testing Logging");
         GetHostStatsCommand cmd3 = new GetHostStatsCommand("hostguid", "hostname", 101);
@@ -180,6 +292,26 @@ public class RequestTest extends TestCase {
         logger.setLevel(level);
     }
 
+    protected Request parse(byte[] bytes) {
+        try {
+            return Request.parse(bytes);
+        } catch (ClassNotFoundException e) {
+            throw new RuntimeException("Unable to parse bytes", e);
+        } catch (UnsupportedVersionException e) {
+            throw new RuntimeException("Unable to parse bytes", e);
+        }
+    }
+
+    protected void compareContent(Request req1, Request req2) {
+        Gson gson = GsonHelper.getGson();
+        Command[] cmd1 = req1.getCommands();
+        Command[] cmd2 = req2.getCommands();
+        Assert.assertEquals(cmd1.length, cmd2.length);
+        for (int i = 0; i < cmd1.length; i++) {
+            Assert.assertEquals(gson.toJson(cmd1[i]), gson.toJson(cmd2[i]));
+        }
+    }
+
     protected void compareRequest(Request req1, Request req2) {
         assert req1.getSequence() == req2.getSequence();
         assert req1.getAgentId() == req2.getAgentId();
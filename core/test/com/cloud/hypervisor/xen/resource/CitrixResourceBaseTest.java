@@ -0,0 +1,131 @@
+/**
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.hypervisor.xen.resource;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.xmlrpc.XmlRpcException;
+
+import com.cloud.utils.Pair;
+import com.cloud.vm.VirtualMachine.State;
+import com.xensource.xenapi.Connection;
+import com.xensource.xenapi.Types.XenAPIException;
+
+public class CitrixResourceBaseTest extends TestCase {
+
+    /**
+     * Answers XenAPI calls with canned records instead of talking to a pool master, and records which
+     * calls were made.
+     */
+    static class StubConnection extends Connection {
+        final List<String> _calls = new ArrayList<String>();
+        final Map<String, Object> _vms = new HashMap<String, Object>();
+        final Map<String, Object> _hosts = new HashMap<String, Object>();
+
+        StubConnection() throws Exception {
+            super(new URL("http://localhost/"), "OpaqueRef:session");
+        }
+
+        void addHost(String ref, String uuid) {
+            Map<String, Object> record = new HashMap<String, Object>();
+            record.put("uuid", uuid);
+            _hosts.put(ref, record);
+        }
+
+        void addVm(String ref, String name, String powerState, String residentOn) {
+            Map<String, Object> record = new HashMap<String, Object>();
+            record.put("uuid", ref.replace("OpaqueRef:", ""));
+            record.put("name_label", name);
+            record.put("power_state", powerState);
+            record.put("resident_on", residentOn);
+            record.put("is_a_template", false);
+            record.put("is_a_snapshot", false);
+            record.put("is_control_domain", false);
+            _vms.put(ref, record);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected Map<String, Object> dispatch(String method, Object[] params) throws XmlRpcException, XenAPIException {
+            _calls.add(method);
+            Object value;
+            if (method.equals("VM.get_all_records")) {
+                value = _vms;
+            } else if (method.equals("host.get_all_records")) {
+                value = _hosts;
+            } else if (method.equals("host.get_uuid")) {
+                value = ((Map<String, Object>)_hosts.get(params[1])).get("uuid");
+            } else {
+                throw new XmlRpcException("Unexpected call " + method);
+            }
+            Map<String, Object> result = new HashMap<String, Object>();
+            result.put("Status", "Success");
+            result.put("Value", value);
+            return result;
+        }
+
+        int count(String method) {
+            int count = 0;
+            for (String call : _calls) {
+                if (call.equals(method)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    static class TestResource extends XenServer56Resource {
+    }
+
+    public void testGetAllVmsResolvesHostsOnce() throws Exception {
+        StubConnection conn = new StubConnection();
+        conn.addHost("OpaqueRef:h1", "host-1");
+        conn.addHost("OpaqueRef:h2", "host-2");
+        for (int i = 0; i < 50; i++) {
+            conn.addVm("OpaqueRef:vm" + i, "i-2-" + i + "-VM", "Running", i % 2 == 0 ? "OpaqueRef:h1" : "OpaqueRef:h2");
+        }
+        conn.addVm("OpaqueRef:halted", "i-2-99-VM", "Halted", "OpaqueRef:NULL");
+
+        TestResource resource = new TestResource();
+        HashMap<String, Pair<String, State>> vms = resource.getAllVms(conn);
+        assertEquals(50, vms.size());
+        assertEquals("host-1", vms.get("i-2-0-VM").first());
+        assertEquals("host-2", vms.get("i-2-1-VM").first());
+        assertEquals(State.Running, vms.get("i-2-1-VM").second());
+        assertEquals(1, conn.count("host.get_all_records"));
+        assertEquals(0, conn.count("host.get_uuid"));
+
+        //the next sync needs no host lookups at all
+        resource.getAllVms(conn);
+        assertEquals(1, conn.count("host.get_all_records"));
+        assertEquals(2, conn.count("VM.get_all_records"));
+
+        //a host joins the pool
+        conn.addHost("OpaqueRef:h3", "host-3");
+        conn.addVm("OpaqueRef:vm100", "i-2-100-VM", "Running", "OpaqueRef:h3");
+        vms = resource.getAllVms(conn);
+        assertEquals("host-3", vms.get("i-2-100-VM").first());
+        assertEquals(2, conn.count("host.get_all_records"));
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.hypervisor.xen.resource;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+import com.cloud.agent.api.VmStatsEntry;
+
+/**
+ * Compares XenServerRRDParser with the DOM based parsing CitrixResourceBase used to do, on an rrd
+ * xport dump shaped like the gethostvmstats output of a host running 200 vms. Run it by hand with
+ * 
+ *   java com.cloud.hypervisor.xen.resource.XenServerRRDParserBenchmark [vms] [rows] [rounds]
+ */
+public class XenServerRRDParserBenchmark {
+    static final String[] VM_PARAMS = { "cpu0", "cpu1", "vif_0_rx", "vif_0_tx", "vif_1_rx", "vif_1_tx", "vbd_xvda_read", "vbd_xvda_write", "memory", "memory_internal_free" };
+
+    static String vmUuid(int i) {
+        return String.format("%08x-1111-2222-3333-%012x", i, i);
+    }
+
+    /**
+     * @return an xport document with one column per vm parameter, one row per polling interval.
+     */
+    static String rrdDump(int numVms, int numRows) {
+        Random random = new Random(numVms);
+        List<String> legend = new ArrayList<String>();
+        for (int vm = 0; vm < numVms; vm++) {
+            for (String param : VM_PARAMS) {
+                legend.add("AVERAGE:vm:" + vmUuid(vm) + ":" + param);
+            }
+        }
+        StringBuilder xml = new StringBuilder();
+        xml.append("<xport><meta><start>1300000000</start><step>60</step><end>1300001000</end>");
+        xml.append("<rows>").append(numRows).append("</rows><columns>").append(legend.size()).append("</columns><legend>");
+        for (String entry : legend) {
+            xml.append("<entry>").append(entry).append("</entry>");
+        }
+        xml.append("</legend></meta><data>");
+        for (int row = 0; row < numRows; row++) {
+            xml.append("<row><t>").append(1300001000 - row * 60).append("</t>");
+            for (int col = 0; col < legend.size(); col++) {
+                //the newest row of a freshly started vm has no samples yet
+                if (row == 0 && col % 97 == 0) {
+                    xml.append("<v>NaN</v>");
+                } else {
+                    xml.append("<v>").append(random.nextDouble() * 1000).append("</v>");
+                }
+            }
+            xml.append("</row>");
+        }
+        xml.append("</data></xport>");
+        return xml.toString();
+    }
+
+    /**
+     * The vm stats parsing CitrixResourceBase did before XenServerRRDParser.
+     */
+    static HashMap<String, VmStatsEntry> parseWithDom(String stats, List<String> vmUUIDs) throws Exception {
+        HashMap<String, VmStatsEntry> vmResponseMap = new HashMap<String, VmStatsEntry>();
+        for (String vmUUID : vmUUIDs) {
+            vmResponseMap.put(vmUUID, new VmStatsEntry(0, 0, 0, 0, "vm"));
+        }
+
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(new StringReader(stats)));
+        NodeList secondLevelChildren = doc.getChildNodes().item(0).getChildNodes();
+        Node metaNode = secondLevelChildren.item(0);
+        Node dataNode = secondLevelChildren.item(1);
+        int numRows = 0;
+        int numColumns = 0;
+        Node legend = null;
+        NodeList metaNodeChildren = metaNode.getChildNodes();
+        for (int i = 0; i < metaNodeChildren.getLength(); i++) {
+            Node n = metaNodeChildren.item(i);
+            if (n.getNodeName().equals("rows")) {
+                numRows = Integer.valueOf(n.getChildNodes().item(0).getNodeValue());
+            } else if (n.getNodeName().equals("columns")) {
+                numColumns = Integer.valueOf(n.getChildNodes().item(0).getNodeValue());
+            } else if (n.getNodeName().equals("legend")) {
+                legend = n;
+            }
+        }
+
+        NodeList legendChildren = legend.getChildNodes();
+        for (int col = 0; col < numColumns; col++) {
+            String[] columnMetadataList = legendChildren.item(col).getChildNodes().item(0).getNodeValue().split(":");
+            if (columnMetadataList.length != 4) {
+                continue;
+            }
+            String type = columnMetadataList[1];
+            String uuid = columnMetadataList[2];
+            String param = columnMetadataList[3];
+            if (type.equals("vm") && vmResponseMap.keySet().contains(uuid)) {
+                VmStatsEntry vmStatsAnswer = vmResponseMap.get(uuid);
+                if (param.contains("cpu")) {
+                    vmStatsAnswer.setNumCPUs(vmStatsAnswer.getNumCPUs() + 1);
+                    vmStatsAnswer.setCPUUtilization(vmStatsAnswer.getCPUUtilization() + getDataAverage(dataNode, col, numRows));
+                } else if (param.equals("vif_0_rx")) {
+                    vmStatsAnswer.setNetworkReadKBs(getDataAverage(dataNode, col, numRows) / (8 * 2));
+                } else if (param.equals("vif_0_tx")) {
+                    vmStatsAnswer.setNetworkWriteKBs(getDataAverage(dataNode, col, numRows) / (8 * 2));
+                }
+            }
+        }
+
+        for (VmStatsEntry vmStatsAnswer : vmResponseMap.values()) {
+            if (vmStatsAnswer.getNumCPUs() != 0) {
+                vmStatsAnswer.setCPUUtilization(vmStatsAnswer.getCPUUtilization() / vmStatsAnswer.getNumCPUs());
+            }
+            vmStatsAnswer.setCPUUtilization(vmStatsAnswer.getCPUUtilization() * 100);
+        }
+        return vmResponseMap;
+    }
+
+    static double getDataAverage(Node dataNode, int col, int numRows) {
+        double value = 0;
+        int numRowsUsed = 0;
+        for (int row = 0; row < numRows; row++) {
+            Node data = dataNode.getChildNodes().item(numRows - 1 - row).getChildNodes().item(col + 1);
+            Double currentDataAsDouble = Double.valueOf(data.getChildNodes().item(0).getNodeValue());
+            if (!currentDataAsDouble.equals(Double.NaN)) {
+                numRowsUsed += 1;
+                value += currentDataAsDouble;
+            }
+        }
+        return numRowsUsed == 0 ? value : value / numRowsUsed;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int numVms = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int numRows = args.length > 1 ? Integer.parseInt(args[1]) : 17;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        String dump = rrdDump(numVms, numRows);
+        List<String> vmUuids = new ArrayList<String>();
+        for (int i = 0; i < numVms; i++) {
+            vmUuids.add(vmUuid(i));
+        }
+        System.out.println("rrd dump of " + numVms + " vms, " + numRows + " rows: " + dump.length() / 1024 + " KB");
+
+        XenServerRRDParser parser = new XenServerRRDParser();
+        for (int pass = 0; pass < 2; pass++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                parseWithDom(dump, vmUuids);
+            }
+            long domNs = (System.nanoTime() - start) / rounds;
+
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                parser.parseVmStats(new StringReader(dump), vmUuids);
+            }
+            long staxNs = (System.nanoTime() - start) / rounds;
+            System.out.println((pass == 0 ? "warm up: " : "") + "dom " + domNs / 1000 + " us, streaming " + staxNs / 1000 + " us per stats cycle");
+        }
+    }
+}
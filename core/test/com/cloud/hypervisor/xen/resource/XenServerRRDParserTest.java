@@ -0,0 +1,86 @@
+/**
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.hypervisor.xen.resource;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.cloud.agent.api.HostStatsEntry;
+import com.cloud.agent.api.VmStatsEntry;
+
+public class XenServerRRDParserTest extends TestCase {
+
+    public void testVmStatsMatchDomParsing() throws Exception {
+        String dump = XenServerRRDParserBenchmark.rrdDump(20, 5);
+        List<String> vmUuids = new ArrayList<String>();
+        for (int i = 0; i < 20; i += 2) {
+            vmUuids.add(XenServerRRDParserBenchmark.vmUuid(i));
+        }
+        //a vm without rrd data
+        vmUuids.add("deadbeef");
+
+        HashMap<String, VmStatsEntry> expected = XenServerRRDParserBenchmark.parseWithDom(dump, vmUuids);
+        XenServerRRDParser parser = new XenServerRRDParser();
+        for (int round = 0; round < 2; round++) {
+            HashMap<String, VmStatsEntry> actual = parser.parseVmStats(new StringReader(dump), vmUuids);
+            assertEquals(expected.keySet(), actual.keySet());
+            for (String vmUuid : vmUuids) {
+                VmStatsEntry e = expected.get(vmUuid);
+                VmStatsEntry a = actual.get(vmUuid);
+                assertEquals(e.getNumCPUs(), a.getNumCPUs());
+                assertEquals(e.getCPUUtilization(), a.getCPUUtilization(), 1e-6);
+                assertEquals(e.getNetworkReadKBs(), a.getNetworkReadKBs(), 1e-9);
+                assertEquals(e.getNetworkWriteKBs(), a.getNetworkWriteKBs(), 1e-9);
+            }
+        }
+        assertEquals(0, actual(parser, dump, "deadbeef").getNumCPUs());
+        //the legend did not change between rounds
+        assertEquals(1, parser.getSchemaResolutions());
+    }
+
+    private static VmStatsEntry actual(XenServerRRDParser parser, String dump, String vmUuid) {
+        return parser.parseVmStats(new StringReader(dump), Arrays.asList(vmUuid)).get(vmUuid);
+    }
+
+    public void testHostStats() {
+        String dump = "<xport><meta><start>0</start><step>60</step><end>120</end><rows>3</rows><columns>6</columns><legend>"
+            + "<entry>AVERAGE:host:h1:cpu0</entry><entry>AVERAGE:host:h1:cpu1</entry><entry>AVERAGE:host:h1:pif_eth0_rx</entry>"
+            + "<entry>AVERAGE:host:h1:pif_eth0_tx</entry><entry>AVERAGE:host:h1:memory_total_kib</entry><entry>AVERAGE:host:h1:memory_free_kib</entry>"
+            + "</legend></meta><data>"
+            + "<row><t>120</t><v>0.5</v><v>NaN</v><v>10</v><v>20</v><v>1000</v><v>400</v></row>"
+            + "<row><t>60</t><v>0.3</v><v>0.2</v><v>30</v><v>40</v><v>1000</v><v>600</v></row>"
+            + "<row><t>0</t><v>0.1</v><v>0.4</v><v>NaN</v><v>NaN</v><v>1000</v><v>500</v></row>"
+            + "</data></xport>";
+        HostStatsEntry stats = new XenServerRRDParser().parseHostStats(new StringReader(dump), 7);
+        assertEquals("host", stats.getEntityType());
+        assertEquals(0.3 + 0.3, stats.getCpuUtilization(), 1e-9);
+        assertEquals(20.0, stats.getNetworkReadKBs(), 1e-9);
+        assertEquals(30.0, stats.getNetworkWriteKBs(), 1e-9);
+        assertEquals(1000.0, stats.getTotalMemoryKBs(), 1e-9);
+        assertEquals(500.0, stats.getFreeMemoryKBs(), 1e-9);
+    }
+
+    public void testMalformedDocument() {
+        assertNull(new XenServerRRDParser().parseHostStats(new StringReader("<xport><meta>"), 1));
+        assertNull(new XenServerRRDParser().parseVmStats(new StringReader("not xml"), Arrays.asList("a")));
+    }
+}
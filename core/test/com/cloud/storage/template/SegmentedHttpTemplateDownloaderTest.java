@@ -0,0 +1,384 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.storage.template;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.cloud.storage.JavaStorageLayer;
+import com.cloud.storage.Storage.ImageFormat;
+import com.cloud.storage.StorageLayer;
+import com.cloud.storage.template.TemplateDownloader.DownloadCompleteCallback;
+import com.cloud.storage.template.TemplateDownloader.Status;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class SegmentedHttpTemplateDownloaderTest extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(SegmentedHttpTemplateDownloaderTest.class);
+    private static final long SPARSE_SIZE = Long.getLong("test.sparse.size", 3L * 1024 * 1024 * 1024 + 12345);
+
+    private File _dir;
+    private File _source;
+    private HttpServer _server;
+    private ExecutorService _executor;
+    private String _url;
+
+    private volatile boolean _ranges = true;
+    private volatile long _budget = Long.MAX_VALUE;
+    // answer for the segment requests, if not 0
+    private volatile int _errorCode;
+    private final AtomicLong _served = new AtomicLong();
+    private final AtomicInteger _rangeRequests = new AtomicInteger();
+
+    @Override
+    protected void setUp() throws Exception {
+        // an unconfigured log4j has the root logger at debug, which turns on the httpclient wire log
+        Logger.getLogger("httpclient.wire").setLevel(Level.INFO);
+
+        _dir = File.createTempFile("download", "");
+        _dir.delete();
+        _dir.mkdirs();
+        _source = new File(_dir, "source.img");
+
+        _server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        _server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        // the default executor serves one request at a time
+        _executor = Executors.newCachedThreadPool();
+        _server.setExecutor(_executor);
+        _server.start();
+        _url = "http://127.0.0.1:" + _server.getAddress().getPort() + "/source.img";
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        _server.stop(0);
+        _executor.shutdownNow();
+        for (File file : _dir.listFiles()) {
+            file.delete();
+        }
+        _dir.delete();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(_source, "r");
+        try {
+            long size = raf.length();
+            long start = 0;
+            long end = size - 1;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            boolean partial = _ranges && range != null;
+            if (_errorCode != 0 && partial && !range.equals("bytes=0-0")) {
+                exchange.sendResponseHeaders(_errorCode, -1);
+                return;
+            }
+            if (partial) {
+                String[] bounds = range.substring("bytes=".length()).split("-");
+                start = Long.parseLong(bounds[0]);
+                if (bounds.length > 1 && bounds[1].length() > 0) {
+                    end = Math.min(end, Long.parseLong(bounds[1]));
+                }
+                _rangeRequests.incrementAndGet();
+            }
+            long length = end - start + 1;
+            // reserve the bytes up front, concurrent ranges would all see the full budget otherwise
+            long allowed = Math.min(length, Math.max(0, _budget - _served.getAndAdd(length)));
+            if (allowed < length) {
+                _served.addAndGet(allowed - length);
+            }
+            if (allowed <= 0) {
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+            if (partial) {
+                exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + size);
+            }
+            exchange.sendResponseHeaders(partial ? 206 : 200, length);
+            OutputStream out = exchange.getResponseBody();
+            WritableByteChannel channel = Channels.newChannel(out);
+            FileChannel in = raf.getChannel();
+            long position = start;
+            while (position < start + allowed) {
+                position += in.transferTo(position, start + allowed - position, channel);
+            }
+            out.flush();
+        } finally {
+            raf.close();
+            // closing short of the announced length drops the connection
+            exchange.close();
+        }
+    }
+
+    private byte[] createSource(int size) throws IOException {
+        byte[] data = new byte[size];
+        new Random(11).nextBytes(data);
+        RandomAccessFile raf = new RandomAccessFile(_source, "rw");
+        raf.write(data);
+        raf.close();
+        return data;
+    }
+
+    private byte[] read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        byte[] data = new byte[(int)raf.length()];
+        raf.readFully(data);
+        raf.close();
+        return data;
+    }
+
+    private SegmentedHttpTemplateDownloader createDownloader(int segments) {
+        File toDir = new File(_dir, "template");
+        toDir.mkdirs();
+        SegmentedHttpTemplateDownloader td = new SegmentedHttpTemplateDownloader(null, _url, toDir.getAbsolutePath(), null, TemplateDownloader.DEFAULT_MAX_TEMPLATE_SIZE_IN_BYTES, null, null, segments, false);
+        td.setRetryInterval(0);
+        return td;
+    }
+
+    private static File progressFile(File file) {
+        return new File(file.getPath() + SegmentedHttpTemplateDownloader.PROGRESS_SUFFIX);
+    }
+
+    /**
+     * Runs jobs through the retry loop of DownloadManagerImpl, but stops short
+     * of installing a finished download.
+     */
+    private class TestDownloadManager extends DownloadManagerImpl {
+        final List<Status> _statuses = Collections.synchronizedList(new ArrayList<Status>());
+        final Semaphore _finished = new Semaphore(0);
+        // the origin comes back once the job got this many RECOVERABLE_ERRORs
+        volatile int _recoverAfter = -1;
+        SegmentedHttpTemplateDownloader _downloader;
+
+        @Override
+        protected TemplateDownloader createHttpDownloader(String url, String tmpDir, DownloadCompleteCallback callback, long maxTemplateSizeInBytes, String user, String password) {
+            SegmentedHttpTemplateDownloader td = new SegmentedHttpTemplateDownloader(null, url, tmpDir, callback, maxTemplateSizeInBytes, user, password, 2, false);
+            td.setRetryInterval(0);
+            _downloader = td;
+            return td;
+        }
+
+        @Override
+        public void setDownloadStatus(String jobId, Status status) {
+            _statuses.add(status);
+            if (status == Status.RECOVERABLE_ERROR && Collections.frequency(_statuses, status) == _recoverAfter) {
+                _budget = Long.MAX_VALUE;
+            }
+            if (status != Status.DOWNLOAD_FINISHED) {
+                super.setDownloadStatus(jobId, status);
+            }
+            if (status == Status.DOWNLOAD_FINISHED || status == Status.UNRECOVERABLE_ERROR) {
+                _finished.release();
+            }
+        }
+
+        String download() throws Exception {
+            _statuses.clear();
+            String jobId = downloadPublicTemplate(1, _url, "test", ImageFormat.RAW, true, 2L, null, null, new File(_dir, "template").getPath(), null, null,
+                    TemplateDownloader.DEFAULT_MAX_TEMPLATE_SIZE_IN_BYTES);
+            assertNotNull(jobId);
+            assertTrue("Download did not end", _finished.tryAcquire(60, TimeUnit.SECONDS));
+            return jobId;
+        }
+    }
+
+    private TestDownloadManager createManager() throws Exception {
+        TestDownloadManager manager = new TestDownloadManager();
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put(StorageLayer.InstanceConfigKey, new JavaStorageLayer());
+        params.put("template.scripts.dir", "scripts/storage/secondary");
+        assertTrue(manager.configure("DownloadManager", params));
+        return manager;
+    }
+
+    public void testSparseMultiGigabyteFile() throws Exception {
+        // one marker past 2GB to catch offsets squeezed through an int
+        long[] markers = new long[] { 0, SPARSE_SIZE / 4 - 3, SPARSE_SIZE / 2, Math.min(2L * 1024 * 1024 * 1024 + 1, SPARSE_SIZE - 16), SPARSE_SIZE - 8 };
+        RandomAccessFile raf = new RandomAccessFile(_source, "rw");
+        raf.setLength(SPARSE_SIZE);
+        for (long marker : markers) {
+            raf.seek(marker);
+            raf.writeLong(marker ^ 0x5a5a5a5a5a5a5a5aL);
+        }
+        raf.close();
+
+        SegmentedHttpTemplateDownloader td = createDownloader(4);
+        long start = System.currentTimeMillis();
+        td.download(false, null);
+        long duration = System.currentTimeMillis() - start;
+
+        assertEquals(td.getDownloadError(), Status.DOWNLOAD_FINISHED, td.getStatus());
+        assertEquals(SPARSE_SIZE, td.getDownloadedBytes());
+        assertEquals(100, td.getDownloadPercent());
+        assertEquals(5, _rangeRequests.get());
+
+        File file = new File(td.getDownloadLocalPath());
+        assertEquals(SPARSE_SIZE, file.length());
+        assertFalse(new File(file.getPath() + SegmentedHttpTemplateDownloader.PROGRESS_SUFFIX).exists());
+        raf = new RandomAccessFile(file, "r");
+        for (long marker : markers) {
+            raf.seek(marker);
+            assertEquals(marker ^ 0x5a5a5a5a5a5a5a5aL, raf.readLong());
+        }
+        raf.close();
+        assertEquals(TemplateChecksum.compute(file), td.getDownloadChecksum());
+        s_logger.info("Downloaded " + SPARSE_SIZE + " bytes in 4 segments in " + duration + "ms");
+    }
+
+    public void testResumeAfterRestart() throws Exception {
+        byte[] data = createSource(80 * 1024 * 1024 + 7);
+
+        // the origin goes away part way through
+        _budget = 30 * 1024 * 1024;
+        SegmentedHttpTemplateDownloader td = createDownloader(4);
+        td.download(false, null);
+        assertEquals(td.getDownloadError(), Status.RECOVERABLE_ERROR, td.getStatus());
+        long first = td.getDownloadedBytes();
+        assertTrue(first > 0 && first < data.length);
+        File file = new File(td.getDownloadLocalPath());
+        assertTrue(new File(file.getPath() + SegmentedHttpTemplateDownloader.PROGRESS_SUFFIX).exists());
+
+        // a new downloader, as after a secondary storage vm restart, only fetches the rest
+        _budget = Long.MAX_VALUE;
+        _served.set(0);
+        td = createDownloader(4);
+        td.download(false, null);
+        assertEquals(td.getDownloadError(), Status.DOWNLOAD_FINISHED, td.getStatus());
+        assertEquals(data.length - first + 1, _served.get());
+        assertTrue(Arrays.equals(data, read(file)));
+        // the part downloaded before the restart is hashed from disk
+        assertEquals(TemplateChecksum.compute(file), td.getDownloadChecksum());
+        assertFalse(new File(file.getPath() + SegmentedHttpTemplateDownloader.PROGRESS_SUFFIX).exists());
+    }
+
+    public void testOriginGoneKeepsDownload() throws Exception {
+        createSource(20 * 1024 * 1024);
+        _budget = 1;
+        SegmentedHttpTemplateDownloader td = createDownloader(2);
+        for (int i = 1; i < SegmentedHttpTemplateDownloader.MAX_ATTEMPTS; i++) {
+            td.download(false, null);
+            assertEquals(td.getDownloadError(), Status.RECOVERABLE_ERROR, td.getStatus());
+        }
+        td.download(false, null);
+        assertEquals(Status.UNRECOVERABLE_ERROR, td.getStatus());
+        File file = new File(td.getDownloadLocalPath());
+        assertTrue(file.exists());
+        assertTrue(progressFile(file).exists());
+    }
+
+    public void testClientErrorDiscardsDownload() throws Exception {
+        createSource(40 * 1024 * 1024);
+        _budget = 10 * 1024 * 1024;
+        SegmentedHttpTemplateDownloader td = createDownloader(2);
+        td.download(false, null);
+        assertEquals(td.getDownloadError(), Status.RECOVERABLE_ERROR, td.getStatus());
+        File file = new File(td.getDownloadLocalPath());
+        assertTrue(progressFile(file).exists());
+
+        // the file went away at the origin
+        _budget = Long.MAX_VALUE;
+        _errorCode = 404;
+        td.download(false, null);
+        assertEquals(Status.UNRECOVERABLE_ERROR, td.getStatus());
+        assertFalse(file.exists());
+        assertFalse(progressFile(file).exists());
+    }
+
+    public void testDownloadManagerRetries() throws Exception {
+        byte[] data = createSource(40 * 1024 * 1024 + 5);
+        TestDownloadManager manager = createManager();
+        // the first attempt gets part of the file, the second nothing
+        _budget = 10 * 1024 * 1024;
+        manager._recoverAfter = 2;
+        String jobId = manager.download();
+
+        assertEquals(Arrays.asList(Status.RECOVERABLE_ERROR, Status.RECOVERABLE_ERROR, Status.DOWNLOAD_FINISHED), manager._statuses);
+        File file = new File(manager.getDownloadLocalPath(jobId));
+        assertTrue(Arrays.equals(data, read(file)));
+        // the attempts hashed the file in turns
+        assertEquals(TemplateChecksum.compute(file), manager._downloader.getDownloadChecksum());
+        assertFalse(progressFile(file).exists());
+    }
+
+    public void testDownloadManagerKeepsDownloadForTheNextJob() throws Exception {
+        byte[] data = createSource(40 * 1024 * 1024 + 5);
+        TestDownloadManager manager = createManager();
+        long budget = 10 * 1024 * 1024;
+        _budget = budget;
+        String jobId = manager.download();
+
+        // one attempt with progress, then MAX_ATTEMPTS without
+        assertEquals(SegmentedHttpTemplateDownloader.MAX_ATTEMPTS + 1, manager._statuses.size());
+        assertEquals(SegmentedHttpTemplateDownloader.MAX_ATTEMPTS, Collections.frequency(manager._statuses, Status.RECOVERABLE_ERROR));
+        assertEquals(Status.UNRECOVERABLE_ERROR, manager._statuses.get(SegmentedHttpTemplateDownloader.MAX_ATTEMPTS));
+        File file = new File(manager.getDownloadLocalPath(jobId));
+        assertTrue(file.exists());
+        assertTrue(progressFile(file).exists());
+
+        // the template is downloaded again once the origin is back, from where the first job got
+        _budget = Long.MAX_VALUE;
+        _served.set(0);
+        jobId = manager.download();
+        assertEquals(Arrays.asList(Status.DOWNLOAD_FINISHED), manager._statuses);
+        assertEquals(file, new File(manager.getDownloadLocalPath(jobId)));
+        // the first job got all of its budget but the byte of its range probe, this one needs a probe as well
+        assertEquals(data.length - (budget - 1) + 1, _served.get());
+        assertTrue(Arrays.equals(data, read(file)));
+    }
+
+    public void testSingleStreamWithoutRanges() throws Exception {
+        byte[] data = createSource(5 * 1024 * 1024 + 3);
+        _ranges = false;
+        SegmentedHttpTemplateDownloader td = createDownloader(4);
+        td.download(false, null);
+        assertEquals(td.getDownloadError(), Status.DOWNLOAD_FINISHED, td.getStatus());
+        assertEquals(0, _rangeRequests.get());
+        assertEquals(data.length, _served.get());
+        File file = new File(td.getDownloadLocalPath());
+        assertTrue(Arrays.equals(data, read(file)));
+        assertEquals(TemplateChecksum.compute(file), td.getDownloadChecksum());
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.storage.template;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.cloud.storage.JavaStorageLayer;
+
+public class TemplateChecksumTest extends TestCase {
+    private File _dir;
+    private byte[] _data;
+
+    @Override
+    protected void setUp() throws Exception {
+        _dir = File.createTempFile("template", "");
+        _dir.delete();
+        _dir.mkdirs();
+        _data = new byte[3 * 1024 * 1024 + 17];
+        new Random(7).nextBytes(_data);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : _dir.listFiles()) {
+            file.delete();
+        }
+        _dir.delete();
+    }
+
+    private File write(String name, byte[] data) throws IOException {
+        File file = new File(_dir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(data);
+        out.close();
+        return file;
+    }
+
+    public void testStreamingMatchesFile() throws Exception {
+        String expected = new BigInteger(1, MessageDigest.getInstance("MD5").digest(_data)).toString(16);
+
+        TemplateChecksum checksum = new TemplateChecksum();
+        for (int offset = 0; offset < _data.length; offset += 1000) {
+            checksum.update(_data, offset, Math.min(1000, _data.length - offset));
+            assertNotNull(checksum.getChecksum());
+        }
+        assertEquals(_data.length, checksum.getLength());
+        assertEquals(expected, checksum.getChecksum());
+
+        assertEquals(expected, TemplateChecksum.compute(write("t.vhd", _data)));
+    }
+
+    public void testResumedPrefix() throws Exception {
+        File file = write("t.vhd", _data);
+        TemplateChecksum checksum = new TemplateChecksum();
+        checksum.update(file, 1024 * 1024);
+        checksum.update(_data, 1024 * 1024, _data.length - 1024 * 1024);
+        assertEquals(TemplateChecksum.compute(file), checksum.getChecksum());
+    }
+
+    public void testMatches() {
+        assertTrue(TemplateChecksum.matches("0abcdef", "ABCDEF"));
+        assertFalse(TemplateChecksum.matches("abcdef", "abcde0"));
+        assertFalse(TemplateChecksum.matches("abcdef", null));
+        assertFalse(TemplateChecksum.matches("not hex", "abcdef"));
+    }
+
+    public void testRecordedChecksum() throws Exception {
+        File file = write("t.vhd", _data);
+        write(TemplateLocation.Filename, "uniquename=t\n".getBytes());
+        String checksum = TemplateChecksum.compute(file);
+
+        TemplateLocation loc = new TemplateLocation(new JavaStorageLayer(), _dir.getAbsolutePath());
+        loc.load();
+        assertNull(loc.getChecksum("t.vhd"));
+        loc.setChecksum("t.vhd", checksum);
+        assertTrue(loc.save());
+
+        loc = new TemplateLocation(new JavaStorageLayer(), _dir.getAbsolutePath());
+        loc.load();
+        assertEquals(checksum, loc.getChecksum("t.vhd"));
+        assertNull(loc.getChecksum("other.vhd"));
+
+        file.setLastModified(file.lastModified() - 5000);
+        assertNull(loc.getChecksum("t.vhd"));
+    }
+}
@@ -0,0 +1,107 @@
+#!/usr/bin/env bash
+  #
+  # Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+  # 
+  # This software is licensed under the GNU General Public License v3 or later.
+  # 
+  # It is free software: you can redistribute it and/or modify
+  # it under the terms of the GNU General Public License as published by
+  # the Free Software Foundation, either version 3 of the License, or any later version.
+  # This program is distributed in the hope that it will be useful,
+  # but WITHOUT ANY WARRANTY; without even the implied warranty of
+  # MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  # GNU General Public License for more details.
+  # 
+  # You should have received a copy of the GNU General Public License
+  # along with this program.  If not, see <http://www.gnu.org/licenses/>.
+  #
+# config_bundle.sh -- apply a bundle of firewall and vm data changes atomically
+#
+# Each line of the bundle file is one change:
+#   fw <firewall.sh arguments>
+#   vmdata <vm ip> <folder> <file> <base64 data, or - for an empty file>
+# "bundle:<line>:<exit code>" is printed for every line applied. The first
+# failure stops the bundle and restores the iptables rules and vm data that
+# were in place before it started, followed by "bundle:rolledback"; otherwise
+# "bundle:ok" is printed.
+#
+# @VERSION@
+
+source /root/func.sh
+
+lock="biglock"
+locked=$(getLockFile $lock)
+if [ "$locked" != "1" ]
+then
+    exit 1
+fi
+
+usage() {
+  printf "Usage: %s: <bundle file> \n" $(basename $0) >&2
+  unlock_exit 2 $lock $locked
+}
+
+bundle=$1
+[ -f "$bundle" ] || usage
+
+# firewall.sh and userdata.sh skip the lock we already hold
+export BIGLOCK_HELD=1
+
+iptsnapshot=$(mktemp /tmp/bundle_ipt.XXXXXX)
+iptables-save > $iptsnapshot
+
+htmlsnapshot=
+if grep -q "^vmdata " $bundle
+then
+  htmlsnapshot=$(mktemp /tmp/bundle_html.XXXXXX)
+  tar -C /var/www -cf $htmlsnapshot html 2>/dev/null
+  if [ $? -gt 0 ]
+  then
+    rm -f $htmlsnapshot
+    htmlsnapshot=
+  fi
+fi
+
+n=0
+failed=0
+while read kind args
+do
+  [ "$kind" == "" ] && continue
+  n=$((n+1))
+  case $kind in
+  fw)     /root/firewall.sh $args > /dev/null 2>&1
+          rc=$?
+          ;;
+  vmdata) set -- $args
+          dataFile=$(mktemp /tmp/bundle_data.XXXXXX)
+          [ "$4" != "-" ] && echo "$4" | base64 -d > $dataFile
+          /root/userdata.sh -v $1 -F $2 -f $3 -d $dataFile > /dev/null 2>&1
+          rc=$?
+          rm -f $dataFile
+          ;;
+  *)      rc=2
+          ;;
+  esac
+  echo "bundle:$n:$rc"
+  if [ $rc -ne 0 ]
+  then
+    failed=1
+    break
+  fi
+done < $bundle
+
+if [ $failed -eq 1 ]
+then
+  iptables-restore < $iptsnapshot
+  if [ "$htmlsnapshot" != "" ]
+  then
+    rm -rf /var/www/html
+    tar -C /var/www -xf $htmlsnapshot
+  fi
+  echo "bundle:rolledback"
+else
+  echo "bundle:ok"
+fi
+
+rm -f $iptsnapshot $htmlsnapshot
+unlock_exit 0 $lock $locked
@@ -24,10 +24,16 @@
 source /root/func.sh
 
 lock="biglock"
-locked=$(getLockFile $lock)
-if [ "$locked" != "1" ]
+if [ "$BIGLOCK_HELD" == "1" ]
 then
-    exit 1
+    # config_bundle.sh holds the lock for the whole bundle
+    locked=0
+else
+    locked=$(getLockFile $lock)
+    if [ "$locked" != "1" ]
+    then
+        exit 1
+    fi
 fi
 
 usage() {
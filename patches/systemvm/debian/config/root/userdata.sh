@@ -23,10 +23,16 @@
 source /root/func.sh
 
 lock="biglock"
-locked=$(getLockFile $lock)
-if [ "$locked" != "1" ]
+if [ "$BIGLOCK_HELD" == "1" ]
 then
-    exit 1
+    # config_bundle.sh holds the lock for the whole bundle
+    locked=0
+else
+    locked=$(getLockFile $lock)
+    if [ "$locked" != "1" ]
+    then
+        exit 1
+    fi
 fi
 
 usage() {
@@ -69,6 +75,24 @@ create_htaccess() {
     result=$?
   fi
 
+  #support access by http://<dhcp server>/latest/<metadata key> (legacy, see above) also
+  # http://<dhcp server>/latest/meta-data/<metadata key> (correct)
+  if [ "$folder" == "metadata" ] || [ "$folder" == "meta-data" ]
+  then
+    htaccessFile=/var/www/html/latest/.htaccess
+    entry="RewriteRule ^meta-data/(.+)$  ../$folder/%{REMOTE_ADDR}/\$1 [L,NC,QSA]"
+    grep -F "$entry" $htaccessFile
+    if [ $? -gt 0 ]; then
+      echo "$entry" >> $htaccessFile
+    fi
+    entry="RewriteRule ^meta-data/$  ../$folder/%{REMOTE_ADDR}/meta-data [L,NC,QSA]"
+    grep -F "$entry" $htaccessFile
+    if [ $? -gt 0 ]; then
+      echo "$entry" >> $htaccessFile
+    fi
+    result=$?
+  fi
+
   return $result  
 }
 
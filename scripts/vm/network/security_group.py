@@ -592,29 +592,12 @@ def add_network_rules(vm_name, vm_id, vm_ip, signature, seqno, vmMac, rules, vif
             i = ips.index('0.0.0.0/0')
             del ips[i]
             allow_any = True
-        range = start + ":" + end
-        if ips:    
-            if protocol == 'all':
-                for ip in ips:
-                    execute("iptables -I " + vmchain + " -m state --state NEW -s " + ip + " -j ACCEPT")
-            elif protocol != 'icmp':
-                for ip in ips:
-                    execute("iptables -I " + vmchain + " -p " + protocol + " -m " + protocol + " --dport " + range + " -m state --state NEW -s " + ip + " -j ACCEPT")
-            else:
-                range = start + "/" + end
-                if start == "-1":
-                    range = "any"
-                    for ip in ips:
-                        execute("iptables -I " + vmchain + " -p icmp --icmp-type " + range + " -s " + ip + " -j ACCEPT")
+        # built by rule_spec, like add_network_rules_delta, so both leave the same chain for a ruleset
+        for ip in ips:
+            execute("iptables -I " + rule_spec(vmchain, protocol, start, end, ip))
         
         if allow_any and protocol != 'all':
-            if protocol != 'icmp':
-                execute("iptables -I " + vmchain + " -p " + protocol + " -m " +  protocol + " --dport " + range + " -m state --state NEW -j ACCEPT")
-            else:
-                range = start + "/" + end
-                if start == "-1":
-                    range = "any"
-                    execute("iptables -I " + vmchain + " -p icmp --icmp-type " + range + " -j ACCEPT")
+            execute("iptables -I " + rule_spec(vmchain, protocol, start, end, '0.0.0.0/0'))
 
     iptables =  "iptables -A " + vmchain + " -j DROP"       
     execute(iptables)
@@ -625,6 +608,71 @@ def add_network_rules(vm_name, vm_id, vm_ip, signature, seqno, vmMac, rules, vif
   except:
     logging.debug("Failed to network rule !: " + sys.exc_type)
 
+def parse_rule_lines(rules):
+    if rules == "" or rules == None:
+        return []
+    result = []
+    for line in rules.split(';')[:-1]:
+        tokens = line.split(':')
+        if len(tokens) != 4:
+            continue
+        ips = tokens[3].split(",")
+        ips.pop()
+        result.append([tokens[0], tokens[1], tokens[2], ips])
+    return result
+
+def rule_spec(vmchain, protocol, start, end, ip):
+    spec = vmchain
+    if protocol == 'all':
+        spec += " -m state --state NEW"
+    elif protocol != 'icmp':
+        spec += " -p " + protocol + " -m " + protocol + " --dport " + start + ":" + end + " -m state --state NEW"
+    else:
+        range = start + "/" + end
+        if start == "-1":
+            range = "any"
+        spec += " -p icmp --icmp-type " + range
+    if ip != '0.0.0.0/0':
+        spec += " -s " + ip
+    return spec + " -j ACCEPT"
+
+def add_network_rules_delta(vm_name, vm_id, vm_ip, signature, prev_signature, seqno, added, revoked):
+    vmchain = vm_name
+    domId = getvmId(vm_name)
+    changes = check_rule_log_for_vm(vm_name, vm_id, vm_ip, domId, prev_signature, seqno)
+    if True in changes[:4]:
+        logging.debug("No rule log or default rules changed for vm " + vm_name + ", rejecting delta")
+        return 'signature_mismatch'
+    if changes[4]:
+        if not check_rule_log_for_vm(vm_name, vm_id, vm_ip, domId, signature, seqno)[4]:
+            logging.debug("Rule delta already programmed for vm " + vm_name)
+            return 'true'
+        logging.debug("Rule log of vm " + vm_name + " does not match previous signature " + prev_signature + ", rejecting delta")
+        return 'signature_mismatch'
+
+    try:
+        for [protocol, start, end, ips] in parse_rule_lines(revoked):
+            for ip in ips:
+                if protocol == 'all' and ip == '0.0.0.0/0':
+                    continue
+                try:
+                    execute("iptables -D " + rule_spec(vmchain, protocol, start, end, ip))
+                except:
+                    logging.debug("rule for " + ip + " was not programmed in " + vmchain)
+        for [protocol, start, end, ips] in parse_rule_lines(added):
+            for ip in ips:
+                if protocol == 'all' and ip == '0.0.0.0/0':
+                    continue
+                execute("iptables -I " + rule_spec(vmchain, protocol, start, end, ip))
+    except:
+        logging.debug("Failed to program network rule delta for vm " + vm_name)
+        return 'false'
+
+    logging.debug("programmed network rule delta for IP: " + vm_ip + " vmname=" + vm_name + " seqno=" + seqno)
+    if write_rule_log_for_vm(vm_name, vm_id, vm_ip, domId, signature, seqno) == False:
+        return 'false'
+    return 'true'
+
 def getVifs(vmName):
     vifs = []
     try:
@@ -706,6 +754,9 @@ if __name__ == '__main__':
     parser.add_option("--vif", dest="vif")
     parser.add_option("--sig", dest="sig")
     parser.add_option("--seq", dest="seq")
+    parser.add_option("--prevsig", dest="prevsig")
+    parser.add_option("--added", dest="added")
+    parser.add_option("--revoked", dest="revoked")
     parser.add_option("--rules", dest="rules")
     parser.add_option("--brname", dest="brname")
     parser.add_option("--dhcpSvr", dest="dhcpSvr")
@@ -725,6 +776,11 @@ if __name__ == '__main__':
         get_rule_logs_for_vms()
     elif cmd == "add_network_rules":
         add_network_rules(option.vmName, option.vmID, option.vmIP, option.sig, option.seq, option.vmMAC, option.rules, option.vif, option.brname)
+    elif cmd == "add_network_rules_delta":
+        result = add_network_rules_delta(option.vmName, option.vmID, option.vmIP, option.sig, option.prevsig, option.seq, option.added, option.revoked)
+        if result != 'true':
+            print result
+            sys.exit(1)
     elif cmd == "cleanup_rules":
         cleanup_rules()
     elif cmd == "post_default_network_rules":
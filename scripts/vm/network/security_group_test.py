@@ -0,0 +1,119 @@
+#!/usr/bin/python
+#
+# Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+#
+# This software is licensed under the GNU General Public License v3 or later.
+#
+# It is free software: you can redistribute it and/or modify
+# it under the terms of the GNU General Public License as published by
+# the Free Software Foundation, either version 3 of the License, or any later version.
+# This program is distributed in the hope that it will be useful,
+# but WITHOUT ANY WARRANTY; without even the implied warranty of
+# MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+# GNU General Public License for more details.
+#
+# You should have received a copy of the GNU General Public License
+# along with this program.  If not, see <http://www.gnu.org/licenses/>.
+#
+
+# Checks that add_network_rules_delta leaves the same vm chain as a full
+# add_network_rules rebuild of the new ruleset.  iptables is replaced by an
+# in-memory chain, so this runs anywhere: python security_group_test.py
+
+import os
+import sys
+import types
+import unittest
+
+# security_group.py imports the agent's python libraries at load time
+cloud_utils = types.ModuleType('cloud_utils')
+cloud_utils.Command = lambda name: None
+cloudutils = types.ModuleType('cloudutils')
+configFileOps = types.ModuleType('cloudutils.configFileOps')
+configFileOps.configFileOps = object
+sys.modules['cloud_utils'] = cloud_utils
+sys.modules['cloudutils'] = cloudutils
+sys.modules['cloudutils.configFileOps'] = configFileOps
+
+sys.path.insert(0, os.path.dirname(os.path.abspath(__file__)))
+import security_group
+
+class FakeIptables:
+    def __init__(self):
+        self.chains = {}
+
+    def execute(self, cmd):
+        args = cmd.split(' ', 3)
+        if args[0] != 'iptables':
+            raise Exception("unexpected command " + cmd)
+        op = args[1]
+        chain = self.chains.setdefault(args[2], [])
+        if op == '-F':
+            del chain[:]
+        elif op == '-I':
+            chain.insert(0, args[3])
+        elif op == '-A':
+            chain.append(args[3])
+        elif op == '-D':
+            chain.remove(args[3])
+        else:
+            raise Exception("unexpected command " + cmd)
+        return ''
+
+class DeltaMatchesFullRebuildTest(unittest.TestCase):
+    VM = 'i-2-3-VM'
+
+    def setUp(self):
+        self.iptables = FakeIptables()
+        security_group.execute = self.iptables.execute
+        security_group.getvmId = lambda vm_name: '7'
+        self.logged = None
+        security_group.write_rule_log_for_vm = self.write_rule_log
+        security_group.check_rule_log_for_vm = self.check_rule_log
+
+    def write_rule_log(self, vm_name, vm_id, vm_ip, dom_id, signature, seqno):
+        self.logged = signature
+        return True
+
+    def check_rule_log(self, vm_name, vm_id, vm_ip, dom_id, signature, seqno):
+        # default rules unchanged, only the signature is compared
+        return [False, False, False, False, signature != self.logged]
+
+    def chain(self):
+        return self.iptables.chains[self.VM]
+
+    def full(self, rules):
+        self.logged = None
+        self.assertEqual('true', security_group.add_network_rules(self.VM, '3', '10.1.1.2', 'sig', '1', 'mac', rules, 'vif', 'br'))
+        return list(self.chain())
+
+    def check(self, old, new, added, revoked):
+        expected = self.full(new)
+        self.full(old)
+        self.assertEqual('true', security_group.add_network_rules_delta(self.VM, '3', '10.1.1.2', 'sig2', 'sig', '2', added, revoked))
+        actual = self.chain()
+        self.assertEqual(sorted(expected), sorted(actual))
+        self.assertEqual(expected[-1], actual[-1])
+
+    def testIcmpTypeAndCode(self):
+        self.check('tcp:22:22:10.0.0.0/8,;',
+                   'tcp:22:22:10.0.0.0/8,;icmp:8:0:192.168.1.0/24,0.0.0.0/0,;',
+                   'icmp:8:0:192.168.1.0/24,0.0.0.0/0,;', '')
+
+    def testIcmpRevoked(self):
+        self.check('icmp:8:0:192.168.1.0/24,;icmp:-1:-1:172.16.0.0/12,;',
+                   'icmp:-1:-1:172.16.0.0/12,;',
+                   '', 'icmp:8:0:192.168.1.0/24,;')
+
+    def testIcmpAnyAndPorts(self):
+        self.check('udp:53:53:10.0.0.0/8,;',
+                   'udp:53:53:10.0.0.0/8,10.2.0.0/16,;icmp:-1:-1:0.0.0.0/0,;all:0:0:192.168.5.0/24,0.0.0.0/0,;',
+                   'udp:53:53:10.2.0.0/16,;icmp:-1:-1:0.0.0.0/0,;all:0:0:192.168.5.0/24,0.0.0.0/0,;', '')
+
+    def testIcmpTypeIsProgrammed(self):
+        chain = self.full('icmp:0:0:10.0.0.0/8,;')
+        self.assertEqual([self.VM + ' -p icmp --icmp-type 0/0 -s 10.0.0.0/8 -j ACCEPT', self.VM + ' -j DROP'],
+                         [self.VM + ' ' + rule for rule in chain])
+
+if __name__ == '__main__':
+    unittest.main()
@@ -19,18 +19,18 @@ package com.cloud.agent.manager;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
@@ -53,6 +53,7 @@ import com.cloud.agent.transport.Response;
 import com.cloud.exception.AgentUnavailableException;
 import com.cloud.exception.OperationTimedoutException;
 import com.cloud.host.Status;
+import com.cloud.utils.concurrency.HashedWheelTimer;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 
 /**
@@ -61,7 +62,14 @@ import com.cloud.utils.concurrency.NamedThreadFactory;
 public abstract class AgentAttache {
     private static final Logger s_logger = Logger.getLogger(AgentAttache.class);
 
-    private static final ScheduledExecutorService s_listenerExecutor = Executors.newScheduledThreadPool(10, new NamedThreadFactory("ListenerTimer"));
+    private static final ExecutorService s_listenerExecutor = Executors.newFixedThreadPool(10, new NamedThreadFactory("ListenerTimer"));
+    // Listener timeouts are in seconds so a 100ms tick is plenty.
+    private static final HashedWheelTimer s_listenerTimer = new HashedWheelTimer("ListenerWheel", 100, TimeUnit.MILLISECONDS, 512, s_listenerExecutor);
+
+    // Values of _currentSequence when no in sequence request is outstanding
+    // and while a thread is picking the next one to send.
+    protected static final long NO_SEQUENCE = Long.MIN_VALUE;
+    protected static final long CLAIMED_SEQUENCE = Long.MIN_VALUE + 1;
     private static final Random                       s_rand                               = new Random(System.currentTimeMillis());
 
     protected static final Comparator<Request> s_reqComparator =
@@ -80,26 +88,11 @@ public abstract class AgentAttache {
         }
     };
 
-    protected static final Comparator<Object> s_seqComparator =
-        new Comparator<Object>() {
-        @Override
-        public int compare(Object o1, Object o2) {
-            long seq1 = ((Request) o1).getSequence();
-            long seq2 = (Long) o2;
-            if (seq1 < seq2) {
-                return -1;
-            } else if (seq1 > seq2) {
-                return 1;
-            } else {
-                return 0;
-            }
-        }
-    };
-
     protected final long _id;
     protected final ConcurrentHashMap<Long, Listener> _waitForList;
-    protected final LinkedList<Request> _requests;
-    protected Long _currentSequence;
+    // in sequence requests waiting for the current one to be answered
+    protected final ConcurrentSkipListMap<Long, Request> _requests;
+    protected final AtomicLong _currentSequence;
     protected Status _status = Status.Connecting;
     protected boolean _maintenance;
     protected long                                    _nextSequence;
@@ -119,9 +112,9 @@ public abstract class AgentAttache {
     protected AgentAttache(AgentManagerImpl agentMgr, final long id, boolean maintenance) {
         _id = id;
         _waitForList = new ConcurrentHashMap<Long, Listener>();
-        _currentSequence = null;
+        _currentSequence = new AtomicLong(NO_SEQUENCE);
         _maintenance = maintenance;
-        _requests = new LinkedList<Request>();
+        _requests = new ConcurrentSkipListMap<Long, Request>();
         _agentMgr = agentMgr;
         _nextSequence = s_rand.nextInt(Short.MAX_VALUE) << 48;
     }
@@ -172,10 +165,9 @@ public abstract class AgentAttache {
         }
     }
 
-    protected synchronized void addRequest(Request req) {
-        int index = findRequest(req);
-        assert (index < 0) : "How can we get index again? " + index + ":" + req.toString();
-        _requests.add(-index - 1, req);
+    protected void addRequest(Request req) {
+        Request old = _requests.put(req.getSequence(), req);
+        assert (old == null) : "How can we get the same sequence again? " + req.toString();
     }
 
 
@@ -184,7 +176,7 @@ public abstract class AgentAttache {
         cancel(seq);
     }
 
-    protected synchronized void cancel(final long seq) {
+    protected void cancel(final long seq) {
         if (s_logger.isDebugEnabled()) {
             s_logger.debug(log(seq, "Cancelling."));
         }
@@ -192,18 +184,11 @@ public abstract class AgentAttache {
         if (listener != null) {
             listener.processDisconnect(_id, Status.Disconnected);
         }
-        int index = findRequest(seq);
-        if (index >= 0) {
-            _requests.remove(index);
-        }
+        _requests.remove(seq);
     }
 
-    protected synchronized int findRequest(Request req) {
-        return Collections.binarySearch(_requests, req, s_reqComparator);
-    }
-
-    protected synchronized int findRequest(long seq) {
-        return Collections.binarySearch(_requests, seq, s_seqComparator);
+    protected Request findRequest(long seq) {
+        return _requests.get(seq);
     }
 
 
@@ -216,7 +201,7 @@ public abstract class AgentAttache {
             s_logger.trace(log(seq, "Registering listener"));
         }
         if (listener.getTimeout() != -1) {
-            s_listenerExecutor.schedule(new Alarm(seq), listener.getTimeout(), TimeUnit.SECONDS);
+            s_listenerTimer.schedule(new Alarm(seq), listener.getTimeout(), TimeUnit.SECONDS);
         }
         _waitForList.put(seq, listener);
     }
@@ -342,40 +327,81 @@ public abstract class AgentAttache {
             s_logger.debug(log(seq, "Routed from " + req.getManagementServerId()));
         }
 
-        synchronized(this) {
-            try {
-                if (isClosed()) {
-                    throw new AgentUnavailableException("The link to the agent has been closed", _id);
-                }
+        try {
+            if (isClosed()) {
+                throw new AgentUnavailableException("The link to the agent has been closed", _id);
+            }
 
-                if (req.executeInSequence() && _currentSequence != null) {
-                    req.logD("Waiting for Seq " + _currentSequence + " Scheduling: ", true);
-                    addRequest(req);
-                    return;
+            if (req.executeInSequence()) {
+                // Queue it and send it right away if nothing else is outstanding.
+                long current = _currentSequence.get();
+                if (current != NO_SEQUENCE && s_logger.isDebugEnabled()) {
+                    req.logD("Waiting for Seq " + current + " Scheduling: ", true);
                 }
+                addRequest(req);
+                sendQueued(seq);
+                return;
+            }
+
+            req.logD("Sending ", true);
+            send(req);
+        } catch (AgentUnavailableException e) {
+            s_logger.info(log(seq, "Unable to send due to " + e.getMessage()));
+            cancel(seq);
+            throw e;
+        } catch (Exception e) {
+            s_logger.warn(log(seq, "Unable to send due to "), e);
+            cancel(seq);
+            throw new AgentUnavailableException("Problem due to other exception " + e.getMessage(), _id);
+        }
+    }
 
-                // If we got to here either we're not suppose to set
-                // the _currentSequence or it is null already.
+    /**
+     * Sends the first queued in sequence request if no other in sequence
+     * request is outstanding.  Whoever manages to claim _currentSequence
+     * sends; everyone else leaves it to the current request's answer.
+     * 
+     * @param mySeq sequence of the request the caller just queued.
+     * @throws AgentUnavailableException if that request couldn't be sent.
+     */
+    protected void sendQueued(final long mySeq) throws AgentUnavailableException {
+        AgentUnavailableException failure = null;
+        while (!_requests.isEmpty() && _currentSequence.compareAndSet(NO_SEQUENCE, CLAIMED_SEQUENCE)) {
+            Map.Entry<Long, Request> entry = _requests.pollFirstEntry();
+            if (entry == null) {
+                // Someone cancelled it in the meantime.  Release and check
+                // again so a request queued right now isn't left behind.
+                _currentSequence.set(NO_SEQUENCE);
+                continue;
+            }
 
+            final long seq = entry.getKey();
+            final Request req = entry.getValue();
+            // Set before sending so the answer can't come back before it.
+            _currentSequence.set(seq);
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace(log(seq, " is current sequence"));
+            }
+            try {
                 req.logD("Sending ", true);
                 send(req);
-
-                if (req.executeInSequence() && _currentSequence == null) {
-                    _currentSequence = seq;
-                    if (s_logger.isTraceEnabled()) {
-                        s_logger.trace(log(seq, " is current sequence"));
-                    }
-                }
+                break;
             } catch (AgentUnavailableException e) {
-                s_logger.info(log(seq, "Unable to send due to " + e.getMessage()));
-                cancel(seq);
-                throw e;
-            } catch (Exception e) {
-                s_logger.warn(log(seq, "Unable to send due to "), e);
-                cancel(seq);
-                throw new AgentUnavailableException("Problem due to other exception " + e.getMessage(), _id);
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug(log(seq, "Unable to send the next sequence"));
+                }
+                _currentSequence.compareAndSet(seq, NO_SEQUENCE);
+                if (seq == mySeq) {
+                    failure = e;
+                } else {
+                    cancel(seq);
+                }
             }
         }
+
+        if (failure != null) {
+            throw failure;
+        }
     }
 
     public Answer[] send(Request req, int wait) throws AgentUnavailableException, OperationTimedoutException {
@@ -409,8 +435,8 @@ public abstract class AgentAttache {
                     return answers;
                 }
 
-                final Long current = _currentSequence;
-                if (current != null && seq != current) {
+                final long current = _currentSequence.get();
+                if (current != NO_SEQUENCE && seq != current) {
                     if (s_logger.isDebugEnabled()) {
                         s_logger.debug(log(seq, "Waited too long."));
                     }
@@ -427,16 +453,14 @@ public abstract class AgentAttache {
         } catch (OperationTimedoutException e) {
             s_logger.warn(log(seq, "Timed out on " + req.toString()));
             cancel(seq);
-            final Long current = _currentSequence;
-            if (req.executeInSequence() && (current != null && current == seq)) {
+            if (req.executeInSequence()) {
                 sendNext(seq);
             }
             throw e;
         } catch (Exception e) {
             s_logger.warn(log(seq, "Exception while waiting for answer"), e);
             cancel(seq);
-            final Long current = _currentSequence;
-            if (req.executeInSequence() && (current != null && current == seq)) {
+            if (req.executeInSequence()) {
                 sendNext(seq);
             }
             throw new OperationTimedoutException(req.getCommands(), _id, seq, wait, false);
@@ -445,8 +469,16 @@ public abstract class AgentAttache {
         }
     }
 
-    protected synchronized void sendNext(final long seq) {
-        _currentSequence = null;
+    /**
+     * Called when the in sequence request seq is done with, to send the next one.
+     */
+    protected void sendNext(final long seq) {
+        if (!_currentSequence.compareAndSet(seq, NO_SEQUENCE)) {
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace(log(seq, "is not the current sequence"));
+            }
+            return;
+        }
         if (_requests.isEmpty()) {
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug(log(seq, "No more commands found"));
@@ -454,19 +486,11 @@ public abstract class AgentAttache {
             return;
         }
 
-        Request req = _requests.pop();
-        if (s_logger.isDebugEnabled()) {
-            s_logger.debug(log(req.getSequence(), "Sending now.  is current sequence."));
-        }
         try {
-            send(req);
+            sendQueued(NO_SEQUENCE);
         } catch (AgentUnavailableException e) {
-            if (s_logger.isDebugEnabled()) {
-                s_logger.debug(log(req.getSequence(), "Unable to send the next sequence"));
-            }
-            cancel(req.getSequence());
+            // can't happen, failures of queued requests are handled by cancelling them
         }
-        _currentSequence = req.getSequence();
     }
 
     public void process(Answer[] answers) {
@@ -58,6 +58,7 @@ import com.cloud.agent.api.StartupRoutingCommand;
 import com.cloud.agent.api.StartupSecondaryStorageCommand;
 import com.cloud.agent.api.StartupStorageCommand;
 import com.cloud.agent.api.UnsupportedAnswer;
+import com.cloud.agent.transport.CompressionCodec;
 import com.cloud.agent.transport.Request;
 import com.cloud.agent.transport.Response;
 import com.cloud.alert.AlertManager;
@@ -222,6 +223,9 @@ public class AgentManagerImpl implements AgentManager, HandlerFactory, Manager {
 
     protected int _pingInterval;
     protected long _pingTimeout;
+    protected boolean _binaryCodec;
+    protected CompressionCodec _compression;
+    protected int _compressionThreshold;
     protected AgentMonitor _monitor = null;
 
     protected ExecutorService _executor;
@@ -243,10 +247,20 @@ public class AgentManagerImpl implements AgentManager, HandlerFactory, Manager {
         final Map<String, String> configs = configDao.getConfiguration("AgentManager", params);
         _port = NumbersUtil.parseInt(configs.get("port"), 8250);
         final int workers = NumbersUtil.parseInt(configs.get("workers"), 5);
+        final int selectors = NumbersUtil.parseInt(configs.get(Config.AgentSelectors.key()), 0);
 
         String value = configs.get(Config.PingInterval.toString());
         _pingInterval = NumbersUtil.parseInt(value, 60);
 
+        _binaryCodec = Boolean.parseBoolean(configs.get(Config.AgentBinaryCodec.key()));
+        value = configs.get(Config.AgentCompressionCodec.key());
+        _compression = value == null ? CompressionCodec.GZIP : CompressionCodec.get(value);
+        if (_compression == null && !"none".equalsIgnoreCase(value)) {
+            s_logger.warn("Unknown compression codec " + value + ", using gzip");
+            _compression = CompressionCodec.GZIP;
+        }
+        _compressionThreshold = NumbersUtil.parseInt(configs.get(Config.AgentCompressionThreshold.key()), Request.DEFAULT_COMPRESSION_THRESHOLD);
+
         value = configs.get(Config.Wait.toString());
         _wait = NumbersUtil.parseInt(value, 1800);
 
@@ -281,9 +295,9 @@ public class AgentManagerImpl implements AgentManager, HandlerFactory, Manager {
 
         _executor = new ThreadPoolExecutor(threads, threads, 60l, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("AgentTaskPool"));
 
-        _connection = new NioServer("AgentManager", _port, workers + 10, this);
+        _connection = new NioServer("AgentManager", _port, workers + 10, selectors, this);
 
-        s_logger.info("Listening on " + _port + " with " + workers + " workers");
+        s_logger.info("Listening on " + _port + " with " + workers + " workers and " + (selectors > 0 ? selectors : "per-core") + " selectors");
         return true;
     }
 
@@ -456,6 +470,34 @@ public class AgentManagerImpl implements AgentManager, HandlerFactory, Manager {
         return _pingInterval;
     }
 
+    /**
+     * Picks the wire version and compression for a directly connected agent
+     * out of what it advertised in its startup command.  The binary
+     * marshalling is only used if it's enabled; agents that don't list the
+     * configured codec get gzip, which every agent can read.
+     */
+    protected void negotiateTransport(StartupCommand startup, StartupAnswer answer, AgentAttache attache) {
+        if (!answer.getResult() || !(attache instanceof ConnectedAgentAttache)) {
+            return;
+        }
+        ConnectedAgentAttache connected = (ConnectedAgentAttache)attache;
+
+        CompressionCodec codec = _compression;
+        if (codec != null && codec != CompressionCodec.GZIP && !codec.isIn(startup.getCompressionCodecs())) {
+            codec = CompressionCodec.GZIP;
+        }
+        answer.setCompression(codec == null ? "none" : codec.getName(), _compressionThreshold);
+        connected.setCompression(codec, _compressionThreshold);
+
+        if (_binaryCodec && startup.getWireVersion() >= Request.Version.v4.ordinal()) {
+            answer.setWireVersion(Request.Version.v4.ordinal());
+            connected.setWireVersion(Request.Version.v4);
+        }
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Host " + attache.getId() + " is using wire version " + connected.getWireVersion() + " compressing with " + (codec == null ? "none" : codec.getName()));
+        }
+    }
+
     @Override
     public Answer send(Long hostId, Command cmd) throws AgentUnavailableException, OperationTimedoutException {
         Commands cmds = new Commands(OnError.Stop);
@@ -1307,9 +1349,15 @@ public class AgentManagerImpl implements AgentManager, HandlerFactory, Manager {
                     answer = new Answer(cmd, false, th.getMessage());
                 }
                 answers[i] = answer;
+                if (answer instanceof StartupAnswer) {
+                    negotiateTransport((StartupCommand) cmd, (StartupAnswer) answer, attache);
+                }
             }
 
             response = new Response(request, answers, _nodeId, attache.getId());
+            if (attache instanceof ConnectedAgentAttache) {
+                ((ConnectedAgentAttache) attache).setCompression(response);
+            }
             if (s_logger.isDebugEnabled()) {
                 if (logD) {
                     s_logger.debug("SeqA " + attache.getId() + "-" + response.getSequence() + ": Sending " + response);
@@ -1343,7 +1391,8 @@ public class AgentManagerImpl implements AgentManager, HandlerFactory, Manager {
                 if (type == Task.Type.DATA) {
                     final byte[] data = task.getData();
                     try {
-                        final Request event = Request.parse(data);
+                        final AgentAttache attache = (AgentAttache) task.getLink().attachment();
+                        final Request event = Request.parse(data, attache instanceof ConnectedAgentAttache ? ((ConnectedAgentAttache) attache).getCompressionStats() : null);
                         if (event instanceof Response) {
                             processResponse(task.getLink(), (Response) event);
                         } else {
@@ -19,11 +19,14 @@
 package com.cloud.agent.manager;
 
 import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
 import com.cloud.agent.AgentManager;
 import com.cloud.agent.api.Command;
+import com.cloud.agent.transport.CompressionCodec;
+import com.cloud.agent.transport.CompressionStats;
 import com.cloud.agent.transport.Request;
 import com.cloud.exception.AgentUnavailableException;
 import com.cloud.host.Status;
@@ -34,17 +37,53 @@ import com.cloud.utils.nio.Link;
  */
 public class ConnectedAgentAttache extends AgentAttache {
     private static final Logger s_logger = Logger.getLogger(ConnectedAgentAttache.class);
+    private static final AtomicLong s_statsSeq = new AtomicLong();
 
     protected Link _link;
+    protected volatile Request.Version _wireVersion = Request.Version.v1;
+    protected volatile CompressionCodec _compression = CompressionCodec.GZIP;
+    protected volatile int _compressionThreshold = Request.DEFAULT_COMPRESSION_THRESHOLD;
+    protected final CompressionStats _compressionStats = new CompressionStats();
+    // a reconnecting agent gets its new attache before the old one is disconnected, so the name is unique per attache
+    protected final String _compressionStatsName;
 
     public ConnectedAgentAttache(AgentManagerImpl agentMgr, final long id, final Link link, boolean maintenance) {
         super(agentMgr, id, maintenance);
         _link = link;
+        _compressionStatsName = id + "-" + s_statsSeq.incrementAndGet();
+        _compressionStats.registerMBean(_compressionStatsName);
+    }
+
+    public void setWireVersion(Request.Version version) {
+        _wireVersion = version;
+    }
+
+    public Request.Version getWireVersion() {
+        return _wireVersion;
+    }
+
+    public void setCompression(CompressionCodec codec, int threshold) {
+        _compression = codec;
+        _compressionThreshold = threshold;
+        _compressionStats.setCompression(codec, threshold);
+    }
+
+    /**
+     * Sets up the request to be compressed the way it was agreed on with the agent.
+     */
+    public void setCompression(Request req) {
+        req.setCompression(_compression, _compressionThreshold, _compressionStats);
+    }
+
+    public CompressionStats getCompressionStats() {
+        return _compressionStats;
     }
 
     @Override
     public synchronized void send(Request req) throws AgentUnavailableException {
         try {
+            req.setVersion(_wireVersion);
+            setCompression(req);
             _link.send(req.toBytes());
         } catch (ClosedChannelException e) {
             throw new AgentUnavailableException("Channel is closed", _id);
@@ -66,6 +105,7 @@ public class ConnectedAgentAttache extends AgentAttache {
             }
             _link = null;
         }
+        _compressionStats.unregisterMBean(_compressionStatsName);
         cancelAllCommands(state, true);
         _requests.clear();
     }
@@ -0,0 +1,112 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.async;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of threads waiting for async jobs to complete.  A waiter must
+ * register before checking the job status in the database, that way a
+ * completion that happens between the check and the wait is not lost.
+ */
+public class AsyncJobCompletionRegistry {
+    private final ConcurrentHashMap<Long, Waiter> _waiters = new ConcurrentHashMap<Long, Waiter>();
+    private final AtomicLong _notified = new AtomicLong();
+    private final AtomicLong _timedOut = new AtomicLong();
+
+    public static class Waiter {
+        int _refs;
+        boolean _completed;
+        boolean _removed;
+
+        public synchronized boolean isCompleted() {
+            return _completed;
+        }
+    }
+
+    public Waiter register(long jobId) {
+        while (true) {
+            Waiter waiter = _waiters.get(jobId);
+            if (waiter == null) {
+                waiter = new Waiter();
+                Waiter existing = _waiters.putIfAbsent(jobId, waiter);
+                if (existing != null) {
+                    waiter = existing;
+                }
+            }
+            synchronized (waiter) {
+                if (!waiter._removed) {
+                    waiter._refs++;
+                    return waiter;
+                }
+            }
+        }
+    }
+
+    public void unregister(long jobId, Waiter waiter) {
+        synchronized (waiter) {
+            if (--waiter._refs == 0 && !waiter._removed) {
+                waiter._removed = true;
+                _waiters.remove(jobId, waiter);
+            }
+        }
+    }
+
+    /**
+     * @return true if the job completed, false if the wait timed out
+     */
+    public boolean await(Waiter waiter, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (waiter) {
+            while (!waiter._completed) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    _timedOut.incrementAndGet();
+                    return false;
+                }
+                waiter.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    public void complete(long jobId) {
+        Waiter waiter = _waiters.remove(jobId);
+        if (waiter != null) {
+            synchronized (waiter) {
+                waiter._completed = true;
+                waiter._removed = true;
+                waiter.notifyAll();
+            }
+            _notified.incrementAndGet();
+        }
+    }
+
+    public int getWaitingJobs() {
+        return _waiters.size();
+    }
+
+    public long getNotified() {
+        return _notified.get();
+    }
+
+    public long getTimedOut() {
+        return _timedOut.get();
+    }
+}
@@ -49,4 +49,11 @@ public interface AsyncJobManager extends Manager {
      * @return an async-call result object
      */
     public AsyncJobResult queryAsyncJobResult(QueryAsyncJobResultCmd cmd);
+    
+    /**
+     * Wakes up local queryAsyncJobResult calls waiting on jobs that were
+     * completed on another management server.
+     * @param jobIds ids of the completed jobs
+     */
+    public void onAsyncJobsCompleted(long[] jobIds);
 }
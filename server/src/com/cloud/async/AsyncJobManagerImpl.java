@@ -21,16 +21,19 @@ package com.cloud.async;
 import java.io.File;
 import java.io.FileInputStream;
 import java.lang.reflect.Type;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
@@ -38,6 +41,8 @@ import javax.naming.ConfigurationException;
 import org.apache.log4j.Logger;
 import org.apache.log4j.NDC;
 
+import com.cloud.agent.api.AsyncJobCompletedCommand;
+import com.cloud.agent.api.Command;
 import com.cloud.api.ApiDispatcher;
 import com.cloud.api.ApiGsonHelper;
 import com.cloud.api.ApiSerializerHelper;
@@ -83,6 +88,8 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
     private static final int MAX_ONETIME_SCHEDULE_SIZE = 50;
     private static final int HEARTBEAT_INTERVAL = 2000;
     private static final int GC_INTERVAL = 10000;				// 10 seconds
+    private static final int DEFAULT_POLL_FLUSH_INTERVAL = 5000;	// 5 seconds
+    private static final int DEFAULT_QUERY_MAX_WAIT = 60;			// 60 seconds
     
     private String _name;
     
@@ -95,10 +102,18 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
     private long _jobExpireSeconds = 86400;						// 1 day
     private long _jobCancelThresholdSeconds = 3600;             // 1 hour
     private ApiDispatcher _dispatcher;
+    private int _pollFlushInterval = DEFAULT_POLL_FLUSH_INTERVAL;
+    private AsyncJobPollRecorder _pollRecorder;
+    private int _queryMaxWaitSeconds = DEFAULT_QUERY_MAX_WAIT;
+    private final AsyncJobCompletionRegistry _completionRegistry = new AsyncJobCompletionRegistry();
+    private final ConcurrentLinkedQueue<Long> _completedJobs = new ConcurrentLinkedQueue<Long>();
+    private final AtomicBoolean _completionNotifyScheduled = new AtomicBoolean(false);
 
     private final ScheduledExecutorService _heartbeatScheduler =
         Executors.newScheduledThreadPool(1, new NamedThreadFactory("AsyncJobMgr-Heartbeat"));
     private ExecutorService _executor;
+    private final ExecutorService _completionNotifier =
+        Executors.newSingleThreadExecutor(new NamedThreadFactory("AsyncJobMgr-Notifier"));
 
     @Override
 	public AsyncJobExecutorContext getExecutorContext() {
@@ -188,6 +203,31 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
     	} catch(Exception e) {
     		s_logger.error("Unexpected exception while completing async job-" + jobId, e);
     		txt.rollback();
+    		return;
+    	}
+    	
+    	notifyCompletion(jobId);
+    }
+    
+    private void notifyCompletion(long jobId) {
+    	_completionRegistry.complete(jobId);
+    	
+    	if(_clusterMgr != null) {
+    		_completedJobs.offer(jobId);
+    		if(_completionNotifyScheduled.compareAndSet(false, true)) {
+    			try {
+    				_completionNotifier.submit(getCompletionNotifyTask());
+    			} catch(RejectedExecutionException e) {
+    				_completionNotifyScheduled.set(false);
+    			}
+    		}
+    	}
+    }
+    
+    @Override
+    public void onAsyncJobsCompleted(long[] jobIds) {
+    	for(long jobId : jobIds) {
+    		_completionRegistry.complete(jobId);
     	}
     }
 
@@ -310,20 +350,38 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
             _accountMgr.checkAccess(caller, null, jobOwner);
         }
         
+        Integer timeout = cmd.getTimeout();
+        if(timeout != null && timeout > 0 && job.getStatus() == AsyncJobResult.STATUS_IN_PROGRESS) {
+        	waitForCompletion(job.getId(), Math.min(timeout, _queryMaxWaitSeconds)*1000L);
+        }
+        
         return queryAsyncJobResult(cmd.getId());
     }
+    
+    private void waitForCompletion(long jobId, long timeoutMs) {
+    	AsyncJobCompletionRegistry.Waiter waiter = _completionRegistry.register(jobId);
+    	try {
+    		// check again now that we are registered, the job may have completed in between
+    		AsyncJobVO job = _jobDao.findById(jobId);
+    		if(job != null && job.getStatus() == AsyncJobResult.STATUS_IN_PROGRESS) {
+    			_completionRegistry.await(waiter, timeoutMs);
+    		}
+    	} catch(InterruptedException e) {
+    		s_logger.debug("Interrupted while waiting for job-" + jobId + " to complete");
+    	} finally {
+    		_completionRegistry.unregister(jobId, waiter);
+    	}
+    }
 
-    @Override @DB
+    @Override
     public AsyncJobResult queryAsyncJobResult(long jobId) {
     	if(s_logger.isTraceEnabled()) {
             s_logger.trace("Query async-job status, job-" + jobId);
         }
     	
-    	Transaction txt = Transaction.currentTxn();
     	AsyncJobResult jobResult = new AsyncJobResult(jobId);
     	
     	try {
-    		txt.start();
     		AsyncJobVO job = _jobDao.findById(jobId);
     		if(job != null) {
     			jobResult.setCmdOriginator(job.getCmdOriginator());
@@ -339,8 +397,7 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
                         s_logger.debug("Async job-" + jobId + " completed");
                     }
     			} else {
-    				job.setLastPolled(DateUtil.currentGMTTime());
-    				_jobDao.update(jobId, job);
+    				recordPoll(job);
     			}
     		} else {
     	    	if(s_logger.isDebugEnabled()) {
@@ -350,13 +407,11 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
     			jobResult.setJobStatus(AsyncJobResult.STATUS_FAILED);
     			jobResult.setResult("job-" + jobId + " does not exist");
     		}
-    		txt.commit();
     	} catch(Exception e) {
     		s_logger.error("Unexpected exception while querying async job-" + jobId + " status: ", e);
     		
 			jobResult.setJobStatus(AsyncJobResult.STATUS_FAILED);
 			jobResult.setResult("Exception: " + e.toString());
-    		txt.rollback();
     	}
     	
     	if(s_logger.isTraceEnabled()) {
@@ -364,6 +419,16 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
         }
     	
     	return jobResult;
+    }
+
+    private void recordPoll(AsyncJobVO job) {
+    	Date now = DateUtil.currentGMTTime();
+    	if(_pollRecorder != null) {
+    		_pollRecorder.record(job.getId(), now);
+    	} else {
+    		job.setLastPolled(now);
+    		_jobDao.update(job.getId(), job);
+    	}
     }
 
     private void scheduleExecution(final AsyncJobVO job) {
@@ -647,6 +712,52 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
 		};
 	}
 	
+	private Runnable getCompletionNotifyTask() {
+		return new Runnable() {
+			@Override
+            public void run() {
+				_completionNotifyScheduled.set(false);
+				
+				List<Long> l = new ArrayList<Long>();
+				Long jobId;
+				while((jobId = _completedJobs.poll()) != null) {
+					l.add(jobId);
+				}
+				if(l.isEmpty()) {
+					return;
+				}
+				
+				long[] jobIds = new long[l.size()];
+				for(int i = 0; i < jobIds.length; i++) {
+					jobIds[i] = l.get(i);
+				}
+				
+				try {
+					_clusterMgr.broadcast(0, new Command[] { new AsyncJobCompletedCommand(jobIds) });
+				} catch(Throwable e) {
+					s_logger.warn("Unable to notify peers of completion of " + jobIds.length + " async jobs", e);
+				} finally {
+					StackMaid.current().exitCleanup();
+				}
+			}
+		};
+	}
+	
+	private Runnable getPollFlushTask() {
+		return new Runnable() {
+			@Override
+            public void run() {
+				try {
+					_pollRecorder.flush();
+				} catch(Throwable e) {
+					s_logger.error("Unexpected exception when flushing async-job poll times, ", e);
+				} finally {
+					StackMaid.current().exitCleanup();
+				}
+			}
+		};
+	}
+	
 	private long getMsid() {
 		if(_clusterMgr != null) {
             return _clusterMgr.getManagementNodeId();
@@ -693,6 +804,12 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
 		_jobCancelThresholdSeconds = NumbersUtil.parseInt(
 		       configDao.getValue(Config.JobCancelThresholdMinutes.key()), 60);
 		_jobCancelThresholdSeconds *= 60;
+		
+		_queryMaxWaitSeconds = NumbersUtil.parseInt(
+		       configDao.getValue(Config.JobQueryMaxWaitSeconds.key()), DEFAULT_QUERY_MAX_WAIT);
+		
+		_pollFlushInterval = NumbersUtil.parseInt(
+		       configDao.getValue(Config.JobPollFlushInterval.key()), DEFAULT_POLL_FLUSH_INTERVAL);
 
 		_accountDao = locator.getDao(AccountDao.class);
 		if (_accountDao == null) {
@@ -722,6 +839,10 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
 
 		_dispatcher = ApiDispatcher.getInstance();
 		
+		if(_pollFlushInterval > 0) {
+			_pollRecorder = new AsyncJobPollRecorder(_jobDao);
+		}
+		
 
 		try {
 	        final File dbPropsFile = PropertiesUtil.findConfigFile("db.properties");
@@ -785,6 +906,16 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
     	_heartbeatScheduler.scheduleAtFixedRate(getGCTask(), GC_INTERVAL,
 			GC_INTERVAL, TimeUnit.MILLISECONDS);
     	
+    	if(_pollRecorder != null) {
+    		_heartbeatScheduler.scheduleWithFixedDelay(getPollFlushTask(), _pollFlushInterval,
+    			_pollFlushInterval, TimeUnit.MILLISECONDS);
+    		try {
+    			JmxUtil.registerMBean("AsyncJobManager", "PollRecorder", _pollRecorder);
+    		} catch(Exception e) {
+    			s_logger.warn("Unable to register async-job poll recorder MBean", e);
+    		}
+    	}
+    	
         return true;
     }
     
@@ -803,6 +934,15 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
     public boolean stop() {
     	_heartbeatScheduler.shutdown();
     	_executor.shutdown();
+    	_completionNotifier.shutdown();
+    	if(_pollRecorder != null) {
+    		_pollRecorder.flush();
+    		try {
+    			JmxUtil.unregisterMBean("AsyncJobManager", "PollRecorder");
+    		} catch(Exception e) {
+    			s_logger.warn("Unable to unregister async-job poll recorder MBean", e);
+    		}
+    	}
         return true;
     }
     
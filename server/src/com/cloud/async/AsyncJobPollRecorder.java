@@ -0,0 +1,150 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.async;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.async.dao.AsyncJobDao;
+
+/**
+ * Write-behind buffer for async_job.last_polled.  Clients poll unfinished
+ * jobs every few seconds, so instead of updating the row on every
+ * queryAsyncJobResult the latest poll time of each job is kept in memory
+ * and written out in one batched UPDATE by flush().
+ */
+public class AsyncJobPollRecorder extends StandardMBean implements AsyncJobPollRecorderMBean {
+    private static final Logger s_logger = Logger.getLogger(AsyncJobPollRecorder.class);
+
+    private final AsyncJobDao _jobDao;
+    private final ConcurrentHashMap<Long, Date> _pending = new ConcurrentHashMap<Long, Date>();
+
+    private final AtomicLong _recorded = new AtomicLong();
+    private final AtomicLong _coalesced = new AtomicLong();
+    private final AtomicLong _flushes = new AtomicLong();
+    private final AtomicLong _rowsFlushed = new AtomicLong();
+    private final AtomicLong _flushFailures = new AtomicLong();
+    private final AtomicLong _totalFlushMillis = new AtomicLong();
+    private volatile long _lastFlushMillis;
+    private volatile long _maxFlushMillis;
+
+    public AsyncJobPollRecorder(AsyncJobDao jobDao) {
+        super(AsyncJobPollRecorderMBean.class, false);
+        _jobDao = jobDao;
+    }
+
+    public void record(long jobId, Date polled) {
+        _recorded.incrementAndGet();
+        if (_pending.put(jobId, polled) != null) {
+            _coalesced.incrementAndGet();
+        }
+    }
+
+    /**
+     * Writes out all poll times recorded so far.  Only the flushing thread
+     * removes entries, and only if they have not been replaced meanwhile, so
+     * a poll that races with the flush is picked up by the next one.
+     */
+    public synchronized void flush() {
+        if (_pending.isEmpty()) {
+            return;
+        }
+
+        Map<Long, Date> batch = new HashMap<Long, Date>(_pending);
+        long start = System.currentTimeMillis();
+        try {
+            int rows = _jobDao.updateLastPolled(batch);
+            _rowsFlushed.addAndGet(rows);
+        } catch (Throwable e) {
+            _flushFailures.incrementAndGet();
+            s_logger.warn("Unable to flush last polled time of " + batch.size() + " async jobs", e);
+            return;
+        } finally {
+            long elapsed = System.currentTimeMillis() - start;
+            _flushes.incrementAndGet();
+            _totalFlushMillis.addAndGet(elapsed);
+            _lastFlushMillis = elapsed;
+            if (elapsed > _maxFlushMillis) {
+                _maxFlushMillis = elapsed;
+            }
+        }
+
+        Iterator<Map.Entry<Long, Date>> it = batch.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Date> entry = it.next();
+            _pending.remove(entry.getKey(), entry.getValue());
+        }
+
+        if (s_logger.isTraceEnabled()) {
+            s_logger.trace("Flushed last polled time of " + batch.size() + " async jobs in " + _lastFlushMillis + "ms");
+        }
+    }
+
+    @Override
+    public long getPollsRecorded() {
+        return _recorded.get();
+    }
+
+    @Override
+    public long getPollsCoalesced() {
+        return _coalesced.get();
+    }
+
+    @Override
+    public int getPendingUpdates() {
+        return _pending.size();
+    }
+
+    @Override
+    public long getFlushes() {
+        return _flushes.get();
+    }
+
+    @Override
+    public long getRowsFlushed() {
+        return _rowsFlushed.get();
+    }
+
+    @Override
+    public long getFlushFailures() {
+        return _flushFailures.get();
+    }
+
+    @Override
+    public long getLastFlushMillis() {
+        return _lastFlushMillis;
+    }
+
+    @Override
+    public long getMaxFlushMillis() {
+        return _maxFlushMillis;
+    }
+
+    @Override
+    public long getTotalFlushMillis() {
+        return _totalFlushMillis.get();
+    }
+}
@@ -20,6 +20,7 @@ package com.cloud.async.dao;
 
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 import com.cloud.async.AsyncJob;
 import com.cloud.async.AsyncJobVO;
@@ -30,4 +31,12 @@ public interface AsyncJobDao extends GenericDao<AsyncJobVO, Long> {
 	List<AsyncJobVO> findInstancePendingAsyncJobs(AsyncJob.Type instanceType, Long accountId);
 	List<AsyncJobVO> getExpiredJobs(Date cutTime, int limit);
 	void resetJobProcess(long msid, int jobResultCode, String jobResultMessage);
+
+	/**
+	 * Updates last_polled of the given jobs in one batched statement.  Jobs
+	 * that have already completed are left untouched.
+	 * @return number of rows updated
+	 * @throws CloudRuntimeException if the batch could not be written, nothing is updated then
+	 */
+	int updateLastPolled(Map<Long, Date> lastPolled);
 }
@@ -22,6 +22,8 @@ import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
 
 import javax.ejb.Local;
 
@@ -30,16 +32,19 @@ import org.apache.log4j.Logger;
 import com.cloud.async.AsyncJob;
 import com.cloud.async.AsyncJobResult;
 import com.cloud.async.AsyncJobVO;
+import com.cloud.utils.DateUtil;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.Filter;
 import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
+import com.cloud.utils.exception.CloudRuntimeException;
 
 @Local(value = { AsyncJobDao.class })
 public class AsyncJobDaoImpl extends GenericDaoBase<AsyncJobVO, Long> implements AsyncJobDao {
     private static final Logger s_logger = Logger.getLogger(AsyncJobDaoImpl.class.getName());
+    private static final String UPDATE_LAST_POLLED = "UPDATE async_job SET last_polled=? WHERE id=? AND job_status=" + AsyncJobResult.STATUS_IN_PROGRESS;
 	
 	private final SearchBuilder<AsyncJobVO> pendingAsyncJobSearch;	
 	private final SearchBuilder<AsyncJobVO> pendingAsyncJobsSearch;	
@@ -124,4 +129,35 @@ public class AsyncJobDaoImpl extends GenericDaoBase<AsyncJobVO, Long> implements
         	s_logger.warn("Unable to reset job status for management server " + msid, e);
         }
 	}
+
+	@Override
+	@DB
+	public int updateLastPolled(Map<Long, Date> lastPolled) {
+		if (lastPolled.isEmpty()) {
+			return 0;
+		}
+
+		Transaction txn = Transaction.currentTxn();
+		int updated = 0;
+		try {
+			txn.start();
+			PreparedStatement pstmt = txn.prepareAutoCloseStatement(UPDATE_LAST_POLLED);
+			for (Map.Entry<Long, Date> entry : lastPolled.entrySet()) {
+				pstmt.setString(1, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), entry.getValue()));
+				pstmt.setLong(2, entry.getKey());
+				pstmt.addBatch();
+			}
+			int[] results = pstmt.executeBatch();
+			txn.commit();
+			for (int result : results) {
+				if (result > 0) {
+					updated += result;
+				}
+			}
+		} catch (SQLException e) {
+			txn.rollback();
+			throw new CloudRuntimeException("Unable to update last_polled of " + lastPolled.size() + " async jobs", e);
+		}
+		return updated;
+	}
 }
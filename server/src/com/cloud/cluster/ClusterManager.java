@@ -66,6 +66,18 @@ public interface ClusterManager extends Manager {
      */
     public void broadcast(long agentId, Command[] cmds);
     
+    /**
+     * Called when a peer management server reports async jobs as completed.
+     * @param jobIds ids of the completed jobs
+     */
+    public void onAsyncJobsCompleted(long[] jobIds);
+    
+    /**
+     * Called when a peer management server reports op_lock keys as released.
+     * @param keys the released lock keys
+     */
+    public void onLocksReleased(String[] keys);
+    
     boolean rebalanceAgent(long agentId, Event event, long currentOwnerId, long futureOwnerId) throws AgentUnavailableException, OperationTimedoutException;
     
     boolean isAgentRebalanceEnabled();
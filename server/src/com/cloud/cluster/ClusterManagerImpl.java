@@ -51,10 +51,12 @@ import com.cloud.agent.api.ChangeAgentCommand;
 import com.cloud.agent.api.Command;
 import com.cloud.agent.api.PropagateResourceEventCommand;
 import com.cloud.agent.manager.Commands;
+import com.cloud.async.AsyncJobManager;
 import com.cloud.cluster.agentlb.dao.HostTransferMapDao;
 import com.cloud.cluster.dao.ManagementServerHostDao;
 import com.cloud.configuration.Config;
 import com.cloud.configuration.dao.ConfigurationDao;
+import com.cloud.dc.dao.DataCenterDao;
 import com.cloud.exception.AgentUnavailableException;
 import com.cloud.exception.OperationTimedoutException;
 import com.cloud.host.Host;
@@ -74,6 +76,7 @@ import com.cloud.utils.component.Inject;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.ConnectionConcierge;
 import com.cloud.utils.db.DB;
+import com.cloud.utils.db.Merovingian2;
 import com.cloud.utils.db.SearchCriteria.Op;
 import com.cloud.utils.db.SearchCriteria2;
 import com.cloud.utils.db.SearchCriteriaService;
@@ -108,6 +111,8 @@ public class ClusterManagerImpl implements ClusterManager {
     private ClusteredAgentRebalanceService _rebalanceService;
     @Inject
     private ResourceManager _resourceMgr;
+    @Inject
+    private AsyncJobManager _asyncMgr;
 
     private final ScheduledExecutorService _heartbeatScheduler = Executors.newScheduledThreadPool(1, new NamedThreadFactory("Cluster-Heartbeat"));
     private final ExecutorService _notificationExecutor = Executors.newFixedThreadPool(1, new NamedThreadFactory("Cluster-Notification"));
@@ -233,6 +238,19 @@ public class ClusterManagerImpl implements ClusterManager {
         }
     }
 
+    @Override
+    public void onAsyncJobsCompleted(long[] jobIds) {
+        _asyncMgr.onAsyncJobsCompleted(jobIds);
+    }
+
+    @Override
+    public void onLocksReleased(String[] keys) {
+        Merovingian2 lockMaster = Merovingian2.getLockMaster();
+        if (lockMaster != null) {
+            lockMaster.onLocksReleasedElsewhere(keys);
+        }
+    }
+
     @Override
     public Answer[] execute(String strPeer, long agentId, Command [] cmds, boolean stopOnError) {
         ClusterService peerService =  null;
@@ -1117,7 +1135,13 @@ public class ClusterManagerImpl implements ClusterManager {
             _connectedAgentsThreshold = Double.parseDouble(connectedAgentsThreshold);
         }
 
-        this.registerListener(new LockMasterListener(_msId));
+        this.registerListener(new LockMasterListener(this, _msId));
+
+        DataCenterDao dcDao = locator.getDao(DataCenterDao.class);
+        if (dcDao == null) {
+            throw new ConfigurationException("Unable to get " + DataCenterDao.class.getName());
+        }
+        this.registerListener(new PoolBlockListener(dcDao));
 
         checkConflicts();
 
@@ -35,9 +35,11 @@ import org.apache.log4j.Logger;
 
 import com.cloud.agent.Listener;
 import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.AsyncJobCompletedCommand;
 import com.cloud.agent.api.ChangeAgentAnswer;
 import com.cloud.agent.api.ChangeAgentCommand;
 import com.cloud.agent.api.Command;
+import com.cloud.agent.api.LockReleasedCommand;
 import com.cloud.agent.api.PropagateResourceEventCommand;
 import com.cloud.agent.api.TransferAgentCommand;
 import com.cloud.exception.AgentUnavailableException;
@@ -262,6 +264,28 @@ public class ClusterServiceServletHttpHandler implements HttpRequestHandler {
 			Answer[] answers = new Answer[1];
 			answers[0] = new Answer(cmd, result, null);
 			return gson.toJson(answers);
+		} else if (cmds.length == 1 && cmds[0] instanceof AsyncJobCompletedCommand) {
+			AsyncJobCompletedCommand cmd = (AsyncJobCompletedCommand) cmds[0];
+
+			if (s_logger.isDebugEnabled()) {
+				s_logger.debug("Intercepting completion notification of " + cmd.getJobIds().length + " async jobs");
+			}
+			manager.onAsyncJobsCompleted(cmd.getJobIds());
+
+			Answer[] answers = new Answer[1];
+			answers[0] = new Answer(cmd, true, null);
+			return gson.toJson(answers);
+		} else if (cmds.length == 1 && cmds[0] instanceof LockReleasedCommand) {
+			LockReleasedCommand cmd = (LockReleasedCommand) cmds[0];
+
+			if (s_logger.isTraceEnabled()) {
+				s_logger.trace("Intercepting release notification of " + cmd.getKeys().length + " locks");
+			}
+			manager.onLocksReleased(cmd.getKeys());
+
+			Answer[] answers = new Answer[1];
+			answers[0] = new Answer(cmd, true, null);
+			return gson.toJson(answers);
 		}
 
         try {
@@ -147,6 +147,14 @@ public class DummyClusterManagerImpl implements ClusterManager {
 	@Override
 	public void broadcast(long hostId, Command[] cmds) {
 	}
+	
+	@Override
+	public void onAsyncJobsCompleted(long[] jobIds) {
+	}
+	
+	@Override
+	public void onLocksReleased(String[] keys) {
+	}
 
 	@Override
 	public String getName() {
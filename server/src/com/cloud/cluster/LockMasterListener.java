@@ -17,29 +17,69 @@
  */
 package com.cloud.cluster;
 
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.LockReleasedCommand;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.Merovingian2;
 
 /**
  * This listener is specifically written to cause cleanups in the Merovingian
- * when a management server is down.
+ * when a management server is down.  It also passes the locks released on
+ * this server to the peers, batched, so that their waiters don't have to
+ * poll op_lock.  A key released several times while a broadcast is going out
+ * is sent once, and keys beyond MAX_PENDING_RELEASES are dropped; the waiters
+ * of those fall back to polling op_lock.  Nothing is sent while this server
+ * has no peers.
  *
  */
-public class LockMasterListener implements ClusterManagerListener {
+public class LockMasterListener implements ClusterManagerListener, Merovingian2.ReleaseListener {
+    private static final Logger s_logger = Logger.getLogger(LockMasterListener.class);
+    protected static final int MAX_PENDING_RELEASES = 1000;
+
     Merovingian2 _lockMaster;
+    ClusterManager _clusterMgr;
+
+    // guarded by itself
+    private final Set<String> _releasedKeys = new LinkedHashSet<String>();
+    private boolean _notifyScheduled = false;
+    private long _releasesDropped = 0;
+    private final Set<Long> _peers = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    private final ExecutorService _releaseNotifier = Executors.newSingleThreadExecutor(new NamedThreadFactory("LockMaster-Notifier"));
     
     public LockMasterListener(long msId) {
         _lockMaster = Merovingian2.createLockMaster(msId);
     }
 
+    public LockMasterListener(ClusterManager clusterMgr, long msId) {
+        this(msId);
+        _clusterMgr = clusterMgr;
+        _lockMaster.setReleaseListener(this);
+    }
+
     @Override
     public void onManagementNodeJoined(List<ManagementServerHostVO> nodeList, long selfNodeId) {
+        for (ManagementServerHostVO node : nodeList) {
+            if (node.getId() != selfNodeId) {
+                _peers.add(node.getId());
+            }
+        }
     }
 
     @Override
     public void onManagementNodeLeft(List<ManagementServerHostVO> nodeList, long selfNodeId) {
         for (ManagementServerHostVO node : nodeList) {
+            _peers.remove(node.getId());
             _lockMaster.cleanupForServer(node.getMsid());
         }
     }
@@ -48,4 +88,59 @@ public class LockMasterListener implements ClusterManagerListener {
     public void onManagementNodeIsolated() {
     }
 
+    @Override
+    public void onLockReleased(String key) {
+        if (_peers.isEmpty()) {
+            return;
+        }
+
+        synchronized (_releasedKeys) {
+            if (_releasedKeys.size() >= MAX_PENDING_RELEASES && !_releasedKeys.contains(key)) {
+                if (_releasesDropped++ % MAX_PENDING_RELEASES == 0) {
+                    s_logger.warn("Too many lock releases waiting to be sent to the peers, " + _releasesDropped + " dropped so far");
+                }
+                return;
+            }
+            _releasedKeys.add(key);
+            if (_notifyScheduled) {
+                return;
+            }
+            _notifyScheduled = true;
+        }
+
+        try {
+            _releaseNotifier.submit(new ReleaseNotifyTask());
+        } catch (RejectedExecutionException e) {
+            synchronized (_releasedKeys) {
+                _notifyScheduled = false;
+            }
+        }
+    }
+
+    protected class ReleaseNotifyTask implements Runnable {
+        @Override
+        public void run() {
+            // everything released while the previous broadcast was going out goes in one command
+            Set<String> keys;
+            synchronized (_releasedKeys) {
+                _notifyScheduled = false;
+                if (_releasedKeys.isEmpty()) {
+                    return;
+                }
+                keys = new LinkedHashSet<String>(_releasedKeys);
+                _releasedKeys.clear();
+            }
+            if (_peers.isEmpty()) {
+                return;
+            }
+
+            try {
+                _clusterMgr.broadcast(0, new Command[] { new LockReleasedCommand(keys.toArray(new String[keys.size()])) });
+            } catch (Throwable e) {
+                s_logger.warn("Unable to notify peers of the release of " + keys.size() + " locks", e);
+            } finally {
+                StackMaid.current().exitCleanup();
+            }
+        }
+    }
 }
@@ -0,0 +1,60 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.cluster;
+
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.dc.dao.DataCenterDao;
+
+/**
+ * Hands the private ips, link local ips and vnets that a management server
+ * had reserved for allocation back to the pool when it leaves the cluster.
+ */
+public class PoolBlockListener implements ClusterManagerListener {
+    private static final Logger s_logger = Logger.getLogger(PoolBlockListener.class);
+
+    private final DataCenterDao _dcDao;
+
+    public PoolBlockListener(DataCenterDao dcDao) {
+        _dcDao = dcDao;
+    }
+
+    @Override
+    public void onManagementNodeJoined(List<ManagementServerHostVO> nodeList, long selfNodeId) {
+    }
+
+    @Override
+    public void onManagementNodeLeft(List<ManagementServerHostVO> nodeList, long selfNodeId) {
+        for (ManagementServerHostVO node : nodeList) {
+            if (node.getId() == selfNodeId) {
+                continue;
+            }
+            try {
+                _dcDao.releaseReservedBlocks(node.getMsid());
+            } catch (Exception e) {
+                s_logger.warn("Unable to release the allocation blocks reserved by management server " + node.getMsid(), e);
+            }
+        }
+    }
+
+    @Override
+    public void onManagementNodeIsolated() {
+    }
+}
@@ -100,6 +100,9 @@ public enum Config {
 	SecurityGroupWorkCleanupInterval("Network", ManagementServer.class, Integer.class, "network.securitygroups.work.cleanup.interval", "120", "Time interval (seconds) in which finished work is cleaned up from the work table", null),
 	SecurityGroupWorkerThreads("Network", ManagementServer.class, Integer.class, "network.securitygroups.workers.pool.size", "50", "Number of worker threads processing the security group update work queue", null),
 	SecurityGroupWorkGlobalLockTimeout("Network", ManagementServer.class, Integer.class, "network.securitygroups.work.lock.timeout", "300", "Lock wait timeout (seconds) while updating the security group work queue", null),
+	SecurityGroupDeltaSync("Network", ManagementServer.class, Boolean.class, "network.securitygroups.delta.sync", "true", "Send only added and revoked cidrs to KVM and XenServer hosts that still hold the previously sent ruleset", "true/false"),
+	SecurityGroupRulesetModel("Network", ManagementServer.class, Boolean.class, "network.securitygroups.ruleset.model", "true", "Generate security group rulesets from an in-memory model of groups, rules and running members, validated against op_security_group_version", "true/false"),
+	SecurityGroupWorkBatchSize("Network", ManagementServer.class, Integer.class, "network.securitygroups.work.batch.size", "100", "Maximum number of queued security group updates a worker drains and dispatches together; 1 sends updates one at a time", null),
 
 	FirewallRuleUiEnabled("Network", ManagementServer.class, Boolean.class, "firewall.rule.ui.enabled", "false", "enable/disable UI that separates firewall rules from NAT/LB rules", null),
 	
@@ -137,6 +140,8 @@ public enum Config {
 	// Advanced
     JobExpireMinutes("Advanced", ManagementServer.class, String.class, "job.expire.minutes", "1440", "Time (in minutes) for async-jobs to be kept in system", null),
     JobCancelThresholdMinutes("Advanced", ManagementServer.class, String.class, "job.cancel.threshold.minutes", "60", "Time (in minutes) for async-jobs to be forcely cancelled if it has been in process for long", null),
+    JobQueryMaxWaitSeconds("Advanced", ManagementServer.class, Integer.class, "job.query.max.wait.seconds", "60", "Maximum time (in seconds) a queryAsyncJobResult call with timeout waits for the job to complete", null),
+    JobPollFlushInterval("Advanced", ManagementServer.class, Integer.class, "job.poll.flush.interval", "5000", "Interval (in milliseconds) at which last polled time of async-jobs is written to the database, 0 to write it on every poll", null),
 	
 	AccountCleanupInterval("Advanced", ManagementServer.class, Integer.class, "account.cleanup.interval", "86400", "The interval (in seconds) between cleanup for removed accounts", null),
 	AllowPublicUserTemplates("Advanced", ManagementServer.class, Integer.class, "allow.public.user.templates", "true", "If false, users will not be able to create public templates.", null),
@@ -170,6 +175,10 @@ public enum Config {
 	XapiWait("Advanced", AgentManager.class, Integer.class, "xapiwait", "600", "Time (in seconds) to wait for XAPI to return", null),
 	MigrateWait("Advanced", AgentManager.class, Integer.class, "migratewait", "3600", "Time (in seconds) to wait for VM migrate finish", null),
 	Workers("Advanced", AgentManager.class, Integer.class, "workers", "5", "Number of worker threads.", null),
+	AgentBinaryCodec("Advanced", AgentManager.class, Boolean.class, "agent.binary.codec", "false", "Use the binary marshalling instead of json for agents that support it.", "true/false"),
+	AgentCompressionCodec("Advanced", AgentManager.class, String.class, "agent.compression.codec", "gzip", "Codec used to compress large messages to and from agents that support it.", "gzip,lz4,none"),
+	AgentCompressionThreshold("Advanced", AgentManager.class, Integer.class, "agent.compression.threshold", "8192", "Messages to and from agents of this size in bytes or larger are compressed.", null),
+	AgentSelectors("Advanced", AgentManager.class, Integer.class, "agent.selectors", "0", "Number of selector threads serving agent connections; 0 uses one per core and 1 serves all connections from the accepting thread.", null),
 	MountParent("Advanced", ManagementServer.class, String.class, "mount.parent", "/var/lib/cloud/mnt", "The mount point on the Management Server for Secondary Storage.", null),
 //	UpgradeURL("Advanced", ManagementServer.class, String.class, "upgrade.url", "http://example.com:8080/client/agent/update.zip", "The upgrade URL is the URL of the management server that agents will connect to in order to automatically upgrade.", null),
 	SystemVMUseLocalStorage("Advanced", ManagementServer.class, Boolean.class, "system.vm.use.local.storage", "false", "Indicates whether to use local storage pools or shared storage pools for system VMs.", null),
@@ -200,6 +209,8 @@ public enum Config {
 	NetworkGcInterval("Advanced", ManagementServer.class, Integer.class, "network.gc.interval", "600", "Seconds to wait before checking for networks to shutdown", null),	
 	CapacitySkipcountingHours("Advanced", ManagementServer.class, Integer.class, "capacity.skipcounting.hours", "3600", "Time (in seconds) to wait before release VM's cpu and memory when VM in stopped state", null),
 	VmStatsInterval("Advanced", ManagementServer.class, Integer.class, "vm.stats.interval", "60000", "The interval (in milliseconds) when vm stats are retrieved from agents.", null),
+	StatsFanOutEnabled("Advanced", ManagementServer.class, Boolean.class, "stats.fanout.enabled", "false", "Send host and vm stats commands to all hosts at once and collect the answers as they arrive, instead of querying one host at a time", "true/false"),
+	StatsFanOutDeadline("Advanced", ManagementServer.class, Integer.class, "stats.fanout.deadline", "30000", "The time (in milliseconds) a host or vm stats cycle waits for answers when stats.fanout.enabled is true; capped at the collection interval", null),
 	VmTransitionWaitInterval("Advanced", ManagementServer.class, Integer.class, "vm.tranisition.wait.interval", "3600", "Time (in seconds) to wait before taking over a VM in transition state", null),
 	
 	ControlCidr("Advanced", ManagementServer.class, String.class, "control.cidr", "169.254.0.0/16", "Changes the cidr for the control network traffic.  Defaults to using link local.  Must be unique within pods", null),
@@ -257,6 +268,8 @@ public enum Config {
     DirectNetworkStatsInterval("Premium", ManagementServer.class, Integer.class, "direct.network.stats.interval", "86400", "Interval (in seconds) to collect stats from Traffic Monitor", null),
     UsageSanityCheckInterval("Premium", ManagementServer.class, Integer.class, "usage.sanity.check.interval", null, "Interval (in days) to check sanity of usage data", null),
     UsageAggregationTimezone("Premium", ManagementServer.class, String.class, "usage.aggregation.timezone", "GMT", "The timezone to use for usage stats aggregation", null),
+    UsageParseThreads("Premium", ManagementServer.class, Integer.class, "usage.parse.threads", "1", "Number of threads the usage job uses to parse account usage in parallel, 1 to parse sequentially", null),
+    UsageIncrementalParse("Premium", ManagementServer.class, Boolean.class, "usage.parse.incremental", "false", "If true, vm usage is parsed from the instances still open after the last job plus the ones changed since, instead of re-reading all open instances", null),
     
 	// Hidden
 	UseSecondaryStorageVm("Hidden", ManagementServer.class, Boolean.class, "secondary.storage.vm", "false", "Deploys a VM per zone to manage secondary storage if true, otherwise secondary storage is mounted on management server", null),
@@ -102,6 +102,7 @@ import com.cloud.network.security.dao.IngressRuleDaoImpl;
 import com.cloud.network.security.dao.SecurityGroupDaoImpl;
 import com.cloud.network.security.dao.SecurityGroupRulesDaoImpl;
 import com.cloud.network.security.dao.SecurityGroupVMMapDaoImpl;
+import com.cloud.network.security.dao.SecurityGroupVersionDaoImpl;
 import com.cloud.network.security.dao.SecurityGroupWorkDaoImpl;
 import com.cloud.network.security.dao.VmRulesetLogDaoImpl;
 import com.cloud.network.vpn.RemoteAccessVpnManagerImpl;
@@ -210,6 +211,7 @@ public class DefaultComponentLibrary extends ComponentLibraryBase implements Com
         addDao("SecurityGroupRulesDao", SecurityGroupRulesDaoImpl.class);
         addDao("SecurityGroupWorkDao", SecurityGroupWorkDaoImpl.class);
         addDao("VmRulesetLogDao", VmRulesetLogDaoImpl.class);
+        addDao("SecurityGroupVersionDao", SecurityGroupVersionDaoImpl.class);
         addDao("AlertDao", AlertDaoImpl.class);
         addDao("CapacityDao", CapacityDaoImpl.class);
         addDao("DomainDao", DomainDaoImpl.class);
@@ -59,6 +59,11 @@ public interface DataCenterDao extends GenericDao<DataCenterVO, Long> {
     List<DataCenterVnetVO> listAllocatedVnets(long dcId);
 
     String allocatePodVlan(long podId, long accountId);
+    
+    /**
+     * Hands the private ips, link local ips and vnets a management server reserved for allocation but did not use back to the pool.
+     */
+    void releaseReservedBlocks(long msid);
 
 	List<DataCenterVO> findZonesByDomainId(Long domainId);
 
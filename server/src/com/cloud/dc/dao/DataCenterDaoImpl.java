@@ -28,6 +28,7 @@ import javax.persistence.TableGenerator;
 
 import org.apache.log4j.Logger;
 
+import com.cloud.cluster.ManagementServerNode;
 import com.cloud.dc.DataCenterIpAddressVO;
 import com.cloud.dc.DataCenterLinkLocalIpAddressVO;
 import com.cloud.dc.DataCenterVO;
@@ -51,6 +52,7 @@ import com.cloud.utils.net.NetUtils;
  * {@table
  *    || Param Name | Description | Values | Default ||
  *    || mac.address.prefix | prefix to attach to all public and private mac addresses | number | 06 ||
+ *    || pool.block.size | private ips, link local ips and vnets reserved at a time by this management server; 0 locks a row per allocation | number | 16 ||
  *  }
  **/
 @Local(value={DataCenterDao.class})
@@ -182,6 +184,13 @@ public class DataCenterDaoImpl extends GenericDaoBase<DataCenterVO, Long> implem
         return vo.getVlan();
     }
 
+    @Override
+    public void releaseReservedBlocks(long msid) {
+        _ipAllocDao.releaseReservedBlocks(msid);
+        _LinkLocalIpAllocDao.releaseReservedBlocks(msid);
+        _vnetAllocDao.releaseReservedBlocks(msid);
+    }
+
     @Override
     public String[] getNextAvailableMacAddressPair(long id) {
         return getNextAvailableMacAddressPair(id, 0);
@@ -252,6 +261,14 @@ public class DataCenterDaoImpl extends GenericDaoBase<DataCenterVO, Long> implem
         
         String value = (String)params.get("mac.address.prefix");
         _prefix = (long)NumbersUtil.parseInt(value, 06) << 40;
+        
+        int blockSize = NumbersUtil.parseInt((String)params.get("pool.block.size"), PoolBlockAllocator.DEFAULT_BLOCK_SIZE);
+        _ipAllocDao.setBlockSize(blockSize);
+        _LinkLocalIpAllocDao.setBlockSize(blockSize);
+        _vnetAllocDao.setBlockSize(blockSize);
+        
+        // whatever we reserved before a restart is not in memory any more
+        releaseReservedBlocks(ManagementServerNode.getManagementServerId());
 
         if (!_ipAllocDao.configure("Ip Alloc", params)) {
             return false;
@@ -17,7 +17,6 @@
  */
 package com.cloud.dc.dao;
 
-import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.Date;
 import java.util.List;
@@ -26,8 +25,10 @@ import javax.ejb.Local;
 
 import org.apache.log4j.Logger;
 
+import com.cloud.cluster.ManagementServerNode;
 import com.cloud.dc.DataCenterIpAddressVO;
 import com.cloud.utils.db.DB;
+import com.cloud.utils.db.Filter;
 import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.GenericSearchBuilder;
 import com.cloud.utils.db.SearchBuilder;
@@ -38,15 +39,35 @@ import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.net.NetUtils;
 
 @Local(value={DataCenterIpAddressDao.class}) @DB(txn=false)
-public class DataCenterIpAddressDaoImpl extends GenericDaoBase<DataCenterIpAddressVO, Long> implements DataCenterIpAddressDao {
+public class DataCenterIpAddressDaoImpl extends GenericDaoBase<DataCenterIpAddressVO, Long> implements DataCenterIpAddressDao, PoolBlockAllocator.BlockSource {
     private static final Logger s_logger = Logger.getLogger(DataCenterIpAddressDaoImpl.class);
     
     private final SearchBuilder<DataCenterIpAddressVO> AllFieldsSearch;
     private final GenericSearchBuilder<DataCenterIpAddressVO, Integer> AllIpCount;
     private final GenericSearchBuilder<DataCenterIpAddressVO, Integer> AllAllocatedIpCount;
+    private final SearchBuilder<DataCenterIpAddressVO> IdsSearch;
+    
+    private final String _blockReservation = PoolBlockAllocator.getBlockReservation(ManagementServerNode.getManagementServerId());
+    private PoolBlockAllocator _allocator = null;
+    
+    /**
+     * @param blockSize number of ips to reserve per pod at a time; 0 locks a free row for every allocation.
+     */
+    public void setBlockSize(int blockSize) {
+        _allocator = blockSize > 0 ? new PoolBlockAllocator(this, blockSize) : null;
+    }
     
     @DB
     public DataCenterIpAddressVO takeIpAddress(long dcId, long podId, long instanceId, String reservationId) {
+        PoolBlockAllocator allocator = _allocator;
+        if (allocator != null) {
+            DataCenterIpAddressVO vo = takeReservedIpAddress(allocator, podId, instanceId, reservationId);
+            if (vo != null) {
+                return vo;
+            }
+            // other management servers may still hold free ips in their blocks
+        }
+        
         SearchCriteria<DataCenterIpAddressVO> sc = AllFieldsSearch.create();
         sc.setParameters("pod", podId);
         sc.setParameters("taken", (Date)null);
@@ -66,8 +87,77 @@ public class DataCenterIpAddressDaoImpl extends GenericDaoBase<DataCenterIpAddre
         return vo;
     }
     
+    protected DataCenterIpAddressVO takeReservedIpAddress(PoolBlockAllocator allocator, long podId, long instanceId, String reservationId) {
+        long id;
+        while ((id = allocator.take(podId)) >= 0) {
+            SearchCriteria<DataCenterIpAddressVO> sc = AllFieldsSearch.create();
+            sc.setParameters("id", id);
+            sc.setParameters("taken", (Date)null);
+            sc.setParameters("reservation", _blockReservation);
+            
+            DataCenterIpAddressVO vo = createForUpdate();
+            vo.setTakenAt(new Date());
+            vo.setInstanceId(instanceId);
+            vo.setReservationId(reservationId);
+            if (update(vo, sc) > 0) {
+                return findById(id);
+            }
+            // somebody else took it through the row locking path
+        }
+        return null;
+    }
+    
+    @Override @DB
+    public long[] reserveBlock(long podId, int count) {
+        SearchCriteria<DataCenterIpAddressVO> sc = AllFieldsSearch.create();
+        sc.setParameters("pod", podId);
+        sc.setParameters("taken", (Date)null);
+        sc.setParameters("reservation", (String)null);
+        
+        Transaction txn = Transaction.currentTxn();
+        txn.start();
+        List<DataCenterIpAddressVO> vos = lockRows(sc, new Filter(count), true);
+        long[] ids = new long[vos.size()];
+        if (ids.length > 0) {
+            Long[] keys = new Long[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = keys[i] = vos.get(i).getId();
+            }
+            SearchCriteria<DataCenterIpAddressVO> idSc = IdsSearch.create();
+            idSc.setParameters("ids", (Object[])keys);
+            
+            DataCenterIpAddressVO vo = createForUpdate();
+            vo.setReservationId(_blockReservation);
+            update(vo, idSc);
+        }
+        txn.commit();
+        
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Reserved " + ids.length + " ip addresses in pod " + podId);
+        }
+        return ids;
+    }
+    
+    /**
+     * Hands the ips a management server reserved but did not use back to the pool.
+     */
+    public void releaseReservedBlocks(long msid) {
+        SearchCriteria<DataCenterIpAddressVO> sc = AllFieldsSearch.create();
+        sc.setParameters("taken", (Date)null);
+        sc.setParameters("reservation", PoolBlockAllocator.getBlockReservation(msid));
+        
+        DataCenterIpAddressVO vo = createForUpdate();
+        vo.setReservationId(null);
+        update(vo, sc);
+    }
+    
     @Override
     public boolean deleteIpAddressByPod(long podId) {
+        PoolBlockAllocator allocator = _allocator;
+        if (allocator != null) {
+            allocator.reset(podId);
+        }
+        
         SearchCriteria<DataCenterIpAddressVO> sc = AllFieldsSearch.create();
         sc.setParameters("pod", podId);
         return remove(sc) > 0;
@@ -88,28 +178,14 @@ public class DataCenterIpAddressDaoImpl extends GenericDaoBase<DataCenterIpAddre
     @DB
     public void addIpRange(long dcId, long podId, String start, String end) {
         Transaction txn = Transaction.currentTxn();
-        String insertSql = "INSERT INTO `cloud`.`op_dc_ip_address_alloc` (ip_address, data_center_id, pod_id, mac_address) VALUES (?, ?, ?, (select mac_address from `cloud`.`data_center` where id=?))";
-        String updateSql = "UPDATE `cloud`.`data_center` set mac_address = mac_address+1 where id=?";
-        PreparedStatement stmt = null;
-        
-        long startIP = NetUtils.ip2Long(start);
-        long endIP = NetUtils.ip2Long(end);
+        IpRangeInserter inserter = new IpRangeInserter("op_dc_ip_address_alloc", "ip_address", dcId);
+        inserter.set("data_center_id", dcId).set("pod_id", podId).setMacAddressColumn("mac_address");
         
         try {
             txn.start();
-            
-            while (startIP <= endIP) {
-                stmt = txn.prepareStatement(insertSql);
-                stmt.setString(1, NetUtils.long2Ip(startIP++));
-                stmt.setLong(2, dcId);
-                stmt.setLong(3, podId);
-                stmt.setLong(4, dcId);
-                stmt.executeUpdate();
-                stmt.close();
-                stmt = txn.prepareStatement(updateSql);
-                stmt.setLong(1, dcId);
-                stmt.executeUpdate();
-                stmt.close();
+            List<String> problemIps = inserter.insert(txn, NetUtils.ip2Long(start), NetUtils.ip2Long(end));
+            if (!problemIps.isEmpty()) {
+                throw new CloudRuntimeException("Unable to persist ip address range, failed on " + problemIps);
             }
             txn.commit();
         } catch (SQLException ex) {
@@ -181,6 +257,7 @@ public class DataCenterIpAddressDaoImpl extends GenericDaoBase<DataCenterIpAddre
         super();
         
         AllFieldsSearch = createSearchBuilder();
+        AllFieldsSearch.and("id", AllFieldsSearch.entity().getId(), SearchCriteria.Op.EQ);
         AllFieldsSearch.and("ip", AllFieldsSearch.entity().getIpAddress(), SearchCriteria.Op.EQ);
         AllFieldsSearch.and("dc", AllFieldsSearch.entity().getDataCenterId(), SearchCriteria.Op.EQ);
         AllFieldsSearch.and("pod", AllFieldsSearch.entity().getPodId(), SearchCriteria.Op.EQ);
@@ -200,5 +277,9 @@ public class DataCenterIpAddressDaoImpl extends GenericDaoBase<DataCenterIpAddre
         AllAllocatedIpCount.and("pod", AllAllocatedIpCount.entity().getPodId(), SearchCriteria.Op.EQ);
         AllAllocatedIpCount.and("removed", AllAllocatedIpCount.entity().getTakenAt(), SearchCriteria.Op.NNULL);
         AllAllocatedIpCount.done();
+        
+        IdsSearch = createSearchBuilder();
+        IdsSearch.and("ids", IdsSearch.entity().getId(), SearchCriteria.Op.IN);
+        IdsSearch.done();
     }
 }
@@ -17,7 +17,6 @@
  */
 package com.cloud.dc.dao;
 
-import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.Date;
 import java.util.List;
@@ -28,8 +27,10 @@ import javax.naming.ConfigurationException;
 
 import org.apache.log4j.Logger;
 
+import com.cloud.cluster.ManagementServerNode;
 import com.cloud.dc.DataCenterLinkLocalIpAddressVO;
 import com.cloud.utils.db.DB;
+import com.cloud.utils.db.Filter;
 import com.cloud.utils.db.GenericDao;
 import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.GenericSearchBuilder;
@@ -41,15 +42,35 @@ import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.net.NetUtils;
 
 @Local(value={DataCenterLinkLocalIpAddressDaoImpl.class}) @DB(txn=false)
-public class DataCenterLinkLocalIpAddressDaoImpl extends GenericDaoBase<DataCenterLinkLocalIpAddressVO, Long> implements GenericDao<DataCenterLinkLocalIpAddressVO, Long> {
+public class DataCenterLinkLocalIpAddressDaoImpl extends GenericDaoBase<DataCenterLinkLocalIpAddressVO, Long> implements GenericDao<DataCenterLinkLocalIpAddressVO, Long>, PoolBlockAllocator.BlockSource {
     private static final Logger s_logger = Logger.getLogger(DataCenterLinkLocalIpAddressDaoImpl.class);
     
     private final SearchBuilder<DataCenterLinkLocalIpAddressVO> AllFieldsSearch;
     private final GenericSearchBuilder<DataCenterLinkLocalIpAddressVO, Integer> AllIpCount;
     private final GenericSearchBuilder<DataCenterLinkLocalIpAddressVO, Integer> AllAllocatedIpCount;
+    private final SearchBuilder<DataCenterLinkLocalIpAddressVO> IdsSearch;
+    
+    private final String _blockReservation = PoolBlockAllocator.getBlockReservation(ManagementServerNode.getManagementServerId());
+    private PoolBlockAllocator _allocator = null;
+    
+    /**
+     * @param blockSize number of ips to reserve per pod at a time; 0 locks a free row for every allocation.
+     */
+    public void setBlockSize(int blockSize) {
+        _allocator = blockSize > 0 ? new PoolBlockAllocator(this, blockSize) : null;
+    }
     
     @DB
     public DataCenterLinkLocalIpAddressVO takeIpAddress(long dcId, long podId, long instanceId, String reservationId) {
+        PoolBlockAllocator allocator = _allocator;
+        if (allocator != null) {
+            DataCenterLinkLocalIpAddressVO vo = takeReservedIpAddress(allocator, podId, instanceId, reservationId);
+            if (vo != null) {
+                return vo;
+            }
+            // other management servers may still hold free ips in their blocks
+        }
+        
         SearchCriteria<DataCenterLinkLocalIpAddressVO> sc = AllFieldsSearch.create();
         sc.setParameters("pod", podId);
         sc.setParameters("taken", (Date)null);
@@ -70,7 +91,76 @@ public class DataCenterLinkLocalIpAddressDaoImpl extends GenericDaoBase<DataCent
         return vo;
     }
     
+    protected DataCenterLinkLocalIpAddressVO takeReservedIpAddress(PoolBlockAllocator allocator, long podId, long instanceId, String reservationId) {
+        long id;
+        while ((id = allocator.take(podId)) >= 0) {
+            SearchCriteria<DataCenterLinkLocalIpAddressVO> sc = AllFieldsSearch.create();
+            sc.setParameters("id", id);
+            sc.setParameters("taken", (Date)null);
+            sc.setParameters("reservation", _blockReservation);
+            
+            DataCenterLinkLocalIpAddressVO vo = createForUpdate();
+            vo.setTakenAt(new Date());
+            vo.setInstanceId(instanceId);
+            vo.setReservationId(reservationId);
+            if (update(vo, sc) > 0) {
+                return findById(id);
+            }
+            // somebody else took it through the row locking path
+        }
+        return null;
+    }
+    
+    @Override @DB
+    public long[] reserveBlock(long podId, int count) {
+        SearchCriteria<DataCenterLinkLocalIpAddressVO> sc = AllFieldsSearch.create();
+        sc.setParameters("pod", podId);
+        sc.setParameters("taken", (Date)null);
+        sc.setParameters("reservation", (String)null);
+        
+        Transaction txn = Transaction.currentTxn();
+        txn.start();
+        List<DataCenterLinkLocalIpAddressVO> vos = lockRows(sc, new Filter(count), true);
+        long[] ids = new long[vos.size()];
+        if (ids.length > 0) {
+            Long[] keys = new Long[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = keys[i] = vos.get(i).getId();
+            }
+            SearchCriteria<DataCenterLinkLocalIpAddressVO> idSc = IdsSearch.create();
+            idSc.setParameters("ids", (Object[])keys);
+            
+            DataCenterLinkLocalIpAddressVO vo = createForUpdate();
+            vo.setReservationId(_blockReservation);
+            update(vo, idSc);
+        }
+        txn.commit();
+        
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Reserved " + ids.length + " link local ip addresses in pod " + podId);
+        }
+        return ids;
+    }
+    
+    /**
+     * Hands the ips a management server reserved but did not use back to the pool.
+     */
+    public void releaseReservedBlocks(long msid) {
+        SearchCriteria<DataCenterLinkLocalIpAddressVO> sc = AllFieldsSearch.create();
+        sc.setParameters("taken", (Date)null);
+        sc.setParameters("reservation", PoolBlockAllocator.getBlockReservation(msid));
+        
+        DataCenterLinkLocalIpAddressVO vo = createForUpdate();
+        vo.setReservationId(null);
+        update(vo, sc);
+    }
+    
     public boolean deleteIpAddressByPod(long podId) {
+        PoolBlockAllocator allocator = _allocator;
+        if (allocator != null) {
+            allocator.reset(podId);
+        }
+        
         SearchCriteria<DataCenterLinkLocalIpAddressVO> sc = AllFieldsSearch.create();
         sc.setParameters("pod", podId);
         return remove(sc) > 0;
@@ -78,23 +168,16 @@ public class DataCenterLinkLocalIpAddressDaoImpl extends GenericDaoBase<DataCent
     
     @DB
     public void addIpRange(long dcId, long podId, String start, String end) {
-        String insertSql = "INSERT INTO `cloud`.`op_dc_link_local_ip_address_alloc` (ip_address, data_center_id, pod_id) VALUES (?, ?, ?)";
-        PreparedStatement stmt = null;
-        
-        long startIP = NetUtils.ip2Long(start);
-        long endIP = NetUtils.ip2Long(end);
+        IpRangeInserter inserter = new IpRangeInserter("op_dc_link_local_ip_address_alloc", "ip_address", dcId);
+        inserter.set("data_center_id", dcId).set("pod_id", podId);
 
         Transaction txn = Transaction.currentTxn();
         try {
             txn.start();
-            stmt = txn.prepareAutoCloseStatement(insertSql);
-            while (startIP <= endIP) {
-                    stmt.setString(1, NetUtils.long2Ip(startIP++));
-                    stmt.setLong(2, dcId);
-                    stmt.setLong(3, podId);
-                    stmt.addBatch();
+            List<String> problemIps = inserter.insert(txn, NetUtils.ip2Long(start), NetUtils.ip2Long(end));
+            if (!problemIps.isEmpty()) {
+                throw new CloudRuntimeException("Unable to insert " + problemIps);
             }
-            stmt.executeBatch();
             txn.commit();
         } catch (SQLException e) {
             throw new CloudRuntimeException("Unable to insert", e);
@@ -153,6 +236,7 @@ public class DataCenterLinkLocalIpAddressDaoImpl extends GenericDaoBase<DataCent
     protected DataCenterLinkLocalIpAddressDaoImpl() {
         super();
         AllFieldsSearch = createSearchBuilder();
+        AllFieldsSearch.and("id", AllFieldsSearch.entity().getId(), SearchCriteria.Op.EQ);
         AllFieldsSearch.and("ip", AllFieldsSearch.entity().getIpAddress(), SearchCriteria.Op.EQ);
         AllFieldsSearch.and("dc", AllFieldsSearch.entity().getDataCenterId(), SearchCriteria.Op.EQ);
         AllFieldsSearch.and("pod", AllFieldsSearch.entity().getPodId(), SearchCriteria.Op.EQ);
@@ -172,6 +256,9 @@ public class DataCenterLinkLocalIpAddressDaoImpl extends GenericDaoBase<DataCent
         AllAllocatedIpCount.and("removed", AllAllocatedIpCount.entity().getTakenAt(), SearchCriteria.Op.NNULL);
         AllAllocatedIpCount.done();
         
+        IdsSearch = createSearchBuilder();
+        IdsSearch.and("ids", IdsSearch.entity().getId(), SearchCriteria.Op.IN);
+        IdsSearch.done();
     }
     
     @Override
@@ -22,10 +22,12 @@ import java.sql.SQLException;
 import java.util.Date;
 import java.util.List;
 
+import com.cloud.cluster.ManagementServerNode;
 import com.cloud.dc.DataCenterVnetVO;
 import com.cloud.dc.Vlan.VlanType;
 import com.cloud.network.IpAddress.State;
 import com.cloud.utils.db.DB;
+import com.cloud.utils.db.Filter;
 import com.cloud.utils.db.GenericDao;
 import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.GenericSearchBuilder;
@@ -41,13 +43,25 @@ import com.cloud.utils.exception.CloudRuntimeException;
  * data center and the vnet that appears within its network.
  */
 @DB(txn=false)
-public class DataCenterVnetDaoImpl extends GenericDaoBase<DataCenterVnetVO, Long> implements GenericDao<DataCenterVnetVO, Long> {
+public class DataCenterVnetDaoImpl extends GenericDaoBase<DataCenterVnetVO, Long> implements GenericDao<DataCenterVnetVO, Long>, PoolBlockAllocator.BlockSource {
     private final SearchBuilder<DataCenterVnetVO> FreeVnetSearch;
     private final SearchBuilder<DataCenterVnetVO> VnetDcSearch;
     private final SearchBuilder<DataCenterVnetVO> VnetDcSearchAllocated;
     private final SearchBuilder<DataCenterVnetVO> DcSearchAllocated;
     private final GenericSearchBuilder<DataCenterVnetVO, Integer> countZoneVlans;
     private final GenericSearchBuilder<DataCenterVnetVO, Integer> countAllocatedZoneVlans;
+    private final SearchBuilder<DataCenterVnetVO> ReservedVnetSearch;
+    private final SearchBuilder<DataCenterVnetVO> IdsSearch;
+    
+    private final String _blockReservation = PoolBlockAllocator.getBlockReservation(ManagementServerNode.getManagementServerId());
+    private PoolBlockAllocator _allocator = null;
+    
+    /**
+     * @param blockSize number of vnets to reserve per zone at a time; 0 locks a free row for every allocation.
+     */
+    public void setBlockSize(int blockSize) {
+        _allocator = blockSize > 0 ? new PoolBlockAllocator(this, blockSize) : null;
+    }
     
     public List<DataCenterVnetVO> listAllocatedVnets(long dcId) {
     	SearchCriteria<DataCenterVnetVO> sc = DcSearchAllocated.create();
@@ -90,6 +104,11 @@ public class DataCenterVnetDaoImpl extends GenericDaoBase<DataCenterVnetVO, Long
     }
     
     public void delete(long dcId) {
+        PoolBlockAllocator allocator = _allocator;
+        if (allocator != null) {
+            allocator.reset(dcId);
+        }
+        
         SearchCriteria<DataCenterVnetVO> sc = VnetDcSearch.create();
         sc.setParameters("dc", dcId);
         
@@ -98,6 +117,15 @@ public class DataCenterVnetDaoImpl extends GenericDaoBase<DataCenterVnetVO, Long
 
     @DB
     public DataCenterVnetVO take(long dcId, long accountId, String reservationId) {
+        PoolBlockAllocator allocator = _allocator;
+        if (allocator != null) {
+            DataCenterVnetVO vo = takeReserved(allocator, dcId, accountId, reservationId);
+            if (vo != null) {
+                return vo;
+            }
+            // other management servers may still hold free vnets in their blocks
+        }
+        
         SearchCriteria<DataCenterVnetVO> sc = FreeVnetSearch.create();
         sc.setParameters("dc", dcId);
         Date now = new Date();
@@ -116,6 +144,63 @@ public class DataCenterVnetDaoImpl extends GenericDaoBase<DataCenterVnetVO, Long
         return vo;
     }
 
+    protected DataCenterVnetVO takeReserved(PoolBlockAllocator allocator, long dcId, long accountId, String reservationId) {
+        long id;
+        while ((id = allocator.take(dcId)) >= 0) {
+            SearchCriteria<DataCenterVnetVO> sc = ReservedVnetSearch.create();
+            sc.setParameters("id", id);
+            sc.setParameters("reservation", _blockReservation);
+            
+            DataCenterVnetVO vo = createForUpdate();
+            vo.setTakenAt(new Date());
+            vo.setAccountId(accountId);
+            vo.setReservationId(reservationId);
+            if (update(vo, sc) > 0) {
+                return findById(id);
+            }
+            // somebody else took it through the row locking path
+        }
+        return null;
+    }
+    
+    @Override @DB
+    public long[] reserveBlock(long dcId, int count) {
+        SearchCriteria<DataCenterVnetVO> sc = FreeVnetSearch.create();
+        sc.setParameters("dc", dcId);
+        sc.setParameters("reservation", (String)null);
+        
+        Transaction txn = Transaction.currentTxn();
+        txn.start();
+        List<DataCenterVnetVO> vos = lockRows(sc, new Filter(count), true);
+        long[] ids = new long[vos.size()];
+        if (ids.length > 0) {
+            Long[] keys = new Long[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = keys[i] = vos.get(i).getId();
+            }
+            SearchCriteria<DataCenterVnetVO> idSc = IdsSearch.create();
+            idSc.setParameters("ids", (Object[])keys);
+            
+            DataCenterVnetVO vo = createForUpdate();
+            vo.setReservationId(_blockReservation);
+            update(vo, idSc);
+        }
+        txn.commit();
+        return ids;
+    }
+    
+    /**
+     * Hands the vnets a management server reserved but did not use back to the pool.
+     */
+    public void releaseReservedBlocks(long msid) {
+        SearchCriteria<DataCenterVnetVO> sc = ReservedVnetSearch.create();
+        sc.setParameters("reservation", PoolBlockAllocator.getBlockReservation(msid));
+        
+        DataCenterVnetVO vo = createForUpdate();
+        vo.setReservationId(null);
+        update(vo, sc);
+    }
+
     public void release(String vnet, long dcId, long accountId, String reservationId) {
         SearchCriteria<DataCenterVnetVO> sc = VnetDcSearchAllocated.create();
         sc.setParameters("vnet", vnet);
@@ -144,8 +229,19 @@ public class DataCenterVnetDaoImpl extends GenericDaoBase<DataCenterVnetVO, Long
         FreeVnetSearch = createSearchBuilder();
         FreeVnetSearch.and("dc", FreeVnetSearch.entity().getDataCenterId(), SearchCriteria.Op.EQ);
         FreeVnetSearch.and("taken", FreeVnetSearch.entity().getTakenAt(), SearchCriteria.Op.NULL);
+        FreeVnetSearch.and("reservation", FreeVnetSearch.entity().getReservationId(), SearchCriteria.Op.EQ);
         FreeVnetSearch.done();
         
+        ReservedVnetSearch = createSearchBuilder();
+        ReservedVnetSearch.and("id", ReservedVnetSearch.entity().getId(), SearchCriteria.Op.EQ);
+        ReservedVnetSearch.and("taken", ReservedVnetSearch.entity().getTakenAt(), SearchCriteria.Op.NULL);
+        ReservedVnetSearch.and("reservation", ReservedVnetSearch.entity().getReservationId(), SearchCriteria.Op.EQ);
+        ReservedVnetSearch.done();
+        
+        IdsSearch = createSearchBuilder();
+        IdsSearch.and("ids", IdsSearch.entity().getId(), SearchCriteria.Op.IN);
+        IdsSearch.done();
+        
         VnetDcSearch = createSearchBuilder();
         VnetDcSearch.and("vnet", VnetDcSearch.entity().getVnet(), SearchCriteria.Op.EQ);
         VnetDcSearch.and("dc", VnetDcSearch.entity().getDataCenterId(), SearchCriteria.Op.EQ);
@@ -0,0 +1,230 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.dc.dao;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.db.Transaction;
+import com.cloud.utils.net.NetUtils;
+
+/**
+ * Inserts one row per address of an ip range into an allocation table
+ * (op_dc_ip_address_alloc, op_dc_link_local_ip_address_alloc,
+ * user_ip_address) with multi-row INSERT statements, a chunk at a time.
+ * 
+ * If the table has a mac_address column, data_center.mac_address is locked
+ * once, the inserted rows get consecutive mac addresses from it, and it is
+ * advanced by the number of rows inserted with a single update instead of
+ * one update per address.  If a chunk fails, e.g. because some of its
+ * addresses already exist, it is retried one row at a time and the rows
+ * that still fail are reported back as problem addresses; like the row by
+ * row inserts this replaces, they use up no mac address.
+ */
+public class IpRangeInserter {
+    private static final Logger s_logger = Logger.getLogger(IpRangeInserter.class);
+
+    public static final int DEFAULT_ROWS_PER_STATEMENT = 500;
+
+    private final String _table;
+    private final String _ipColumn;
+    private final long _dcId;
+    private final List<String> _columns = new ArrayList<String>();
+    private final List<Object> _values = new ArrayList<Object>();
+    private String _macColumn = null;
+    private int _rowsPerStatement = DEFAULT_ROWS_PER_STATEMENT;
+
+    private int _inserted;
+    private long _duration;
+
+    /**
+     * @param table table name, e.g. "op_dc_ip_address_alloc".
+     * @param ipColumn column that takes the address.
+     * @param dcId data center the range belongs to; also the owner of the mac address counter.
+     */
+    public IpRangeInserter(String table, String ipColumn, long dcId) {
+        _table = table;
+        _ipColumn = ipColumn;
+        _dcId = dcId;
+    }
+
+    /**
+     * Sets a column that has the same value in every row.
+     */
+    public IpRangeInserter set(String column, Object value) {
+        _columns.add(column);
+        _values.add(value);
+        return this;
+    }
+
+    /**
+     * Fills the column with consecutive values reserved from data_center.mac_address.
+     */
+    public IpRangeInserter setMacAddressColumn(String column) {
+        _macColumn = column;
+        return this;
+    }
+
+    public IpRangeInserter setRowsPerStatement(int rows) {
+        _rowsPerStatement = rows;
+        return this;
+    }
+
+    /**
+     * Inserts startIp through endIp.  The caller owns the transaction.
+     * @return addresses that could not be inserted.
+     */
+    public List<String> insert(Transaction txn, long startIp, long endIp) throws SQLException {
+        long start = System.currentTimeMillis();
+        List<String> problemIps = new ArrayList<String>();
+        int total = (int)(endIp - startIp + 1);
+        _inserted = 0;
+        if (total <= 0) {
+            return problemIps;
+        }
+
+        long firstMac = _macColumn != null ? lockMacAddress(txn) : 0;
+        long mac = firstMac;
+
+        PreparedStatement chunkStmt = null;
+        for (long ip = startIp; ip <= endIp; ip += _rowsPerStatement) {
+            int rows = (int)Math.min(_rowsPerStatement, endIp - ip + 1);
+            PreparedStatement stmt;
+            if (rows == _rowsPerStatement) {
+                if (chunkStmt == null) {
+                    chunkStmt = txn.prepareAutoCloseStatement(getInsertSql(rows));
+                }
+                stmt = chunkStmt;
+            } else {
+                stmt = txn.prepareAutoCloseStatement(getInsertSql(rows));
+            }
+
+            int index = 1;
+            for (int i = 0; i < rows; i++) {
+                index = setRow(stmt, index, ip + i, mac + i);
+            }
+            try {
+                _inserted += stmt.executeUpdate();
+                mac += rows;
+            } catch (SQLException e) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Unable to insert " + NetUtils.long2Ip(ip) + " and the next " + (rows - 1) + " addresses into " + _table + " at once, inserting them one by one: " + e.getMessage());
+                }
+                mac = insertOneByOne(txn, ip, rows, mac, problemIps);
+                // preparing the single row statement closed the chunk statement
+                chunkStmt = null;
+            }
+        }
+
+        if (_macColumn != null && mac > firstMac) {
+            advanceMacAddress(txn, mac - firstMac);
+        }
+
+        _duration = System.currentTimeMillis() - start;
+        if (s_logger.isInfoEnabled()) {
+            s_logger.info("Inserted " + _inserted + " of " + total + " addresses into " + _table + " in " + _duration + " ms ("
+                    + (_inserted * 1000L / Math.max(_duration, 1)) + " rows/s)");
+        }
+        return problemIps;
+    }
+
+    /**
+     * @return rows inserted by the last insert().
+     */
+    public int getInserted() {
+        return _inserted;
+    }
+
+    /**
+     * @return milliseconds the last insert() took.
+     */
+    public long getDuration() {
+        return _duration;
+    }
+
+    String getInsertSql(int rows) {
+        StringBuilder row = new StringBuilder("(?");
+        for (int i = 0; i < _columns.size() + (_macColumn != null ? 1 : 0); i++) {
+            row.append(", ?");
+        }
+        row.append(")");
+
+        StringBuilder sql = new StringBuilder("INSERT INTO `cloud`.`").append(_table).append("` (").append(_ipColumn);
+        for (String column : _columns) {
+            sql.append(", ").append(column);
+        }
+        if (_macColumn != null) {
+            sql.append(", ").append(_macColumn);
+        }
+        sql.append(") VALUES ").append(row);
+        for (int i = 1; i < rows; i++) {
+            sql.append(", ").append(row);
+        }
+        return sql.toString();
+    }
+
+    private int setRow(PreparedStatement stmt, int index, long ip, long mac) throws SQLException {
+        stmt.setString(index++, NetUtils.long2Ip(ip));
+        for (Object value : _values) {
+            stmt.setObject(index++, value);
+        }
+        if (_macColumn != null) {
+            stmt.setLong(index++, mac);
+        }
+        return index;
+    }
+
+    /**
+     * @return the next unused mac address, only advanced by the rows that were inserted.
+     */
+    private long insertOneByOne(Transaction txn, long startIp, int rows, long mac, List<String> problemIps) throws SQLException {
+        PreparedStatement stmt = txn.prepareAutoCloseStatement(getInsertSql(1));
+        for (int i = 0; i < rows; i++) {
+            setRow(stmt, 1, startIp + i, mac);
+            try {
+                _inserted += stmt.executeUpdate();
+                mac++;
+            } catch (SQLException e) {
+                problemIps.add(NetUtils.long2Ip(startIp + i));
+            }
+        }
+        return mac;
+    }
+
+    private long lockMacAddress(Transaction txn) throws SQLException {
+        PreparedStatement stmt = txn.prepareAutoCloseStatement("SELECT mac_address FROM `cloud`.`data_center` WHERE id=? FOR UPDATE");
+        stmt.setLong(1, _dcId);
+        ResultSet rs = stmt.executeQuery();
+        if (!rs.next()) {
+            throw new SQLException("Unable to find data center " + _dcId);
+        }
+        return rs.getLong(1);
+    }
+
+    private void advanceMacAddress(Transaction txn, long count) throws SQLException {
+        PreparedStatement stmt = txn.prepareAutoCloseStatement("UPDATE `cloud`.`data_center` SET mac_address = mac_address + ? WHERE id=?");
+        stmt.setLong(1, count);
+        stmt.setLong(2, _dcId);
+        stmt.executeUpdate();
+    }
+}
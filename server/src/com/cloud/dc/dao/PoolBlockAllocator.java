@@ -0,0 +1,139 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.dc.dao;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hands out rows of an allocation table (op_dc_ip_address_alloc,
+ * op_dc_link_local_ip_address_alloc, op_dc_vnet_alloc) from blocks that
+ * this management server reserved ahead of time, so concurrent allocations
+ * do not all queue on the row lock of the first free row.
+ * 
+ * A block is reserved by the BlockSource in one transaction and the claim
+ * is written to the rows themselves (see getBlockReservation()), so rows
+ * held by a management server that crashed can be handed back.  Rows of a
+ * block are handed out in order from memory; the database is only locked
+ * again when the block runs dry.  Released rows go back to the table, not
+ * to the block.
+ */
+public class PoolBlockAllocator {
+    public static final int DEFAULT_BLOCK_SIZE = 16;
+
+    private static final String BLOCK_RESERVATION_PREFIX = "block:";
+
+    public interface BlockSource {
+        /**
+         * Reserves up to count free, unreserved rows of the pool for this
+         * management server.
+         * @return ids of the reserved rows; empty if nothing is left.
+         */
+        long[] reserveBlock(long poolId, int count);
+    }
+
+    private final BlockSource _source;
+    private final int _blockSize;
+    private final ConcurrentHashMap<Long, Pool> _pools = new ConcurrentHashMap<Long, Pool>();
+
+    public PoolBlockAllocator(BlockSource source, int blockSize) {
+        _source = source;
+        _blockSize = blockSize;
+    }
+
+    /**
+     * @return reservation id the rows of a block carry while they are held by the management server.
+     */
+    public static String getBlockReservation(long msid) {
+        return BLOCK_RESERVATION_PREFIX + msid;
+    }
+
+    /**
+     * Takes the id of a reserved row out of the pool's current block,
+     * reserving a new block when it is empty.  The caller still has to
+     * lease the row; if that fails, it should simply take another one.
+     * @return row id, or -1 when no row can be reserved.
+     */
+    public long take(long poolId) {
+        Pool pool = _pools.get(poolId);
+        if (pool == null) {
+            pool = new Pool();
+            Pool existing = _pools.putIfAbsent(poolId, pool);
+            if (existing != null) {
+                pool = existing;
+            }
+        }
+
+        while (true) {
+            Block block = pool.block;
+            if (block != null) {
+                long id = block.take();
+                if (id >= 0) {
+                    return id;
+                }
+            }
+
+            synchronized (pool) {
+                if (pool.block != block) {
+                    continue;
+                }
+                long[] ids = _source.reserveBlock(poolId, _blockSize);
+                if (ids == null || ids.length == 0) {
+                    return -1;
+                }
+                pool.block = new Block(ids);
+            }
+        }
+    }
+
+    /**
+     * Forgets the pool's current block, e.g. because its range was deleted.
+     */
+    public void reset(long poolId) {
+        _pools.remove(poolId);
+    }
+
+    /**
+     * @return number of reserved rows not handed out yet.
+     */
+    public int getAvailable(long poolId) {
+        Pool pool = _pools.get(poolId);
+        Block block = pool == null ? null : pool.block;
+        return block == null ? 0 : block.getAvailable();
+    }
+
+    private static class Pool {
+        volatile Block block;
+    }
+
+    static class Block {
+        private final long[] _ids;
+        private int _next;
+
+        Block(long[] ids) {
+            _ids = ids;
+        }
+
+        synchronized long take() {
+            return _next < _ids.length ? _ids[_next++] : -1;
+        }
+
+        synchronized int getAvailable() {
+            return _ids.length - _next;
+        }
+    }
+}
@@ -85,6 +85,7 @@ public class SecurityGroupListener implements Listener {
     @Override
     public boolean processAnswers(long agentId, long seq, Answer[] answers) {
         List<Long> affectedVms = new ArrayList<Long>();
+        List<Long> resyncVms = new ArrayList<Long>();
         int commandNum = 0;
         for (Answer ans: answers) {
             if (ans instanceof SecurityIngressRuleAnswer) {
@@ -95,10 +96,14 @@ public class SecurityGroupListener implements Listener {
                     recordSuccess(ruleAnswer.getVmId());
                 } else {
                     _workDao.updateStep(ruleAnswer.getVmId(), ruleAnswer.getLogSequenceNumber(), Step.Error);;
+                    _securityGroupManager.resetRulesetState(ruleAnswer.getVmId());
                     s_logger.debug("Failed to program rule " + ruleAnswer.toString() + " into host " + agentId 
                             +" due to " + ruleAnswer.getDetails()
                             +" and updated  jobs");
-                    if (ruleAnswer.getReason() == FailureReason.CANNOT_BRIDGE_FIREWALL) {
+                    if (ruleAnswer.getReason() == FailureReason.SIGNATURE_MISMATCH) {
+                        s_logger.debug("Host " + agentId + " did not hold the previous ruleset of vm " + ruleAnswer.getVmId() + ", resending the full ruleset");
+                        resyncVms.add(ruleAnswer.getVmId());
+                    } else if (ruleAnswer.getReason() == FailureReason.CANNOT_BRIDGE_FIREWALL) {
                         s_logger.debug("Not retrying security group rules for vm " + ruleAnswer.getVmId() + " on failure since host " + agentId + " cannot do bridge firewalling");
                     } else if (ruleAnswer.getReason() == FailureReason.PROGRAMMING_FAILED){
                         if (checkShouldRetryOnFailure(ruleAnswer.getVmId())) {
@@ -116,6 +121,9 @@ public class SecurityGroupListener implements Listener {
         if (affectedVms.size() > 0) {
             _securityGroupManager.scheduleRulesetUpdateToHosts(affectedVms, false, new Long(10 * 1000l));
         }
+        if (resyncVms.size() > 0) {
+            _securityGroupManager.scheduleRulesetUpdateToHosts(resyncVms, false, null);
+        }
 
         return true;
     }
@@ -19,6 +19,7 @@ package com.cloud.network.security;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
@@ -69,6 +70,7 @@ import com.cloud.network.security.dao.IngressRuleDao;
 import com.cloud.network.security.dao.SecurityGroupDao;
 import com.cloud.network.security.dao.SecurityGroupRulesDao;
 import com.cloud.network.security.dao.SecurityGroupVMMapDao;
+import com.cloud.network.security.dao.SecurityGroupVersionDao;
 import com.cloud.network.security.dao.SecurityGroupWorkDao;
 import com.cloud.network.security.dao.VmRulesetLogDao;
 import com.cloud.projects.Project;
@@ -108,7 +110,6 @@ import com.cloud.vm.VirtualMachineManager;
 import com.cloud.vm.dao.UserVmDao;
 import com.cloud.vm.dao.VMInstanceDao;
 
-import edu.emory.mathcs.backport.java.util.Collections;
 
 @Local(value = { SecurityGroupManager.class, SecurityGroupService.class })
 public class SecurityGroupManagerImpl implements SecurityGroupManager, SecurityGroupService, Manager, StateListener<State, VirtualMachine.Event, VirtualMachine> {
@@ -133,6 +134,8 @@ public class SecurityGroupManagerImpl implements SecurityGroupManager, SecurityG
     @Inject
     VmRulesetLogDao _rulesetLogDao;
     @Inject
+    SecurityGroupVersionDao _sgVersionDao;
+    @Inject
     DomainDao _domainDao;
     @Inject
     AgentManager _agentMgr;
@@ -369,6 +372,7 @@ public class SecurityGroupManagerImpl implements SecurityGroupManager, SecurityG
     public void handleVmStarted(VMInstanceVO vm) {
         if (vm.getType() != VirtualMachine.Type.User || !isVmSecurityGroupEnabled(vm.getId()))
             return;
+        bumpGroupVersionsForVm(vm.getId());
         List<Long> affectedVms = getAffectedVmsForVmStart(vm);
         scheduleRulesetUpdateToHosts(affectedVms, true, null);
     }
@@ -491,9 +495,28 @@ public class SecurityGroupManagerImpl implements SecurityGroupManager, SecurityG
         return new SecurityIngressRulesCmd(guestIp, guestMac, vmName, vmId, signature, seqnum, result.toArray(new IpPortAndProto[result.size()]));
     }
 
+    /*
+     * The running members of the vm's groups changed: record it in op_security_group_version so that
+     * every management server reloads these groups into its ruleset model.
+     */
+    protected void bumpGroupVersionsForVm(long vmId) {
+        Set<Long> groupIds = new HashSet<Long>();
+        for (SecurityGroupVMMapVO mapVO : _securityGroupVMMapDao.listByInstanceId(vmId)) {
+            groupIds.add(mapVO.getSecurityGroupId());
+        }
+        _sgVersionDao.bumpVersions(groupIds);
+    }
+
+    /**
+     * Called when a host failed to program the ruleset of a vm, so the next update is sent in full.
+     */
+    protected void resetRulesetState(long vmId) {
+    }
+
     protected void handleVmStopped(VMInstanceVO vm) {
         if (vm.getType() != VirtualMachine.Type.User || !isVmSecurityGroupEnabled(vm.getId()))
             return;
+        bumpGroupVersionsForVm(vm.getId());
         List<Long> affectedVms = getAffectedVmsForVmStop(vm);
         scheduleRulesetUpdateToHosts(affectedVms, true, null);
     }
@@ -685,6 +708,7 @@ public class SecurityGroupManagerImpl implements SecurityGroupManager, SecurityG
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("Added " + newRules.size() + " rules to security group " + securityGroup.getName());
             }
+            _sgVersionDao.bumpVersions(Collections.singleton(securityGroup.getId()));
             txn.commit();
             final ArrayList<Long> affectedVms = new ArrayList<Long>();
             affectedVms.addAll(_securityGroupVMMapDao.listVmIdsBySecurityGroup(securityGroup.getId()));
@@ -730,6 +754,7 @@ public class SecurityGroupManagerImpl implements SecurityGroupManager, SecurityG
             }
 
             _ingressRuleDao.remove(id);
+            _sgVersionDao.bumpVersions(Collections.singleton(groupHandle.getId()));
             s_logger.debug("revokeSecurityGroupIngress succeeded for ingress rule id: " + id);
 
             final ArrayList<Long> affectedVms = new ArrayList<Long>();
@@ -928,6 +953,7 @@ public class SecurityGroupManagerImpl implements SecurityGroupManager, SecurityG
                 s_logger.warn("Failed to acquire lock on user vm id=" + userVmId);
             }
             try {
+                Set<Long> addedGroups = new HashSet<Long>();
                 for (SecurityGroupVO securityGroup : uniqueGroups) {
                     // don't let the group be deleted from under us.
                     SecurityGroupVO ngrpLock = _securityGroupDao.lockRow(securityGroup.getId(), false);
@@ -939,8 +965,10 @@ public class SecurityGroupManagerImpl implements SecurityGroupManager, SecurityG
                     if (_securityGroupVMMapDao.findByVmIdGroupId(userVmId, securityGroup.getId()) == null) {
                         SecurityGroupVMMapVO groupVmMapVO = new SecurityGroupVMMapVO(securityGroup.getId(), userVmId);
                         _securityGroupVMMapDao.persist(groupVmMapVO);
+                        addedGroups.add(securityGroup.getId());
                     }
                 }
+                _sgVersionDao.bumpVersions(addedGroups);
                 txn.commit();
                 return true;
             } finally {
@@ -967,7 +995,12 @@ public class SecurityGroupManagerImpl implements SecurityGroupManager, SecurityG
         if (userVm == null) {
             s_logger.warn("Failed to acquire lock on user vm id=" + userVmId);
         }
+        Set<Long> groupIds = new HashSet<Long>();
+        for (SecurityGroupVMMapVO mapVO : _securityGroupVMMapDao.listByInstanceId(userVmId)) {
+            groupIds.add(mapVO.getSecurityGroupId());
+        }
         int n = _securityGroupVMMapDao.deleteVM(userVmId);
+        _sgVersionDao.bumpVersions(groupIds);
         s_logger.info("Disassociated " + n + " network groups " + " from uservm " + userVmId);
         _userVMDao.releaseFromLockTable(userVmId);
         txn.commit();
@@ -17,7 +17,11 @@
  */
 package com.cloud.network.security;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -28,14 +32,22 @@ import java.util.concurrent.ConcurrentHashMap;
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
 
+import com.cloud.agent.AgentManager.OnError;
+import com.cloud.agent.api.Command;
 import com.cloud.agent.api.SecurityIngressRulesCmd;
+import com.cloud.agent.api.SecurityIngressRulesDeltaCmd;
 import com.cloud.agent.manager.Commands;
+import com.cloud.configuration.Config;
 import com.cloud.exception.AgentUnavailableException;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
 import com.cloud.network.security.SecurityGroupWork.Step;
 import com.cloud.uservm.UserVm;
+import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.Profiler;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.mgmt.JmxUtil;
+import com.cloud.vm.UserVmVO;
+import com.cloud.vm.VMInstanceVO;
 import com.cloud.vm.VirtualMachine.State;
 
 
@@ -51,6 +63,21 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
     WorkerThread[] _workers;
     private Set<Long> _disabledVms = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
     private boolean _schedulerDisabled = false;
+    int _workBatchSize = 100;
+    SecurityGroupRulesetModel _rulesetModel;
+    boolean _deltaSync = true;
+    //last full ruleset sent to each vm, the base of the next delta update
+    Map<Long, SentRuleset> _sentRulesets = new ConcurrentHashMap<Long, SentRuleset>();
+
+    static class SentRuleset {
+        final Long hostId;
+        final SecurityIngressRulesCmd cmd;
+
+        SentRuleset(Long hostId, SecurityIngressRulesCmd cmd) {
+            this.hostId = hostId;
+            this.cmd = cmd;
+        }
+    }
 
     
     protected class WorkerThread extends Thread {
@@ -131,7 +158,18 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
         s_logger.trace("Checking the work queue");
         List<SecurityGroupWork> workItems;
         try {
-            workItems = _workQueue.getWork(1);
+            workItems = _workQueue.getWork(_workBatchSize);
+            if (workItems.size() > 1) {
+                try {
+                    sendRulesetUpdates(workItems);
+                } catch (Exception e) {
+                    s_logger.error("Problem during SG batch work of " + workItems.size() + " items", e);
+                    for (SecurityGroupWork work: workItems) {
+                        work.setStep(Step.Error);
+                    }
+                }
+                return;
+            }
             for (SecurityGroupWork work: workItems) {
                 if (s_logger.isTraceEnabled()) {
                     s_logger.trace("Processing " + work.getInstanceId());
@@ -146,6 +184,7 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
                     work.setLogsequenceNumber(rulesetLog.getLogsequence());
                     sendRulesetUpdates(work);
                     _mBean.logUpdateDetails(work.getInstanceId(), work.getLogsequenceNumber());
+                    _mBean.logBatchDetails(1, 0);
                 }catch (Exception e) {
                     s_logger.error("Problem during SG work " + work, e);
                     work.setStep(Step.Error);
@@ -177,9 +216,10 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
                     s_logger.debug("SecurityGroupManager v2: sending ruleset update for vm " + vm.getInstanceName() + 
                                    ": num rules=" + cmd.getRuleSet().length + " num cidrs=" + cmd.getTotalNumCidrs() + " sig=" + cmd.getSignature());
                 }
-                Commands cmds = new Commands(cmd);
+                Commands cmds = new Commands(toRulesetUpdate(vm, cmd));
                 try {
                     _agentMgr.send(agentId, cmds, _answerListener);
+                    _mBean.logRulesSent(1, cmd.getRuleSet().length);
                     if (s_logger.isTraceEnabled()) {
                         s_logger.trace("SecurityGroupManager v2: sent ruleset updates for " + vm.getInstanceName() + " curr queue size=" + _workQueue.size());
                     }
@@ -188,6 +228,7 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
                 }
             }
         } else {
+            _sentRulesets.remove(userVmId);
             if (s_logger.isDebugEnabled()) {
                 if (vm != null)
                     s_logger.debug("No rules sent to vm " + vm + "state=" + vm.getState());
@@ -197,6 +238,153 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
         }
     }
 
+    /**
+     * Dispatches a batch of work items drained from the queue in one go. Repeated items for the
+     * same vm are coalesced, the ruleset log, vm and group membership rows for the batch are loaded
+     * with one query each, the rules and running members of a security group are looked up once per
+     * batch, and the resulting commands are sent to each host as a single bundle.
+     */
+    public void sendRulesetUpdates(List<SecurityGroupWork> workItems) {
+        Profiler p = new Profiler();
+        p.start();
+        Map<Long, SecurityGroupWork> coalesced = new LinkedHashMap<Long, SecurityGroupWork>();
+        for (SecurityGroupWork work : workItems) {
+            coalesced.put(work.getInstanceId(), work);
+        }
+        _mBean.logBatchDetails(workItems.size(), workItems.size() - coalesced.size());
+
+        Set<Long> loggedVmIds = new HashSet<Long>();
+        for (VmRulesetLogVO rulesetLog : _rulesetLogDao.listByVmIds(coalesced.keySet())) {
+            coalesced.get(rulesetLog.getInstanceId()).setLogsequenceNumber(rulesetLog.getLogsequence());
+            loggedVmIds.add(rulesetLog.getInstanceId());
+        }
+        for (Long vmId : coalesced.keySet()) {
+            if (!loggedVmIds.contains(vmId)) {
+                s_logger.warn("Could not find ruleset log for vm " + vmId);
+            }
+        }
+        if (loggedVmIds.isEmpty()) {
+            return;
+        }
+
+        Map<Long, UserVmVO> runningVms = new HashMap<Long, UserVmVO>();
+        for (UserVmVO vm : _userVMDao.listByIds(loggedVmIds)) {
+            if (vm.getState() == State.Running && vm.getHostId() != null) {
+                runningVms.put(vm.getId(), vm);
+            } else {
+                _sentRulesets.remove(vm.getId());
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("No rules sent to vm " + vm + "state=" + vm.getState());
+                }
+            }
+        }
+        if (runningVms.isEmpty()) {
+            return;
+        }
+
+        Map<Long, List<SecurityGroupVMMapVO>> groupsByVm = new HashMap<Long, List<SecurityGroupVMMapVO>>();
+        for (SecurityGroupVMMapVO mapVO : _securityGroupVMMapDao.listByInstanceIds(runningVms.keySet())) {
+            List<SecurityGroupVMMapVO> groups = groupsByVm.get(mapVO.getInstanceId());
+            if (groups == null) {
+                groups = new ArrayList<SecurityGroupVMMapVO>();
+                groupsByVm.put(mapVO.getInstanceId(), groups);
+            }
+            groups.add(mapVO);
+        }
+        if (_rulesetModel != null) {
+            Set<Long> groupIds = new HashSet<Long>();
+            for (List<SecurityGroupVMMapVO> groups : groupsByVm.values()) {
+                groupIds.addAll(getGroupIds(groups));
+            }
+            _rulesetModel.refresh(groupIds);
+        }
+
+        Map<Long, List<IngressRuleVO>> rulesByGroup = new HashMap<Long, List<IngressRuleVO>>();
+        Map<Long, List<String>> memberCidrsByGroup = new HashMap<Long, List<String>>();
+        Map<Long, Commands> cmdsByHost = new LinkedHashMap<Long, Commands>();
+        Map<Long, Integer> rulesByHost = new HashMap<Long, Integer>();
+        for (SecurityGroupWork work : coalesced.values()) {
+            UserVmVO vm = runningVms.get(work.getInstanceId());
+            if (vm == null) {
+                continue;
+            }
+            List<SecurityGroupVMMapVO> groupsForVm = groupsByVm.get(vm.getId());
+            if (groupsForVm == null) {
+                groupsForVm = new ArrayList<SecurityGroupVMMapVO>(0);
+            }
+            Map<PortAndProto, Set<String>> rules = generateRulesForVM(groupsForVm, rulesByGroup, memberCidrsByGroup);
+            SecurityIngressRulesCmd cmd = generateRulesetCmd(vm.getInstanceName(), vm.getPrivateIpAddress(), 
+                    vm.getPrivateMacAddress(), vm.getId(), null, 
+                    work.getLogsequenceNumber(), rules);
+            cmd.setMsId(_serverId);
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("SecurityGroupManager v2: batching ruleset update for vm " + vm.getInstanceName() + 
+                               ": num rules=" + cmd.getRuleSet().length + " num cidrs=" + cmd.getTotalNumCidrs() + " sig=" + cmd.getSignature());
+            }
+            Commands cmds = cmdsByHost.get(vm.getHostId());
+            if (cmds == null) {
+                cmds = new Commands(OnError.Continue);
+                cmdsByHost.put(vm.getHostId(), cmds);
+                rulesByHost.put(vm.getHostId(), 0);
+            }
+            cmds.addCommand(toRulesetUpdate(vm, cmd));
+            rulesByHost.put(vm.getHostId(), rulesByHost.get(vm.getHostId()) + cmd.getRuleSet().length);
+            _mBean.logUpdateDetails(vm.getId(), work.getLogsequenceNumber());
+        }
+
+        for (Map.Entry<Long, Commands> entry : cmdsByHost.entrySet()) {
+            Long agentId = entry.getKey();
+            Commands cmds = entry.getValue();
+            try {
+                _agentMgr.send(agentId, cmds, _answerListener);
+                _mBean.logRulesSent(cmds.size(), rulesByHost.get(agentId));
+            } catch (AgentUnavailableException e) {
+                s_logger.debug("Unable to send " + cmds.size() + " ruleset updates to agent " + agentId);
+            }
+        }
+        p.stop();
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("SecurityGroupManager v2: dispatched batch of " + workItems.size() + " work items (unique=" + coalesced.size() + 
+                           ") to " + cmdsByHost.size() + " hosts in " + p.getDuration() + " ms, curr queue size=" + _workQueue.size());
+        }
+    }
+
+    /*
+     * Returns the command that brings the host up to date with a freshly generated full ruleset: a
+     * delta against the ruleset last sent to the same host when that is smaller, the full ruleset
+     * otherwise. The host rejects a delta whose base signature it does not hold, which resets the
+     * state kept here and schedules a full resend.
+     */
+    protected Command toRulesetUpdate(UserVm vm, SecurityIngressRulesCmd cmd) {
+        if (!_deltaSync || (vm.getHypervisorType() != HypervisorType.KVM && vm.getHypervisorType() != HypervisorType.XenServer)) {
+            return cmd;
+        }
+        SentRuleset previous = _sentRulesets.put(vm.getId(), new SentRuleset(vm.getHostId(), cmd));
+        if (previous == null || !previous.hostId.equals(vm.getHostId())) {
+            return cmd;
+        }
+        SecurityIngressRulesDeltaCmd delta = SecurityIngressRulesDeltaCmd.create(previous.cmd, cmd);
+        if (delta.getTotalNumCidrs() >= cmd.getTotalNumCidrs()) {
+            return cmd;
+        }
+        if (s_logger.isTraceEnabled()) {
+            s_logger.trace("SecurityGroupManager v2: sending delta for vm " + vm.getInstanceName() + ": num cidrs=" + delta.getTotalNumCidrs() + 
+                           " instead of " + cmd.getTotalNumCidrs());
+        }
+        return delta;
+    }
+
+    @Override
+    protected void resetRulesetState(long vmId) {
+        _sentRulesets.remove(vmId);
+    }
+
+    @Override
+    protected void handleVmStopped(VMInstanceVO vm) {
+        _sentRulesets.remove(vm.getId());
+        super.handleVmStopped(vm);
+    }
+
     @Override
     public void cleanupFinishedWork() {
         //TODO: over time clean up op_vm_ruleset_log table for destroyed vms
@@ -210,12 +398,40 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
      */
     @Override
     protected Map<PortAndProto, Set<String>> generateRulesForVM(Long userVmId) {
+        List<SecurityGroupVMMapVO> groupsForVm = _securityGroupVMMapDao.listByInstanceId(userVmId);
+        if (_rulesetModel != null) {
+            _rulesetModel.refresh(getGroupIds(groupsForVm));
+        }
+        return generateRulesForVM(groupsForVm, new HashMap<Long, List<IngressRuleVO>>(), new HashMap<Long, List<String>>());
+    }
+
+    private static Set<Long> getGroupIds(List<SecurityGroupVMMapVO> groupsForVm) {
+        Set<Long> groupIds = new HashSet<Long>();
+        for (SecurityGroupVMMapVO mapVO : groupsForVm) {
+            groupIds.add(mapVO.getSecurityGroupId());
+        }
+        return groupIds;
+    }
+
+    /*
+     * With the ruleset model enabled the rules come from the model, whose groups the caller has refreshed.
+     * Otherwise rules and running member cidrs of each group are looked up through the supplied maps, so
+     * a caller generating rules for many vms only queries each security group once.
+     */
+    protected Map<PortAndProto, Set<String>> generateRulesForVM(List<SecurityGroupVMMapVO> groupsForVm, 
+            Map<Long, List<IngressRuleVO>> rulesByGroup, Map<Long, List<String>> memberCidrsByGroup) {
+        if (_rulesetModel != null) {
+            return _rulesetModel.generateRules(getGroupIds(groupsForVm));
+        }
 
         Map<PortAndProto, Set<String>> allowed = new TreeMap<PortAndProto, Set<String>>();
 
-        List<SecurityGroupVMMapVO> groupsForVm = _securityGroupVMMapDao.listByInstanceId(userVmId);
         for (SecurityGroupVMMapVO mapVO : groupsForVm) {
-            List<IngressRuleVO> rules = _ingressRuleDao.listBySecurityGroupId(mapVO.getSecurityGroupId());
+            List<IngressRuleVO> rules = rulesByGroup.get(mapVO.getSecurityGroupId());
+            if (rules == null) {
+                rules = _ingressRuleDao.listBySecurityGroupId(mapVO.getSecurityGroupId());
+                rulesByGroup.put(mapVO.getSecurityGroupId(), rules);
+            }
             for (IngressRuleVO rule : rules) {
                 PortAndProto portAndProto = new PortAndProto(rule.getProtocol(), rule.getStartPort(), rule.getEndPort());
                 Set<String> cidrs = allowed.get(portAndProto);
@@ -223,14 +439,19 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
                     cidrs = new TreeSet<String>(new CidrComparator());
                 }
                 if (rule.getAllowedNetworkId() != null) {
-                    List<SecurityGroupVMMapVO> allowedInstances = _securityGroupVMMapDao.listBySecurityGroup(rule.getAllowedNetworkId(), State.Running);
-                    for (SecurityGroupVMMapVO ngmapVO : allowedInstances) {
-                        //here, we differ from the superclass: instead of creating N more queries to the
-                        //nics table, we use what's already there in the VO since the listBySecurityGroup already
-                        //did a join with the nics table
-                        String cidr = ngmapVO.getGuestIpAddress() + "/32";
-                        cidrs.add(cidr);
+                    List<String> memberCidrs = memberCidrsByGroup.get(rule.getAllowedNetworkId());
+                    if (memberCidrs == null) {
+                        List<SecurityGroupVMMapVO> allowedInstances = _securityGroupVMMapDao.listBySecurityGroup(rule.getAllowedNetworkId(), State.Running);
+                        memberCidrs = new ArrayList<String>(allowedInstances.size());
+                        for (SecurityGroupVMMapVO ngmapVO : allowedInstances) {
+                            //here, we differ from the superclass: instead of creating N more queries to the
+                            //nics table, we use what's already there in the VO since the listBySecurityGroup already
+                            //did a join with the nics table
+                            memberCidrs.add(ngmapVO.getGuestIpAddress() + "/32");
+                        }
+                        memberCidrsByGroup.put(rule.getAllowedNetworkId(), memberCidrs);
                     }
+                    cidrs.addAll(memberCidrs);
                 } else if (rule.getAllowedSourceIpCidr() != null) {
                     cidrs.add(rule.getAllowedSourceIpCidr());
                 }
@@ -247,6 +468,10 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
     public int getQueueSize() {
         return _workQueue.size();
     }
+
+    public SecurityGroupRulesetModel getRulesetModel() {
+        return _rulesetModel;
+    }
     
     public SecurityGroupWorkQueue getWorkQueue() {
         return _workQueue;
@@ -261,7 +486,15 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl{
         } catch (Exception e){
             s_logger.error("Failed to register MBean", e);
         }
-        return super.configure(name, params);
+        boolean result = super.configure(name, params);
+        Map<String, String> configs = _configDao.getConfiguration("Network", params);
+        _workBatchSize = Math.max(1, NumbersUtil.parseInt(configs.get(Config.SecurityGroupWorkBatchSize.key()), 100));
+        _deltaSync = !"false".equalsIgnoreCase(configs.get(Config.SecurityGroupDeltaSync.key()));
+        if (!"false".equalsIgnoreCase(configs.get(Config.SecurityGroupRulesetModel.key()))) {
+            _rulesetModel = new SecurityGroupRulesetModel(_ingressRuleDao, _securityGroupVMMapDao, _sgVersionDao);
+        }
+        s_logger.info("SecurityGroupManager v2: work batch size=" + _workBatchSize + ", delta sync=" + _deltaSync + ", ruleset model=" + (_rulesetModel != null));
+        return result;
     }
 
     public void disableSchedulerForVm(Long vmId, boolean disable) {
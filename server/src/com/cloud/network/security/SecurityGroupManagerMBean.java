@@ -44,6 +44,22 @@ public interface SecurityGroupManagerMBean {
     
     List<Long> getVmsInQueue();
     
+    long getBatchesProcessed();
+    
+    int getLastBatchSize();
+    
+    long getCoalescedUpdates();
+    
+    long getRulesetUpdatesSent();
+    
+    long getRulesSent();
+    
+    double getRulesPerSecond();
+    
+    int getRulesetModelGroupCount();
+    
+    long getRulesetModelReloads();
+    
     void scheduleRulesetUpdateForVm(Long vmId);
     
     void tryRulesetUpdateForVmBypassSchedulerVeryDangerous(Long vmId, Long seqno);
@@ -0,0 +1,330 @@
+/**
+ *  Copyright (C) 2011 Citrix Systems, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.network.security;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.network.security.SecurityGroupManagerImpl.PortAndProto;
+import com.cloud.network.security.dao.IngressRuleDao;
+import com.cloud.network.security.dao.SecurityGroupVMMapDao;
+import com.cloud.network.security.dao.SecurityGroupVersionDao;
+import com.cloud.utils.net.NetUtils;
+import com.cloud.vm.VirtualMachine.State;
+
+/**
+ * In-memory model of security groups, their ingress rules and the guest ips of their running members,
+ * so that generating the ruleset of a vm is a memory lookup instead of a round of database queries.
+ * 
+ * Cidrs are precomputed once per group as sorted arrays of packed longs (network address and prefix
+ * length) alongside their string form, so rulesets are assembled by merging arrays rather than sorting
+ * strings. Every group entry remembers the version it was loaded at; refresh() compares that with
+ * op_security_group_version, which every management server bumps when it changes the rules or the
+ * running membership of a group, and reloads the groups that moved on.
+ */
+public class SecurityGroupRulesetModel {
+    private static final Logger s_logger = Logger.getLogger(SecurityGroupRulesetModel.class);
+
+    /**
+     * Sorted, duplicate free cidrs.
+     */
+    static class Cidrs {
+        static final Cidrs EMPTY = new Cidrs(new long[0], new String[0]);
+
+        final long[] packed;
+        final String[] strings;
+
+        Cidrs(long[] packed, String[] strings) {
+            this.packed = packed;
+            this.strings = strings;
+        }
+
+        static long pack(String cidr) {
+            String[] toks = cidr.split("/");
+            if (toks.length == 2 && NetUtils.isValidIp(toks[0])) {
+                try {
+                    int prefix = Integer.parseInt(toks[1]);
+                    if (prefix >= 0 && prefix <= 32) {
+                        return (NetUtils.ip2Long(toks[0]) << 6) | prefix;
+                    }
+                } catch (NumberFormatException e) {
+                }
+            }
+            //not expected since cidrs are validated when rules are authorized; keep them, sorted last
+            return Long.MAX_VALUE;
+        }
+
+        static Cidrs of(Collection<String> cidrs) {
+            String[] strings = cidrs.toArray(new String[cidrs.size()]);
+            long[] keys = new long[strings.length];
+            for (int i = 0; i < strings.length; i++) {
+                keys[i] = pack(strings[i]);
+            }
+            Integer[] order = new Integer[strings.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            final long[] k = keys;
+            final String[] s = strings;
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    if (k[a] != k[b]) {
+                        return k[a] < k[b] ? -1 : 1;
+                    }
+                    return s[a].compareTo(s[b]);
+                }
+            });
+            long[] packed = new long[strings.length];
+            String[] sorted = new String[strings.length];
+            int n = 0;
+            for (Integer i : order) {
+                if (n > 0 && packed[n - 1] == keys[i] && sorted[n - 1].equals(strings[i])) {
+                    continue;
+                }
+                packed[n] = keys[i];
+                sorted[n] = strings[i];
+                n++;
+            }
+            return new Cidrs(Arrays.copyOf(packed, n), Arrays.copyOf(sorted, n));
+        }
+
+        int size() {
+            return packed.length;
+        }
+
+        Cidrs union(Cidrs other) {
+            if (other.size() == 0) {
+                return this;
+            } else if (size() == 0) {
+                return other;
+            }
+            long[] packed = new long[this.packed.length + other.packed.length];
+            String[] strings = new String[packed.length];
+            int i = 0, j = 0, n = 0;
+            while (i < this.packed.length || j < other.packed.length) {
+                int cmp;
+                if (i == this.packed.length) {
+                    cmp = 1;
+                } else if (j == other.packed.length) {
+                    cmp = -1;
+                } else if (this.packed[i] != other.packed[j]) {
+                    cmp = this.packed[i] < other.packed[j] ? -1 : 1;
+                } else {
+                    cmp = this.strings[i].compareTo(other.strings[j]);
+                }
+                if (cmp <= 0) {
+                    packed[n] = this.packed[i];
+                    strings[n++] = this.strings[i++];
+                    if (cmp == 0) {
+                        j++;
+                    }
+                } else {
+                    packed[n] = other.packed[j];
+                    strings[n++] = other.strings[j++];
+                }
+            }
+            if (n == packed.length) {
+                return new Cidrs(packed, strings);
+            }
+            return new Cidrs(Arrays.copyOf(packed, n), Arrays.copyOf(strings, n));
+        }
+
+        Set<String> asSet() {
+            return new AbstractSet<String>() {
+                @Override
+                public Iterator<String> iterator() {
+                    return new Iterator<String>() {
+                        int _next = 0;
+
+                        @Override
+                        public boolean hasNext() {
+                            return _next < strings.length;
+                        }
+
+                        @Override
+                        public String next() {
+                            if (_next >= strings.length) {
+                                throw new NoSuchElementException();
+                            }
+                            return strings[_next++];
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return strings.length;
+                }
+            };
+        }
+    }
+
+    static class Rule {
+        final PortAndProto portAndProto;
+        final Long allowedGroupId;
+        final Cidrs allowedCidrs;
+
+        Rule(PortAndProto portAndProto, Long allowedGroupId, Cidrs allowedCidrs) {
+            this.portAndProto = portAndProto;
+            this.allowedGroupId = allowedGroupId;
+            this.allowedCidrs = allowedCidrs;
+        }
+    }
+
+    static class GroupEntry {
+        final long version;
+        final Rule[] rules;
+        final Cidrs members;
+
+        GroupEntry(long version, Rule[] rules, Cidrs members) {
+            this.version = version;
+            this.rules = rules;
+            this.members = members;
+        }
+    }
+
+    private final Map<Long, GroupEntry> _groups = new ConcurrentHashMap<Long, GroupEntry>();
+    private final IngressRuleDao _ingressRuleDao;
+    private final SecurityGroupVMMapDao _securityGroupVMMapDao;
+    private final SecurityGroupVersionDao _versionDao;
+    private final AtomicLong _reloads = new AtomicLong();
+
+    public SecurityGroupRulesetModel(IngressRuleDao ingressRuleDao, SecurityGroupVMMapDao securityGroupVMMapDao, SecurityGroupVersionDao versionDao) {
+        _ingressRuleDao = ingressRuleDao;
+        _securityGroupVMMapDao = securityGroupVMMapDao;
+        _versionDao = versionDao;
+    }
+
+    /**
+     * Brings the given groups, and the groups their rules allow, up to date with the database.
+     */
+    public void refresh(Collection<Long> groupIds) {
+        Set<Long> checked = new HashSet<Long>(groupIds);
+        refreshGroups(checked);
+        Set<Long> allowedGroups = new HashSet<Long>();
+        for (Long groupId : checked) {
+            GroupEntry entry = _groups.get(groupId);
+            for (Rule rule : entry.rules) {
+                if (rule.allowedGroupId != null && !checked.contains(rule.allowedGroupId)) {
+                    allowedGroups.add(rule.allowedGroupId);
+                }
+            }
+        }
+        refreshGroups(allowedGroups);
+    }
+
+    private void refreshGroups(Set<Long> groupIds) {
+        if (groupIds.isEmpty()) {
+            return;
+        }
+        Map<Long, Long> versions = _versionDao.getVersions(groupIds);
+        for (Long groupId : groupIds) {
+            Long version = versions.get(groupId);
+            if (version == null) {
+                version = 0L;
+            }
+            GroupEntry entry = _groups.get(groupId);
+            if (entry == null || entry.version != version) {
+                List<IngressRuleVO> rules = _ingressRuleDao.listBySecurityGroupId(groupId);
+                List<SecurityGroupVMMapVO> members = _securityGroupVMMapDao.listBySecurityGroup(groupId, State.Running);
+                List<String> memberCidrs = new ArrayList<String>(members.size());
+                for (SecurityGroupVMMapVO member : members) {
+                    memberCidrs.add(member.getGuestIpAddress() + "/32");
+                }
+                setGroup(groupId, version, rules, memberCidrs);
+                _reloads.incrementAndGet();
+                if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("Reloaded security group " + groupId + " at version " + version + ": " + rules.size() + " rules, " + members.size() + " running members");
+                }
+            }
+        }
+    }
+
+    void setGroup(long groupId, long version, List<IngressRuleVO> rules, Collection<String> memberCidrs) {
+        Rule[] modelRules = new Rule[rules.size()];
+        int i = 0;
+        for (IngressRuleVO rule : rules) {
+            PortAndProto portAndProto = new PortAndProto(rule.getProtocol(), rule.getStartPort(), rule.getEndPort());
+            if (rule.getAllowedNetworkId() != null) {
+                modelRules[i++] = new Rule(portAndProto, rule.getAllowedNetworkId(), null);
+            } else if (rule.getAllowedSourceIpCidr() != null) {
+                modelRules[i++] = new Rule(portAndProto, null, Cidrs.of(Arrays.asList(rule.getAllowedSourceIpCidr())));
+            }
+        }
+        _groups.put(groupId, new GroupEntry(version, Arrays.copyOf(modelRules, i), Cidrs.of(memberCidrs)));
+    }
+
+    /**
+     * Generates the ruleset of a vm that belongs to the given groups; refresh() must have been called
+     * for these groups beforehand.
+     */
+    public Map<PortAndProto, Set<String>> generateRules(Collection<Long> groupIds) {
+        Map<PortAndProto, Cidrs> allowed = new TreeMap<PortAndProto, Cidrs>();
+        for (Long groupId : groupIds) {
+            GroupEntry entry = _groups.get(groupId);
+            if (entry == null) {
+                s_logger.warn("Security group " + groupId + " is not in the ruleset model");
+                continue;
+            }
+            for (Rule rule : entry.rules) {
+                Cidrs cidrs = rule.allowedCidrs;
+                if (rule.allowedGroupId != null) {
+                    GroupEntry allowedGroup = _groups.get(rule.allowedGroupId);
+                    cidrs = allowedGroup == null ? Cidrs.EMPTY : allowedGroup.members;
+                }
+                if (cidrs.size() > 0) {
+                    Cidrs existing = allowed.get(rule.portAndProto);
+                    allowed.put(rule.portAndProto, existing == null ? cidrs : existing.union(cidrs));
+                }
+            }
+        }
+        Map<PortAndProto, Set<String>> result = new TreeMap<PortAndProto, Set<String>>();
+        for (Map.Entry<PortAndProto, Cidrs> entry : allowed.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().asSet());
+        }
+        return result;
+    }
+
+    public int getGroupCount() {
+        return _groups.size();
+    }
+
+    public long getReloadCount() {
+        return _reloads.get();
+    }
+}
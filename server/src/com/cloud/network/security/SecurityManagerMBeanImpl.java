@@ -6,6 +6,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.StandardMBean;
 
@@ -21,6 +22,15 @@ public class SecurityManagerMBeanImpl extends StandardMBean implements SecurityG
     //keep track of last scheduled, last update sent and last seqno sent per vm. Make it available over JMX
     Map<Long, Date> _scheduleTimestamps = new ConcurrentHashMap<Long, Date>(4000, 100, 64);
     Map<Long, Date> _updateTimestamps = new ConcurrentHashMap<Long, Date>(4000, 100, 64);
+    //dispatcher throughput; rules sent are also kept in one-second buckets for the rolling rate
+    static final int RATE_WINDOW_SECONDS = 60;
+    AtomicLong _batchesProcessed = new AtomicLong();
+    AtomicLong _coalescedUpdates = new AtomicLong();
+    AtomicLong _updatesSent = new AtomicLong();
+    AtomicLong _rulesSent = new AtomicLong();
+    volatile int _lastBatchSize = 0;
+    final long[] _rateBucketSecond = new long[RATE_WINDOW_SECONDS];
+    final long[] _rateBucketRules = new long[RATE_WINDOW_SECONDS];
     
     
     protected SecurityManagerMBeanImpl(SecurityGroupManagerImpl2 securityGroupManager) {
@@ -44,6 +54,39 @@ public class SecurityManagerMBeanImpl extends StandardMBean implements SecurityG
        
     }
     
+    public void logBatchDetails(int batchSize, int coalesced) {
+        _batchesProcessed.incrementAndGet();
+        _coalescedUpdates.addAndGet(coalesced);
+        _lastBatchSize = batchSize;
+    }
+    
+    public void logRulesSent(int updates, int rules) {
+        _updatesSent.addAndGet(updates);
+        _rulesSent.addAndGet(rules);
+        addToRate(System.currentTimeMillis(), rules);
+    }
+    
+    synchronized void addToRate(long nowMs, long rules) {
+        long second = nowMs / 1000;
+        int bucket = (int)(second % RATE_WINDOW_SECONDS);
+        if (_rateBucketSecond[bucket] != second) {
+            _rateBucketSecond[bucket] = second;
+            _rateBucketRules[bucket] = 0;
+        }
+        _rateBucketRules[bucket] += rules;
+    }
+    
+    synchronized double getRate(long nowMs) {
+        long second = nowMs / 1000;
+        long total = 0;
+        for (int i = 0; i < RATE_WINDOW_SECONDS; i++) {
+            if (second - _rateBucketSecond[i] < RATE_WINDOW_SECONDS) {
+                total += _rateBucketRules[i];
+            }
+        }
+        return (double)total / RATE_WINDOW_SECONDS;
+    }
+    
     @Override
     public void logScheduledDetails(Set<Long> vmIds) {
         if (_monitoringEnabled) {
@@ -79,6 +122,48 @@ public class SecurityManagerMBeanImpl extends StandardMBean implements SecurityG
         return _sgMgr.getWorkQueue().getVmsInQueue();
     }
 
+    @Override
+    public long getBatchesProcessed() {
+        return _batchesProcessed.get();
+    }
+
+    @Override
+    public int getLastBatchSize() {
+        return _lastBatchSize;
+    }
+
+    @Override
+    public long getCoalescedUpdates() {
+        return _coalescedUpdates.get();
+    }
+
+    @Override
+    public long getRulesetUpdatesSent() {
+        return _updatesSent.get();
+    }
+
+    @Override
+    public long getRulesSent() {
+        return _rulesSent.get();
+    }
+
+    @Override
+    public double getRulesPerSecond() {
+        return getRate(System.currentTimeMillis());
+    }
+
+    @Override
+    public int getRulesetModelGroupCount() {
+        SecurityGroupRulesetModel model = _sgMgr.getRulesetModel();
+        return model == null ? 0 : model.getGroupCount();
+    }
+
+    @Override
+    public long getRulesetModelReloads() {
+        SecurityGroupRulesetModel model = _sgMgr.getRulesetModel();
+        return model == null ? 0 : model.getReloadCount();
+    }
+
 
 
 
@@ -19,6 +19,7 @@
 package com.cloud.network.security.dao;
 
 import java.util.List;
+import java.util.Set;
 
 import com.cloud.network.security.SecurityGroupVMMapVO;
 import com.cloud.utils.db.GenericDao;
@@ -27,6 +28,7 @@ import com.cloud.vm.VirtualMachine.State;
 public interface SecurityGroupVMMapDao extends GenericDao<SecurityGroupVMMapVO, Long> {
     List<SecurityGroupVMMapVO> listByIpAndInstanceId(String ipAddress, long instanceId);
     List<SecurityGroupVMMapVO> listByInstanceId(long instanceId);
+    List<SecurityGroupVMMapVO> listByInstanceIds(Set<Long> instanceIds);
     List<SecurityGroupVMMapVO> listByIp(String ipAddress);
     List<SecurityGroupVMMapVO> listBySecurityGroup(long securityGroupId);
     List<SecurityGroupVMMapVO> listBySecurityGroup(long securityGroupId, State ... vmStates);
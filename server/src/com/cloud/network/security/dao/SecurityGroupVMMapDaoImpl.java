@@ -19,6 +19,7 @@
 package com.cloud.network.security.dao;
 
 import java.util.List;
+import java.util.Set;
 
 import javax.ejb.Local;
 
@@ -33,6 +34,7 @@ import com.cloud.vm.VirtualMachine.State;
 public class SecurityGroupVMMapDaoImpl extends GenericDaoBase<SecurityGroupVMMapVO, Long> implements SecurityGroupVMMapDao {
     private SearchBuilder<SecurityGroupVMMapVO> ListByIpAndVmId;
     private SearchBuilder<SecurityGroupVMMapVO> ListByVmId;
+    private SearchBuilder<SecurityGroupVMMapVO> ListByVmIds;
     private SearchBuilder<SecurityGroupVMMapVO> ListByVmIdGroupId;
 
     private GenericSearchBuilder<SecurityGroupVMMapVO, Long> ListVmIdBySecurityGroup;
@@ -64,6 +66,10 @@ public class SecurityGroupVMMapDaoImpl extends GenericDaoBase<SecurityGroupVMMap
         ListByVmId.and("instanceId", ListByVmId.entity().getInstanceId(), SearchCriteria.Op.EQ);
         ListByVmId.done();
         
+        ListByVmIds  = createSearchBuilder();
+        ListByVmIds.and("instanceIds", ListByVmIds.entity().getInstanceId(), SearchCriteria.Op.IN);
+        ListByVmIds.done();
+        
         ListBySecurityGroupAndStates = createSearchBuilder();
         ListBySecurityGroupAndStates.and("securityGroupId", ListBySecurityGroupAndStates.entity().getSecurityGroupId(), SearchCriteria.Op.EQ);
         ListBySecurityGroupAndStates.and("states", ListBySecurityGroupAndStates.entity().getVmState(), SearchCriteria.Op.IN);
@@ -103,6 +109,13 @@ public class SecurityGroupVMMapDaoImpl extends GenericDaoBase<SecurityGroupVMMap
         sc.setParameters("instanceId", vmId);
         return listBy(sc);
     }
+
+    @Override
+    public List<SecurityGroupVMMapVO> listByInstanceIds(Set<Long> vmIds) {
+        SearchCriteria<SecurityGroupVMMapVO> sc = ListByVmIds.create();
+        sc.setParameters("instanceIds", vmIds.toArray());
+        return listBy(sc);
+    }
 
     @Override
     public int deleteVM(long instanceId) {
@@ -0,0 +1,37 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.cloud.network.security.dao;
+
+import java.util.Map;
+import java.util.Set;
+
+import com.cloud.network.security.SecurityGroupVersionVO;
+import com.cloud.utils.db.GenericDao;
+
+public interface SecurityGroupVersionDao extends GenericDao<SecurityGroupVersionVO, Long> {
+    /**
+     * Increments the version of each group, creating the entries that do not exist yet.
+     */
+    int bumpVersions(Set<Long> securityGroupIds);
+
+    /**
+     * @return version per group; groups whose version was never bumped are absent.
+     */
+    Map<Long, Long> getVersions(Set<Long> securityGroupIds);
+}
@@ -0,0 +1,87 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package com.cloud.network.security.dao;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.ejb.Local;
+
+import com.cloud.network.security.SecurityGroupVersionVO;
+import com.cloud.utils.db.GenericDaoBase;
+import com.cloud.utils.db.SearchBuilder;
+import com.cloud.utils.db.SearchCriteria;
+import com.cloud.utils.db.Transaction;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+@Local(value={SecurityGroupVersionDao.class})
+public class SecurityGroupVersionDaoImpl extends GenericDaoBase<SecurityGroupVersionVO, Long> implements SecurityGroupVersionDao {
+    private static final String INSERT_OR_UPDATE = "INSERT INTO op_security_group_version (security_group_id, version) VALUES ";
+    private final SearchBuilder<SecurityGroupVersionVO> GroupIdsSearch;
+
+    protected SecurityGroupVersionDaoImpl() {
+        GroupIdsSearch = createSearchBuilder();
+        GroupIdsSearch.and("groupIds", GroupIdsSearch.entity().getSecurityGroupId(), SearchCriteria.Op.IN);
+        GroupIdsSearch.done();
+    }
+
+    @Override
+    public int bumpVersions(Set<Long> securityGroupIds) {
+        if (securityGroupIds.isEmpty()) {
+            return 0;
+        }
+        //always in id order so that concurrent bumps do not deadlock
+        Set<Long> groupIds = new TreeSet<Long>(securityGroupIds);
+        StringBuilder sql = new StringBuilder(INSERT_OR_UPDATE);
+        for (int i = 0; i < groupIds.size(); i++) {
+            sql.append(i == 0 ? "(?, 1)" : ", (?, 1)");
+        }
+        sql.append(" ON DUPLICATE KEY UPDATE version=version+1");
+
+        Transaction txn = Transaction.currentTxn();
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(sql.toString());
+            int index = 1;
+            for (Long groupId : groupIds) {
+                pstmt.setLong(index++, groupId);
+            }
+            return pstmt.executeUpdate();
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Unable to update security group versions", e);
+        }
+    }
+
+    @Override
+    public Map<Long, Long> getVersions(Set<Long> securityGroupIds) {
+        Map<Long, Long> versions = new HashMap<Long, Long>();
+        if (securityGroupIds.isEmpty()) {
+            return versions;
+        }
+        SearchCriteria<SecurityGroupVersionVO> sc = GroupIdsSearch.create();
+        sc.setParameters("groupIds", securityGroupIds.toArray());
+        for (SecurityGroupVersionVO vo : listIncludingRemovedBy(sc)) {
+            versions.put(vo.getSecurityGroupId(), vo.getVersion());
+        }
+        return versions;
+    }
+}
@@ -18,6 +18,7 @@
 
 package com.cloud.network.security.dao;
 
+import java.util.List;
 import java.util.Set;
 
 import com.cloud.network.security.VmRulesetLogVO;
@@ -26,6 +27,8 @@ import com.cloud.utils.db.GenericDao;
 public interface VmRulesetLogDao extends GenericDao<VmRulesetLogVO, Long> {
     VmRulesetLogVO findByVmId(long vmId);
 
+    List<VmRulesetLogVO> listByVmIds(Set<Long> vmIds);
+
     int createOrUpdate(Set<Long> workItems);
     
 }
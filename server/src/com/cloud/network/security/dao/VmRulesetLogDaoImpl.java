@@ -41,6 +41,7 @@ import com.cloud.utils.db.Transaction;
 public class VmRulesetLogDaoImpl extends GenericDaoBase<VmRulesetLogVO, Long> implements VmRulesetLogDao {
     protected static Logger s_logger = Logger.getLogger(VmRulesetLogDaoImpl.class);
     private SearchBuilder<VmRulesetLogVO> VmIdSearch;
+    private SearchBuilder<VmRulesetLogVO> VmIdsSearch;
     private String INSERT_OR_UPDATE = "INSERT INTO op_vm_ruleset_log (instance_id, created, logsequence) " +
     		" VALUES(?, now(), 1) ON DUPLICATE KEY UPDATE logsequence=logsequence+1";
     private static HashMap<Integer, String> cachedPrepStmtStrings = new  HashMap<Integer, String>();
@@ -69,6 +70,10 @@ public class VmRulesetLogDaoImpl extends GenericDaoBase<VmRulesetLogVO, Long> im
         VmIdSearch.and("vmId", VmIdSearch.entity().getInstanceId(), SearchCriteria.Op.EQ);
 
         VmIdSearch.done();    
+
+        VmIdsSearch = createSearchBuilder();
+        VmIdsSearch.and("vmIds", VmIdsSearch.entity().getInstanceId(), SearchCriteria.Op.IN);
+        VmIdsSearch.done();
 
     }
 
@@ -79,6 +84,13 @@ public class VmRulesetLogDaoImpl extends GenericDaoBase<VmRulesetLogVO, Long> im
         return findOneIncludingRemovedBy(sc);
     }
 
+    @Override
+    public List<VmRulesetLogVO> listByVmIds(Set<Long> vmIds) {
+        SearchCriteria<VmRulesetLogVO> sc = VmIdsSearch.create();
+        sc.setParameters("vmIds", vmIds.toArray());
+        return listIncludingRemovedBy(sc);
+    }
+
     @Override
     public int createOrUpdate(Set<Long> workItems) {
         //return createOrUpdateUsingBatch(workItems);
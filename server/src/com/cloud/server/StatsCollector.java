@@ -23,7 +23,6 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -36,8 +35,13 @@ import com.cloud.agent.AgentManager;
 import com.cloud.agent.AgentManager.OnError;
 import com.cloud.agent.api.Answer;
 import com.cloud.agent.api.GetFileStatsCommand;
+import com.cloud.agent.api.GetHostStatsAnswer;
+import com.cloud.agent.api.GetHostStatsCommand;
 import com.cloud.agent.api.GetStorageStatsCommand;
+import com.cloud.agent.api.GetVmStatsAnswer;
+import com.cloud.agent.api.GetVmStatsCommand;
 import com.cloud.agent.api.HostStatsEntry;
+import com.cloud.agent.api.UnsupportedAnswer;
 import com.cloud.agent.api.VmStatsEntry;
 import com.cloud.agent.manager.Commands;
 import com.cloud.exception.AgentUnavailableException;
@@ -100,6 +104,14 @@ public class StatsCollector {
 	long hostAndVmStatsInterval = -1L;
 	long storageStatsInterval = -1L;
 	long volumeStatsInterval = -1L;
+
+	boolean _fanOut = false;
+	long _fanOutDeadline = 30000L;
+
+	private volatile long _hostStatsCycleDuration = -1;
+	private volatile long _vmStatsCycleDuration = -1;
+	private volatile StatsFanOut _hostStatsFanOut = null;
+	private volatile StatsFanOut _vmStatsFanOut = null;
 
 	//private final GlobalLock m_capacityCheckLock = GlobalLock.getInternLock("capacity.check");
 
@@ -132,6 +144,8 @@ public class StatsCollector {
 		 hostAndVmStatsInterval = NumbersUtil.parseLong(configs.get("vm.stats.interval"), 60000L);
 		 storageStatsInterval = NumbersUtil.parseLong(configs.get("storage.stats.interval"), 60000L);
 		 volumeStatsInterval = NumbersUtil.parseLong(configs.get("volume.stats.interval"), -1L);
+		 _fanOut = Boolean.parseBoolean(configs.get("stats.fanout.enabled"));
+		 _fanOutDeadline = NumbersUtil.parseLong(configs.get("stats.fanout.deadline"), 30000L);
 
 		 if (hostStatsInterval > 0) {
 		     _executor.scheduleWithFixedDelay(new HostCollector(), 15000L, hostStatsInterval, TimeUnit.MILLISECONDS);
@@ -172,6 +186,12 @@ public class StatsCollector {
 		        sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.ExternalLoadBalancer.toString());
 				ConcurrentHashMap<Long, HostStats> hostStats = new ConcurrentHashMap<Long, HostStats>();
 				List<HostVO> hosts = _hostDao.search(sc, null);
+				if (_fanOut) {
+					_hostStats = collectHostStatsFanOut(hosts);
+					return;
+				}
+
+				long start = System.currentTimeMillis();
 				for (HostVO host : hosts)
 				{
 				    HostStatsEntry stats = (HostStatsEntry) _resourceMgr.getHostStatistics(host.getId());
@@ -184,6 +204,7 @@ public class StatsCollector {
 				        s_logger.warn("Received invalid host stats for host: " + host.getId());
 				    }
 				}
+				_hostStatsCycleDuration = System.currentTimeMillis() - start;
 				_hostStats = hostStats;
 			}
 			catch (Throwable t)
@@ -210,6 +231,12 @@ public class StatsCollector {
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.SecondaryStorageVM.toString());
 				List<HostVO> hosts = _hostDao.search(sc, null);
 				
+				if (_fanOut) {
+					collectVmStatsFanOut(hosts);
+					return;
+				}
+
+				long start = System.currentTimeMillis();
 				for (HostVO host : hosts) {
 					List<UserVmVO> vms = _userVmDao.listRunningByHostId(host.getId());
 					List<Long> vmIds = new ArrayList<Long>();
@@ -224,30 +251,7 @@ public class StatsCollector {
 							
 							if(vmStatsById != null)
 							{
-								VmStatsEntry statsInMemory = null;
-								
-								Set<Long> vmIdSet = vmStatsById.keySet();
-								for(Long vmId : vmIdSet)
-								{
-									VmStatsEntry statsForCurrentIteration = vmStatsById.get(vmId);
-									statsInMemory = (VmStatsEntry) _VmStats.get(vmId);
-									
-									if(statsInMemory == null)
-									{
-										//no stats exist for this vm, directly persist
-										_VmStats.put(vmId, statsForCurrentIteration);
-									}
-									else
-									{
-										//update each field
-										statsInMemory.setCPUUtilization(statsForCurrentIteration.getCPUUtilization());
-										statsInMemory.setNumCPUs(statsForCurrentIteration.getNumCPUs());
-										statsInMemory.setNetworkReadKBs(statsInMemory.getNetworkReadKBs() + statsForCurrentIteration.getNetworkReadKBs());
-										statsInMemory.setNetworkWriteKBs(statsInMemory.getNetworkWriteKBs() + statsForCurrentIteration.getNetworkWriteKBs());
-										
-										_VmStats.put(vmId, statsInMemory);
-									}
-								}
+								mergeVmStats(vmStatsById);
 							}
 							
 					} catch (Exception e) {
@@ -255,6 +259,7 @@ public class StatsCollector {
 						continue;
 					}
 				}
+				_vmStatsCycleDuration = System.currentTimeMillis() - start;
 				
 			} catch (Throwable t) {
 				s_logger.error("Error trying to retrieve VM stats", t);
@@ -265,6 +270,134 @@ public class StatsCollector {
 	public VmStats getVmStats(long id) {
 		return _VmStats.get(id);
 	}
+
+	private synchronized void mergeVmStats(Map<Long, VmStatsEntry> vmStatsById) {
+		for (Map.Entry<Long, VmStatsEntry> entry : vmStatsById.entrySet()) {
+			Long vmId = entry.getKey();
+			VmStatsEntry statsForCurrentIteration = entry.getValue();
+			VmStatsEntry statsInMemory = (VmStatsEntry) _VmStats.get(vmId);
+
+			if (statsInMemory == null) {
+				//no stats exist for this vm, directly persist
+				_VmStats.put(vmId, statsForCurrentIteration);
+			} else {
+				//update each field
+				statsInMemory.setCPUUtilization(statsForCurrentIteration.getCPUUtilization());
+				statsInMemory.setNumCPUs(statsForCurrentIteration.getNumCPUs());
+				statsInMemory.setNetworkReadKBs(statsInMemory.getNetworkReadKBs() + statsForCurrentIteration.getNetworkReadKBs());
+				statsInMemory.setNetworkWriteKBs(statsInMemory.getNetworkWriteKBs() + statsForCurrentIteration.getNetworkWriteKBs());
+
+				_VmStats.put(vmId, statsInMemory);
+			}
+		}
+	}
+
+	private long getFanOutDeadline(long interval) {
+		return Math.min(_fanOutDeadline, interval);
+	}
+
+	private ConcurrentHashMap<Long, HostStats> collectHostStatsFanOut(List<HostVO> hosts) {
+		final ConcurrentHashMap<Long, HostStats> hostStats = new ConcurrentHashMap<Long, HostStats>();
+		Map<Long, GetHostStatsCommand> cmds = new HashMap<Long, GetHostStatsCommand>();
+		for (HostVO host : hosts) {
+			cmds.put(host.getId(), new GetHostStatsCommand(host.getGuid(), host.getName(), host.getId()));
+		}
+
+		StatsFanOut fanOut = new StatsFanOut(_agentMgr, "HostStatsCollector", getFanOutDeadline(hostStatsInterval)) {
+			@Override
+			protected void processAnswer(long hostId, Answer answer) {
+				if (answer instanceof UnsupportedAnswer) {
+					return;
+				}
+				if (!answer.getResult() || !(answer instanceof GetHostStatsAnswer)) {
+					s_logger.warn("Received invalid host stats for host: " + hostId);
+					return;
+				}
+				hostStats.put(hostId, ((GetHostStatsAnswer) answer).getHostStats());
+			}
+		};
+		fanOut.dispatch(cmds);
+		_hostStatsFanOut = fanOut;
+		_hostStatsCycleDuration = fanOut.getDuration();
+		return hostStats;
+	}
+
+	private void collectVmStatsFanOut(List<HostVO> hosts) {
+		final Map<Long, Map<String, Long>> vmIdsByHost = new HashMap<Long, Map<String, Long>>();
+		Map<Long, GetVmStatsCommand> cmds = new HashMap<Long, GetVmStatsCommand>();
+		for (HostVO host : hosts) {
+			List<UserVmVO> vms = _userVmDao.listRunningByHostId(host.getId());
+			if (vms.isEmpty()) {
+				continue;
+			}
+
+			Map<String, Long> vmIds = new HashMap<String, Long>();
+			for (UserVmVO vm : vms) {
+				vmIds.put(vm.getInstanceName(), vm.getId());
+			}
+			vmIdsByHost.put(host.getId(), vmIds);
+			cmds.put(host.getId(), new GetVmStatsCommand(new ArrayList<String>(vmIds.keySet()), host.getGuid(), host.getName()));
+		}
+
+		StatsFanOut fanOut = new StatsFanOut(_agentMgr, "VmStatsCollector", getFanOutDeadline(hostAndVmStatsInterval)) {
+			@Override
+			protected void processAnswer(long hostId, Answer answer) {
+				HashMap<String, VmStatsEntry> vmStatsByName = null;
+				if (answer.getResult() && answer instanceof GetVmStatsAnswer) {
+					vmStatsByName = ((GetVmStatsAnswer) answer).getVmStatsMap();
+				}
+				if (vmStatsByName == null) {
+					s_logger.debug("Failed to get VM stats for host with ID: " + hostId);
+					return;
+				}
+
+				Map<String, Long> vmIds = vmIdsByHost.get(hostId);
+				HashMap<Long, VmStatsEntry> vmStatsById = new HashMap<Long, VmStatsEntry>();
+				for (Map.Entry<String, VmStatsEntry> entry : vmStatsByName.entrySet()) {
+					Long vmId = vmIds.get(entry.getKey());
+					if (vmId != null) {
+						vmStatsById.put(vmId, entry.getValue());
+					}
+				}
+				mergeVmStats(vmStatsById);
+			}
+		};
+		fanOut.dispatch(cmds);
+		_vmStatsFanOut = fanOut;
+		_vmStatsCycleDuration = fanOut.getDuration();
+	}
+
+	/**
+	 * @return milliseconds the last host stats cycle took, or -1 if none has run yet.
+	 */
+	public long getHostStatsCycleDuration() {
+		return _hostStatsCycleDuration;
+	}
+
+	/**
+	 * @return milliseconds the last vm stats cycle took, or -1 if none has run yet.
+	 */
+	public long getVmStatsCycleDuration() {
+		return _vmStatsCycleDuration;
+	}
+
+	/**
+	 * @return per host round trip of the last host stats cycle, keyed by host id.
+	 *         Only filled in when stats.fanout.enabled is true.
+	 */
+	public Map<Long, Long> getHostStatsLatencies() {
+		StatsFanOut fanOut = _hostStatsFanOut;
+		return fanOut == null ? new HashMap<Long, Long>() : fanOut.getLatencies();
+	}
+
+	/**
+	 * @return per host round trip of the last vm stats cycle, keyed by host id.
+	 *         Only filled in when stats.fanout.enabled is true.
+	 */
+	public Map<Long, Long> getVmStatsLatencies() {
+		StatsFanOut fanOut = _vmStatsFanOut;
+		return fanOut == null ? new HashMap<Long, Long>() : fanOut.getLatencies();
+	}
 
 	class StorageCollector implements Runnable {
 		@Override
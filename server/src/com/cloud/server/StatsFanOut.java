@@ -0,0 +1,189 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.AgentManager;
+import com.cloud.agent.Listener;
+import com.cloud.agent.api.AgentControlAnswer;
+import com.cloud.agent.api.AgentControlCommand;
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.StartupCommand;
+import com.cloud.agent.manager.Commands;
+import com.cloud.exception.AgentUnavailableException;
+import com.cloud.host.HostVO;
+import com.cloud.host.Status;
+
+/**
+ * Sends one stats command to each of a set of hosts without waiting for the
+ * previous host to answer, and hands the answers to processAnswer() as they
+ * arrive.  dispatch() returns when every host has answered, failed or timed
+ * out, or when the deadline passes, whichever comes first.  Answers that
+ * arrive after the deadline are still processed; they just no longer hold
+ * up the cycle.
+ * 
+ * One instance serves exactly one collection cycle.
+ */
+public abstract class StatsFanOut implements Listener {
+    private static final Logger s_logger = Logger.getLogger(StatsFanOut.class);
+
+    private final AgentManager _agentMgr;
+    private final String _name;
+    private final long _deadline;
+
+    private final ConcurrentHashMap<Long, Long> _sentAt = new ConcurrentHashMap<Long, Long>();
+    private final ConcurrentHashMap<Long, Long> _latencies = new ConcurrentHashMap<Long, Long>();
+    private CountDownLatch _outstanding;
+    private long _duration = -1;
+
+    /**
+     * @param agentMgr agent manager used to send the commands.
+     * @param name name used in log messages.
+     * @param deadline milliseconds dispatch() waits for answers.
+     */
+    public StatsFanOut(AgentManager agentMgr, String name, long deadline) {
+        _agentMgr = agentMgr;
+        _name = name;
+        _deadline = deadline;
+    }
+
+    /**
+     * Called once for every host that answered, possibly from an agent
+     * thread and possibly after dispatch() has returned.
+     */
+    protected abstract void processAnswer(long hostId, Answer answer);
+
+    /**
+     * Sends the commands and waits for the answers.
+     * @param cmds command to send, keyed by host id.
+     * @return number of hosts that did not answer before the deadline.
+     */
+    public int dispatch(Map<Long, ? extends Command> cmds) {
+        long start = System.currentTimeMillis();
+        _outstanding = new CountDownLatch(cmds.size());
+
+        for (Map.Entry<Long, ? extends Command> entry : cmds.entrySet()) {
+            long hostId = entry.getKey();
+            _sentAt.put(hostId, System.currentTimeMillis());
+            try {
+                _agentMgr.send(hostId, new Commands(entry.getValue()), this);
+            } catch (AgentUnavailableException e) {
+                s_logger.debug(_name + ": unable to send stats command to host " + hostId + ": " + e.getMessage());
+                done(hostId, null);
+            }
+        }
+
+        try {
+            _outstanding.await(Math.max(_deadline - (System.currentTimeMillis() - start), 0), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            s_logger.debug(_name + ": interrupted while waiting for stats answers");
+        }
+
+        _duration = System.currentTimeMillis() - start;
+        int late = (int)_outstanding.getCount();
+        if (late > 0) {
+            s_logger.info(_name + ": " + late + " of " + cmds.size() + " hosts did not answer within " + _deadline + "ms");
+        }
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug(_name + ": stats cycle for " + cmds.size() + " hosts took " + _duration + "ms");
+        }
+        return late;
+    }
+
+    /**
+     * @return milliseconds dispatch() spent sending and waiting, or -1 if it has not run.
+     */
+    public long getDuration() {
+        return _duration;
+    }
+
+    /**
+     * @return milliseconds between sending the command and hearing back, keyed by host id.
+     *         Hosts that have not answered yet are not in the map.
+     */
+    public Map<Long, Long> getLatencies() {
+        return new HashMap<Long, Long>(_latencies);
+    }
+
+    private void done(long hostId, Answer answer) {
+        Long sentAt = _sentAt.remove(hostId);
+        if (sentAt == null) {
+            return;
+        }
+        _latencies.put(hostId, System.currentTimeMillis() - sentAt);
+        if (answer != null) {
+            try {
+                processAnswer(hostId, answer);
+            } catch (Exception e) {
+                s_logger.warn(_name + ": unable to process stats answer from host " + hostId, e);
+            }
+        }
+        _outstanding.countDown();
+    }
+
+    @Override
+    public boolean processAnswers(long agentId, long seq, Answer[] answers) {
+        done(agentId, answers != null && answers.length > 0 ? answers[0] : null);
+        return true;
+    }
+
+    @Override
+    public boolean processCommands(long agentId, long seq, Command[] commands) {
+        return false;
+    }
+
+    @Override
+    public AgentControlAnswer processControlCommand(long agentId, AgentControlCommand cmd) {
+        return null;
+    }
+
+    @Override
+    public void processConnect(HostVO agent, StartupCommand cmd, boolean forRebalance) {
+    }
+
+    @Override
+    public boolean processDisconnect(long agentId, Status state) {
+        done(agentId, null);
+        return true;
+    }
+
+    @Override
+    public boolean isRecurring() {
+        return false;
+    }
+
+    @Override
+    public int getTimeout() {
+        // let the attache drop us once the cycle is over
+        return (int)Math.max((_deadline + 999) / 1000, 1);
+    }
+
+    @Override
+    public boolean processTimeout(long agentId, long seq) {
+        done(agentId, null);
+        return true;
+    }
+}
@@ -23,10 +23,10 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.List;
 import java.util.Vector;
 
+import com.cloud.dc.dao.IpRangeInserter;
 import com.cloud.utils.component.ComponentLocator;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.Transaction;
@@ -450,67 +450,23 @@ public class IPRangeConfig {
     }
     
 	public Vector<String> savePublicIPRange(Transaction txn, long startIP, long endIP, long zoneId, long vlanDbId, Long sourceNetworkId) {
-		String insertSql = "INSERT INTO `cloud`.`user_ip_address` (public_ip_address, data_center_id, vlan_db_id, mac_address, source_network_id) VALUES (?, ?, ?, (select mac_address from `cloud`.`data_center` where id=?), ?)";
-		String updateSql = "UPDATE `cloud`.`data_center` set mac_address = mac_address+1 where id=?";
-		Vector<String> problemIPs = new Vector<String>();
-		PreparedStatement stmt = null;
+		IpRangeInserter inserter = new IpRangeInserter("user_ip_address", "public_ip_address", zoneId);
+		inserter.set("data_center_id", zoneId).set("vlan_db_id", vlanDbId).set("source_network_id", sourceNetworkId).setMacAddressColumn("mac_address");
 		
-		Connection conn = null;
 		try {
-			conn = txn.getConnection();
+			return new Vector<String>(inserter.insert(txn, startIP, endIP));
 		} catch (SQLException e) {
 			return null;
 		}
-        
-        while (startIP <= endIP) {
-            try {
-    		stmt = conn.prepareStatement(insertSql);
-    		stmt.setString(1, NetUtils.long2Ip(startIP));
-    		stmt.setLong(2, zoneId);
-    		stmt.setLong(3, vlanDbId);
-    		stmt.setLong(4, zoneId);
-    		stmt.setLong(5, sourceNetworkId);
-    		stmt.executeUpdate();
-    		stmt.close();
-    		stmt = conn.prepareStatement(updateSql);
-    		stmt.setLong(1, zoneId);
-            stmt.executeUpdate();
-            stmt.close();
-            } catch (Exception ex) {
-                problemIPs.add(NetUtils.long2Ip(startIP));
-            }
-            startIP++;
-        }
-        
-        return problemIPs;
 	}
 	
 	public List<String> savePrivateIPRange(Transaction txn, long startIP, long endIP, long podId, long zoneId) {
-		String insertSql = "INSERT INTO `cloud`.`op_dc_ip_address_alloc` (ip_address, data_center_id, pod_id, mac_address) VALUES (?, ?, ?, (select mac_address from `cloud`.`data_center` where id=?))";
-        String updateSql = "UPDATE `cloud`.`data_center` set mac_address = mac_address+1 where id=?";
+		IpRangeInserter inserter = new IpRangeInserter("op_dc_ip_address_alloc", "ip_address", zoneId);
+		inserter.set("data_center_id", zoneId).set("pod_id", podId).setMacAddressColumn("mac_address");
 		Vector<String> problemIPs = new Vector<String>();
 		
         try {
-            Connection conn = null;
-            conn = txn.getConnection();
-            while (startIP <= endIP) {
-                try {
-                    PreparedStatement stmt = conn.prepareStatement(insertSql);
-            		stmt.setString(1, NetUtils.long2Ip(startIP));
-            		stmt.setLong(2, zoneId);
-            		stmt.setLong(3, podId);
-            		stmt.setLong(4, zoneId);
-            		stmt.executeUpdate();
-            		stmt.close();
-                    stmt = conn.prepareStatement(updateSql);
-                    stmt.setLong(1, zoneId);
-                    stmt.executeUpdate();
-                    stmt.close();
-                } catch (Exception e) {
-                    problemIPs.add(NetUtils.long2Ip(startIP));
-                }
-                startIP++;
-            }
+            problemIPs.addAll(inserter.insert(txn, startIP, endIP));
         } catch (Exception ex) {
             System.out.print(ex.getMessage());
             ex.printStackTrace();
@@ -520,34 +476,15 @@ public class IPRangeConfig {
 	}
 	
 	private Vector<String> saveLinkLocalPrivateIPRange(Transaction txn, long startIP, long endIP, long podId, long zoneId) {
-		String insertSql = "INSERT INTO `cloud`.`op_dc_link_local_ip_address_alloc` (ip_address, data_center_id, pod_id) VALUES (?, ?, ?)";
+		IpRangeInserter inserter = new IpRangeInserter("op_dc_link_local_ip_address_alloc", "ip_address", zoneId);
+		inserter.set("data_center_id", zoneId).set("pod_id", podId);
 		Vector<String> problemIPs = new Vector<String>();
 		
-		Connection conn = null;
-		try {
-			conn = txn.getConnection();
-		} catch (SQLException e) {
-			System.out.println("Exception: " + e.getMessage());
-			printError("Unable to start DB connection to save private IPs. Please contact Cloud Support.");
-		}
-		
         try {
-            long start = startIP;
-            PreparedStatement stmt = conn.prepareStatement(insertSql);
-            while (startIP <= endIP) {
-        		stmt.setString(1, NetUtils.long2Ip(startIP++));
-        		stmt.setLong(2, zoneId);
-        		stmt.setLong(3, podId);
-        		stmt.addBatch();
-            }
-            int[] results = stmt.executeBatch();
-            for (int i = 0; i < results.length; i += 2) {
-                if (results[i] == Statement.EXECUTE_FAILED) {
-                    problemIPs.add(NetUtils.long2Ip(start + (i / 2)));
-                }
-            }
-            stmt.close();
-	    } catch (Exception ex) {
+            problemIPs.addAll(inserter.insert(txn, startIP, endIP));
+	    } catch (SQLException ex) {
+			System.out.println("Exception: " + ex.getMessage());
+			printError("Unable to start DB connection to save private IPs. Please contact Cloud Support.");
         }
         
         return problemIPs;
@@ -78,6 +78,9 @@ public class UsageJobVO {
     private Boolean success;
 
     @Temporal(TemporalType.TIMESTAMP)
+    @Column(name="parser_stats")
+    private String parserStats;
+
     @Column(name="heartbeat")
     private Date heartbeat;
 
@@ -171,6 +174,14 @@ public class UsageJobVO {
         this.success = success;
     }
 
+    public String getParserStats() {
+        return parserStats;
+    }
+
+    public void setParserStats(String parserStats) {
+        this.parserStats = parserStats;
+    }
+
     public Date getHeartbeat() {
         return heartbeat;
     }
@@ -0,0 +1,99 @@
+/**
+ * *  Copyright (C) 2011 Citrix Systems, Inc.  All rights reserved
+*
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cloud.usage;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+/**
+ * Last usage job whose results an incremental usage parser has built its
+ * running state on.
+ */
+@Entity
+@Table(name="usage_parser_checkpoint")
+public class UsageParserCheckpointVO {
+    @Id
+    @GeneratedValue(strategy=GenerationType.IDENTITY)
+    @Column(name="id")
+    private Long id;
+
+    @Column(name="parser")
+    private String parser;
+
+    @Column(name="job_id")
+    private long jobId;
+
+    @Column(name="end_millis")
+    private long endMillis;
+
+    @Column(name="updated")
+    @Temporal(value=TemporalType.TIMESTAMP)
+    private Date updated;
+
+    public UsageParserCheckpointVO() {
+    }
+
+    public UsageParserCheckpointVO(String parser, long jobId, long endMillis) {
+        this.parser = parser;
+        this.jobId = jobId;
+        this.endMillis = endMillis;
+        this.updated = new Date();
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getParser() {
+        return parser;
+    }
+
+    public long getJobId() {
+        return jobId;
+    }
+
+    public void setJobId(long jobId) {
+        this.jobId = jobId;
+    }
+
+    public long getEndMillis() {
+        return endMillis;
+    }
+
+    public void setEndMillis(long endMillis) {
+        this.endMillis = endMillis;
+    }
+
+    public Date getUpdated() {
+        return updated;
+    }
+
+    public void setUpdated(Date updated) {
+        this.updated = updated;
+    }
+}
@@ -34,4 +34,5 @@ public interface UsageJobDao extends GenericDao<UsageJobVO, Long> {
     Date getLastHeartbeat();
     UsageJobVO isOwner(String hostname, int pid);
     void updateJobSuccess(Long jobId, long startMillis, long endMillis, long execTime, boolean success) throws UsageServerException;
+    void updateJobSuccess(Long jobId, long startMillis, long endMillis, long execTime, boolean success, String parserStats) throws UsageServerException;
 }
@@ -0,0 +1,60 @@
+/**
+ * *  Copyright (C) 2011 Citrix Systems, Inc.  All rights reserved
+*
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cloud.usage.dao;
+
+import java.util.Date;
+
+import javax.ejb.Local;
+
+import com.cloud.usage.UsageParserCheckpointVO;
+import com.cloud.utils.db.GenericDaoBase;
+import com.cloud.utils.db.SearchBuilder;
+import com.cloud.utils.db.SearchCriteria;
+
+@Local(value={UsageParserCheckpointDao.class})
+public class UsageParserCheckpointDaoImpl extends GenericDaoBase<UsageParserCheckpointVO, Long> implements UsageParserCheckpointDao {
+    private final SearchBuilder<UsageParserCheckpointVO> ParserSearch;
+
+    public UsageParserCheckpointDaoImpl() {
+        ParserSearch = createSearchBuilder();
+        ParserSearch.and("parser", ParserSearch.entity().getParser(), SearchCriteria.Op.EQ);
+        ParserSearch.done();
+    }
+
+    @Override
+    public UsageParserCheckpointVO findByParser(String parser) {
+        SearchCriteria<UsageParserCheckpointVO> sc = ParserSearch.create();
+        sc.setParameters("parser", parser);
+        return findOneBy(sc);
+    }
+
+    @Override
+    public void saveCheckpoint(String parser, long jobId, long endMillis) {
+        UsageParserCheckpointVO checkpoint = findByParser(parser);
+        if (checkpoint == null) {
+            persist(new UsageParserCheckpointVO(parser, jobId, endMillis));
+        } else {
+            checkpoint.setJobId(jobId);
+            checkpoint.setEndMillis(endMillis);
+            checkpoint.setUpdated(new Date());
+            update(checkpoint.getId(), checkpoint);
+        }
+    }
+}
@@ -29,4 +29,10 @@ public interface UsageVMInstanceDao extends GenericDao<UsageVMInstanceVO, Long>
     public void update(UsageVMInstanceVO instance);
     public void delete(UsageVMInstanceVO instance);
     public List<UsageVMInstanceVO> getUsageRecords(long userId, Date startDate, Date endDate);
+
+    /**
+     * Same as getUsageRecords, but leaves out instances that were already open (end date null) before startDate.
+     * Those are carried over from the previous run by incremental parsing.
+     */
+    public List<UsageVMInstanceVO> getChangedUsageRecords(long accountId, Date startDate, Date endDate);
 }
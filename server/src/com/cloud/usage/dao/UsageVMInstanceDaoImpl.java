@@ -48,6 +48,10 @@ public class UsageVMInstanceDaoImpl extends GenericDaoBase<UsageVMInstanceVO, Lo
                                                                   "FROM usage_vm_instance " +
                                                                   "WHERE account_id = ? AND ((end_date IS NULL) OR (start_date BETWEEN ? AND ?) OR " +
                                                                   "      (end_date BETWEEN ? AND ?) OR ((start_date <= ?) AND (end_date >= ?)))";
+    protected static final String GET_CHANGED_USAGE_RECORDS_BY_ACCOUNT = "SELECT usage_type, zone_id, account_id, vm_instance_id, vm_name, service_offering_id, template_id, hypervisor_type, start_date, end_date " +
+                                                                  "FROM usage_vm_instance " +
+                                                                  "WHERE account_id = ? AND (((end_date IS NULL) AND (start_date >= ?)) OR (start_date BETWEEN ? AND ?) OR " +
+                                                                  "      (end_date BETWEEN ? AND ?) OR ((start_date <= ?) AND (end_date >= ?)))";
 
 	public UsageVMInstanceDaoImpl() {}
 
@@ -92,19 +96,31 @@ public class UsageVMInstanceDaoImpl extends GenericDaoBase<UsageVMInstanceVO, Lo
     }
 
     public List<UsageVMInstanceVO> getUsageRecords(long accountId, Date startDate, Date endDate) {
+        return getUsageRecords(GET_USAGE_RECORDS_BY_ACCOUNT, false, accountId, startDate, endDate);
+    }
+
+    @Override
+    public List<UsageVMInstanceVO> getChangedUsageRecords(long accountId, Date startDate, Date endDate) {
+        return getUsageRecords(GET_CHANGED_USAGE_RECORDS_BY_ACCOUNT, true, accountId, startDate, endDate);
+    }
+
+    private List<UsageVMInstanceVO> getUsageRecords(String sql, boolean changedOnly, long accountId, Date startDate, Date endDate) {
         Transaction txn = Transaction.open(Transaction.USAGE_DB);
         PreparedStatement pstmt = null;
         List<UsageVMInstanceVO> usageInstances = new ArrayList<UsageVMInstanceVO>();
         try {
-            String sql = GET_USAGE_RECORDS_BY_ACCOUNT;
             pstmt = txn.prepareAutoCloseStatement(sql);
-            pstmt.setLong(1, accountId);
-            pstmt.setString(2, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), startDate));
-            pstmt.setString(3, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), endDate));
-            pstmt.setString(4, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), startDate));
-            pstmt.setString(5, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), endDate));
-            pstmt.setString(6, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), startDate));
-            pstmt.setString(7, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), endDate));
+            int i = 1;
+            pstmt.setLong(i++, accountId);
+            if (changedOnly) {
+                pstmt.setString(i++, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), startDate));
+            }
+            pstmt.setString(i++, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), startDate));
+            pstmt.setString(i++, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), endDate));
+            pstmt.setString(i++, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), startDate));
+            pstmt.setString(i++, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), endDate));
+            pstmt.setString(i++, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), startDate));
+            pstmt.setString(i++, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), endDate));
             ResultSet rs = pstmt.executeQuery();
             while (rs.next()) {
                 int r_usageType = rs.getInt(1);
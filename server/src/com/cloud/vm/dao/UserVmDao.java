@@ -20,6 +20,7 @@ package com.cloud.vm.dao;
 import java.util.Date;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Set;
 
 import com.cloud.api.response.UserVmResponse;
 import com.cloud.uservm.UserVm;
@@ -30,6 +31,8 @@ import com.cloud.vm.VirtualMachine.State;
 public interface UserVmDao extends GenericDao<UserVmVO, Long> {
     List<UserVmVO> listByAccountId(long id);
 
+    List<UserVmVO> listByIds(Set<Long> ids);
+
     List<UserVmVO> listByAccountAndPod(long accountId, long podId);
     List<UserVmVO> listByAccountAndDataCenter(long accountId, long dcId);
     List<UserVmVO> listByHostId(Long hostId);
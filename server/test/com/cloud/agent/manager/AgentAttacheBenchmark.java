@@ -0,0 +1,167 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.agent.manager;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.manager.AgentAttacheTest.SequenceCommand;
+import com.cloud.agent.manager.AgentAttacheTest.TestListener;
+import com.cloud.agent.transport.Request;
+import com.cloud.agent.transport.Response;
+import com.cloud.exception.AgentUnavailableException;
+import com.cloud.host.Status;
+
+/**
+ * Measures how many requests a single attache can send and have answered
+ * when many threads fan out commands to the same host, which is what the
+ * security group and stats pushes do.  Run it by hand with
+ * 
+ *   java com.cloud.agent.manager.AgentAttacheBenchmark [threads] [requests per thread]
+ */
+public class AgentAttacheBenchmark {
+
+    /**
+     * Answers every request from a separate thread, like the agent would.
+     */
+    static class AnsweringAttache extends AgentAttache {
+        final ConcurrentLinkedQueue<Request> _sent = new ConcurrentLinkedQueue<Request>();
+        final AtomicLong _answered = new AtomicLong();
+        volatile boolean _answer = true;
+        volatile boolean _stopped = false;
+
+        AnsweringAttache(long id) {
+            super(new AgentManagerImpl(), id, false);
+            ready();
+            Thread agent = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (!_stopped) {
+                        Request req = _sent.poll();
+                        if (req == null) {
+                            Thread.yield();
+                            continue;
+                        }
+                        if (_answer) {
+                            processAnswers(req.getSequence(), new Response(req, new Answer(req.getCommand())));
+                            _answered.incrementAndGet();
+                        }
+                    }
+                }
+            }, "Agent-" + id);
+            agent.setDaemon(true);
+            agent.start();
+        }
+
+        @Override
+        public void send(Request req) throws AgentUnavailableException {
+            _sent.add(req);
+        }
+
+        @Override
+        public void updatePassword(Command newPassword) {
+        }
+
+        @Override
+        public void disconnect(Status state) {
+        }
+
+        @Override
+        protected boolean isClosed() {
+            return false;
+        }
+    }
+
+    static long run(final AnsweringAttache attache, int threads, final int requests, final boolean inSequence, final int timeout) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < requests; i++) {
+                            Request req = new Request(attache.getId(), 1, new SequenceCommand(inSequence), true);
+                            req.setSequence(attache.getNextSequence());
+                            attache.send(req, new TestListener(timeout));
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        return System.nanoTime() - begin;
+    }
+
+    static void waitFor(AnsweringAttache attache, long answered) throws InterruptedException {
+        while (attache._answered.get() < answered) {
+            Thread.sleep(1);
+        }
+    }
+
+    static void report(String name, long count, long nanos) {
+        System.out.println(String.format("%-40s %10d requests %8d ms %12d req/s", name, count, nanos / 1000000, count * 1000000000L / Math.max(nanos, 1)));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        long total = (long)threads * requests;
+
+        // warm up
+        AnsweringAttache warmup = new AnsweringAttache(1);
+        run(warmup, threads, requests / 10, false, 60);
+        warmup._stopped = true;
+
+        AnsweringAttache attache = new AnsweringAttache(2);
+        long begin = System.nanoTime();
+        run(attache, threads, requests, false, 60);
+        waitFor(attache, total);
+        report("send/answer", total, System.nanoTime() - begin);
+        attache._stopped = true;
+
+        attache = new AnsweringAttache(3);
+        begin = System.nanoTime();
+        run(attache, threads, requests / 10, true, 60);
+        waitFor(attache, total / 10);
+        report("send/answer in sequence", total / 10, System.nanoTime() - begin);
+        attache._stopped = true;
+
+        attache = new AnsweringAttache(4);
+        attache._answer = false;
+        long nanos = run(attache, threads, requests, false, 1);
+        report("send with timeout", total, nanos);
+        begin = System.nanoTime();
+        while (!attache._waitForList.isEmpty()) {
+            Thread.sleep(10);
+        }
+        report("timeouts fired (after 1s)", total, System.nanoTime() - begin);
+        attache._stopped = true;
+    }
+}
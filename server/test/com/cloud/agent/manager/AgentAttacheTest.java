@@ -0,0 +1,226 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.agent.manager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Assert;
+
+import com.cloud.agent.Listener;
+import com.cloud.agent.api.AgentControlAnswer;
+import com.cloud.agent.api.AgentControlCommand;
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.StartupCommand;
+import com.cloud.agent.transport.Request;
+import com.cloud.agent.transport.Response;
+import com.cloud.exception.AgentUnavailableException;
+import com.cloud.host.HostVO;
+import com.cloud.host.Status;
+
+public class AgentAttacheTest extends TestCase {
+
+    public void testInSequence() throws Exception {
+        TestAttache attache = new TestAttache(1);
+
+        Request req1 = attache.request(true);
+        Request req2 = attache.request(true);
+        Request req3 = attache.request(false);
+        Request req4 = attache.request(true);
+
+        // Queue them out of order; in sequence requests go out by sequence.
+        attache.send(req2, new TestListener(-1));
+        attache.send(req1, new TestListener(-1));
+        attache.send(req4, new TestListener(-1));
+        attache.send(req3, new TestListener(-1));
+
+        Assert.assertEquals(2, attache.sent.size());
+        Assert.assertEquals(req2.getSequence(), attache.sent.get(0).longValue());
+        Assert.assertEquals(req3.getSequence(), attache.sent.get(1).longValue());
+        Assert.assertEquals(2, attache.getQueueSize());
+
+        attache.answer(req3);
+        Assert.assertEquals(2, attache.sent.size());
+
+        attache.answer(req2);
+        Assert.assertEquals(req1.getSequence(), attache.sent.get(2).longValue());
+        attache.answer(req1);
+        Assert.assertEquals(req4.getSequence(), attache.sent.get(3).longValue());
+        Assert.assertEquals(0, attache.getQueueSize());
+
+        // An answer that's not for the current request doesn't move the queue.
+        Request req5 = attache.request(true);
+        attache.send(req5, new TestListener(-1));
+        Assert.assertEquals(4, attache.sent.size());
+        attache.answer(req2);
+        Assert.assertEquals(4, attache.sent.size());
+        attache.answer(req4);
+        Assert.assertEquals(req5.getSequence(), attache.sent.get(4).longValue());
+    }
+
+    public void testFailedSendMovesOn() throws Exception {
+        TestAttache attache = new TestAttache(2);
+        Request req1 = attache.request(true);
+        Request req2 = attache.request(true);
+        Request req3 = attache.request(true);
+        attache.send(req1, new TestListener(-1));
+        attache.send(req2, new TestListener(-1));
+        attache.send(req3, new TestListener(-1));
+
+        attache.fail = req2.getSequence();
+        attache.answer(req1);
+        Assert.assertEquals(req3.getSequence(), attache.sent.get(attache.sent.size() - 1).longValue());
+
+        attache.fail = attache.getNextSequence() + 1;
+        Request req4 = attache.request(true);
+        attache.answer(req3);
+        try {
+            attache.send(req4, new TestListener(-1));
+            Assert.fail("Should have thrown");
+        } catch (AgentUnavailableException e) {
+        }
+        Assert.assertEquals(0, attache.getQueueSize());
+    }
+
+    public void testTimeout() throws Exception {
+        TestAttache attache = new TestAttache(3);
+        TestListener answered = new TestListener(1);
+        TestListener timedOut = new TestListener(1);
+        Request req1 = attache.request(false);
+        Request req2 = attache.request(false);
+        attache.send(req1, answered);
+        attache.send(req2, timedOut);
+        attache.answer(req1);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (timedOut.timeouts == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Thread.sleep(200);
+        Assert.assertEquals(1, timedOut.timeouts);
+        Assert.assertEquals(0, answered.timeouts);
+        Assert.assertNull(attache.getListener(req2.getSequence()));
+    }
+
+    protected static class SequenceCommand extends Command {
+        boolean inSequence;
+
+        public SequenceCommand(boolean inSequence) {
+            this.inSequence = inSequence;
+        }
+
+        @Override
+        public boolean executeInSequence() {
+            return inSequence;
+        }
+    }
+
+    protected static class TestAttache extends AgentAttache {
+        final List<Long> sent = new ArrayList<Long>();
+        long fail = -1;
+
+        public TestAttache(long id) {
+            super(new AgentManagerImpl(), id, false);
+            ready();
+        }
+
+        public Request request(boolean inSequence) {
+            Request req = new Request(_id, 1, new SequenceCommand(inSequence), true);
+            req.setSequence(getNextSequence());
+            return req;
+        }
+
+        public void answer(Request req) {
+            Command cmd = req.getCommand();
+            processAnswers(req.getSequence(), new Response(req, new Answer(cmd)));
+        }
+
+        @Override
+        public synchronized void send(Request req) throws AgentUnavailableException {
+            if (req.getSequence() == fail) {
+                throw new AgentUnavailableException("Failing on purpose", _id);
+            }
+            sent.add(req.getSequence());
+        }
+
+        @Override
+        public void updatePassword(Command newPassword) {
+        }
+
+        @Override
+        public void disconnect(Status state) {
+        }
+
+        @Override
+        protected boolean isClosed() {
+            return false;
+        }
+    }
+
+    protected static class TestListener implements Listener {
+        final int timeout;
+        volatile int timeouts;
+
+        public TestListener(int timeout) {
+            this.timeout = timeout;
+        }
+
+        @Override
+        public boolean processAnswers(long agentId, long seq, Answer[] answers) {
+            return true;
+        }
+
+        @Override
+        public boolean processCommands(long agentId, long seq, Command[] commands) {
+            return false;
+        }
+
+        @Override
+        public AgentControlAnswer processControlCommand(long agentId, AgentControlCommand cmd) {
+            return null;
+        }
+
+        @Override
+        public void processConnect(HostVO host, StartupCommand cmd, boolean forRebalance) {
+        }
+
+        @Override
+        public boolean processDisconnect(long agentId, Status state) {
+            return true;
+        }
+
+        @Override
+        public boolean isRecurring() {
+            return false;
+        }
+
+        @Override
+        public int getTimeout() {
+            return timeout;
+        }
+
+        @Override
+        public boolean processTimeout(long agentId, long seq) {
+            timeouts++;
+            return true;
+        }
+    }
+}
@@ -153,6 +153,7 @@ import com.cloud.network.security.dao.IngressRuleDaoImpl;
 import com.cloud.network.security.dao.SecurityGroupDaoImpl;
 import com.cloud.network.security.dao.SecurityGroupRulesDaoImpl;
 import com.cloud.network.security.dao.SecurityGroupVMMapDaoImpl;
+import com.cloud.network.security.dao.SecurityGroupVersionDaoImpl;
 import com.cloud.network.security.dao.SecurityGroupWorkDaoImpl;
 import com.cloud.network.security.dao.VmRulesetLogDaoImpl;
 import com.cloud.network.vpn.RemoteAccessVpnManagerImpl;
@@ -207,6 +208,7 @@ public class ResourceManagerTest extends TestCase {
 		_locator.addDao("SecurityGroupRulesDao", SecurityGroupRulesDaoImpl.class);
 		_locator.addDao("SecurityGroupWorkDao", SecurityGroupWorkDaoImpl.class);
 		_locator.addDao("VmRulesetLogDao", VmRulesetLogDaoImpl.class);
+		_locator.addDao("SecurityGroupVersionDao", SecurityGroupVersionDaoImpl.class);
 		_locator.addDao("AlertDao", AlertDaoImpl.class);
 		_locator.addDao("CapacityDao", CapacityDaoImpl.class);
 		_locator.addDao("DomainDao", DomainDaoImpl.class);
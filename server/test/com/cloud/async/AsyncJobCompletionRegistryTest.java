@@ -0,0 +1,81 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.async;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class AsyncJobCompletionRegistryTest extends TestCase {
+
+    public void testTimeout() throws Exception {
+        AsyncJobCompletionRegistry registry = new AsyncJobCompletionRegistry();
+        AsyncJobCompletionRegistry.Waiter waiter = registry.register(1);
+        Assert.assertEquals(1, registry.getWaitingJobs());
+        long start = System.currentTimeMillis();
+        Assert.assertFalse(registry.await(waiter, 50));
+        Assert.assertTrue(System.currentTimeMillis() - start >= 50);
+        registry.unregister(1, waiter);
+        Assert.assertEquals(0, registry.getWaitingJobs());
+        Assert.assertEquals(1, registry.getTimedOut());
+    }
+
+    public void testCompleteWakesAllWaiters() throws Exception {
+        final AsyncJobCompletionRegistry registry = new AsyncJobCompletionRegistry();
+        final int count = 5;
+        final CountDownLatch registered = new CountDownLatch(count);
+        final CountDownLatch done = new CountDownLatch(count);
+        final AtomicInteger completed = new AtomicInteger();
+
+        for (int i = 0; i < count; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    AsyncJobCompletionRegistry.Waiter waiter = registry.register(7);
+                    registered.countDown();
+                    try {
+                        if (registry.await(waiter, 10000)) {
+                            completed.incrementAndGet();
+                        }
+                    } catch (InterruptedException e) {
+                    } finally {
+                        registry.unregister(7, waiter);
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        Assert.assertTrue(registered.await(5, TimeUnit.SECONDS));
+        registry.complete(8);
+        Assert.assertEquals(1, registry.getWaitingJobs());
+        registry.complete(7);
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(count, completed.get());
+        Assert.assertEquals(0, registry.getWaitingJobs());
+        Assert.assertEquals(1, registry.getNotified());
+
+        // a completed entry is not reused by later waiters
+        AsyncJobCompletionRegistry.Waiter waiter = registry.register(7);
+        Assert.assertFalse(waiter.isCompleted());
+        registry.unregister(7, waiter);
+    }
+}
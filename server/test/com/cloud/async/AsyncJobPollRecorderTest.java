@@ -0,0 +1,110 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.async;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import com.cloud.async.dao.AsyncJobDao;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+public class AsyncJobPollRecorderTest extends TestCase {
+    final List<Map<Long, Date>> _batches = new ArrayList<Map<Long, Date>>();
+    boolean _failing;
+
+    @SuppressWarnings("unchecked")
+    private AsyncJobDao createDao() {
+        return (AsyncJobDao)Proxy.newProxyInstance(AsyncJobDao.class.getClassLoader(), new Class<?>[] { AsyncJobDao.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("updateLastPolled")) {
+                    if (_failing) {
+                        throw new CloudRuntimeException("Unable to update last_polled");
+                    }
+                    Map<Long, Date> batch = new HashMap<Long, Date>((Map<Long, Date>)args[0]);
+                    _batches.add(batch);
+                    return batch.size();
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    public void testCoalesce() {
+        AsyncJobPollRecorder recorder = new AsyncJobPollRecorder(createDao());
+
+        recorder.flush();
+        Assert.assertEquals(0, _batches.size());
+
+        for (int i = 0; i < 10; i++) {
+            recorder.record(1, new Date(i));
+            recorder.record(2, new Date(i));
+        }
+        recorder.record(3, new Date(100));
+        Assert.assertEquals(3, recorder.getPendingUpdates());
+        Assert.assertEquals(21, recorder.getPollsRecorded());
+        Assert.assertEquals(18, recorder.getPollsCoalesced());
+
+        recorder.flush();
+        Assert.assertEquals(1, _batches.size());
+        Map<Long, Date> batch = _batches.get(0);
+        Assert.assertEquals(3, batch.size());
+        Assert.assertEquals(new Date(9), batch.get(1L));
+        Assert.assertEquals(new Date(9), batch.get(2L));
+        Assert.assertEquals(new Date(100), batch.get(3L));
+
+        Assert.assertEquals(0, recorder.getPendingUpdates());
+        Assert.assertEquals(1, recorder.getFlushes());
+        Assert.assertEquals(3, recorder.getRowsFlushed());
+
+        recorder.flush();
+        Assert.assertEquals(1, _batches.size());
+    }
+
+    public void testFailedFlushKeepsBatch() {
+        AsyncJobPollRecorder recorder = new AsyncJobPollRecorder(createDao());
+        recorder.record(1, new Date(1));
+        recorder.record(2, new Date(2));
+
+        _failing = true;
+        recorder.flush();
+        Assert.assertEquals(0, _batches.size());
+        Assert.assertEquals(1, recorder.getFlushFailures());
+        Assert.assertEquals(2, recorder.getPendingUpdates());
+        Assert.assertEquals(0, recorder.getRowsFlushed());
+
+        _failing = false;
+        recorder.record(2, new Date(3));
+        recorder.flush();
+        Assert.assertEquals(1, _batches.size());
+        Map<Long, Date> batch = _batches.get(0);
+        Assert.assertEquals(new Date(1), batch.get(1L));
+        Assert.assertEquals(new Date(3), batch.get(2L));
+        Assert.assertEquals(0, recorder.getPendingUpdates());
+        Assert.assertEquals(1, recorder.getFlushFailures());
+    }
+}
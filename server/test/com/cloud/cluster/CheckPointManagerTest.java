@@ -358,6 +358,16 @@ public class CheckPointManagerTest extends TestCase {
             throw new UnsupportedOperationException("Not implemented");
         }
         
+        @Override
+        public void onAsyncJobsCompleted(long[] jobIds) {
+            throw new UnsupportedOperationException("Not implemented");
+        }
+        
+        @Override
+        public void onLocksReleased(String[] keys) {
+            throw new UnsupportedOperationException("Not implemented");
+        }
+        
         public void triggerTakeover(long msId) {
             ManagementServerHostVO node = new ManagementServerHostVO();
             node.setMsid(msId);
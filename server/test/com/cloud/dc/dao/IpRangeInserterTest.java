@@ -0,0 +1,207 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.dc.dao;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.cloud.utils.db.Transaction;
+import com.cloud.utils.net.NetUtils;
+
+public class IpRangeInserterTest extends TestCase {
+    // address -> mac address of the rows in the table, in insert order
+    final Map<String, Long> _rows = new LinkedHashMap<String, Long>();
+    // rows of every insert statement that was executed
+    final List<Integer> _statementRows = new ArrayList<Integer>();
+    long _macAddress = 100;
+
+    /**
+     * Hands out statements that run against _rows and _macAddress.  Like the
+     * real transaction, preparing a statement closes the previous one.
+     */
+    class FakeTransaction extends Transaction {
+        StatementHandler _last;
+
+        FakeTransaction() {
+            super("IpRangeInserterTest", false, Transaction.CLOUD_DB);
+        }
+
+        @Override
+        public PreparedStatement prepareAutoCloseStatement(String sql) {
+            if (_last != null) {
+                _last._closed = true;
+            }
+            _last = new StatementHandler(sql);
+            return (PreparedStatement)Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class<?>[] { PreparedStatement.class }, _last);
+        }
+    }
+
+    class StatementHandler implements InvocationHandler {
+        final String _sql;
+        final Map<Integer, Object> _params = new HashMap<Integer, Object>();
+        boolean _closed;
+
+        StatementHandler(String sql) {
+            _sql = sql;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("setString") || name.equals("setLong") || name.equals("setObject")) {
+                _params.put((Integer)args[0], args[1]);
+                return null;
+            }
+            if (_closed) {
+                throw new SQLException("Statement is closed");
+            }
+            if (name.equals("executeQuery") && _sql.startsWith("SELECT mac_address")) {
+                return resultSet(_macAddress);
+            }
+            if (name.equals("executeUpdate") && _sql.startsWith("UPDATE `cloud`.`data_center`")) {
+                _macAddress += (Long)_params.get(1);
+                return 1;
+            }
+            if (name.equals("executeUpdate") && _sql.startsWith("INSERT")) {
+                return insert();
+            }
+            throw new UnsupportedOperationException(name + " " + _sql);
+        }
+
+        private int insert() throws SQLException {
+            int rows = _sql.split("\\(\\?").length - 1;
+            int columns = _params.size() / rows;
+            boolean mac = _sql.contains("mac_address");
+            Map<String, Long> inserted = new LinkedHashMap<String, Long>();
+            for (int i = 0; i < rows; i++) {
+                String ip = (String)_params.get(i * columns + 1);
+                if (_rows.containsKey(ip) || inserted.containsKey(ip)) {
+                    throw new SQLException("Duplicate entry '" + ip + "'");
+                }
+                inserted.put(ip, mac ? (Long)_params.get(i * columns + columns) : null);
+            }
+            _statementRows.add(rows);
+            _rows.putAll(inserted);
+            return rows;
+        }
+    }
+
+    static ResultSet resultSet(final long value) {
+        return (ResultSet)Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] { ResultSet.class }, new InvocationHandler() {
+            boolean _read;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("next")) {
+                    boolean next = !_read;
+                    _read = true;
+                    return next;
+                }
+                if (method.getName().equals("getLong")) {
+                    return value;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private IpRangeInserter createInserter() {
+        IpRangeInserter inserter = new IpRangeInserter("op_dc_ip_address_alloc", "ip_address", 1);
+        return inserter.set("data_center_id", 1L).set("pod_id", 2L).setMacAddressColumn("mac_address").setRowsPerStatement(4);
+    }
+
+    private List<String> insert(IpRangeInserter inserter, String startIp, String endIp) throws SQLException {
+        return inserter.insert(new FakeTransaction(), NetUtils.ip2Long(startIp), NetUtils.ip2Long(endIp));
+    }
+
+    public void testInsertSql() {
+        IpRangeInserter inserter = new IpRangeInserter("op_dc_ip_address_alloc", "ip_address", 1);
+        inserter.set("data_center_id", 1L).set("pod_id", 2L).setMacAddressColumn("mac_address");
+
+        assertEquals("INSERT INTO `cloud`.`op_dc_ip_address_alloc` (ip_address, data_center_id, pod_id, mac_address) VALUES (?, ?, ?, ?)",
+                inserter.getInsertSql(1));
+        assertEquals("INSERT INTO `cloud`.`op_dc_ip_address_alloc` (ip_address, data_center_id, pod_id, mac_address) VALUES (?, ?, ?, ?), (?, ?, ?, ?), (?, ?, ?, ?)",
+                inserter.getInsertSql(3));
+    }
+
+    public void testInsertSqlWithoutMacAddress() {
+        IpRangeInserter inserter = new IpRangeInserter("op_dc_link_local_ip_address_alloc", "ip_address", 1);
+        inserter.set("data_center_id", 1L).set("pod_id", 2L);
+
+        assertEquals("INSERT INTO `cloud`.`op_dc_link_local_ip_address_alloc` (ip_address, data_center_id, pod_id) VALUES (?, ?, ?), (?, ?, ?)",
+                inserter.getInsertSql(2));
+    }
+
+    public void testChunksAndMacAddresses() throws Exception {
+        IpRangeInserter inserter = createInserter();
+        List<String> problemIps = insert(inserter, "10.1.1.1", "10.1.1.10");
+
+        assertTrue(problemIps.isEmpty());
+        assertEquals(10, inserter.getInserted());
+        // full chunks first, the remainder in a shorter statement
+        assertEquals(Arrays.asList(4, 4, 2), _statementRows);
+        long mac = 100;
+        for (int i = 1; i <= 10; i++) {
+            assertEquals(Long.valueOf(mac++), _rows.get("10.1.1." + i));
+        }
+        assertEquals(110, _macAddress);
+    }
+
+    public void testDuplicatesFallBackOneByOne() throws Exception {
+        _rows.put("10.1.1.3", 1L);
+        _rows.put("10.1.1.11", 2L);
+
+        IpRangeInserter inserter = createInserter();
+        List<String> problemIps = insert(inserter, "10.1.1.1", "10.1.1.11");
+
+        assertEquals(Arrays.asList("10.1.1.3", "10.1.1.11"), problemIps);
+        assertEquals(9, inserter.getInserted());
+        // the chunk after a fall back is still inserted at once
+        assertEquals(Arrays.asList(1, 1, 1, 4, 1, 1), _statementRows);
+        // duplicates use up no mac address
+        assertEquals(Long.valueOf(100), _rows.get("10.1.1.1"));
+        assertEquals(Long.valueOf(101), _rows.get("10.1.1.2"));
+        assertEquals(Long.valueOf(102), _rows.get("10.1.1.4"));
+        assertEquals(Long.valueOf(103), _rows.get("10.1.1.5"));
+        assertEquals(Long.valueOf(108), _rows.get("10.1.1.10"));
+        assertEquals(109, _macAddress);
+    }
+
+    public void testWithoutMacAddressColumn() throws Exception {
+        IpRangeInserter inserter = new IpRangeInserter("op_dc_link_local_ip_address_alloc", "ip_address", 1);
+        inserter.set("data_center_id", 1L).set("pod_id", 2L).setRowsPerStatement(4);
+        List<String> problemIps = insert(inserter, "169.254.0.1", "169.254.0.5");
+
+        assertTrue(problemIps.isEmpty());
+        assertEquals(Arrays.asList(4, 1), _statementRows);
+        assertTrue(_rows.containsKey("169.254.0.5"));
+        assertEquals(100, _macAddress);
+    }
+}
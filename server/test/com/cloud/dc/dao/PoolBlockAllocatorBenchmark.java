@@ -0,0 +1,123 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.dc.dao;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.cloud.utils.Profiler;
+
+/**
+ * Allocates ips from one pod with many threads, once the way takeIpAddress
+ * used to (SELECT ... LIMIT 1 FOR UPDATE, UPDATE, COMMIT for every ip, all
+ * behind the lock of the first free row) and once through the
+ * PoolBlockAllocator (row locks only to reserve a block, then one update by
+ * primary key per ip).  The database is simulated: a shared lock stands in
+ * for the row lock and every statement costs one round trip.  Run it by
+ * hand with
+ * 
+ *   java com.cloud.dc.dao.PoolBlockAllocatorBenchmark [threads] [allocations] [round trip ms] [block size]
+ */
+public class PoolBlockAllocatorBenchmark {
+    final Object _firstFreeRow = new Object();
+    final long _roundTrip;
+    final AtomicInteger _nextFreeRow = new AtomicInteger();
+
+    PoolBlockAllocatorBenchmark(long roundTrip) {
+        _roundTrip = roundTrip;
+    }
+
+    void roundTrips(int count) {
+        try {
+            Thread.sleep(_roundTrip * count);
+        } catch (InterruptedException e) {
+        }
+    }
+
+    long takeWithRowLock() {
+        synchronized (_firstFreeRow) {
+            // select for update, update, commit
+            roundTrips(3);
+            return _nextFreeRow.getAndIncrement();
+        }
+    }
+
+    PoolBlockAllocator createAllocator(int blockSize) {
+        return new PoolBlockAllocator(new PoolBlockAllocator.BlockSource() {
+            @Override
+            public long[] reserveBlock(long poolId, int count) {
+                synchronized (_firstFreeRow) {
+                    // select for update, update by ids, commit
+                    roundTrips(3);
+                    long[] ids = new long[count];
+                    for (int i = 0; i < count; i++) {
+                        ids[i] = _nextFreeRow.getAndIncrement();
+                    }
+                    return ids;
+                }
+            }
+        }, blockSize);
+    }
+
+    long takeFromBlock(PoolBlockAllocator allocator) {
+        long id = allocator.take(1);
+        // update by primary key, then find by id
+        roundTrips(2);
+        return id;
+    }
+
+    long run(int threads, final int allocations, final PoolBlockAllocator allocator) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicInteger remaining = new AtomicInteger(allocations);
+        Profiler p = new Profiler();
+        p.start();
+        for (int i = 0; i < threads; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    while (remaining.getAndDecrement() > 0) {
+                        if (allocator == null) {
+                            takeWithRowLock();
+                        } else {
+                            takeFromBlock(allocator);
+                        }
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        p.stop();
+        return p.getDuration();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int allocations = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        long roundTrip = args.length > 2 ? Long.parseLong(args[2]) : 1;
+        int blockSize = args.length > 3 ? Integer.parseInt(args[3]) : PoolBlockAllocator.DEFAULT_BLOCK_SIZE;
+
+        PoolBlockAllocatorBenchmark bench = new PoolBlockAllocatorBenchmark(roundTrip);
+        long rowLockMs = bench.run(threads, allocations, null);
+        long blockMs = bench.run(threads, allocations, bench.createAllocator(blockSize));
+
+        System.out.println(threads + " threads, " + allocations + " allocations, " + roundTrip + " ms round trip, blocks of " + blockSize);
+        System.out.println("row lock per ip: " + rowLockMs + " ms, " + (allocations * 1000L / Math.max(rowLockMs, 1)) + " ips/s");
+        System.out.println("reserved blocks: " + blockMs + " ms, " + (allocations * 1000L / Math.max(blockMs, 1)) + " ips/s");
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.cloud.dc.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class PoolBlockAllocatorTest extends TestCase {
+    /**
+     * Pool 1 has rows 0-99, pool 2 has rows 1000-1009.
+     */
+    static class FakeSource implements PoolBlockAllocator.BlockSource {
+        final AtomicInteger _reserveCalls = new AtomicInteger();
+        final long[] _next = new long[] { 0, 0, 1000 };
+        final long[] _end = new long[] { 0, 100, 1010 };
+
+        @Override
+        public synchronized long[] reserveBlock(long poolId, int count) {
+            _reserveCalls.incrementAndGet();
+            int n = (int)Math.min(count, _end[(int)poolId] - _next[(int)poolId]);
+            long[] ids = new long[n];
+            for (int i = 0; i < n; i++) {
+                ids[i] = _next[(int)poolId]++;
+            }
+            return ids;
+        }
+    }
+
+    public void testReservesBlockOnlyWhenEmpty() {
+        FakeSource source = new FakeSource();
+        PoolBlockAllocator allocator = new PoolBlockAllocator(source, 4);
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, allocator.take(1));
+        }
+        assertEquals(1, source._reserveCalls.get());
+        assertEquals(0, allocator.getAvailable(1));
+
+        assertEquals(4, allocator.take(1));
+        assertEquals(2, source._reserveCalls.get());
+        assertEquals(3, allocator.getAvailable(1));
+
+        assertEquals(1000, allocator.take(2));
+        assertEquals(3, allocator.getAvailable(2));
+    }
+
+    public void testExhaustedPool() {
+        FakeSource source = new FakeSource();
+        PoolBlockAllocator allocator = new PoolBlockAllocator(source, 4);
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(1000 + i, allocator.take(2));
+        }
+        assertEquals(-1, allocator.take(2));
+        assertEquals(-1, allocator.take(2));
+    }
+
+    public void testReset() {
+        FakeSource source = new FakeSource();
+        PoolBlockAllocator allocator = new PoolBlockAllocator(source, 4);
+
+        assertEquals(0, allocator.take(1));
+        allocator.reset(1);
+        assertEquals(0, allocator.getAvailable(1));
+        assertEquals(4, allocator.take(1));
+    }
+
+    public void testConcurrentTakesAreUnique() throws InterruptedException {
+        FakeSource source = new FakeSource();
+        final PoolBlockAllocator allocator = new PoolBlockAllocator(source, 3);
+        final List<Long> taken = Collections.synchronizedList(new ArrayList<Long>());
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    long id;
+                    while ((id = allocator.take(1)) >= 0) {
+                        taken.add(id);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Set<Long> unique = new HashSet<Long>(taken);
+        assertEquals(100, taken.size());
+        assertEquals(100, unique.size());
+        // one reservation per block of 3, then every thread finds the pool empty once
+        assertEquals(34 + 8, source._reserveCalls.get());
+    }
+}
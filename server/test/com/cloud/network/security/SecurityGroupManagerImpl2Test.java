@@ -21,6 +21,7 @@ import com.cloud.network.security.dao.IngressRuleDaoImpl;
 import com.cloud.network.security.dao.SecurityGroupDaoImpl;
 import com.cloud.network.security.dao.SecurityGroupRulesDaoImpl;
 import com.cloud.network.security.dao.SecurityGroupVMMapDaoImpl;
+import com.cloud.network.security.dao.SecurityGroupVersionDaoImpl;
 import com.cloud.network.security.dao.SecurityGroupWorkDaoImpl;
 import com.cloud.network.security.dao.VmRulesetLogDaoImpl;
 import com.cloud.user.MockAccountManagerImpl;
@@ -56,6 +57,7 @@ public class SecurityGroupManagerImpl2Test extends TestCase {
         locator.addDao("ConfigurationDao", ConfigurationDaoImpl.class);
         locator.addDao("SecurityGroupWorkDao", SecurityGroupWorkDaoImpl.class);
         locator.addDao("VmRulesetLogDao", VmRulesetLogDaoImpl.class);
+        locator.addDao("SecurityGroupVersionDao", SecurityGroupVersionDaoImpl.class);
         locator.addDao("VMInstanceDao", VMInstanceDaoImpl.class);
         locator.addDao("DomainDao", DomainDaoImpl.class);
         locator.addManager("AgentManager", MockAgentManagerImpl.class);
@@ -97,4 +99,12 @@ public class SecurityGroupManagerImpl2Test extends TestCase {
        _sgMgr.work();
         
     }
+    
+    public void testBatchWork() {
+       _schedule(100);
+       _sgMgr._workBatchSize = 50;
+       _sgMgr.work();
+       assertEquals(50, _sgMgr._mBean.getLastBatchSize());
+       assertEquals(51, _sgMgr.getQueueSize());
+    }
 }
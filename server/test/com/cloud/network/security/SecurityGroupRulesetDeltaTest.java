@@ -0,0 +1,56 @@
+package com.cloud.network.security;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import com.cloud.agent.api.SecurityIngressRulesCmd;
+import com.cloud.agent.api.SecurityIngressRulesCmd.IpPortAndProto;
+import com.cloud.agent.api.SecurityIngressRulesDeltaCmd;
+
+public class SecurityGroupRulesetDeltaTest extends TestCase {
+
+    private SecurityIngressRulesCmd ruleset(long seqno, IpPortAndProto... rules) {
+        return new SecurityIngressRulesCmd("10.1.1.2", "02:00:00:00:00:01", "i-2-3-VM", 3L, null, seqno, rules);
+    }
+
+    private Set<String> cidrs(IpPortAndProto rule) {
+        return new HashSet<String>(Arrays.asList(rule.getAllowedCidrs()));
+    }
+
+    public void testAddedAndRevokedCidrs() {
+        SecurityIngressRulesCmd previous = ruleset(1, 
+                new IpPortAndProto("tcp", 22, 22, new String[] {"10.1.1.3/32", "10.1.1.4/32"}),
+                new IpPortAndProto("udp", 53, 53, new String[] {"0.0.0.0/0"}));
+        SecurityIngressRulesCmd current = ruleset(2, 
+                new IpPortAndProto("tcp", 22, 22, new String[] {"10.1.1.4/32", "10.1.1.5/32"}),
+                new IpPortAndProto("icmp", -1, -1, new String[] {"10.1.1.6/32"}));
+
+        SecurityIngressRulesDeltaCmd delta = SecurityIngressRulesDeltaCmd.create(previous, current);
+        assertEquals(previous.getSignature(), delta.getPreviousSignature());
+        assertEquals(current.getSignature(), delta.getSignature());
+        assertEquals(Long.valueOf(2), delta.getSeqNum());
+
+        assertEquals(2, delta.getAddedRules().length);
+        assertEquals("tcp", delta.getAddedRules()[0].getProto());
+        assertEquals(new HashSet<String>(Arrays.asList("10.1.1.5/32")), cidrs(delta.getAddedRules()[0]));
+        assertEquals("icmp", delta.getAddedRules()[1].getProto());
+
+        assertEquals(2, delta.getRevokedRules().length);
+        assertEquals(new HashSet<String>(Arrays.asList("10.1.1.3/32")), cidrs(delta.getRevokedRules()[0]));
+        assertEquals("udp", delta.getRevokedRules()[1].getProto());
+        assertEquals(4, delta.getTotalNumCidrs());
+        assertEquals("tcp:22:22:10.1.1.5/32,NEXT icmp:-1:-1:10.1.1.6/32,NEXT ", delta.stringifyAddedRules());
+    }
+
+    public void testUnchangedRuleset() {
+        IpPortAndProto rule = new IpPortAndProto("tcp", 80, 81, new String[] {"10.1.1.3/32"});
+        SecurityIngressRulesDeltaCmd delta = SecurityIngressRulesDeltaCmd.create(ruleset(4, rule), ruleset(5, rule));
+        assertEquals(delta.getPreviousSignature(), delta.getSignature());
+        assertEquals(0, delta.getAddedRules().length);
+        assertEquals(0, delta.getRevokedRules().length);
+        assertEquals(0, delta.getTotalNumCidrs());
+    }
+}
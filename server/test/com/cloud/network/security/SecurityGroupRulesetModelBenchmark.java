@@ -0,0 +1,146 @@
+package com.cloud.network.security;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.cloud.network.security.SecurityGroupManagerImpl.CidrComparator;
+import com.cloud.network.security.SecurityGroupManagerImpl.PortAndProto;
+import com.cloud.utils.Profiler;
+
+/**
+ * Generates the rulesets of 10k vms spread over 500 security groups, once the way
+ * generateRulesForVM assembles them from the rows it reads (TreeMap of string TreeSets) and once
+ * from the SecurityGroupRulesetModel. The database reads are left out of both. Run it by hand with
+ * 
+ *   java com.cloud.network.security.SecurityGroupRulesetModelBenchmark [vms] [groups] [rounds]
+ */
+public class SecurityGroupRulesetModelBenchmark {
+    int _numVms;
+    int _numGroups;
+    //rows as the dao would return them
+    List<List<IngressRuleVO>> _rules = new ArrayList<List<IngressRuleVO>>();
+    List<List<String>> _memberIps = new ArrayList<List<String>>();
+    long[][] _vmGroups;
+
+    SecurityGroupRulesetModelBenchmark(int numVms, int numGroups) {
+        _numVms = numVms;
+        _numGroups = numGroups;
+        for (int g = 0; g < numGroups; g++) {
+            List<IngressRuleVO> rules = new ArrayList<IngressRuleVO>();
+            rules.add(new IngressRuleVO(g, 22, 22, "tcp", "0.0.0.0/0"));
+            rules.add(new IngressRuleVO(g, 8000 + (g % 10), 8000 + (g % 10), "tcp", "192.168." + (g % 256) + ".0/24"));
+            //every group allows itself and its two neighbours on the web ports, and itself on icmp
+            rules.add(new IngressRuleVO(g, 80, 443, "tcp", g));
+            rules.add(new IngressRuleVO(g, 80, 443, "tcp", (g + 1) % numGroups));
+            rules.add(new IngressRuleVO(g, 80, 443, "tcp", (g + 2) % numGroups));
+            rules.add(new IngressRuleVO(g, -1, -1, "icmp", g));
+            _rules.add(rules);
+            _memberIps.add(new ArrayList<String>());
+        }
+        _vmGroups = new long[numVms][];
+        for (int vm = 0; vm < numVms; vm++) {
+            String ip = "10." + ((vm >> 16) & 0xff) + "." + ((vm >> 8) & 0xff) + "." + (vm & 0xff);
+            int group = vm % numGroups;
+            //every fifth vm is also in a second group
+            if (vm % 5 == 0) {
+                int second = (group + numGroups / 2) % numGroups;
+                _vmGroups[vm] = new long[] {group, second};
+                _memberIps.get(second).add(ip);
+            } else {
+                _vmGroups[vm] = new long[] {group};
+            }
+            _memberIps.get(group).add(ip);
+        }
+    }
+
+    Map<PortAndProto, Set<String>> generateFromRows(long[] groups) {
+        Map<PortAndProto, Set<String>> allowed = new TreeMap<PortAndProto, Set<String>>();
+        for (long groupId : groups) {
+            for (IngressRuleVO rule : _rules.get((int)groupId)) {
+                PortAndProto portAndProto = new PortAndProto(rule.getProtocol(), rule.getStartPort(), rule.getEndPort());
+                Set<String> cidrs = allowed.get(portAndProto);
+                if (cidrs == null) {
+                    cidrs = new TreeSet<String>(new CidrComparator());
+                }
+                if (rule.getAllowedNetworkId() != null) {
+                    for (String ip : _memberIps.get(rule.getAllowedNetworkId().intValue())) {
+                        cidrs.add(ip + "/32");
+                    }
+                } else if (rule.getAllowedSourceIpCidr() != null) {
+                    cidrs.add(rule.getAllowedSourceIpCidr());
+                }
+                if (cidrs.size() > 0) {
+                    allowed.put(portAndProto, cidrs);
+                }
+            }
+        }
+        return allowed;
+    }
+
+    SecurityGroupRulesetModel buildModel() {
+        SecurityGroupRulesetModel model = new SecurityGroupRulesetModel(null, null, null);
+        for (int g = 0; g < _numGroups; g++) {
+            List<String> cidrs = new ArrayList<String>();
+            for (String ip : _memberIps.get(g)) {
+                cidrs.add(ip + "/32");
+            }
+            model.setGroup(g, 1, _rules.get(g), cidrs);
+        }
+        return model;
+    }
+
+    static List<Long> asList(long[] groups) {
+        List<Long> result = new ArrayList<Long>(groups.length);
+        for (long g : groups) {
+            result.add(g);
+        }
+        return result;
+    }
+
+    public static void main(String[] args) {
+        int numVms = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int numGroups = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        SecurityGroupRulesetModelBenchmark bench = new SecurityGroupRulesetModelBenchmark(numVms, numGroups);
+
+        Profiler p = new Profiler();
+        p.start();
+        SecurityGroupRulesetModel model = bench.buildModel();
+        p.stop();
+        System.out.println("Loaded " + numGroups + " groups into the model in " + p.getDuration() + " ms");
+
+        List<List<Long>> vmGroups = new ArrayList<List<Long>>();
+        for (long[] groups : bench._vmGroups) {
+            vmGroups.add(asList(groups));
+        }
+        for (int round = 0; round < rounds; round++) {
+            long cidrs = 0;
+            p = new Profiler();
+            p.start();
+            for (long[] groups : bench._vmGroups) {
+                for (Set<String> set : bench.generateFromRows(groups).values()) {
+                    cidrs += set.toArray(new String[set.size()]).length;
+                }
+            }
+            p.stop();
+            long rowsMs = p.getDuration();
+            long modelCidrs = 0;
+            p = new Profiler();
+            p.start();
+            for (List<Long> groups : vmGroups) {
+                for (Set<String> set : model.generateRules(groups).values()) {
+                    modelCidrs += set.toArray(new String[set.size()]).length;
+                }
+            }
+            p.stop();
+            System.out.println("Round " + round + ": " + numVms + " rulesets, strings " + rowsMs + " ms (" + cidrs + " cidrs), model " 
+                               + p.getDuration() + " ms (" + modelCidrs + " cidrs)");
+        }
+        System.out.println("Sample ruleset: " + Arrays.toString(model.generateRules(vmGroups.get(0)).entrySet().toArray()).substring(0, 200) + "...");
+    }
+}
@@ -0,0 +1,39 @@
+package com.cloud.network.security;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import com.cloud.network.security.SecurityGroupManagerImpl.PortAndProto;
+
+public class SecurityGroupRulesetModelTest extends TestCase {
+
+    public void testCidrsSortedNumericallyAndDeduplicated() {
+        SecurityGroupRulesetModel.Cidrs cidrs = SecurityGroupRulesetModel.Cidrs.of(Arrays.asList("10.1.1.10/32", "10.1.1.9/32", "10.1.0.0/16", "10.1.1.9/32"));
+        assertEquals(Arrays.asList("10.1.0.0/16", "10.1.1.9/32", "10.1.1.10/32"), new ArrayList<String>(cidrs.asSet()));
+
+        SecurityGroupRulesetModel.Cidrs other = SecurityGroupRulesetModel.Cidrs.of(Arrays.asList("10.1.1.10/32", "9.9.9.9/32"));
+        assertEquals(Arrays.asList("9.9.9.9/32", "10.1.0.0/16", "10.1.1.9/32", "10.1.1.10/32"), new ArrayList<String>(cidrs.union(other).asSet()));
+    }
+
+    public void testGenerateRules() {
+        SecurityGroupRulesetModel model = new SecurityGroupRulesetModel(null, null, null);
+        model.setGroup(1, 1, Arrays.asList(new IngressRuleVO(1, 22, 22, "tcp", "0.0.0.0/0"), new IngressRuleVO(1, 80, 80, "tcp", 2)), 
+                Arrays.asList("10.0.0.1/32"));
+        model.setGroup(2, 1, Arrays.asList(new IngressRuleVO(2, 80, 80, "tcp", "192.168.0.0/24")), 
+                Arrays.asList("10.0.0.3/32", "10.0.0.2/32"));
+        model.setGroup(3, 1, new ArrayList<IngressRuleVO>(), new ArrayList<String>());
+
+        Map<PortAndProto, Set<String>> rules = model.generateRules(Arrays.asList(1L, 2L));
+        assertEquals(2, rules.size());
+        assertEquals(Arrays.asList("0.0.0.0/0"), new ArrayList<String>(rules.get(new PortAndProto("tcp", 22, 22))));
+        assertEquals(Arrays.asList("10.0.0.2/32", "10.0.0.3/32", "192.168.0.0/24"), new ArrayList<String>(rules.get(new PortAndProto("tcp", 80, 80))));
+
+        //a group that allows an empty group contributes nothing
+        model.setGroup(4, 1, Arrays.asList(new IngressRuleVO(4, 80, 80, "tcp", 3)), new ArrayList<String>());
+        assertTrue(model.generateRules(Arrays.asList(4L)).isEmpty());
+    }
+}
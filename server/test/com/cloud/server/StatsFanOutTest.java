@@ -0,0 +1,144 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.server;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import junit.framework.TestCase;
+
+import com.cloud.agent.AgentManager;
+import com.cloud.agent.Listener;
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.GetHostStatsCommand;
+import com.cloud.agent.manager.Commands;
+import com.cloud.exception.AgentUnavailableException;
+
+public class StatsFanOutTest extends TestCase {
+    private static final long SLOW_HOST = 3;
+    private static final long DOWN_HOST = 4;
+
+    private final Map<Long, Listener> _pending = new ConcurrentHashMap<Long, Listener>();
+    private final Map<Long, Command> _pendingCmds = new ConcurrentHashMap<Long, Command>();
+
+    /**
+     * Answers every host but SLOW_HOST right away, from inside send(), and
+     * refuses DOWN_HOST.
+     */
+    private AgentManager createAgentManager() {
+        return (AgentManager)Proxy.newProxyInstance(AgentManager.class.getClassLoader(), new Class<?>[] { AgentManager.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (!method.getName().equals("send") || args.length != 3 || !(args[2] instanceof Listener)) {
+                    throw new UnsupportedOperationException(method.getName());
+                }
+                long hostId = (Long)args[0];
+                Command cmd = ((Commands)args[1]).toCommands()[0];
+                Listener listener = (Listener)args[2];
+                if (hostId == DOWN_HOST) {
+                    throw new AgentUnavailableException("host is down", hostId);
+                }
+                if (hostId == SLOW_HOST) {
+                    _pending.put(hostId, listener);
+                    _pendingCmds.put(hostId, cmd);
+                } else {
+                    listener.processAnswers(hostId, hostId, new Answer[] { new Answer(cmd, true, "host " + hostId) });
+                }
+                return hostId;
+            }
+        });
+    }
+
+    private static class CollectingFanOut extends StatsFanOut {
+        final Map<Long, String> _answers = new ConcurrentHashMap<Long, String>();
+
+        CollectingFanOut(AgentManager agentMgr, long deadline) {
+            super(agentMgr, "test", deadline);
+        }
+
+        @Override
+        protected void processAnswer(long hostId, Answer answer) {
+            _answers.put(hostId, answer.getDetails());
+        }
+    }
+
+    private Map<Long, Command> createCommands(long... hostIds) {
+        Map<Long, Command> cmds = new HashMap<Long, Command>();
+        for (long hostId : hostIds) {
+            cmds.put(hostId, new GetHostStatsCommand("guid-" + hostId, "host-" + hostId, hostId));
+        }
+        return cmds;
+    }
+
+    public void testSlowHostDoesNotDelayOthers() {
+        CollectingFanOut fanOut = new CollectingFanOut(createAgentManager(), 200);
+        int late = fanOut.dispatch(createCommands(1, 2, SLOW_HOST, DOWN_HOST));
+
+        assertEquals(1, late);
+        assertEquals(2, fanOut._answers.size());
+        assertEquals("host 1", fanOut._answers.get(1L));
+        assertEquals("host 2", fanOut._answers.get(2L));
+        assertTrue(fanOut.getDuration() >= 200);
+
+        Map<Long, Long> latencies = fanOut.getLatencies();
+        assertTrue(latencies.containsKey(1L));
+        assertTrue(latencies.containsKey(DOWN_HOST));
+        assertFalse(latencies.containsKey(SLOW_HOST));
+
+        // the answer still counts once it shows up
+        Listener listener = _pending.get(SLOW_HOST);
+        listener.processAnswers(SLOW_HOST, SLOW_HOST, new Answer[] { new Answer(_pendingCmds.get(SLOW_HOST), true, "late") });
+        assertEquals("late", fanOut._answers.get(SLOW_HOST));
+        assertTrue(fanOut.getLatencies().containsKey(SLOW_HOST));
+    }
+
+    public void testReturnsAsSoonAsAllHostsAreDone() {
+        CollectingFanOut fanOut = new CollectingFanOut(createAgentManager(), 60000);
+        int late = fanOut.dispatch(createCommands(1, 2, DOWN_HOST));
+
+        assertEquals(0, late);
+        assertEquals(2, fanOut._answers.size());
+        assertTrue(fanOut.getDuration() < 60000);
+    }
+
+    public void testTimeoutAndDisconnectFinishHost() {
+        CollectingFanOut fanOut = new CollectingFanOut(createAgentManager(), 60000);
+        final StatsFanOut target = fanOut;
+        new Thread() {
+            @Override
+            public void run() {
+                while (_pending.get(SLOW_HOST) == null) {
+                    Thread.yield();
+                }
+                target.processTimeout(SLOW_HOST, SLOW_HOST);
+                // a second notification for the same host must not count twice
+                target.processDisconnect(SLOW_HOST, null);
+            }
+        }.start();
+
+        int late = fanOut.dispatch(createCommands(1, SLOW_HOST));
+        assertEquals(0, late);
+        assertEquals(1, fanOut._answers.size());
+        assertTrue(fanOut.getDuration() < 60000);
+    }
+}
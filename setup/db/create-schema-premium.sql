@@ -4,6 +4,7 @@ DROP TABLE IF EXISTS `cloud_usage`.`usage_vm_instance`;
 DROP TABLE IF EXISTS `cloud_usage`.`usage_ip_address`;
 DROP TABLE IF EXISTS `cloud_usage`.`usage_network`;
 DROP TABLE IF EXISTS `cloud_usage`.`usage_job`;
+DROP TABLE IF EXISTS `cloud_usage`.`usage_parser_checkpoint`;
 DROP TABLE IF EXISTS `cloud_usage`.`account`;
 DROP TABLE IF EXISTS `cloud_usage`.`user_statistics`;
 DROP TABLE IF EXISTS `cloud_usage`.`usage_volume`;
@@ -103,11 +104,22 @@ CREATE TABLE  `cloud_usage`.`usage_job` (
   `end_date` DATETIME COMMENT 'end date of the aggregation range used by this job',
   `success` int(1),
   `heartbeat` DATETIME NOT NULL,
+  `parser_stats` varchar(1024) COMMENT 'time in milliseconds spent in each usage parser by this job',
   PRIMARY KEY  (`id`)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8;
 
 ALTER TABLE `cloud_usage`.`usage_job` ADD INDEX `i_usage_job__end_millis`(`end_millis`);
 
+CREATE TABLE  `cloud_usage`.`usage_parser_checkpoint` (
+  `id` bigint unsigned NOT NULL auto_increment,
+  `parser` varchar(64) NOT NULL COMMENT 'name of the incremental usage parser',
+  `job_id` bigint unsigned NOT NULL COMMENT 'last usage job whose results the parser state is based on',
+  `end_millis` bigint unsigned NOT NULL default '0' COMMENT 'end time in milliseconds of the last aggregation range parsed',
+  `updated` DATETIME,
+  PRIMARY KEY  (`id`),
+  UNIQUE KEY (`parser`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
 CREATE TABLE  `cloud_usage`.`account` (
   `id` bigint unsigned NOT NULL,
   `account_name` varchar(100) COMMENT 'an account name set by the creator of the account, defaults to username for single accounts',
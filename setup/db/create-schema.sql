@@ -98,6 +98,7 @@ DROP TABLE IF EXISTS `cloud`.`op_dc_link_local_ip_address_alloc`;
 DROP TABLE IF EXISTS `cloud`.`op_host`;
 DROP TABLE IF EXISTS `cloud`.`op_nwgrp_work`;
 DROP TABLE IF EXISTS `cloud`.`op_vm_ruleset_log`;
+DROP TABLE IF EXISTS `cloud`.`op_security_group_version`;
 DROP TABLE IF EXISTS `cloud`.`ovs_host_vlan_alloc`;
 DROP TABLE IF EXISTS `cloud`.`ovs_tunnel`;
 DROP TABLE IF EXISTS `cloud`.`ovs_tunnel_account`;
@@ -1488,6 +1489,14 @@ CREATE TABLE `cloud`.`op_vm_ruleset_log` (
   UNIQUE `u_op_vm_ruleset_log__instance_id`(`instance_id`)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8;
 
+CREATE TABLE `cloud`.`op_security_group_version` (
+  `id` bigint unsigned UNIQUE NOT NULL AUTO_INCREMENT COMMENT 'id',
+  `security_group_id` bigint unsigned NOT NULL COMMENT 'security group whose rules or running members changed',
+  `version` bigint unsigned NOT NULL DEFAULT 0 COMMENT 'incremented on every change, lets management servers validate their cached ruleset model',
+  PRIMARY KEY (`id`),
+  UNIQUE `u_op_security_group_version__security_group_id`(`security_group_id`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
 CREATE TABLE `cloud`.`instance_group` (
   `id` bigint unsigned NOT NULL UNIQUE auto_increment,
   `account_id` bigint unsigned NOT NULL COMMENT 'owner.  foreign key to account table',
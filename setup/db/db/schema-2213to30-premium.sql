@@ -0,0 +1,15 @@
+--;
+-- Premium schema upgrade from 2.2.13 to 3.0;
+--;
+
+ALTER TABLE `cloud_usage`.`usage_job` ADD COLUMN `parser_stats` varchar(1024) COMMENT 'time in milliseconds spent in each usage parser by this job' AFTER `heartbeat`;
+
+CREATE TABLE  `cloud_usage`.`usage_parser_checkpoint` (
+  `id` bigint unsigned NOT NULL auto_increment,
+  `parser` varchar(64) NOT NULL COMMENT 'name of the incremental usage parser',
+  `job_id` bigint unsigned NOT NULL COMMENT 'last usage job whose results the parser state is based on',
+  `end_millis` bigint unsigned NOT NULL default '0' COMMENT 'end time in milliseconds of the last aggregation range parsed',
+  `updated` DATETIME,
+  PRIMARY KEY  (`id`),
+  UNIQUE KEY (`parser`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
@@ -116,3 +116,11 @@ update configuration set name = 'pod.privateip.capacity.notificationthreshold' ,
 ALTER TABLE `cloud`.`domain_router` ADD COLUMN `template_version` varchar(100) COMMENT 'template version' AFTER role;
 ALTER TABLE `cloud`.`domain_router` ADD COLUMN `scripts_version` varchar(100) COMMENT 'scripts version' AFTER template_version;
 ALTER TABLE `cloud`.`alert` ADD `cluster_id` bigint unsigned;
+
+CREATE TABLE `cloud`.`op_security_group_version` (
+  `id` bigint unsigned UNIQUE NOT NULL AUTO_INCREMENT COMMENT 'id',
+  `security_group_id` bigint unsigned NOT NULL COMMENT 'security group whose rules or running members changed',
+  `version` bigint unsigned NOT NULL DEFAULT 0 COMMENT 'incremented on every change, lets management servers validate their cached ruleset model',
+  PRIMARY KEY (`id`),
+  UNIQUE `u_op_security_group_version__security_group_id`(`security_group_id`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
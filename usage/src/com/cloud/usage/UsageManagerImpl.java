@@ -22,6 +22,7 @@ package com.cloud.usage;
 
 import java.net.InetAddress;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
@@ -49,6 +50,7 @@ import com.cloud.usage.dao.UsageJobDao;
 import com.cloud.usage.dao.UsageLoadBalancerPolicyDao;
 import com.cloud.usage.dao.UsageNetworkDao;
 import com.cloud.usage.dao.UsageNetworkOfferingDao;
+import com.cloud.usage.dao.UsageParserCheckpointDao;
 import com.cloud.usage.dao.UsagePortForwardingRuleDao;
 import com.cloud.usage.dao.UsageStorageDao;
 import com.cloud.usage.dao.UsageVMInstanceDao;
@@ -60,6 +62,7 @@ import com.cloud.usage.parser.NetworkUsageParser;
 import com.cloud.usage.parser.PortForwardingUsageParser;
 import com.cloud.usage.parser.StorageUsageParser;
 import com.cloud.usage.parser.VMInstanceUsageParser;
+import com.cloud.usage.parser.VMInstanceUsageState;
 import com.cloud.usage.parser.VolumeUsageParser;
 import com.cloud.user.Account;
 import com.cloud.user.AccountVO;
@@ -102,6 +105,7 @@ public class UsageManagerImpl implements UsageManager, Runnable {
     private final UsagePortForwardingRuleDao m_usagePortForwardingRuleDao = _locator.getDao(UsagePortForwardingRuleDao.class);
     private final UsageNetworkOfferingDao m_usageNetworkOfferingDao = _locator.getDao(UsageNetworkOfferingDao.class);
     private final UsageJobDao m_usageJobDao = _locator.getDao(UsageJobDao.class);
+    private final UsageParserCheckpointDao m_checkpointDao = _locator.getDao(UsageParserCheckpointDao.class);
     @Inject protected AlertManager _alertMgr;
     @Inject protected UsageEventDao _usageEventDao;
 
@@ -110,6 +114,8 @@ public class UsageManagerImpl implements UsageManager, Runnable {
 	private final Calendar m_jobExecTime = Calendar.getInstance();
 	private int m_aggregationDuration = 0;
 	private int m_sanityCheckInterval = 0;
+	private int m_parseThreads = 1;
+	private boolean m_incrementalParse = false;
     String m_hostname = null;
     int m_pid = 0;
     TimeZone m_usageTimezone = TimeZone.getTimeZone("GMT");;
@@ -118,6 +124,7 @@ public class UsageManagerImpl implements UsageManager, Runnable {
 	private final ScheduledExecutorService m_executor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Usage-Job"));
 	private final ScheduledExecutorService m_heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Usage-HB"));
 	private final ScheduledExecutorService m_sanityExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Usage-Sanity"));
+	private UsageParseWorkers m_parseWorkers = null;
 	private Future m_scheduledFuture = null;
 	private Future m_heartbeat = null;
 	private Future m_sanity = null;
@@ -171,6 +178,19 @@ public class UsageManagerImpl implements UsageManager, Runnable {
         if(sanityCheckInterval != null){
             m_sanityCheckInterval = Integer.parseInt(sanityCheckInterval);
         }
+        String parseThreads = configs.get("usage.parse.threads");
+        if (parseThreads != null) {
+            m_parseThreads = Integer.parseInt(parseThreads);
+        }
+        if (m_parseThreads > 1) {
+            s_logger.info("Usage job will parse accounts using " + m_parseThreads + " threads");
+            m_parseWorkers = new UsageParseWorkers(m_parseThreads);
+        }
+        m_incrementalParse = Boolean.parseBoolean(configs.get("usage.parse.incremental"));
+        VMInstanceUsageParser.setIncremental(m_incrementalParse);
+        if (m_incrementalParse) {
+            s_logger.info("Usage job will parse vm usage incrementally");
+        }
 
         m_usageTimezone = TimeZone.getTimeZone(aggreagationTimeZone);
         s_logger.debug("Usage stats aggregation time zone: "+aggreagationTimeZone);
@@ -267,6 +287,9 @@ public class UsageManagerImpl implements UsageManager, Runnable {
 	    m_heartbeat.cancel(true);
 	    m_scheduledFuture.cancel(true);
 	    m_sanity.cancel(true);
+	    if (m_parseWorkers != null) {
+	        m_parseWorkers.shutdown();
+	    }
 		return true;
 	}
 
@@ -346,6 +369,7 @@ public class UsageManagerImpl implements UsageManager, Runnable {
 
 	    boolean success = false;
 	    long timeStart = System.currentTimeMillis();
+	    UsageParserStats parserStats = new UsageParserStats();
 	    long deleteOldStatsTimeMillis = 0L;
         try {
             if ((endDateMillis == 0) || (endDateMillis > timeStart)) {
@@ -508,9 +532,14 @@ public class UsageManagerImpl implements UsageManager, Runnable {
                     // - create the usage records using the parse methods below
                     for (UsageEventVO event : events) {
                         event.setProcessed(true);
-                        _usageEventDao.update(event.getId(), event);
                         createHelperRecord(event);
                     }
+                    _usageEventDao.updateBatch(events);
+                }
+
+                // the in-memory vm usage state is only good for the window right after the job that produced it
+                if (m_incrementalParse) {
+                    VMInstanceUsageParser.getState().validate(m_checkpointDao.findByParser(VMInstanceUsageState.CHECKPOINT_NAME), startDateMillis);
                 }
 
                 // TODO:  Fetch a maximum number of user stats and process them before moving on to the next range of user stats
@@ -595,17 +624,42 @@ public class UsageManagerImpl implements UsageManager, Runnable {
                     Long offset = Long.valueOf(0);
                     Long limit = Long.valueOf(500);
 
-                    do {
-                        Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
-                        accounts = m_accountDao.listAll(filter);
-                        if ((accounts != null) && !accounts.isEmpty()) {
-                            for (AccountVO account : accounts) {
-                                parsed = parseHelperTables(account, currentStartDate, currentEndDate);
-                                numAcctsProcessed++;
+                    if (m_parseWorkers != null) {
+                        List<AccountVO> activeAccounts = new ArrayList<AccountVO>();
+                        do {
+                            Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
+                            accounts = m_accountDao.listAll(filter);
+                            if ((accounts != null) && !accounts.isEmpty()) {
+                                activeAccounts.addAll(accounts);
                             }
+                            offset = new Long(offset.longValue() + limit.longValue());
+                        } while ((accounts != null) && !accounts.isEmpty());
+
+                        if (!activeAccounts.isEmpty()) {
+                            final Date windowStartDate = currentStartDate;
+                            final Date windowEndDate = currentEndDate;
+                            final UsageParserStats windowStats = parserStats;
+                            parsed = m_parseWorkers.parse(activeAccounts, new UsageParseWorkers.AccountParser() {
+                                @Override
+                                public boolean parse(AccountVO account) {
+                                    return parseHelperTables(account, windowStartDate, windowEndDate, windowStats);
+                                }
+                            });
+                            numAcctsProcessed += activeAccounts.size();
                         }
-                        offset = new Long(offset.longValue() + limit.longValue());
-                    } while ((accounts != null) && !accounts.isEmpty());
+                    } else {
+                        do {
+                            Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
+                            accounts = m_accountDao.listAll(filter);
+                            if ((accounts != null) && !accounts.isEmpty()) {
+                                for (AccountVO account : accounts) {
+                                    parsed = parseHelperTables(account, currentStartDate, currentEndDate, parserStats);
+                                    numAcctsProcessed++;
+                                }
+                            }
+                            offset = new Long(offset.longValue() + limit.longValue());
+                        } while ((accounts != null) && !accounts.isEmpty());
+                    }
 
                     if (s_logger.isDebugEnabled()) {
                         s_logger.debug("processed VM/Network Usage for " + numAcctsProcessed + " ACTIVE accts");
@@ -622,7 +676,7 @@ public class UsageManagerImpl implements UsageManager, Runnable {
 
                         if ((accounts != null) && !accounts.isEmpty()) {
                             for (AccountVO account : accounts) {
-                                parsed = parseHelperTables(account, currentStartDate, currentEndDate);
+                                parsed = parseHelperTables(account, currentStartDate, currentEndDate, parserStats);
                                 List<Long> publicTemplates = m_usageDao.listPublicTemplatesByAccount(account.getId());
                                 for(Long templateId : publicTemplates){
                                     //mark public templates owned by deleted accounts as deleted
@@ -665,8 +719,27 @@ public class UsageManagerImpl implements UsageManager, Runnable {
                 s_logger.error("Exception in usage manager", ex);
                 usageTxn.rollback();
             } finally {
+                if (s_logger.isInfoEnabled()) {
+                    s_logger.info("Usage parser stats: " + parserStats);
+                }
+
+                // the parse workers hold the usage of active accounts in their own transactions, they go with the job
+                if (m_parseWorkers != null) {
+                    try {
+                        if (!m_parseWorkers.finish(success)) {
+                            success = false;
+                        }
+                    } catch (InterruptedException e) {
+                        s_logger.warn("Interrupted while finishing the usage parse workers", e);
+                        success = false;
+                    }
+                }
+
                 // everything seemed to work...set endDate as the last success date
-                m_usageJobDao.updateJobSuccess(job.getId(), startDateMillis, endDateMillis, System.currentTimeMillis() - timeStart, success);
+                m_usageJobDao.updateJobSuccess(job.getId(), startDateMillis, endDateMillis, System.currentTimeMillis() - timeStart, success, parserStats.toString());
+                if (m_incrementalParse && success) {
+                    m_checkpointDao.saveCheckpoint(VMInstanceUsageState.CHECKPOINT_NAME, job.getId(), endDateMillis);
+                }
 
                 // create a new job if this is a recurring job
                 if (job.getJobType() == UsageJobVO.JOB_TYPE_RECURRING) {
@@ -675,6 +748,14 @@ public class UsageManagerImpl implements UsageManager, Runnable {
                 usageTxn.commit();
                 usageTxn.close();
 
+                if (m_incrementalParse) {
+                    if (success) {
+                        VMInstanceUsageParser.getState().commit(job.getId());
+                    } else {
+                        VMInstanceUsageParser.getState().discard();
+                    }
+                }
+
                 // switch back to CLOUD_DB
                 Transaction swap = Transaction.open(Transaction.CLOUD_DB);
                 if(!success){
@@ -690,10 +771,15 @@ public class UsageManagerImpl implements UsageManager, Runnable {
 		}
 	}
 	
-	private boolean parseHelperTables(AccountVO account, Date currentStartDate, Date currentEndDate){
+	private boolean parseHelperTables(AccountVO account, Date currentStartDate, Date currentEndDate, UsageParserStats stats){
 	    boolean parsed = false;
+	    long start = System.currentTimeMillis();
+	    long end;
 
 	    parsed = VMInstanceUsageParser.parse(account, currentStartDate, currentEndDate);
+        end = System.currentTimeMillis();
+        stats.record(UsageParserStats.VM_INSTANCE, end - start);
+        start = end;
         if (s_logger.isDebugEnabled()) {
             if (!parsed) {
                 s_logger.debug("vm usage instances successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
@@ -701,6 +787,9 @@ public class UsageManagerImpl implements UsageManager, Runnable {
         }
 
         parsed = NetworkUsageParser.parse(account, currentStartDate, currentEndDate);
+        end = System.currentTimeMillis();
+        stats.record(UsageParserStats.NETWORK, end - start);
+        start = end;
         if (s_logger.isDebugEnabled()) {
             if (!parsed) {
                 s_logger.debug("network usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
@@ -708,6 +797,9 @@ public class UsageManagerImpl implements UsageManager, Runnable {
         }
 
         parsed = VolumeUsageParser.parse(account, currentStartDate, currentEndDate);
+        end = System.currentTimeMillis();
+        stats.record(UsageParserStats.VOLUME, end - start);
+        start = end;
         if (s_logger.isDebugEnabled()) {
             if (!parsed) {
                 s_logger.debug("volume usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
@@ -715,6 +807,9 @@ public class UsageManagerImpl implements UsageManager, Runnable {
         }
 
         parsed = StorageUsageParser.parse(account, currentStartDate, currentEndDate);
+        end = System.currentTimeMillis();
+        stats.record(UsageParserStats.STORAGE, end - start);
+        start = end;
         if (s_logger.isDebugEnabled()) {
             if (!parsed) {
                 s_logger.debug("storage usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
@@ -722,6 +817,9 @@ public class UsageManagerImpl implements UsageManager, Runnable {
         }
 
         parsed = LoadBalancerUsageParser.parse(account, currentStartDate, currentEndDate);
+        end = System.currentTimeMillis();
+        stats.record(UsageParserStats.LOAD_BALANCER, end - start);
+        start = end;
         if (s_logger.isDebugEnabled()) {
             if (!parsed) {
                 s_logger.debug("load balancer usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
@@ -729,6 +827,9 @@ public class UsageManagerImpl implements UsageManager, Runnable {
         }
         
         parsed = PortForwardingUsageParser.parse(account, currentStartDate, currentEndDate);
+        end = System.currentTimeMillis();
+        stats.record(UsageParserStats.PORT_FORWARDING, end - start);
+        start = end;
         if (s_logger.isDebugEnabled()) {
             if (!parsed) {
                 s_logger.debug("port forwarding usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
@@ -736,6 +837,9 @@ public class UsageManagerImpl implements UsageManager, Runnable {
         }
         
         parsed = NetworkOfferingUsageParser.parse(account, currentStartDate, currentEndDate);
+        end = System.currentTimeMillis();
+        stats.record(UsageParserStats.NETWORK_OFFERING, end - start);
+        start = end;
         if (s_logger.isDebugEnabled()) {
             if (!parsed) {
                 s_logger.debug("network offering usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
@@ -743,12 +847,16 @@ public class UsageManagerImpl implements UsageManager, Runnable {
         }
         
         parsed = IPAddressUsageParser.parse(account, currentStartDate, currentEndDate);
+        end = System.currentTimeMillis();
+        stats.record(UsageParserStats.IP_ADDRESS, end - start);
+        start = end;
         if (s_logger.isDebugEnabled()) {
             if (!parsed) {
                 s_logger.debug("IPAddress usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
             }
         }
         
+        stats.accountParsed();
         return parsed;
 	}
 
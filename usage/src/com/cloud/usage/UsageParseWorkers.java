@@ -0,0 +1,181 @@
+/**
+ * *  Copyright (C) 2011 Citrix Systems, Inc.  All rights reserved
+*
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cloud.usage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.user.AccountVO;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.db.Transaction;
+
+/**
+ * Parses accounts on a fixed set of worker threads for the usage job.  Account i of every aggregation window goes to
+ * worker i % threads, and each worker writes through one USAGE_DB transaction that it opens on first use and keeps
+ * open for the rest of the job.  Nothing the workers parse is committed until finish() is called with the outcome of
+ * the whole job, so a job that fails in a later window, or after the parallel part, leaves no usage records behind.
+ */
+public class UsageParseWorkers {
+    private static final Logger s_logger = Logger.getLogger(UsageParseWorkers.class);
+
+    public interface AccountParser {
+        boolean parse(AccountVO account) throws Exception;
+    }
+
+    private final ExecutorService[] _workers;
+    // each slot is only touched by the thread of the worker with the same index
+    private final Transaction[] _txns;
+    private final boolean[] _open;
+
+    public UsageParseWorkers(int threads) {
+        _workers = new ExecutorService[threads];
+        _txns = new Transaction[threads];
+        _open = new boolean[threads];
+        for (int i = 0; i < threads; i++) {
+            _workers[i] = Executors.newSingleThreadExecutor(new NamedThreadFactory("Usage-Parse-" + i));
+        }
+    }
+
+    public int getThreads() {
+        return _workers.length;
+    }
+
+    /**
+     * Parses one aggregation window of accounts and waits for all of them.
+     * @return false if the last account of any worker failed to parse, as the sequential parse loop reports it.
+     */
+    public boolean parse(List<AccountVO> accounts, final AccountParser parser) throws InterruptedException {
+        List<List<AccountVO>> partitions = new ArrayList<List<AccountVO>>(_workers.length);
+        for (int i = 0; i < _workers.length; i++) {
+            partitions.add(new ArrayList<AccountVO>());
+        }
+        for (int i = 0; i < accounts.size(); i++) {
+            partitions.get(i % _workers.length).add(accounts.get(i));
+        }
+
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(_workers.length);
+        for (int i = 0; i < _workers.length; i++) {
+            final int worker = i;
+            final List<AccountVO> partition = partitions.get(i);
+            if (partition.isEmpty()) {
+                continue;
+            }
+            futures.add(_workers[i].submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    if (!_open[worker]) {
+                        _txns[worker] = begin();
+                        _open[worker] = true;
+                    }
+                    boolean parsed = false;
+                    try {
+                        for (AccountVO account : partition) {
+                            parsed = parser.parse(account);
+                        }
+                    } catch (Exception e) {
+                        s_logger.error("Exception while parsing usage of " + partition.size() + " accounts", e);
+                        parsed = false;
+                    }
+                    return parsed;
+                }
+            }));
+        }
+
+        boolean parsed = true;
+        for (Future<Boolean> future : futures) {
+            try {
+                if (!future.get()) {
+                    parsed = false;
+                }
+            } catch (ExecutionException e) {
+                s_logger.error("Unable to complete usage parsing of a partition", e.getCause());
+                parsed = false;
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * Commits or rolls back the transactions of all workers and waits for them.  Called once at the end of every
+     * usage job, the workers open new transactions for the next job.
+     * @return false if any worker could not commit.
+     */
+    public boolean finish(final boolean commit) throws InterruptedException {
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(_workers.length);
+        for (int i = 0; i < _workers.length; i++) {
+            final int worker = i;
+            futures.add(_workers[i].submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    if (!_open[worker]) {
+                        return true;
+                    }
+                    Transaction txn = _txns[worker];
+                    _txns[worker] = null;
+                    _open[worker] = false;
+                    end(txn, commit);
+                    return true;
+                }
+            }));
+        }
+
+        boolean finished = true;
+        for (Future<Boolean> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                s_logger.error("Unable to " + (commit ? "commit" : "roll back") + " the usage parsed by a worker", e.getCause());
+                finished = false;
+            }
+        }
+        return finished;
+    }
+
+    public void shutdown() {
+        for (ExecutorService worker : _workers) {
+            worker.shutdownNow();
+        }
+    }
+
+    protected Transaction begin() {
+        Transaction txn = Transaction.open(Transaction.USAGE_DB);
+        txn.start();
+        return txn;
+    }
+
+    protected void end(Transaction txn, boolean commit) {
+        try {
+            if (commit) {
+                txn.commit();
+            } else {
+                txn.rollback();
+            }
+        } finally {
+            txn.close();
+        }
+    }
+}
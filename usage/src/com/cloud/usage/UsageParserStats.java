@@ -0,0 +1,75 @@
+
+/**
+ * *  Copyright (C) 2011 Citrix Systems, Inc.  All rights reserved
+*
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cloud.usage;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Time spent in each usage parser by one usage job, summed over all accounts
+ * and all parse threads.  The string form is stored in usage_job.parser_stats.
+ */
+public class UsageParserStats {
+    public static final int VM_INSTANCE = 0;
+    public static final int NETWORK = 1;
+    public static final int VOLUME = 2;
+    public static final int STORAGE = 3;
+    public static final int LOAD_BALANCER = 4;
+    public static final int PORT_FORWARDING = 5;
+    public static final int NETWORK_OFFERING = 6;
+    public static final int IP_ADDRESS = 7;
+
+    private static final String[] s_names = { "vm", "network", "volume", "storage", "lb", "pf", "netoffering", "ip" };
+
+    private final AtomicLong[] _millis = new AtomicLong[s_names.length];
+    private final AtomicLong _accounts = new AtomicLong();
+
+    public UsageParserStats() {
+        for (int i = 0; i < _millis.length; i++) {
+            _millis[i] = new AtomicLong();
+        }
+    }
+
+    public void record(int parser, long millis) {
+        _millis[parser].addAndGet(millis);
+    }
+
+    public void accountParsed() {
+        _accounts.incrementAndGet();
+    }
+
+    public long getMillis(int parser) {
+        return _millis[parser].get();
+    }
+
+    public long getAccounts() {
+        return _accounts.get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("accounts=").append(_accounts.get());
+        for (int i = 0; i < s_names.length; i++) {
+            sb.append(", ").append(s_names[i]).append("=").append(_millis[i].get()).append("ms");
+        }
+        return sb.toString();
+    }
+}
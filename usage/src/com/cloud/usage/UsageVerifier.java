@@ -0,0 +1,157 @@
+
+/**
+ * *  Copyright (C) 2011 Citrix Systems, Inc.  All rights reserved
+*
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cloud.usage;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import com.cloud.usage.dao.UsageDao;
+import com.cloud.usage.dao.UsageVMInstanceDao;
+import com.cloud.usage.parser.VMInstanceUsageAggregator;
+import com.cloud.usage.parser.VMInstanceUsageAggregator.VMUsage;
+import com.cloud.user.AccountVO;
+import com.cloud.user.dao.AccountDao;
+import com.cloud.utils.DateUtil;
+import com.cloud.utils.component.ComponentLocator;
+import com.cloud.utils.db.Filter;
+import com.cloud.utils.db.SearchCriteria;
+import com.cloud.utils.db.Transaction;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * Recomputes the vm usage of one aggregation window from every matching
+ * usage_vm_instance row, the way the parser does without incremental state,
+ * and diffs it against the records the usage job stored in cloud_usage.
+ *
+ * Usage: UsageVerifier "<window start>" "<window end>" [accountId], dates in
+ * GMT as yyyy-MM-dd HH:mm:ss; the end second is taken as a whole, like the
+ * window end the job stores.
+ */
+public class UsageVerifier {
+    private static final TimeZone s_gmtTimeZone = TimeZone.getTimeZone("GMT");
+
+    private static final double TOLERANCE = 0.000001;
+
+    private final ComponentLocator _locator = ComponentLocator.getLocator(UsageServer.Name, "usage-components.xml", "log4j-cloud_usage");
+    private final AccountDao m_accountDao = _locator.getDao(AccountDao.class);
+    private final UsageDao m_usageDao = _locator.getDao(UsageDao.class);
+    private final UsageVMInstanceDao m_usageInstanceDao = _locator.getDao(UsageVMInstanceDao.class);
+
+    private final StringBuffer diffs = new StringBuffer();
+    private int diffCount = 0;
+
+    public int verify(Date startDate, Date endDate, Long accountId) {
+        Transaction txn = Transaction.open(Transaction.USAGE_DB);
+        try {
+            List<Long> accountIds = new ArrayList<Long>();
+            if (accountId != null) {
+                accountIds.add(accountId);
+            } else {
+                // removed accounts too, their vms may still have been charged in the window
+                Long offset = Long.valueOf(0);
+                Long limit = Long.valueOf(500);
+                List<AccountVO> accounts;
+                do {
+                    Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
+                    accounts = m_accountDao.listAllIncludingRemoved(filter);
+                    for (AccountVO account : accounts) {
+                        accountIds.add(account.getId());
+                    }
+                    offset = new Long(offset.longValue() + limit.longValue());
+                } while (!accounts.isEmpty());
+            }
+
+            for (Long id : accountIds) {
+                verifyAccount(id, startDate, endDate);
+            }
+            return accountIds.size();
+        } finally {
+            txn.close();
+        }
+    }
+
+    private void verifyAccount(long accountId, Date startDate, Date endDate) {
+        Map<String, Double> expected = new HashMap<String, Double>();
+        for (VMUsage usage : VMInstanceUsageAggregator.aggregate(m_usageInstanceDao.getUsageRecords(accountId, startDate, endDate), startDate, endDate)) {
+            if (usage.getDuration() > 0L) {
+                expected.put(usage.getUsageType() + "-" + usage.getVmId() + "-" + usage.getServiceOfferingId(), new Double(usage.getUsageHours()));
+            }
+        }
+
+        Map<String, Double> recorded = new HashMap<String, Double>();
+        SearchCriteria<UsageVO> sc = m_usageDao.createSearchCriteria();
+        sc.addAnd("accountId", SearchCriteria.Op.EQ, accountId);
+        sc.addAnd("usageType", SearchCriteria.Op.IN, UsageTypes.RUNNING_VM, UsageTypes.ALLOCATED_VM);
+        sc.addAnd("startDate", SearchCriteria.Op.EQ, startDate);
+        sc.addAnd("endDate", SearchCriteria.Op.EQ, endDate);
+        for (UsageVO usage : m_usageDao.searchAllRecords(sc, null)) {
+            String key = usage.getUsageType() + "-" + usage.getVmInstanceId() + "-" + usage.getOfferingId();
+            Double previous = recorded.get(key);
+            recorded.put(key, new Double(usage.getRawUsage().doubleValue() + (previous == null ? 0 : previous.doubleValue())));
+        }
+
+        for (Map.Entry<String, Double> entry : expected.entrySet()) {
+            Double actual = recorded.remove(entry.getKey());
+            if (actual == null || Math.abs(actual.doubleValue() - entry.getValue().doubleValue()) > TOLERANCE) {
+                addDiff(accountId, entry.getKey(), entry.getValue(), actual);
+            }
+        }
+        for (Map.Entry<String, Double> entry : recorded.entrySet()) {
+            addDiff(accountId, entry.getKey(), null, entry.getValue());
+        }
+    }
+
+    private void addDiff(long accountId, String key, Double expected, Double actual) {
+        diffCount++;
+        diffs.append("account " + accountId + ", usage_type-vm-offering " + key + ": expected " + (expected == null ? "no record" : expected.toString())
+                + ", recorded " + (actual == null ? "no record" : actual.toString()));
+        diffs.append("\n");
+    }
+
+    public static void main(String args[]) {
+        if (args.length < 2) {
+            System.out.println("Usage: UsageVerifier \"<start yyyy-MM-dd HH:mm:ss>\" \"<end yyyy-MM-dd HH:mm:ss>\" [accountId]    (dates in GMT)");
+            System.exit(2);
+        }
+        Date startDate = DateUtil.parseDateString(s_gmtTimeZone, args[0]);
+        Date endDate = DateUtil.parseDateString(s_gmtTimeZone, args[1]);
+        // the job ends its windows at the last millisecond of the second
+        endDate = new Date(endDate.getTime() + 999);
+        Long accountId = args.length > 2 ? Long.valueOf(args[2]) : null;
+
+        UsageVerifier verifier = new UsageVerifier();
+        try {
+            int accounts = verifier.verify(startDate, endDate, accountId);
+            if (verifier.diffCount > 0) {
+                System.out.print(verifier.diffs.toString());
+            }
+            System.out.println("Verified vm usage of " + accounts + " accounts, " + verifier.diffCount + " differences");
+            System.exit(verifier.diffCount > 0 ? 1 : 0);
+        } catch (CloudRuntimeException e) {
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+}
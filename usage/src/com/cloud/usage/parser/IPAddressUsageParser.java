@@ -21,6 +21,7 @@
 package com.cloud.usage.parser;
 
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -97,6 +98,7 @@ public class IPAddressUsageParser {
             updateIpUsageData(usageMap, key, usageIp.getId(), currentDuration);
         }
 
+        List<UsageVO> usageRecords = new ArrayList<UsageVO>();
         for (String ipIdKey : usageMap.keySet()) {
             Pair<Long, Long> ipTimeInfo = usageMap.get(ipIdKey);
             long useTime = ipTimeInfo.second().longValue();
@@ -104,10 +106,13 @@ public class IPAddressUsageParser {
             // Only create a usage record if we have a runningTime of bigger than zero.
             if (useTime > 0L) {
                 IpInfo info = IPMap.get(ipIdKey);
-                createUsageRecord(info.getZoneId(), useTime, startDate, endDate, account, info.getIpId(), info.getIPAddress(), info.isSourceNat());
+                createUsageRecord(info.getZoneId(), useTime, startDate, endDate, account, info.getIpId(), info.getIPAddress(), info.isSourceNat(), usageRecords);
             }
         }
 
+        // write all records of the account in one batched insert
+        m_usageDao.persistBatch(usageRecords);
+
         return true;
     }
 
@@ -123,7 +128,7 @@ public class IPAddressUsageParser {
         usageDataMap.put(key, ipUsageInfo);
     }
 
-    private static void createUsageRecord(long zoneId, long runningTime, Date startDate, Date endDate, AccountVO account, long IpId, String IPAddress, boolean isSourceNat) {
+    private static void createUsageRecord(long zoneId, long runningTime, Date startDate, Date endDate, AccountVO account, long IpId, String IPAddress, boolean isSourceNat, List<UsageVO> usageRecords) {
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Total usage time " + runningTime + "ms");
         }
@@ -143,7 +148,7 @@ public class IPAddressUsageParser {
 
         UsageVO usageRecord = new UsageVO(zoneId, account.getAccountId(), account.getDomainId(), usageDesc, usageDisplay + " Hrs", 
                 UsageTypes.IP_ADDRESS, new Double(usage), null, null, null, null, IpId, startDate, endDate, (isSourceNat?"SourceNat":""));
-        m_usageDao.persist(usageRecord);
+        usageRecords.add(usageRecord);
     }
 
     private static class IpInfo {
@@ -21,6 +21,7 @@
 package com.cloud.usage.parser;
 
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -94,6 +95,7 @@ public class LoadBalancerUsageParser {
             updateLBUsageData(usageMap, key, usageLB.getId(), currentDuration);
         }
 
+        List<UsageVO> usageRecords = new ArrayList<UsageVO>();
         for (String lbIdKey : usageMap.keySet()) {
             Pair<Long, Long> sgtimeInfo = usageMap.get(lbIdKey);
             long useTime = sgtimeInfo.second().longValue();
@@ -101,10 +103,13 @@ public class LoadBalancerUsageParser {
             // Only create a usage record if we have a runningTime of bigger than zero.
             if (useTime > 0L) {
             	LBInfo info = lbMap.get(lbIdKey);
-                createUsageRecord(UsageTypes.LOAD_BALANCER_POLICY, useTime, startDate, endDate, account, info.getId(), info.getZoneId() );
+                createUsageRecord(UsageTypes.LOAD_BALANCER_POLICY, useTime, startDate, endDate, account, info.getId(), info.getZoneId() , usageRecords);
             }
         }
 
+        // write all records of the account in one batched insert
+        m_usageDao.persistBatch(usageRecords);
+
         return true;
 	}
 
@@ -120,7 +125,7 @@ public class LoadBalancerUsageParser {
         usageDataMap.put(key, lbUsageInfo);
 	}
 
-	private static void createUsageRecord(int type, long runningTime, Date startDate, Date endDate, AccountVO account, long lbId, long zoneId) {
+	private static void createUsageRecord(int type, long runningTime, Date startDate, Date endDate, AccountVO account, long lbId, long zoneId, List<UsageVO> usageRecords) {
         // Our smallest increment is hourly for now
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Total running time " + runningTime + "ms");
@@ -141,7 +146,7 @@ public class LoadBalancerUsageParser {
         //ToDo: get zone id
         UsageVO usageRecord = new UsageVO(zoneId, account.getId(), account.getDomainId(), usageDesc, usageDisplay + " Hrs", type,
                 new Double(usage), null, null, null, null, lbId, null, startDate, endDate);
-        m_usageDao.persist(usageRecord);
+        usageRecords.add(usageRecord);
     }
 	
 	private static class LBInfo {
@@ -21,6 +21,7 @@
 package com.cloud.usage.parser;
 
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -95,6 +96,7 @@ public class NetworkOfferingUsageParser {
             updateNOUsageData(usageMap, key, usageNO.getVmInstanceId(), currentDuration);
         }
 
+        List<UsageVO> usageRecords = new ArrayList<UsageVO>();
         for (String noIdKey : usageMap.keySet()) {
             Pair<Long, Long> notimeInfo = usageMap.get(noIdKey);
             long useTime = notimeInfo.second().longValue();
@@ -102,10 +104,13 @@ public class NetworkOfferingUsageParser {
             // Only create a usage record if we have a runningTime of bigger than zero.
             if (useTime > 0L) {
                 NOInfo info = noMap.get(noIdKey);
-                createUsageRecord(UsageTypes.NETWORK_OFFERING, useTime, startDate, endDate, account, info.getVmId(), info.getNOId(), info.getZoneId(), info.isDefault());
+                createUsageRecord(UsageTypes.NETWORK_OFFERING, useTime, startDate, endDate, account, info.getVmId(), info.getNOId(), info.getZoneId(), info.isDefault(), usageRecords);
             }
         }
 
+        // write all records of the account in one batched insert
+        m_usageDao.persistBatch(usageRecords);
+
         return true;
 	}
 
@@ -121,7 +126,7 @@ public class NetworkOfferingUsageParser {
         usageDataMap.put(key, noUsageInfo);
 	}
 
-	private static void createUsageRecord(int type, long runningTime, Date startDate, Date endDate, AccountVO account, long vmId, long noId, long zoneId, boolean isDefault) {
+	private static void createUsageRecord(int type, long runningTime, Date startDate, Date endDate, AccountVO account, long vmId, long noId, long zoneId, boolean isDefault, List<UsageVO> usageRecords) {
         // Our smallest increment is hourly for now
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Total running time " + runningTime + "ms");
@@ -142,7 +147,7 @@ public class NetworkOfferingUsageParser {
         long defaultNic = (isDefault) ? 1 : 0;
         UsageVO usageRecord = new UsageVO(zoneId, account.getId(), account.getDomainId(), usageDesc, usageDisplay + " Hrs", type,
                 new Double(usage), vmId, null, noId, null, defaultNic, null, startDate, endDate);
-        m_usageDao.persist(usageRecord);
+        usageRecords.add(usageRecord);
     }
 	
 	private static class NOInfo {
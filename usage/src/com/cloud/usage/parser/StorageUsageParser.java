@@ -21,6 +21,7 @@
 package com.cloud.usage.parser;
 
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -101,6 +102,7 @@ public class StorageUsageParser {
             updateStorageUsageData(usageMap, key, usageStorage.getId(), currentDuration);
         }
 
+        List<UsageVO> usageRecords = new ArrayList<UsageVO>();
         for (String storageIdKey : usageMap.keySet()) {
             Pair<Long, Long> storagetimeInfo = usageMap.get(storageIdKey);
             long useTime = storagetimeInfo.second().longValue();
@@ -108,10 +110,13 @@ public class StorageUsageParser {
             // Only create a usage record if we have a runningTime of bigger than zero.
             if (useTime > 0L) {
                 StorageInfo info = storageMap.get(storageIdKey);
-                createUsageRecord(info.getZoneId(), info.getStorageType(), useTime, startDate, endDate, account, info.getStorageId(), info.getSourceId(), info.getSize());
+                createUsageRecord(info.getZoneId(), info.getStorageType(), useTime, startDate, endDate, account, info.getStorageId(), info.getSourceId(), info.getSize(), usageRecords);
             }
         }
 
+        // write all records of the account in one batched insert
+        m_usageDao.persistBatch(usageRecords);
+
         return true;
 	}
 
@@ -127,7 +132,7 @@ public class StorageUsageParser {
         usageDataMap.put(key, volUsageInfo);
 	}
 
-	private static void createUsageRecord(long zoneId, int type, long runningTime, Date startDate, Date endDate, AccountVO account, long storageId, Long sourceId, long size) {
+	private static void createUsageRecord(long zoneId, int type, long runningTime, Date startDate, Date endDate, AccountVO account, long storageId, Long sourceId, long size, List<UsageVO> usageRecords) {
         // Our smallest increment is hourly for now
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Total running time " + runningTime + "ms");
@@ -167,7 +172,7 @@ public class StorageUsageParser {
         //ToDo: get zone id
         UsageVO usageRecord = new UsageVO(zoneId, account.getId(), account.getDomainId(), usageDesc, usageDisplay + " Hrs", usage_type,
                 new Double(usage), null, null, null, tmplSourceId, storageId, size, startDate, endDate);
-        m_usageDao.persist(usageRecord);
+        usageRecords.add(usageRecord);
     }
 
 	private static class StorageInfo {
@@ -0,0 +1,135 @@
+
+/**
+ * *  Copyright (C) 2011 Citrix Systems, Inc.  All rights reserved
+*
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cloud.usage.parser;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.cloud.usage.UsageTypes;
+import com.cloud.usage.UsageVMInstanceVO;
+
+/**
+ * Turns usage_vm_instance rows into per vm/offering running and allocated
+ * durations for one aggregation window.  Kept free of any DAO so that the
+ * parser and UsageVerifier compute usage with exactly the same rules.
+ */
+public class VMInstanceUsageAggregator {
+
+    public static List<VMUsage> aggregate(List<UsageVMInstanceVO> usageInstances, Date startDate, Date endDate) {
+        // keyed by vmId-soId-usageType, preserving the first vm name seen and the last vm info seen
+        Map<String, VMUsage> usageMap = new HashMap<String, VMUsage>();
+        List<VMUsage> usages = new ArrayList<VMUsage>();
+
+        for (UsageVMInstanceVO usageInstance : usageInstances) {
+            int usageType = usageInstance.getUsageType();
+            if (usageType != UsageTypes.ALLOCATED_VM && usageType != UsageTypes.RUNNING_VM) {
+                continue;
+            }
+
+            long vmId = usageInstance.getVmInstanceId();
+            long soId = usageInstance.getSerivceOfferingId();
+            String key = vmId + "-" + soId + "-" + usageType;
+
+            Date vmStartDate = usageInstance.getStartDate();
+            Date vmEndDate = usageInstance.getEndDate();
+
+            if ((vmEndDate == null) || vmEndDate.after(endDate)) {
+                vmEndDate = endDate;
+            }
+
+            // clip the start date to the beginning of our aggregation range if the vm has been running for a while
+            if (vmStartDate.before(startDate)) {
+                vmStartDate = startDate;
+            }
+
+            long currentDuration = (vmEndDate.getTime() - vmStartDate.getTime()) + 1; // make sure this is an inclusive check for milliseconds (i.e. use n - m + 1 to find total number of millis to charge)
+
+            VMUsage usage = usageMap.get(key);
+            if (usage == null) {
+                usage = new VMUsage(usageType, vmId, usageInstance.getVmName(), soId);
+                usageMap.put(key, usage);
+                usages.add(usage);
+            }
+            usage.zoneId = usageInstance.getZoneId();
+            usage.templateId = usageInstance.getTemplateId();
+            usage.hypervisorType = usageInstance.getHypervisorType();
+            usage.duration += currentDuration;
+        }
+        return usages;
+    }
+
+    public static class VMUsage {
+        private final int usageType;
+        private final long vmId;
+        private final String vmName;
+        private final long serviceOfferingId;
+        private long zoneId;
+        private long templateId;
+        private String hypervisorType;
+        private long duration;
+
+        VMUsage(int usageType, long vmId, String vmName, long serviceOfferingId) {
+            this.usageType = usageType;
+            this.vmId = vmId;
+            this.vmName = vmName;
+            this.serviceOfferingId = serviceOfferingId;
+        }
+
+        public int getUsageType() {
+            return usageType;
+        }
+        public long getVmId() {
+            return vmId;
+        }
+        public String getVmName() {
+            return vmName;
+        }
+        public long getServiceOfferingId() {
+            return serviceOfferingId;
+        }
+        public long getZoneId() {
+            return zoneId;
+        }
+        public long getTemplateId() {
+            return templateId;
+        }
+        public String getHypervisorType() {
+            return hypervisorType;
+        }
+
+        /**
+         * @return charged milliseconds in the window
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        /**
+         * @return the raw usage in hours, computed exactly as it is stored in cloud_usage
+         */
+        public float getUsageHours() {
+            return duration / 1000f / 60f / 60f;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+
+/**
+ * *  Copyright (C) 2011 Citrix Systems, Inc.  All rights reserved
+*
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cloud.usage.parser;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.usage.UsageParserCheckpointVO;
+import com.cloud.usage.UsageVMInstanceVO;
+import com.cloud.usage.dao.UsageVMInstanceDao;
+
+/**
+ * Per account usage_vm_instance rows that were still open (end_date null) at
+ * the end of the last parsed window.  With this state the next window only
+ * needs the rows that changed since, instead of re-reading every open helper
+ * row of the account.
+ *
+ * State written during a job stays pending until the job commits, and is only
+ * trusted while the in-memory checkpoint matches the persisted one in
+ * usage_parser_checkpoint; anything else falls back to a full read.
+ */
+public class VMInstanceUsageState {
+    private static final Logger s_logger = Logger.getLogger(VMInstanceUsageState.class);
+
+    public static final String CHECKPOINT_NAME = "vm_instance";
+
+    private final Map<Long, AccountState> _committed = new ConcurrentHashMap<Long, AccountState>();
+    private final Map<Long, AccountState> _pending = new ConcurrentHashMap<Long, AccountState>();
+    private volatile long _checkpointJobId = -1;
+
+    /**
+     * Drops all state unless it was produced by the job recorded in the
+     * checkpoint and that job ended right before the one about to run.
+     */
+    public void validate(UsageParserCheckpointVO checkpoint, long startMillis) {
+        _pending.clear();
+        if (checkpoint == null || checkpoint.getJobId() != _checkpointJobId || checkpoint.getEndMillis() + 1 != startMillis) {
+            if (!_committed.isEmpty() && s_logger.isDebugEnabled()) {
+                s_logger.debug("Discarding incremental vm usage state of job " + _checkpointJobId + ", checkpoint: "
+                        + (checkpoint == null ? "none" : "job " + checkpoint.getJobId() + " ending at " + checkpoint.getEndMillis()) + ", next window starts at " + startMillis);
+            }
+            reset();
+        }
+    }
+
+    /**
+     * Reads the rows of the account for the window, only those changed since
+     * the previous window when its open rows are known, and records the rows
+     * still open at endDate for the next window.
+     */
+    public List<UsageVMInstanceVO> getUsageInstances(UsageVMInstanceDao usageInstanceDao, long accountId, Date startDate, Date endDate) {
+        List<UsageVMInstanceVO> usageInstances;
+        List<UsageVMInstanceVO> openInstances = getOpenInstances(accountId, startDate);
+        if (openInstances != null) {
+            usageInstances = merge(openInstances, usageInstanceDao.getChangedUsageRecords(accountId, startDate, endDate));
+        } else {
+            usageInstances = usageInstanceDao.getUsageRecords(accountId, startDate, endDate);
+        }
+        update(accountId, endDate, usageInstances);
+        return usageInstances;
+    }
+
+    /**
+     * @return the open rows of the account if they describe the window ending
+     *         right before startDate, otherwise null to force a full read
+     */
+    public List<UsageVMInstanceVO> getOpenInstances(long accountId, Date startDate) {
+        AccountState state = _pending.get(accountId);
+        if (state == null) {
+            state = _committed.get(accountId);
+        }
+        if (state == null || state.endMillis + 1 != startDate.getTime()) {
+            return null;
+        }
+        return state.openInstances;
+    }
+
+    /**
+     * Records the rows of the account still open at endDate.
+     */
+    public void update(long accountId, Date endDate, List<UsageVMInstanceVO> usageInstances) {
+        List<UsageVMInstanceVO> open = new ArrayList<UsageVMInstanceVO>();
+        for (UsageVMInstanceVO usageInstance : usageInstances) {
+            if (usageInstance.getEndDate() == null && !usageInstance.getStartDate().after(endDate)) {
+                open.add(usageInstance);
+            }
+        }
+        _pending.put(accountId, new AccountState(endDate.getTime(), open));
+    }
+
+    public void commit(long jobId) {
+        _committed.putAll(_pending);
+        _pending.clear();
+        _checkpointJobId = jobId;
+    }
+
+    public void discard() {
+        _pending.clear();
+    }
+
+    public void reset() {
+        _committed.clear();
+        _pending.clear();
+        _checkpointJobId = -1;
+    }
+
+    /**
+     * Combines the open rows of the previous window with the rows changed
+     * since; a changed row replaces the open row with the same vm, usage type
+     * and start date (e.g. once its end_date got filled in).
+     */
+    public static List<UsageVMInstanceVO> merge(List<UsageVMInstanceVO> openInstances, List<UsageVMInstanceVO> changedInstances) {
+        Map<String, UsageVMInstanceVO> merged = new LinkedHashMap<String, UsageVMInstanceVO>();
+        for (UsageVMInstanceVO usageInstance : openInstances) {
+            merged.put(key(usageInstance), usageInstance);
+        }
+        for (UsageVMInstanceVO usageInstance : changedInstances) {
+            merged.put(key(usageInstance), usageInstance);
+        }
+        return new ArrayList<UsageVMInstanceVO>(merged.values());
+    }
+
+    private static String key(UsageVMInstanceVO usageInstance) {
+        return usageInstance.getVmInstanceId() + "-" + usageInstance.getUsageType() + "-" + usageInstance.getStartDate().getTime();
+    }
+
+    private static class AccountState {
+        private final long endMillis;
+        private final List<UsageVMInstanceVO> openInstances;
+
+        AccountState(long endMillis, List<UsageVMInstanceVO> openInstances) {
+            this.endMillis = endMillis;
+            this.openInstances = openInstances;
+        }
+    }
+}
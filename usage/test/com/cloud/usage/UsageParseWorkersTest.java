@@ -0,0 +1,143 @@
+/**
+ * *  Copyright (C) 2011 Citrix Systems, Inc.  All rights reserved
+*
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cloud.usage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.cloud.user.AccountVO;
+import com.cloud.utils.db.Transaction;
+
+public class UsageParseWorkersTest extends TestCase {
+
+    /**
+     * Stands in for the USAGE_DB transactions: parsed account ids stay pending on the worker thread that parsed them
+     * until the worker's transaction ends.
+     */
+    private static class RecordingWorkers extends UsageParseWorkers {
+        final ThreadLocal<List<Long>> _pending = new ThreadLocal<List<Long>>();
+        final List<Long> _committed = Collections.synchronizedList(new ArrayList<Long>());
+        final AtomicInteger _begun = new AtomicInteger();
+        final AtomicInteger _ended = new AtomicInteger();
+
+        RecordingWorkers(int threads) {
+            super(threads);
+        }
+
+        @Override
+        protected Transaction begin() {
+            assertNull("A worker began a second transaction within a job", _pending.get());
+            _pending.set(new ArrayList<Long>());
+            _begun.incrementAndGet();
+            return null;
+        }
+
+        @Override
+        protected void end(Transaction txn, boolean commit) {
+            if (commit) {
+                _committed.addAll(_pending.get());
+            }
+            _pending.set(null);
+            _ended.incrementAndGet();
+        }
+
+        void write(AccountVO account) {
+            _pending.get().add(account.getId());
+        }
+    }
+
+    private RecordingWorkers _workers;
+
+    @Override
+    protected void setUp() {
+        _workers = new RecordingWorkers(3);
+    }
+
+    @Override
+    protected void tearDown() {
+        _workers.shutdown();
+    }
+
+    private static List<AccountVO> accounts(int count) {
+        List<AccountVO> accounts = new ArrayList<AccountVO>();
+        for (int i = 1; i <= count; i++) {
+            accounts.add(new AccountVO(i));
+        }
+        return accounts;
+    }
+
+    private UsageParseWorkers.AccountParser parser(final long failingAccountId) {
+        return new UsageParseWorkers.AccountParser() {
+            @Override
+            public boolean parse(AccountVO account) throws Exception {
+                if (account.getId() == failingAccountId) {
+                    throw new Exception("Unable to parse account " + failingAccountId);
+                }
+                _workers.write(account);
+                return true;
+            }
+        };
+    }
+
+    public void testCommitsAllWindowsWithTheJob() throws Exception {
+        assertTrue(_workers.parse(accounts(10), parser(-1)));
+        assertTrue(_workers.parse(accounts(10), parser(-1)));
+        assertTrue("Nothing may be committed before the job ends", _workers._committed.isEmpty());
+
+        assertTrue(_workers.finish(true));
+        assertEquals(20, _workers._committed.size());
+        assertEquals("One transaction per worker per job", 3, _workers._begun.get());
+        assertEquals(3, _workers._ended.get());
+    }
+
+    public void testFailureInLaterWindowCommitsNothing() throws Exception {
+        assertTrue(_workers.parse(accounts(10), parser(-1)));
+        // the last account of the second worker fails in the second window
+        assertFalse(_workers.parse(accounts(10), parser(8)));
+
+        assertTrue(_workers.finish(false));
+        assertTrue(_workers._committed.isEmpty());
+        assertEquals(3, _workers._ended.get());
+    }
+
+    public void testFailureAfterParsingCommitsNothing() throws Exception {
+        // every window parsed, the job then fails in the recently deleted accounts pass
+        assertTrue(_workers.parse(accounts(10), parser(-1)));
+        assertTrue(_workers.parse(accounts(10), parser(-1)));
+
+        assertTrue(_workers.finish(false));
+        assertTrue(_workers._committed.isEmpty());
+    }
+
+    public void testNextJobStartsNewTransactions() throws Exception {
+        assertTrue(_workers.parse(accounts(2), parser(-1)));
+        assertTrue(_workers.finish(false));
+        assertEquals("Idle workers open no transaction", 2, _workers._begun.get());
+
+        assertTrue(_workers.parse(accounts(5), parser(-1)));
+        assertTrue(_workers.finish(true));
+        assertEquals(5, _workers._committed.size());
+        assertEquals(5, _workers._begun.get());
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * *  Copyright (C) 2011 Citrix Systems, Inc.  All rights reserved
+*
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cloud.usage.parser;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.cloud.usage.UsageTypes;
+import com.cloud.usage.UsageVMInstanceVO;
+import com.cloud.usage.parser.VMInstanceUsageAggregator.VMUsage;
+
+public class VMInstanceUsageAggregatorTest extends TestCase {
+    static final long HOUR = 60 * 60 * 1000L;
+    // 2011-01-01 00:00:00 GMT
+    static final long T0 = 1293840000000L;
+
+    final Date _start = new Date(T0);
+    final Date _end = new Date(T0 + HOUR - 1);
+
+    static UsageVMInstanceVO row(int usageType, long vmId, long soId, long start, Long end) {
+        return new UsageVMInstanceVO(usageType, 1, 2, vmId, "vm-" + vmId + "-" + start, soId, 5, "XenServer", new Date(start), end == null ? null : new Date(end));
+    }
+
+    public void testClipsToWindow() {
+        List<VMUsage> usages = VMInstanceUsageAggregator.aggregate(Arrays.asList(
+                // running before and after the window
+                row(UsageTypes.RUNNING_VM, 1, 10, T0 - HOUR, T0 + 2 * HOUR),
+                // still open
+                row(UsageTypes.ALLOCATED_VM, 2, 10, T0 + HOUR / 2, null)), _start, _end);
+
+        assertEquals(2, usages.size());
+        assertEquals(HOUR, usages.get(0).getDuration());
+        assertEquals(1.0f, usages.get(0).getUsageHours());
+        // the end of the window is charged inclusively
+        assertEquals(HOUR / 2, usages.get(1).getDuration());
+    }
+
+    public void testSumsRowsOfTheSameVmOfferingAndType() {
+        List<VMUsage> usages = VMInstanceUsageAggregator.aggregate(Arrays.asList(
+                row(UsageTypes.RUNNING_VM, 1, 10, T0, T0 + 10 * 60000 - 1),
+                row(UsageTypes.RUNNING_VM, 1, 11, T0 + 10 * 60000, T0 + 20 * 60000 - 1),
+                row(UsageTypes.RUNNING_VM, 1, 10, T0 + 30 * 60000, T0 + 40 * 60000 - 1),
+                row(UsageTypes.ALLOCATED_VM, 1, 10, T0, null)), _start, _end);
+
+        assertEquals(3, usages.size());
+        VMUsage running = usages.get(0);
+        assertEquals(UsageTypes.RUNNING_VM, running.getUsageType());
+        assertEquals(10, running.getServiceOfferingId());
+        assertEquals(20 * 60000, running.getDuration());
+        // the name of the first row is kept
+        assertEquals("vm-1-" + T0, running.getVmName());
+        assertEquals(5, running.getTemplateId());
+        assertEquals("XenServer", running.getHypervisorType());
+
+        assertEquals(11, usages.get(1).getServiceOfferingId());
+        assertEquals(10 * 60000, usages.get(1).getDuration());
+        assertEquals(UsageTypes.ALLOCATED_VM, usages.get(2).getUsageType());
+        assertEquals(HOUR, usages.get(2).getDuration());
+    }
+
+    public void testIgnoresOtherUsageTypes() {
+        List<VMUsage> usages = VMInstanceUsageAggregator.aggregate(Arrays.asList(row(UsageTypes.VOLUME, 1, 10, T0, null)), _start, _end);
+        assertTrue(usages.isEmpty());
+    }
+}
@@ -0,0 +1,234 @@
+/**
+ * *  Copyright (C) 2011 Citrix Systems, Inc.  All rights reserved
+*
+ *
+ * This software is licensed under the GNU General Public License v3 or later.
+ *
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.cloud.usage.parser;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.cloud.usage.UsageParserCheckpointVO;
+import com.cloud.usage.UsageTypes;
+import com.cloud.usage.UsageVMInstanceVO;
+import com.cloud.usage.dao.UsageVMInstanceDao;
+import com.cloud.usage.parser.VMInstanceUsageAggregator.VMUsage;
+
+public class VMInstanceUsageStateTest extends TestCase {
+    static final long HOUR = 60 * 60 * 1000L;
+    static final long MINUTE = 60 * 1000L;
+    // 2011-01-01 00:00:00 GMT
+    static final long T0 = 1293840000000L;
+    static final long ACCOUNT = 2;
+
+    final VMInstanceUsageState _state = new VMInstanceUsageState();
+
+    static UsageVMInstanceVO row(int usageType, long vmId, long soId, long start, Long end) {
+        return new UsageVMInstanceVO(usageType, 1, ACCOUNT, vmId, "vm-" + vmId, soId, 5, "XenServer", new Date(start), end == null ? null : new Date(end));
+    }
+
+    static Date windowStart(int window) {
+        return new Date(T0 + window * HOUR);
+    }
+
+    static Date windowEnd(int window) {
+        return new Date(T0 + (window + 1) * HOUR - 1);
+    }
+
+    public void testMergeReplacesChangedRows() {
+        UsageVMInstanceVO open = row(UsageTypes.RUNNING_VM, 1, 10, T0 - HOUR, null);
+        UsageVMInstanceVO allocated = row(UsageTypes.ALLOCATED_VM, 1, 10, T0 - HOUR, null);
+        UsageVMInstanceVO closed = row(UsageTypes.RUNNING_VM, 1, 10, T0 - HOUR, T0 + MINUTE);
+        UsageVMInstanceVO started = row(UsageTypes.RUNNING_VM, 2, 10, T0 + MINUTE, null);
+
+        List<UsageVMInstanceVO> merged = VMInstanceUsageState.merge(Arrays.asList(open, allocated), Arrays.asList(closed, started));
+
+        assertEquals(Arrays.asList(closed, allocated, started), merged);
+    }
+
+    public void testUpdateKeepsRowsOpenAtTheEnd() {
+        UsageVMInstanceVO open = row(UsageTypes.RUNNING_VM, 1, 10, T0, null);
+        UsageVMInstanceVO closed = row(UsageTypes.RUNNING_VM, 2, 10, T0, T0 + MINUTE);
+        UsageVMInstanceVO later = row(UsageTypes.RUNNING_VM, 3, 10, windowEnd(0).getTime() + 1, null);
+
+        _state.update(ACCOUNT, windowEnd(0), Arrays.asList(open, closed, later));
+
+        assertEquals(Collections.singletonList(open), _state.getOpenInstances(ACCOUNT, windowStart(1)));
+    }
+
+    public void testOpenInstancesOnlyForTheNextWindow() {
+        _state.update(ACCOUNT, windowEnd(0), Collections.<UsageVMInstanceVO>emptyList());
+
+        assertNotNull(_state.getOpenInstances(ACCOUNT, windowStart(1)));
+        // a skipped window or a different account needs a full read
+        assertNull(_state.getOpenInstances(ACCOUNT, windowStart(2)));
+        assertNull(_state.getOpenInstances(ACCOUNT + 1, windowStart(1)));
+    }
+
+    public void testDiscardDropsPendingState() {
+        _state.update(ACCOUNT, windowEnd(0), Collections.<UsageVMInstanceVO>emptyList());
+        _state.discard();
+        assertNull(_state.getOpenInstances(ACCOUNT, windowStart(1)));
+
+        _state.update(ACCOUNT, windowEnd(0), Collections.<UsageVMInstanceVO>emptyList());
+        _state.commit(7);
+        _state.discard();
+        assertNotNull(_state.getOpenInstances(ACCOUNT, windowStart(1)));
+    }
+
+    public void testValidateKeepsStateOfTheCheckpointedJob() {
+        _state.update(ACCOUNT, windowEnd(0), Collections.<UsageVMInstanceVO>emptyList());
+        _state.commit(7);
+
+        _state.validate(new UsageParserCheckpointVO(VMInstanceUsageState.CHECKPOINT_NAME, 7, windowEnd(0).getTime()), windowStart(1).getTime());
+        assertNotNull(_state.getOpenInstances(ACCOUNT, windowStart(1)));
+    }
+
+    public void testValidateResetsOnCheckpointMismatch() {
+        // the last job was run by another usage server
+        committedState();
+        _state.validate(new UsageParserCheckpointVO(VMInstanceUsageState.CHECKPOINT_NAME, 8, windowEnd(0).getTime()), windowStart(1).getTime());
+        assertNull(_state.getOpenInstances(ACCOUNT, windowStart(1)));
+
+        // the job did not end right before the next one starts
+        committedState();
+        _state.validate(new UsageParserCheckpointVO(VMInstanceUsageState.CHECKPOINT_NAME, 7, windowEnd(0).getTime()), windowStart(2).getTime());
+        assertNull(_state.getOpenInstances(ACCOUNT, windowStart(1)));
+
+        // no checkpoint persisted
+        committedState();
+        _state.validate(null, windowStart(1).getTime());
+        assertNull(_state.getOpenInstances(ACCOUNT, windowStart(1)));
+    }
+
+    private void committedState() {
+        _state.update(ACCOUNT, windowEnd(0), Collections.<UsageVMInstanceVO>emptyList());
+        _state.commit(7);
+    }
+
+    /**
+     * usage_vm_instance of one account as the queries of UsageVMInstanceDaoImpl see it at a point in time: rows
+     * are inserted when they start and get their end date once they end.  Dates are compared in whole seconds,
+     * like the formatted dates the queries bind.
+     */
+    static class UsageInstanceTable implements InvocationHandler {
+        final List<UsageVMInstanceVO> _rows = new ArrayList<UsageVMInstanceVO>();
+        long _now;
+        int _fullReads;
+        int _changedReads;
+
+        UsageVMInstanceDao dao() {
+            return (UsageVMInstanceDao)Proxy.newProxyInstance(UsageVMInstanceDao.class.getClassLoader(), new Class<?>[] { UsageVMInstanceDao.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            boolean changedOnly;
+            if (method.getName().equals("getUsageRecords")) {
+                changedOnly = false;
+                _fullReads++;
+            } else if (method.getName().equals("getChangedUsageRecords")) {
+                changedOnly = true;
+                _changedReads++;
+            } else {
+                throw new UnsupportedOperationException(method.getName());
+            }
+            long start = seconds(((Date)args[1]).getTime());
+            long end = seconds(((Date)args[2]).getTime());
+
+            List<UsageVMInstanceVO> result = new ArrayList<UsageVMInstanceVO>();
+            for (UsageVMInstanceVO row : _rows) {
+                if (row.getStartDate().getTime() > _now) {
+                    continue;
+                }
+                Date endDate = row.getEndDate() != null && row.getEndDate().getTime() <= _now ? row.getEndDate() : null;
+                long rowStart = seconds(row.getStartDate().getTime());
+                boolean matches;
+                if (endDate == null) {
+                    matches = !changedOnly || rowStart >= start;
+                } else {
+                    long rowEnd = seconds(endDate.getTime());
+                    matches = (rowStart >= start && rowStart <= end) || (rowEnd >= start && rowEnd <= end) || (rowStart <= start && rowEnd >= end);
+                }
+                if (matches) {
+                    // a fresh object per read, like the dao
+                    result.add(new UsageVMInstanceVO(row.getUsageType(), row.getZoneId(), row.getAccountId(), row.getVmInstanceId(), row.getVmName(),
+                            row.getSerivceOfferingId(), row.getTemplateId(), row.getHypervisorType(), row.getStartDate(), endDate));
+                }
+            }
+            return result;
+        }
+
+        static long seconds(long millis) {
+            return millis / 1000;
+        }
+    }
+
+    static Map<String, Long> durations(List<VMUsage> usages) {
+        Map<String, Long> durations = new HashMap<String, Long>();
+        for (VMUsage usage : usages) {
+            durations.put(usage.getUsageType() + "-" + usage.getVmId() + "-" + usage.getServiceOfferingId(), usage.getDuration());
+        }
+        return durations;
+    }
+
+    public void testIncrementalParseMatchesFullParse() {
+        UsageInstanceTable table = new UsageInstanceTable();
+        // running since before the first window, stops in window 2
+        table._rows.add(row(UsageTypes.RUNNING_VM, 1, 10, T0 - 2 * HOUR, T0 + 2 * HOUR + 30 * MINUTE));
+        // allocated all along
+        table._rows.add(row(UsageTypes.ALLOCATED_VM, 1, 10, T0 - 5 * HOUR, null));
+        // starts in window 1 and changes its offering right at the start of window 3
+        table._rows.add(row(UsageTypes.RUNNING_VM, 2, 10, T0 + HOUR + 15 * MINUTE, T0 + 3 * HOUR));
+        table._rows.add(row(UsageTypes.RUNNING_VM, 2, 11, T0 + 3 * HOUR, null));
+        // starts and stops within window 4
+        table._rows.add(row(UsageTypes.RUNNING_VM, 3, 10, T0 + 4 * HOUR + 10 * MINUTE, T0 + 4 * HOUR + 20 * MINUTE));
+        // vm 1 starts again in window 5
+        table._rows.add(row(UsageTypes.RUNNING_VM, 1, 10, T0 + 5 * HOUR, null));
+        UsageVMInstanceDao dao = table.dao();
+
+        for (int window = 0; window < 6; window++) {
+            Date startDate = windowStart(window);
+            Date endDate = windowEnd(window);
+            // the job parses a window right after it ends
+            table._now = endDate.getTime();
+
+            List<VMUsage> full = VMInstanceUsageAggregator.aggregate(dao.getUsageRecords(ACCOUNT, startDate, endDate), startDate, endDate);
+
+            UsageParserCheckpointVO checkpoint = window == 0 ? null : new UsageParserCheckpointVO(VMInstanceUsageState.CHECKPOINT_NAME, window, windowEnd(window - 1).getTime());
+            _state.validate(checkpoint, startDate.getTime());
+            List<VMUsage> incremental = VMInstanceUsageAggregator.aggregate(_state.getUsageInstances(dao, ACCOUNT, startDate, endDate), startDate, endDate);
+            _state.commit(window + 1);
+
+            assertFalse(full.isEmpty());
+            assertEquals("window " + window, durations(full), durations(incremental));
+        }
+        // one full read per window for the reference plus one for the first incremental window
+        assertEquals(7, table._fullReads);
+        assertEquals(5, table._changedReads);
+    }
+}
@@ -0,0 +1,236 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.utils.concurrency;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * HashedWheelTimer schedules a large number of timeouts that are expected
+ * to be cancelled or to be answered long before they fire, such as the
+ * timeouts of outstanding agent requests.
+ * 
+ * Scheduling a timeout only appends it to a lock free queue.  A single
+ * thread moves the new timeouts into the buckets of a wheel once per tick
+ * and hands the expired ones to an executor, so the timeouts fire up to one
+ * tick late but no caller ever waits on the lock of a priority queue.
+ */
+public class HashedWheelTimer {
+    private static final Logger s_logger = Logger.getLogger(HashedWheelTimer.class);
+
+    public interface Timeout {
+        /**
+         * Cancels the timeout.
+         * @return false if it already fired or was already cancelled.
+         */
+        boolean cancel();
+
+        boolean isExpired();
+
+        boolean isCancelled();
+    }
+
+    private static final int ST_INIT = 0;
+    private static final int ST_EXPIRED = 1;
+    private static final int ST_CANCELLED = 2;
+
+    private final String _name;
+    private final long _tickNanos;
+    private final LinkedList<WheelTimeout>[] _wheel;
+    private final int _mask;
+    private final Executor _executor;
+    private final ConcurrentLinkedQueue<WheelTimeout> _newTimeouts = new ConcurrentLinkedQueue<WheelTimeout>();
+    private final AtomicLong _pending = new AtomicLong();
+    private final AtomicLong _expired = new AtomicLong();
+    private final Thread _worker;
+    private volatile boolean _stopped = false;
+    private long _startTime;
+    private long _tick;
+
+    /**
+     * @param name name of the worker thread.
+     * @param tickDuration how often the wheel is turned.
+     * @param unit unit of tickDuration.
+     * @param wheelSize number of buckets; rounded up to a power of 2.
+     * @param executor runs the expired tasks.
+     */
+    @SuppressWarnings("unchecked")
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int wheelSize, Executor executor) {
+        if (tickDuration <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("tickDuration and wheelSize have to be positive");
+        }
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        _name = name;
+        _tickNanos = unit.toNanos(tickDuration);
+        _wheel = new LinkedList[size];
+        for (int i = 0; i < size; i++) {
+            _wheel[i] = new LinkedList<WheelTimeout>();
+        }
+        _mask = size - 1;
+        _executor = executor;
+        _startTime = System.nanoTime();
+
+        _worker = new Thread(new Worker(), name);
+        _worker.setDaemon(true);
+        _worker.start();
+    }
+
+    /**
+     * Schedules task to run on the executor after delay.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (_stopped) {
+            throw new IllegalStateException(_name + " has been stopped");
+        }
+        WheelTimeout timeout = new WheelTimeout(task, System.nanoTime() + unit.toNanos(delay));
+        _pending.incrementAndGet();
+        _newTimeouts.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * @return number of timeouts that have neither fired nor been cancelled.
+     */
+    public long getPendingTimeouts() {
+        return _pending.get();
+    }
+
+    public long getExpiredTimeouts() {
+        return _expired.get();
+    }
+
+    public void stop() {
+        _stopped = true;
+        _worker.interrupt();
+    }
+
+    protected void transferNewTimeouts() {
+        WheelTimeout timeout;
+        while ((timeout = _newTimeouts.poll()) != null) {
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            long ticks = Math.max((timeout._deadline - _startTime + _tickNanos - 1) / _tickNanos, _tick);
+            timeout._remainingRounds = (ticks - _tick) / _wheel.length;
+            _wheel[(int)(ticks & _mask)].add(timeout);
+        }
+    }
+
+    protected void expireTimeouts(long now) {
+        Iterator<WheelTimeout> it = _wheel[(int)(_tick & _mask)].iterator();
+        while (it.hasNext()) {
+            WheelTimeout timeout = it.next();
+            if (timeout.isCancelled()) {
+                it.remove();
+            } else if (timeout._remainingRounds <= 0 && timeout._deadline <= now) {
+                it.remove();
+                timeout.expire();
+            } else if (timeout._remainingRounds > 0) {
+                timeout._remainingRounds--;
+            }
+        }
+    }
+
+    protected class Worker implements Runnable {
+        @Override
+        public void run() {
+            while (!_stopped) {
+                long deadline = _startTime + (_tick + 1) * _tickNanos;
+                long now = System.nanoTime();
+                while (now < deadline) {
+                    try {
+                        long sleep = deadline - now;
+                        Thread.sleep(sleep / 1000000, (int)(sleep % 1000000));
+                    } catch (InterruptedException e) {
+                        if (_stopped) {
+                            return;
+                        }
+                    }
+                    now = System.nanoTime();
+                }
+
+                try {
+                    transferNewTimeouts();
+                    expireTimeouts(now);
+                } catch (Throwable th) {
+                    s_logger.warn("Unexpected exception in " + _name, th);
+                }
+                _tick++;
+            }
+        }
+    }
+
+    protected class WheelTimeout implements Timeout, Runnable {
+        final Runnable _task;
+        final long _deadline;
+        final AtomicInteger _state = new AtomicInteger(ST_INIT);
+        long _remainingRounds;
+
+        WheelTimeout(Runnable task, long deadline) {
+            _task = task;
+            _deadline = deadline;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (_state.compareAndSet(ST_INIT, ST_CANCELLED)) {
+                _pending.decrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return _state.get() == ST_CANCELLED;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return _state.get() == ST_EXPIRED;
+        }
+
+        void expire() {
+            if (!_state.compareAndSet(ST_INIT, ST_EXPIRED)) {
+                return;
+            }
+            _pending.decrementAndGet();
+            _expired.incrementAndGet();
+            try {
+                _executor.execute(this);
+            } catch (Throwable th) {
+                s_logger.warn("Unable to run the expired task of " + _name, th);
+            }
+        }
+
+        @Override
+        public void run() {
+            _task.run();
+        }
+    }
+}
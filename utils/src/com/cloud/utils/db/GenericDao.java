@@ -198,6 +198,25 @@ public interface GenericDao<T, ID extends Serializable> {
      * there's no primary key specified in the VO object.
      **/
     T persist(T entity);
+
+    /**
+     * Persist the entity beans using one batched insert per table.  The id
+     * field of every entity is updated with the new id.  Unlike persist(),
+     * the entities are not reloaded from the database afterwards.
+     * @param entities beans to persist, created by the caller rather than
+     * loaded through this dao.
+     * @return the number of entities persisted.
+     **/
+    int persistBatch(List<T> entities);
+
+    /**
+     * Writes the changes recorded on each entity bean, batching the
+     * entities that changed the same set of columns into one statement.
+     * @param entities beans loaded through this dao or created by
+     * createForUpdate, with their id set.
+     * @return the number of rows updated.
+     **/
+    int updateBatch(List<T> entities);
     
     /**
      * remove the entity bean.  This will call delete automatically if
@@ -38,6 +38,7 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
@@ -155,6 +156,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
     protected static final String SELECT_LAST_INSERT_ID_SQL = "SELECT LAST_INSERT_ID()";
 
     protected static final SequenceFetcher s_seqFetcher = SequenceFetcher.getInstance();
+    protected static final int s_batchSize = 500;
 
     protected String _name;
 
@@ -1317,6 +1319,187 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         return _idField != null ? findByIdIncludingRemoved(id) : null;
     }
 
+    @Override
+    public int persistBatch(final List<T> entities) {
+        if (entities.isEmpty()) {
+            return 0;
+        }
+
+        final Transaction txn = Transaction.currentTxn();
+        txn.start();
+        for (int from = 0; from < entities.size(); from += s_batchSize) {
+            persistBatchChunk(entities.subList(from, Math.min(from + s_batchSize, entities.size())));
+        }
+        txn.commit();
+
+        return entities.size();
+    }
+
+    @SuppressWarnings("unchecked")
+    protected void persistBatchChunk(final List<T> entities) {
+        final Transaction txn = Transaction.currentTxn();
+        PreparedStatement pstmt = null;
+        try {
+            // ids that come from a table generator have to be known before the first insert
+            final TableGenerator tg = _idField != null ? _tgs.get(_idField.getName()) : null;
+            if (tg != null) {
+                final Class<?> idClass = (_idField.getType() == int.class || _idField.getType() == Integer.class) ? Integer.class : Long.class;
+                for (final T entity : entities) {
+                    if (isIdUnset(_idField.get(entity))) {
+                        _idField.set(entity, s_seqFetcher.getNextSequence(idClass, tg));
+                    }
+                }
+            }
+
+            boolean first = true;
+            for (final Pair<String, Attribute[]> pair : _insertSqls) {
+                final Attribute[] attrs = pair.second();
+                pstmt = txn.prepareAutoCloseStatement(pair.first(), Statement.RETURN_GENERATED_KEYS);
+                for (final T entity : entities) {
+                    prepareAttributes(pstmt, entity, attrs, 1);
+                    pstmt.addBatch();
+                }
+                pstmt.executeBatch();
+
+                // the secondary tables of a multi-table entity are keyed by the id generated for the first one
+                if (first && _idField != null) {
+                    final ResultSet rs = pstmt.getGeneratedKeys();
+                    for (final T entity : entities) {
+                        if (isIdUnset(_idField.get(entity))) {
+                            if (rs == null || !rs.next()) {
+                                throw new CloudRuntimeException("Missing generated key for " + entity + " on: " + pstmt);
+                            }
+                            _idField.set(entity, convertGeneratedKey(rs.getObject(1)));
+                        }
+                    }
+                }
+                first = false;
+            }
+
+            if (_ecAttributes != null && _ecAttributes.size() > 0) {
+                for (final T entity : entities) {
+                    HashMap<Attribute, Object> ecAttributes = new HashMap<Attribute, Object>();
+                    for (Attribute attr : _ecAttributes) {
+                        Object ec = attr.field.get(entity);
+                        if (ec != null) {
+                            ecAttributes.put(attr, ec);
+                        }
+                    }
+
+                    if (ecAttributes.size() > 0) {
+                        insertElementCollection(entity, _idAttributes.get(_table)[0], (ID)_idField.get(entity), ecAttributes);
+                    }
+                }
+            }
+        } catch (final SQLException e) {
+            if ("23000".equals(e.getSQLState()) && e.getErrorCode() == 1062) {
+                throw new EntityExistsException("Entity already exists: ", e);
+            } else {
+                throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new CloudRuntimeException("Problem with setting the id or getting the ec attribute ", e);
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException("Problem with setting the id or getting the ec attribute ", e);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public int updateBatch(final List<T> entities) {
+        if (entities.isEmpty()) {
+            return 0;
+        }
+
+        // entities that changed the same columns share a statement
+        final Map<String, List<Pair<UpdateBuilder, SearchCriteria<T>>>> batches = new LinkedHashMap<String, List<Pair<UpdateBuilder, SearchCriteria<T>>>>();
+        final Transaction txn = Transaction.currentTxn();
+        PreparedStatement pstmt = null;
+        try {
+            txn.start();
+            for (final T entity : entities) {
+                assert Enhancer.isEnhanced(entity.getClass()) : "Entity is not generated by this dao";
+
+                final UpdateBuilder ub = getUpdateBuilder(entity);
+                final ID id = (ID)_idField.get(entity);
+                if (_cache != null) {
+                    _cache.remove(id);
+                }
+                if (ub.getCollectionChanges() != null) {
+                    insertElementCollection(entity, _idAttributes.get(_table)[0], id, ub.getCollectionChanges());
+                }
+
+                final StringBuilder sql = ub.toSql(_tables);
+                if (sql == null) {
+                    continue;
+                }
+                final SearchCriteria<T> sc = createSearchCriteria();
+                sc.addAnd(_idAttributes.get(_table)[0], SearchCriteria.Op.EQ, id);
+                sql.append(sc.getWhereClause());
+
+                List<Pair<UpdateBuilder, SearchCriteria<T>>> batch = batches.get(sql.toString());
+                if (batch == null) {
+                    batch = new ArrayList<Pair<UpdateBuilder, SearchCriteria<T>>>();
+                    batches.put(sql.toString(), batch);
+                }
+                batch.add(new Pair<UpdateBuilder, SearchCriteria<T>>(ub, sc));
+            }
+
+            int rowsUpdated = 0;
+            for (final Map.Entry<String, List<Pair<UpdateBuilder, SearchCriteria<T>>>> batch : batches.entrySet()) {
+                for (int from = 0; from < batch.getValue().size(); from += s_batchSize) {
+                    final List<Pair<UpdateBuilder, SearchCriteria<T>>> chunk = batch.getValue().subList(from, Math.min(from + s_batchSize, batch.getValue().size()));
+                    pstmt = txn.prepareAutoCloseStatement(batch.getKey());
+                    for (final Pair<UpdateBuilder, SearchCriteria<T>> update : chunk) {
+                        int i = 1;
+                        for (final Ternary<Attribute, Boolean, Object> value : update.first().getChanges()) {
+                            prepareAttribute(i++, pstmt, value.first(), value.third());
+                        }
+                        for (final Pair<Attribute, Object> value : update.second().getValues()) {
+                            prepareAttribute(i++, pstmt, value.first(), value.second());
+                        }
+                        pstmt.addBatch();
+                    }
+                    for (final int count : pstmt.executeBatch()) {
+                        // drivers may only report that a statement succeeded
+                        rowsUpdated += count == Statement.SUCCESS_NO_INFO ? 1 : count;
+                    }
+                    for (final Pair<UpdateBuilder, SearchCriteria<T>> update : chunk) {
+                        update.first().clear();
+                    }
+                }
+            }
+            txn.commit();
+
+            return rowsUpdated;
+        } catch (final SQLException e) {
+            if ("23000".equals(e.getSQLState()) && e.getErrorCode() == 1062) {
+                throw new EntityExistsException("Entity already exists ", e);
+            }
+            throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
+        } catch (final IllegalAccessException e) {
+            throw new CloudRuntimeException("Problem with getting the id ", e);
+        }
+    }
+
+    @DB(txn=false)
+    protected static boolean isIdUnset(final Object id) {
+        return id == null || (id instanceof Number && ((Number)id).longValue() == 0);
+    }
+
+    @DB(txn=false)
+    protected Object convertGeneratedKey(final Object key) {
+        if (key instanceof Number) {
+            final Class<?> type = _idField.getType();
+            if (type == long.class || type == Long.class) {
+                return ((Number)key).longValue();
+            } else if (type == int.class || type == Integer.class) {
+                return ((Number)key).intValue();
+            }
+        }
+        return key;
+    }
+
     protected void insertElementCollection(T entity, Attribute idAttribute, ID id, Map<Attribute, Object> ecAttributes) throws SQLException {
         Transaction txn = Transaction.currentTxn();
         txn.start();
@@ -130,9 +130,13 @@ public class GlobalLock {
 					}
 					
 					if(ownerThread != null) {
+						if(remainingMilliSeconds <= 0)
+							return false;
+
+						// unlock() notifies us, only wait for what is left of the timeout
 						profiler.start();
 						try {
-							wait(((long)timeoutSeconds)*1000L);
+							wait(remainingMilliSeconds);
 						} catch (InterruptedException e) {
 							interrupted = true;
 						}
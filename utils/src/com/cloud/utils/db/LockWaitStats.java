@@ -0,0 +1,76 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.utils.db;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Histogram of the time threads spent waiting for one op_lock key.
+ */
+public class LockWaitStats {
+    // upper bounds of the buckets in milliseconds, the last bucket takes everything above
+    static final long[] s_bucketBounds = new long[] { 10, 100, 1000, 5000, 30000 };
+
+    private final long[] _buckets = new long[s_bucketBounds.length + 1];
+    private long _count;
+    private long _timeouts;
+    private long _totalMs;
+    private long _maxMs;
+
+    public synchronized void record(long waitMs, boolean acquired) {
+        int i = 0;
+        while (i < s_bucketBounds.length && waitMs >= s_bucketBounds[i]) {
+            i++;
+        }
+        _buckets[i]++;
+        _count++;
+        _totalMs += waitMs;
+        if (waitMs > _maxMs) {
+            _maxMs = waitMs;
+        }
+        if (!acquired) {
+            _timeouts++;
+        }
+    }
+
+    public synchronized long getCount() {
+        return _count;
+    }
+
+    public synchronized long getTimeouts() {
+        return _timeouts;
+    }
+
+    public synchronized long[] getBuckets() {
+        return _buckets.clone();
+    }
+
+    public synchronized Map<String, String> toMap(String key) {
+        Map<String, String> map = new HashMap<String, String>();
+        map.put("key", key);
+        map.put("count", Long.toString(_count));
+        map.put("timeouts", Long.toString(_timeouts));
+        map.put("avgMs", Long.toString(_count == 0 ? 0 : _totalMs / _count));
+        map.put("maxMs", Long.toString(_maxMs));
+        for (int i = 0; i < _buckets.length; i++) {
+            map.put(i < s_bucketBounds.length ? "<" + s_bucketBounds[i] + "ms" : ">=" + s_bucketBounds[s_bucketBounds.length - 1] + "ms", Long.toString(_buckets[i]));
+        }
+        return map;
+    }
+}
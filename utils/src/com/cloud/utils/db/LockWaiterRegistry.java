@@ -0,0 +1,110 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.utils.db;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lets threads waiting for an op_lock key sleep until the key is released
+ * instead of for a fixed interval.  A waiter reads the generation of the key
+ * before it tries the lock in the database, so a release that happens between
+ * the failed attempt and the wait is not lost.
+ */
+public class LockWaiterRegistry {
+    private final ConcurrentHashMap<String, Waiter> _waiters = new ConcurrentHashMap<String, Waiter>();
+
+    public static class Waiter {
+        int _refs;
+        long _generation;
+        boolean _removed;
+
+        public synchronized long getGeneration() {
+            return _generation;
+        }
+    }
+
+    public Waiter register(String key) {
+        while (true) {
+            Waiter waiter = _waiters.get(key);
+            if (waiter == null) {
+                waiter = new Waiter();
+                Waiter existing = _waiters.putIfAbsent(key, waiter);
+                if (existing != null) {
+                    waiter = existing;
+                }
+            }
+            synchronized (waiter) {
+                if (!waiter._removed) {
+                    waiter._refs++;
+                    return waiter;
+                }
+            }
+        }
+    }
+
+    public void unregister(String key, Waiter waiter) {
+        synchronized (waiter) {
+            if (--waiter._refs == 0 && !waiter._removed) {
+                waiter._removed = true;
+                _waiters.remove(key, waiter);
+            }
+        }
+    }
+
+    /**
+     * @return true if the key was released after generation was read, false if the wait timed out
+     */
+    public boolean await(Waiter waiter, long generation, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (waiter) {
+            while (waiter._generation == generation) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                waiter.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if there was anybody waiting for the key
+     */
+    public boolean signal(String key) {
+        Waiter waiter = _waiters.get(key);
+        if (waiter == null) {
+            return false;
+        }
+        synchronized (waiter) {
+            waiter._generation++;
+            waiter.notifyAll();
+        }
+        return true;
+    }
+
+    public void signalAll() {
+        for (String key : _waiters.keySet()) {
+            signal(key);
+        }
+    }
+
+    public int getWaitingKeys() {
+        return _waiters.size();
+    }
+}
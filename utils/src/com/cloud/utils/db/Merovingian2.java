@@ -21,12 +21,14 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.management.StandardMBean;
 
@@ -52,6 +54,7 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     private static final String SELECT_MGMT_LOCKS_SQL = SELECT_SQL + " WHERE mac=?";
     private static final String SELECT_THREAD_LOCKS_SQL = SELECT_SQL + " WHERE mac=? AND ip=?";
     private static final String CLEANUP_THREAD_LOCKS_SQL = "DELETE FROM op_lock WHERE mac=? AND ip=? AND thread=?";
+    private static final String SELECT_THREAD_LOCK_KEYS_SQL = "SELECT op_lock.key FROM op_lock WHERE mac=? AND ip=? AND thread=?";
 
     TimeZone s_gmtTimeZone = TimeZone.getTimeZone("GMT");
 
@@ -61,6 +64,15 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     private ConnectionConcierge _concierge = null;
     private static ThreadLocal<Count> s_tls = new ThreadLocal<Count>();
 
+    private static final long INITIAL_BACKOFF_MS = 50;
+    private static final long MAX_BACKOFF_MS = 5000;
+    private static final int MAX_TRACKED_KEYS = 1000;
+    private static final String OTHER_KEYS = "*";
+
+    private final LockWaiterRegistry _waiters = new LockWaiterRegistry();
+    private final ConcurrentHashMap<String, LockWaitStats> _waitStats = new ConcurrentHashMap<String, LockWaitStats>();
+    private volatile ReleaseListener _releaseListener;
+
     private Merovingian2(long msId) {
         super(MerovingianMBean.class, false);
         _msId = msId;
@@ -121,32 +133,133 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("Acquiring lck-" + key + " with wait time of " + timeInSeconds);
         }
-        long startTime = InaccurateClock.getTime();
+        long startTime = System.currentTimeMillis();
+        long timeout = timeInSeconds * 1000L;
+
+        // a release on this server or a peer wakes us up right away, the backoff only
+        // covers releases nobody tells us about (e.g. the holder dying)
+        LockWaiterRegistry.Waiter waiter = null;
+        long backoff = INITIAL_BACKOFF_MS;
+        boolean interrupted = false;
+        try {
+            while ((System.currentTimeMillis() - startTime) < timeout) {
+                long generation = waiter != null ? waiter.getGeneration() : 0;
+                int count = owns(key);
+
+                if (count >= 1) {
+                    boolean result = increment(key, threadName, threadId);
+                    recordWait(key, waiter, startTime, result);
+                    return result;
+                } else if (count == 0) {
+                    if (doAcquire(key, threadName, threadId)) {
+                        recordWait(key, waiter, startTime, true);
+                        return true;
+                    }
+                }
 
-        while ((InaccurateClock.getTime() - startTime) < (timeInSeconds * 1000)) {
-            int count = owns(key);
+                if (waiter == null) {
+                    // try once more after registering so that a release in between is not missed
+                    waiter = _waiters.register(key);
+                    continue;
+                }
 
-            if (count >= 1) {
-                return increment(key, threadName, threadId);
-            } else if (count == 0) {
-                if (doAcquire(key, threadName, threadId)) {
-                    return true;
+                long remaining = timeout - (System.currentTimeMillis() - startTime);
+                if (remaining <= 0) {
+                    break;
                 }
-            }
-            try {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Sleeping more time while waiting for lck-" + key);
+                try {
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("Waiting up to " + Math.min(backoff, remaining) + "ms for lck-" + key);
+                    }
+                    if (!_waiters.await(waiter, generation, Math.min(backoff, remaining))) {
+                        backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
                 }
-                Thread.sleep(5000);
-            } catch (InterruptedException e) {
+            }
+        } finally {
+            if (waiter != null) {
+                _waiters.unregister(key, waiter);
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
             }
         }
+        recordWait(key, waiter, startTime, false);
         if (s_logger.isTraceEnabled()) {
-            s_logger.trace("Timed out on acquiring lock " + key + ".  Waited for " + (InaccurateClock.getTime() - startTime));
+            s_logger.trace("Timed out on acquiring lock " + key + ".  Waited for " + (System.currentTimeMillis() - startTime));
         }
         return false;
     }
 
+    protected void recordWait(String key, LockWaiterRegistry.Waiter waiter, long startTime, boolean acquired) {
+        // only contended acquisitions are interesting, and keeping the uncontended ones would grow without bound
+        if (waiter == null) {
+            return;
+        }
+        LockWaitStats stats = _waitStats.get(key);
+        if (stats == null) {
+            if (_waitStats.size() >= MAX_TRACKED_KEYS) {
+                key = OTHER_KEYS;
+            }
+            stats = new LockWaitStats();
+            LockWaitStats existing = _waitStats.putIfAbsent(key, stats);
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        stats.record(System.currentTimeMillis() - startTime, acquired);
+    }
+
+    /**
+     * Called when the lock is gone from op_lock, wakes up the local waiters
+     * and lets the listener tell the other management servers.
+     */
+    protected void released(String key) {
+        _waiters.signal(key);
+        ReleaseListener listener = _releaseListener;
+        if (listener != null) {
+            try {
+                listener.onLockReleased(key);
+            } catch (Throwable e) {
+                s_logger.warn("Unable to notify release of lck-" + key, e);
+            }
+        }
+    }
+
+    /**
+     * Wakes up the local waiters for locks released by another management server.
+     */
+    public void onLocksReleasedElsewhere(String[] keys) {
+        for (String key : keys) {
+            _waiters.signal(key);
+        }
+    }
+
+    public void setReleaseListener(ReleaseListener listener) {
+        _releaseListener = listener;
+    }
+
+    @Override
+    public List<Map<String, String>> getLockWaitStats() {
+        List<Map<String, String>> results = new ArrayList<Map<String, String>>();
+        for (Map.Entry<String, LockWaitStats> entry : _waitStats.entrySet()) {
+            results.add(entry.getValue().toMap(entry.getKey()));
+        }
+        return results;
+    }
+
+    @Override
+    public void resetLockWaitStats() {
+        _waitStats.clear();
+    }
+
+    @Override
+    public int getWaitingLockKeys() {
+        return _waiters.getWaitingKeys();
+    }
+
     protected boolean increment(String key, String threadName, int threadId) {
         PreparedStatement pstmt = null;
         try {
@@ -258,6 +371,10 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
             pstmt.setLong(1, msId);
             int rows = pstmt.executeUpdate();
             s_logger.info("Released " + rows + " locks for " + msId);
+            if (rows > 0) {
+                // we don't know which keys they were, so let every local waiter try again
+                _waiters.signalAll();
+            }
         } catch (SQLException e) {
             throw new CloudRuntimeException("Unable to clear the locks", e);
         } finally {
@@ -294,8 +411,11 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
                 pstmt.setString(1, key);
                 pstmt.setLong(2, _msId);
                 int result = pstmt.executeUpdate();
-                if (result == 1 && s_logger.isTraceEnabled()) {
-                    s_logger.trace("lck-" + key + " removed");
+                if (result == 1) {
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("lck-" + key + " removed");
+                    }
+                    released(key);
                 }
                 decrCount();
             } else  if (rows < 1) {
@@ -423,17 +543,38 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         int threadId = System.identityHashCode(th);
 
         PreparedStatement pstmt = null;
+        ResultSet rs = null;
         try {
+            // only this thread adds rows for itself, so the keys read here are exactly the ones deleted below
+            List<String> keys = new ArrayList<String>();
+            pstmt = _concierge.conn().prepareStatement(SELECT_THREAD_LOCK_KEYS_SQL);
+            pstmt.setLong(1, _msId);
+            pstmt.setString(2, threadName);
+            pstmt.setInt(3, threadId);
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                keys.add(rs.getString(1));
+            }
+            rs.close();
+            rs = null;
+            pstmt.close();
+
             pstmt = _concierge.conn().prepareStatement(CLEANUP_THREAD_LOCKS_SQL);
             pstmt.setLong(1, _msId);
             pstmt.setString(2, threadName);
             pstmt.setInt(3, threadId);
             int rows = pstmt.executeUpdate();
+            for (String key : keys) {
+                released(key);
+            }
             assert (false) : "Abandon hope, all ye who enter here....There were still " + rows + ":" + c + " locks not released when the transaction ended, check for lock not released or @DB is not added to the code that using the locks!";
         } catch (SQLException e) {
             throw new CloudRuntimeException("Can't clear locks " + pstmt, e);
         } finally {
             try {
+                if (rs != null) {
+                    rs.close();
+                }
                 if (pstmt != null) {
                     pstmt.close();
                 }
@@ -450,6 +591,9 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
             pstmt = _concierge.conn().prepareStatement(RELEASE_LOCK_SQL);
             pstmt.setString(1, key);
             int rows = pstmt.executeUpdate();
+            if (rows > 0) {
+                released(key);
+            }
             return rows > 0;
         } catch (SQLException e) {
             s_logger.error("Unable to release lock " + key, e);
@@ -459,4 +603,12 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     protected static class Count {
         public int count = 0;
     }
+
+    /**
+     * Told about every lock this server removes from op_lock, so that waiters
+     * on other management servers can be woken up as well.
+     */
+    public interface ReleaseListener {
+        void onLockReleased(String key);
+    }
 }
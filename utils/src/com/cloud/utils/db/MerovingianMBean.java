@@ -30,4 +30,13 @@ public interface MerovingianMBean {
     boolean releaseLockAsLastResortAndIReallyKnowWhatIAmDoing(String key);
     
     void cleanupForServer(long msId);
+
+    /**
+     * @return one histogram per key of the time spent waiting for contended locks
+     */
+    List<Map<String, String>> getLockWaitStats();
+
+    void resetLockWaitStats();
+
+    int getWaitingLockKeys();
 }
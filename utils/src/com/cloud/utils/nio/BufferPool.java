@@ -0,0 +1,249 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.utils.nio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.mgmt.JmxUtil;
+
+/**
+ * BufferPool hands out direct buffers carved from slabs so the selector
+ * doesn't have to allocate a new buffer for every packet it wraps or
+ * unwraps.  Size classes are registered by the links using it, which
+ * means they match the packet and application buffer sizes of the SSL
+ * sessions going through the selector.  Requests that don't fit any
+ * size class, or that come in after the pool has hit its slab limit,
+ * are satisfied with a heap buffer and counted as a miss.
+ */
+public class BufferPool extends StandardMBean implements BufferPoolMBean {
+    private static final Logger s_logger = Logger.getLogger(BufferPool.class);
+
+    protected static final int DEFAULT_BUFFERS_PER_SLAB = 16;
+    protected static final int DEFAULT_MAX_SLABS_PER_CLASS = 64;
+
+    private final String _name;
+    private final int _buffersPerSlab;
+    private final int _maxSlabsPerClass;
+    private volatile SizeClass[] _classes;
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _inFlight = new AtomicLong();
+    private final AtomicInteger _slabs = new AtomicInteger();
+
+    public BufferPool(String name) {
+        this(name, DEFAULT_BUFFERS_PER_SLAB, DEFAULT_MAX_SLABS_PER_CLASS);
+    }
+
+    public BufferPool(String name, int buffersPerSlab, int maxSlabsPerClass) {
+        super(BufferPoolMBean.class, false);
+        _name = name;
+        _buffersPerSlab = buffersPerSlab;
+        _maxSlabsPerClass = maxSlabsPerClass;
+        _classes = new SizeClass[0];
+    }
+
+    public void registerMBean() {
+        try {
+            JmxUtil.registerMBean("NioBufferPool", _name, this);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register the buffer pool " + _name + " to JMX", e);
+        }
+    }
+
+    public void unregisterMBean() {
+        try {
+            JmxUtil.unregisterMBean("NioBufferPool", _name);
+        } catch (Exception e) {
+            s_logger.debug("Unable to unregister the buffer pool " + _name + " from JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Makes sure there is a size class that can hold exactly size bytes.
+     * Calling this more than once for the same size is cheap.
+     */
+    public void addSizeClass(int size) {
+        for (SizeClass sc : _classes) {
+            if (sc.capacity == size) {
+                return;
+            }
+        }
+
+        synchronized (this) {
+            SizeClass[] classes = _classes;
+            for (SizeClass sc : classes) {
+                if (sc.capacity == size) {
+                    return;
+                }
+            }
+
+            SizeClass[] expanded = new SizeClass[classes.length + 1];
+            int i = 0;
+            while (i < classes.length && classes[i].capacity < size) {
+                expanded[i] = classes[i];
+                i++;
+            }
+            expanded[i] = new SizeClass(size);
+            System.arraycopy(classes, i, expanded, i + 1, classes.length - i);
+            _classes = expanded;
+        }
+    }
+
+    /**
+     * @param size minimum capacity needed.
+     * @return a cleared buffer with at least size bytes of capacity.  The
+     *         caller must give it back through release() when done.
+     */
+    public ByteBuffer acquire(int size) {
+        SizeClass sc = findClass(size);
+        if (sc != null) {
+            ByteBuffer buffer = sc.take();
+            if (buffer != null) {
+                _hits.incrementAndGet();
+                _inFlight.addAndGet(buffer.capacity());
+                return buffer;
+            }
+        }
+
+        _misses.incrementAndGet();
+        if (s_logger.isTraceEnabled()) {
+            s_logger.trace("Buffer pool " + _name + " has no free buffer for " + size + " bytes");
+        }
+        return ByteBuffer.allocate(size);
+    }
+
+    /**
+     * Returns a buffer obtained from acquire() to the pool.  Buffers that
+     * were not carved out of this pool are simply dropped.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+
+        SizeClass sc = findClass(buffer.capacity());
+        if (sc == null || sc.capacity != buffer.capacity()) {
+            return;
+        }
+
+        buffer.clear();
+        _inFlight.addAndGet(-buffer.capacity());
+        sc.free.offer(buffer);
+    }
+
+    protected SizeClass findClass(int size) {
+        for (SizeClass sc : _classes) {
+            if (sc.capacity >= size) {
+                return sc;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public long getHits() {
+        return _hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return _misses.get();
+    }
+
+    @Override
+    public long getBytesInFlight() {
+        return _inFlight.get();
+    }
+
+    @Override
+    public long getBytesPooled() {
+        long total = 0;
+        for (SizeClass sc : _classes) {
+            total += (long)sc.slabs.get() * _buffersPerSlab * sc.capacity;
+        }
+        return total;
+    }
+
+    @Override
+    public int getSlabCount() {
+        return _slabs.get();
+    }
+
+    @Override
+    public String getSizeClasses() {
+        StringBuilder str = new StringBuilder();
+        for (SizeClass sc : _classes) {
+            if (str.length() > 0) {
+                str.append(", ");
+            }
+            str.append(sc.capacity).append(":").append(sc.free.size()).append("/").append(sc.slabs.get() * _buffersPerSlab);
+        }
+        return str.toString();
+    }
+
+    protected class SizeClass {
+        final int capacity;
+        final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+        final AtomicInteger slabs = new AtomicInteger();
+
+        SizeClass(int capacity) {
+            this.capacity = capacity;
+        }
+
+        ByteBuffer take() {
+            ByteBuffer buffer = free.poll();
+            while (buffer == null) {
+                if (!grow()) {
+                    return null;
+                }
+                buffer = free.poll();
+            }
+            return buffer;
+        }
+
+        synchronized boolean grow() {
+            if (!free.isEmpty()) {
+                return true;
+            }
+            if (slabs.get() >= _maxSlabsPerClass) {
+                return false;
+            }
+
+            ByteBuffer slab = ByteBuffer.allocateDirect(capacity * _buffersPerSlab);
+            for (int i = 0; i < _buffersPerSlab; i++) {
+                slab.limit((i + 1) * capacity);
+                slab.position(i * capacity);
+                free.offer(slab.slice());
+            }
+            slabs.incrementAndGet();
+            _slabs.incrementAndGet();
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Buffer pool " + _name + " allocated slab #" + slabs.get() + " for " + capacity + " byte buffers");
+            }
+            return true;
+        }
+    }
+}
@@ -30,6 +30,8 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.WritableByteChannel;
 import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.net.ssl.KeyManagerFactory;
@@ -50,13 +52,24 @@ import com.cloud.utils.PropertiesUtil;
  */
 public class Link {
     private static final Logger s_logger = Logger.getLogger(Link.class);
+
+    /* Used by the static write() for channels that are not managed by a NioConnection */
+    private static final BufferPool s_pool = new BufferPool("Link");
+    static {
+        s_pool.registerMBean();
+    }
+
+    /* Marker placed in the write queue to close the connection */
+    private static final ByteBuffer[] CLOSE_MARKER = new ByteBuffer[0];
    
     private final InetSocketAddress _addr;
     private final NioConnection _connection;
+    private final BufferPool _pool;
     private SelectionKey _key;
     private final ConcurrentLinkedQueue<ByteBuffer[]> _writeQueue;
     private ByteBuffer _readBuffer;
-    private ByteBuffer _plaintextBuffer;
+    private final List<ByteBuffer> _plaintextBuffers;
+    private int _plaintextLength;
     private Object _attach;
     private boolean _readHeader;
     private boolean _gotFollowingPacket;
@@ -66,7 +79,10 @@ public class Link {
     public Link(InetSocketAddress addr, NioConnection connection) {
         _addr = addr;
         _connection = connection;
+        _pool = connection.getBufferPool();
         _readBuffer = ByteBuffer.allocate(2048);
+        _plaintextBuffers = new ArrayList<ByteBuffer>();
+        _plaintextLength = 0;
         _attach = null;
         _key = null;
         _writeQueue = new ConcurrentLinkedQueue<ByteBuffer[]>();
@@ -92,6 +108,13 @@ public class Link {
     
     public void setSSLEngine(SSLEngine sslEngine) {
         _sslEngine = sslEngine;
+        addSizeClasses(_pool, sslEngine);
+    }
+
+    protected static void addSizeClasses(BufferPool pool, SSLEngine sslEngine) {
+        SSLSession sslSession = sslEngine.getSession();
+        pool.addSizeClass(sslSession.getPacketBufferSize() + 44);
+        pool.addSizeClass(sslSession.getApplicationBufferSize() + 40);
     }
 
     /**
@@ -137,58 +160,50 @@ public class Link {
     }
     */
     
-    private static void doWrite(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine) throws IOException {
+    private static void doWrite(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine, BufferPool pool) throws IOException {
         SSLSession sslSession = sslEngine.getSession();
-        ByteBuffer pkgBuf = ByteBuffer.allocate(sslSession.getPacketBufferSize() + 40);
+        // The first 4 bytes are reserved for the header so header and packet go out in one write.
+        ByteBuffer pkgBuf = pool.acquire(sslSession.getPacketBufferSize() + 44);
         SSLEngineResult engResult;
 
-        ByteBuffer headBuf = ByteBuffer.allocate(4);
-        
-        int totalLen = 0;
-        for (ByteBuffer buffer : buffers) {
-            totalLen += buffer.limit();
-        }
-
-        int processedLen = 0;
-        while (processedLen < totalLen) {
-            headBuf.clear();
-            pkgBuf.clear();
-            engResult = sslEngine.wrap(buffers, pkgBuf);
-            if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED &&
-                    engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
-                    engResult.getStatus() != SSLEngineResult.Status.OK) {
-                throw new IOException("SSL: SSLEngine return bad result! " + engResult);
-            }
-            
-            processedLen = 0;
+        try {
+            int totalLen = 0;
             for (ByteBuffer buffer : buffers) {
-                processedLen += buffer.position();
+                totalLen += buffer.limit();
             }
 
-            int dataRemaining = pkgBuf.position();
-            int header = dataRemaining;
-            int headRemaining = 4;
-            pkgBuf.flip();
-            if (processedLen < totalLen) {
-                header = header | HEADER_FLAG_FOLLOWING;
-            }
-            headBuf.putInt(header);
-            headBuf.flip();
+            int processedLen = 0;
+            while (processedLen < totalLen) {
+                pkgBuf.clear();
+                pkgBuf.position(4);
+                engResult = sslEngine.wrap(buffers, pkgBuf);
+                if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED &&
+                        engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
+                        engResult.getStatus() != SSLEngineResult.Status.OK) {
+                    throw new IOException("SSL: SSLEngine return bad result! " + engResult);
+                }
 
-            while (headRemaining > 0) {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Writing Header " + headRemaining);
+                processedLen = 0;
+                for (ByteBuffer buffer : buffers) {
+                    processedLen += buffer.position();
                 }
-                long count = ch.write(headBuf);
-                headRemaining -= count;
-            }
-            while (dataRemaining > 0) {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Writing Data " + dataRemaining);
+
+                int header = pkgBuf.position() - 4;
+                if (processedLen < totalLen) {
+                    header = header | HEADER_FLAG_FOLLOWING;
+                }
+                pkgBuf.putInt(0, header);
+                pkgBuf.flip();
+
+                while (pkgBuf.hasRemaining()) {
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("Writing Data " + pkgBuf.remaining());
+                    }
+                    ch.write(pkgBuf);
                 }
-                long count = ch.write(pkgBuf);
-                dataRemaining -= count;
             }
+        } finally {
+            pool.release(pkgBuf);
         }
     }
     
@@ -203,7 +218,8 @@ public class Link {
      */
     public static void write(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine) throws IOException {
         synchronized(ch) {
-            doWrite(ch, buffers, sslEngine);
+            addSizeClasses(s_pool, sslEngine);
+            doWrite(ch, buffers, sslEngine, s_pool);
         } 
     }
     
@@ -236,10 +252,6 @@ public class Link {
             	throw new IOException("Wrong packet size: " + readSize);
             }
             
-            if (!_gotFollowingPacket) {
-                _plaintextBuffer = ByteBuffer.allocate(2000);
-            }
-            
             if ((header & HEADER_FLAG_FOLLOWING) != 0) {
                 _gotFollowingPacket = true;
             } else {
@@ -271,28 +283,27 @@ public class Link {
         
         _readBuffer.flip();
 
-        ByteBuffer appBuf;
-
         SSLSession sslSession = _sslEngine.getSession();
         SSLEngineResult engResult;
 
-        appBuf = ByteBuffer.allocate(sslSession.getApplicationBufferSize() + 40);
-        engResult = _sslEngine.unwrap(_readBuffer, appBuf);
+        ByteBuffer appBuf = _pool.acquire(sslSession.getApplicationBufferSize() + 40);
+        try {
+            engResult = _sslEngine.unwrap(_readBuffer, appBuf);
+        } catch (IOException e) {
+            _pool.release(appBuf);
+            throw e;
+        }
         if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED &&
                 engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
                 engResult.getStatus() != SSLEngineResult.Status.OK) {
+            _pool.release(appBuf);
             throw new IOException("SSL: SSLEngine return bad result! " + engResult);
         }
 
         appBuf.flip();
-        if (_plaintextBuffer.remaining() < appBuf.limit()) {
-            // We need to expand _plaintextBuffer for more data
-            ByteBuffer newBuffer = ByteBuffer.allocate(_plaintextBuffer.capacity() + appBuf.limit() * 5);
-            _plaintextBuffer.flip();
-            newBuffer.put(_plaintextBuffer);
-            _plaintextBuffer = newBuffer;
-        }
-        _plaintextBuffer.put(appBuf);
+        // Hang on to the decrypted packet until the whole message is in so it gets copied only once.
+        _plaintextBuffers.add(appBuf);
+        _plaintextLength += appBuf.limit();
         _readBuffer.clear();
         _readHeader = true;
         
@@ -301,9 +312,14 @@ public class Link {
         }
         
         if (!_gotFollowingPacket) {
-            _plaintextBuffer.flip();
-            byte[] result = new byte[_plaintextBuffer.limit()];
-            _plaintextBuffer.get(result);
+            byte[] result = new byte[_plaintextLength];
+            int offset = 0;
+            for (ByteBuffer buffer : _plaintextBuffers) {
+                int len = buffer.remaining();
+                buffer.get(result, offset, len);
+                offset += len;
+            }
+            releasePlaintextBuffers();
             return result;
         } else {
             if (s_logger.isTraceEnabled()) {
@@ -312,6 +328,14 @@ public class Link {
             return null;
         }
     }
+
+    protected void releasePlaintextBuffers() {
+        for (ByteBuffer buffer : _plaintextBuffers) {
+            _pool.release(buffer);
+        }
+        _plaintextBuffers.clear();
+        _plaintextLength = 0;
+    }
     
     public void send(byte[] data) throws ClosedChannelException {
         send(data, false);
@@ -322,24 +346,18 @@ public class Link {
     }
     
     public void send(ByteBuffer[] data, boolean close) throws ClosedChannelException {
-        ByteBuffer[] item = new ByteBuffer[data.length + 1];
-        int remaining = 0;
-        for (int i = 0; i < data.length; i++) {
-            remaining += data[i].remaining();
-            item[i + 1] = data[i];
-        }
-        
-        item[0] = ByteBuffer.allocate(4);
-        item[0].putInt(remaining);
-        item[0].flip();
-        
         if (s_logger.isTraceEnabled()) {
+            int remaining = 0;
+            for (ByteBuffer buffer : data) {
+                remaining += buffer.remaining();
+            }
             s_logger.trace("Sending packet of length " + remaining);
         }
         
-        _writeQueue.add(item);
+        // The framing headers are written by doWrite() for each SSL packet so the data is queued as is.
+        _writeQueue.add(data);
         if  (close) {
-            _writeQueue.add(new ByteBuffer[0]);
+            _writeQueue.add(CLOSE_MARKER);
         }
         synchronized (this) {
             if (_key == null) {
@@ -362,17 +380,14 @@ public class Link {
     public boolean write(SocketChannel ch) throws IOException {
         ByteBuffer[] data = null;
         while ((data = _writeQueue.poll()) != null) {
-            if (data.length == 0) {
+            if (data == CLOSE_MARKER) {
                 if (s_logger.isTraceEnabled()) {
                     s_logger.trace("Closing connection requested");
                 }
                 return true;
             }
 
-            ByteBuffer[] raw_data = new ByteBuffer[data.length - 1];
-            System.arraycopy(data, 1, raw_data, 0, data.length - 1);
-
-            doWrite(ch, raw_data, _sslEngine);
+            doWrite(ch, data, _sslEngine, _pool);
         }
         return false;
     }
@@ -387,6 +402,7 @@ public class Link {
     
     public synchronized void terminated() {
         _key = null;
+        releasePlaintextBuffers();
     }
     
     public synchronized void schedule(Task task) throws ClosedChannelException {
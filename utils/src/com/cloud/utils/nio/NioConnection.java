@@ -23,6 +23,7 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
@@ -60,15 +61,33 @@ public abstract class NioConnection implements Runnable {
     protected HandlerFactory _factory;
     protected String _name;
     protected ExecutorService _executor;
+    protected BufferPool _bufferPool;
+    protected SelectorLoopStats _stats;
     
     public NioConnection(String name, int port, int workers, HandlerFactory factory) {
+        this(name, port, factory, new ThreadPoolExecutor(workers, 5 * workers, 1, TimeUnit.DAYS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(name + "-Handler")));
+    }
+
+    /**
+     * Constructor for connections that share the handler threads of
+     * another connection.
+     */
+    protected NioConnection(String name, int port, HandlerFactory factory, ExecutorService executor) {
         _name = name;
         _isRunning = false;
         _thread = null;
         _selector = null;
         _port = port;
         _factory = factory;
-        _executor = new ThreadPoolExecutor(workers, 5 * workers, 1, TimeUnit.DAYS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(name + "-Handler"));
+        _executor = executor;
+        _bufferPool = new BufferPool(name);
+        _bufferPool.registerMBean();
+        _stats = new SelectorLoopStats(this);
+        _stats.registerMBean(name);
+    }
+
+    public BufferPool getBufferPool() {
+        return _bufferPool;
     }
 
     public void start() {
@@ -77,10 +96,13 @@ public abstract class NioConnection implements Runnable {
         _thread = new Thread(this, _name + "-Selector");
         _isRunning = true;
         _thread.start();
-        // Wait until we got init() done
+        // Wait until we got init() done.  The thread may have finished init()
+        // before we get here or died in it, so don't wait on a notify that already happened.
         synchronized(_thread) {
             try {
-                _thread.wait();
+                while (!_isStartup && _thread.isAlive()) {
+                    _thread.wait();
+                }
             } catch (InterruptedException e) {
                 s_logger.warn("Interrupted start thread ", e);
             }
@@ -93,6 +115,16 @@ public abstract class NioConnection implements Runnable {
         if (_thread != null) {
             _thread.interrupt();
         }
+        unregisterMBeans();
+    }
+
+    /**
+     * The agent creates a new connection of the same name on every reconnect,
+     * so the beans of a stopped connection have to go.
+     */
+    protected void unregisterMBeans() {
+        _bufferPool.unregisterMBean();
+        _stats.unregisterMBean(_name);
     }
     
     public boolean isRunning() {
@@ -125,13 +157,15 @@ public abstract class NioConnection implements Runnable {
         while (_isRunning) {
             try {
                 _selector.select();
+                long loopStart = System.nanoTime();
 
                 // Someone is ready for I/O, get the ready keys
                 Set<SelectionKey> readyKeys = _selector.selectedKeys();
                 Iterator<SelectionKey> i = readyKeys.iterator();
+                int readyCount = readyKeys.size();
 
                 if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Keys Processing: " + readyKeys.size());
+                    s_logger.trace("Keys Processing: " + readyCount);
                 }
                 // Walk through the ready keys collection.
                 while (i.hasNext()) {
@@ -162,6 +196,7 @@ public abstract class NioConnection implements Runnable {
                 s_logger.trace("Keys Done Processing.");
 
                 processTodos();
+                _stats.record(readyCount, System.nanoTime() - loopStart);
             } catch (Throwable e) {
                 s_logger.warn("Caught an exception but continuing on.", e);
             }
@@ -186,6 +221,24 @@ public abstract class NioConnection implements Runnable {
             s_logger.trace("Connection accepted for " + socket);
         }
         
+        dispatch(socketChannel);
+    }
+
+    /**
+     * Hands an accepted connection to the selector that is going to serve it.
+     * By default that's this connection's selector.
+     */
+    protected void dispatch(SocketChannel socketChannel) throws IOException {
+        setupConnection(socketChannel);
+    }
+
+    /**
+     * Does the SSL handshake on an accepted connection and registers it with
+     * this connection's selector.  Must be called from the selector thread.
+     */
+    protected void setupConnection(SocketChannel socketChannel) throws IOException {
+        Socket socket = socketChannel.socket();
+
         // Begin SSL handshake in BLOCKING mode
         socketChannel.configureBlocking(true);
 
@@ -217,7 +270,7 @@ public abstract class NioConnection implements Runnable {
         InetSocketAddress saddr = (InetSocketAddress)socket.getRemoteSocketAddress();
         Link link = new Link(saddr, this);
         link.setSSLEngine(sslEngine);
-        link.setKey(socketChannel.register(key.selector(), SelectionKey.OP_READ, link));
+        link.setKey(socketChannel.register(_selector, SelectionKey.OP_READ, link));
         Task task = _factory.create(Task.Type.CONNECT, link, null);
         registerLink(saddr, link);
         _executor.execute(task);
@@ -334,6 +387,17 @@ public abstract class NioConnection implements Runnable {
                         }
                     }
                     break;
+                case ChangeRequest.ACCEPT :
+                    try {
+                        setupConnection((SocketChannel)todo.key);
+                    } catch (IOException e) {
+                        s_logger.warn("Couldn't set up accepted socket: " + todo.key, e);
+                        try {
+                            ((SocketChannel)(todo.key)).close();
+                        } catch (IOException ignore) {
+                        }
+                    }
+                    break;
                 case ChangeRequest.CLOSE :
                     if (s_logger.isTraceEnabled()) {
                         s_logger.trace("Trying to close " + todo.key);
@@ -442,6 +506,33 @@ public abstract class NioConnection implements Runnable {
         _selector.wakeup();
     }
 
+    /**
+     * Queues an accepted connection to be set up by this connection's selector thread.
+     */
+    public void accepted(SocketChannel ch) {
+        ChangeRequest todo = new ChangeRequest(ch, ChangeRequest.ACCEPT, 0, null);
+        synchronized (this) {
+            _todos.add(todo);
+        }
+        _selector.wakeup();
+    }
+
+    public synchronized int getPendingChangeRequests() {
+        return _todos == null ? 0 : _todos.size();
+    }
+
+    public int getRegisteredKeys() {
+        Selector selector = _selector;
+        if (selector == null || !selector.isOpen()) {
+            return 0;
+        }
+        try {
+            return selector.keys().size();
+        } catch (ClosedSelectorException e) {
+            return 0;
+        }
+    }
+
     /* Release the resource used by the instance */
     public void cleanUp() throws IOException {
        if (_selector != null) {
@@ -453,6 +544,7 @@ public abstract class NioConnection implements Runnable {
         public static final int REGISTER = 1;
         public static final int CHANGEOPS = 2;
         public static final int CLOSE = 3;
+        public static final int ACCEPT = 4;
 
         public Object key;
         public int type;
@@ -21,9 +21,12 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.log4j.Logger;
 
@@ -34,10 +37,26 @@ public class NioServer extends NioConnection {
     
     protected WeakHashMap<InetSocketAddress, Link> _links;
     
+    protected int _selectorCount;
+    protected SelectorLoop[] _loops;
+    protected int _nextLoop;
+    
     public NioServer(String name, int port, int workers, HandlerFactory factory) {
+        this(name, port, workers, 1, factory);
+    }
+    
+    /**
+     * @param selectors number of selector threads serving the accepted
+     *        connections.  1 serves everything from the accepting selector
+     *        thread; 0 or less uses one selector thread per core.
+     */
+    public NioServer(String name, int port, int workers, int selectors, HandlerFactory factory) {
         super(name, port, workers, factory);
         _localAddr = null;
         _links = new WeakHashMap<InetSocketAddress, Link>(1024);
+        _selectorCount = selectors > 0 ? selectors : Runtime.getRuntime().availableProcessors();
+        _loops = null;
+        _nextLoop = 0;
     }
     
     @Override
@@ -50,19 +69,65 @@ public class NioServer extends NioConnection {
         _localAddr = new InetSocketAddress(_port);
         ssc.socket().bind(_localAddr);
 
+        if (_selectorCount > 1) {
+            _loops = new SelectorLoop[_selectorCount];
+            for (int i = 0; i < _selectorCount; i++) {
+                _loops[i] = new SelectorLoop(this, _name + "-" + i, _port, _factory, _executor);
+                _loops[i].start();
+            }
+        }
+
         ssc.register(_selector, SelectionKey.OP_ACCEPT, null);
         
-        s_logger.info("NioConnection started and listening on " + _localAddr.toString());
+        s_logger.info("NioConnection started and listening on " + _localAddr.toString() + " with " + _selectorCount + " selector threads");
+    }
+    
+    @Override
+    protected void dispatch(SocketChannel socketChannel) throws IOException {
+        if (_loops == null) {
+            super.dispatch(socketChannel);
+            return;
+        }
+
+        // Round robin across the selector loops.  Only the accepting thread
+        // calls this so there's no need to synchronize _nextLoop.
+        SelectorLoop loop = _loops[_nextLoop];
+        _nextLoop = (_nextLoop + 1) % _loops.length;
+        loop.accepted(socketChannel);
+    }
+    
+    @Override
+    public void stop() {
+        if (_loops != null) {
+            for (SelectorLoop loop : _loops) {
+                loop.stop();
+            }
+        }
+        super.stop();
+    }
+    
+    @Override
+    public void cleanUp() throws IOException {
+        if (_loops != null) {
+            for (SelectorLoop loop : _loops) {
+                loop.cleanUp();
+            }
+        }
+        super.cleanUp();
     }
     
     @Override
     protected void registerLink(InetSocketAddress addr, Link link) {
-        _links.put(addr, link);
+        synchronized (_links) {
+            _links.put(addr, link);
+        }
     }
 
     @Override
     protected void unregisterLink(InetSocketAddress saddr) {
-        _links.remove(saddr);
+        synchronized (_links) {
+            _links.remove(saddr);
+        }
     }
     
     /**
@@ -75,11 +140,56 @@ public class NioServer extends NioConnection {
      * @return null if not sent.  attach object in link if sent.
      */
     public Object send(InetSocketAddress saddr, byte[] data) throws ClosedChannelException {
-        Link link = _links.get(saddr);
+        Link link;
+        synchronized (_links) {
+            link = _links.get(saddr);
+        }
         if (link == null) {
             return null;
         }
         link.send(data);
         return link.attachment();
     }
+
+    /**
+     * SelectorLoop serves the connections that the server hands to it.  The
+     * tasks of its links run on the handler threads of the server, so like
+     * with a single selector, tasks of one link may run concurrently.
+     */
+    protected static class SelectorLoop extends NioConnection {
+        private final NioServer _server;
+
+        public SelectorLoop(NioServer server, String name, int port, HandlerFactory factory, ExecutorService executor) {
+            super(name, port, factory, executor);
+            _server = server;
+        }
+
+        @Override
+        protected void init() throws IOException {
+            _selector = Selector.open();
+        }
+
+        @Override
+        public void stop() {
+            // The handler threads belong to the server; just stop selecting.
+            _isRunning = false;
+            if (_thread != null) {
+                _thread.interrupt();
+            }
+            if (_selector != null) {
+                _selector.wakeup();
+            }
+            unregisterMBeans();
+        }
+
+        @Override
+        protected void registerLink(InetSocketAddress saddr, Link link) {
+            _server.registerLink(saddr, link);
+        }
+
+        @Override
+        protected void unregisterLink(InetSocketAddress saddr) {
+            _server.unregisterLink(saddr);
+        }
+    }
 }
@@ -0,0 +1,128 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.utils.nio;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import javax.management.StandardMBean;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.mgmt.JmxUtil;
+
+/**
+ * Statistics of one selector loop.  The counters are only written by the
+ * selector thread so they are kept as volatiles rather than atomics.
+ */
+public class SelectorLoopStats extends StandardMBean implements SelectorLoopStatsMBean {
+    private static final Logger s_logger = Logger.getLogger(SelectorLoopStats.class);
+
+    private final NioConnection _connection;
+    private volatile long _loops;
+    private volatile long _readyKeys;
+    private volatile int _lastReadyKeys;
+    private volatile long _totalLatency;
+    private volatile long _maxLatency;
+
+    public SelectorLoopStats(NioConnection connection) {
+        super(SelectorLoopStatsMBean.class, false);
+        _connection = connection;
+    }
+
+    public void registerMBean(String name) {
+        try {
+            JmxUtil.registerMBean("NioSelector", name, this);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register the selector statistics of " + name + " to JMX", e);
+        }
+    }
+
+    public void unregisterMBean(String name) {
+        try {
+            JmxUtil.unregisterMBean("NioSelector", name);
+        } catch (Exception e) {
+            s_logger.debug("Unable to unregister the selector statistics of " + name + " from JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Records one pass through the selector loop.
+     * @param readyKeys number of keys returned by select.
+     * @param latency nanoseconds spent processing the keys and change requests.
+     */
+    public void record(int readyKeys, long latency) {
+        _loops++;
+        _readyKeys += readyKeys;
+        _lastReadyKeys = readyKeys;
+        _totalLatency += latency;
+        if (latency > _maxLatency) {
+            _maxLatency = latency;
+        }
+    }
+
+    @Override
+    public long getLoopCount() {
+        return _loops;
+    }
+
+    @Override
+    public long getReadyKeys() {
+        return _readyKeys;
+    }
+
+    @Override
+    public int getLastReadyKeys() {
+        return _lastReadyKeys;
+    }
+
+    @Override
+    public long getAverageLoopLatencyMicros() {
+        long loops = _loops;
+        return loops == 0 ? 0 : _totalLatency / loops / 1000;
+    }
+
+    @Override
+    public long getMaxLoopLatencyMicros() {
+        return _maxLatency / 1000;
+    }
+
+    @Override
+    public int getQueuedChangeRequests() {
+        return _connection.getPendingChangeRequests();
+    }
+
+    @Override
+    public int getQueuedTasks() {
+        ExecutorService executor = _connection._executor;
+        if (executor instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor)executor).getQueue().size();
+        }
+        return 0;
+    }
+
+    @Override
+    public int getRegisteredKeys() {
+        return _connection.getRegisteredKeys();
+    }
+
+    @Override
+    public void resetMaxLoopLatency() {
+        _maxLatency = 0;
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.utils.concurrency;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class HashedWheelTimerTest extends TestCase {
+    static final Executor s_direct = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    public void testExpireAndCancel() throws Exception {
+        HashedWheelTimer timer = new HashedWheelTimer("TestWheel", 10, TimeUnit.MILLISECONDS, 8, s_direct);
+        try {
+            final AtomicInteger fired = new AtomicInteger();
+            final CountDownLatch latch = new CountDownLatch(2);
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    fired.incrementAndGet();
+                    latch.countDown();
+                }
+            };
+
+            long start = System.nanoTime();
+            HashedWheelTimer.Timeout shortOne = timer.schedule(task, 20, TimeUnit.MILLISECONDS);
+            // more than one turn of the wheel
+            HashedWheelTimer.Timeout longOne = timer.schedule(task, 200, TimeUnit.MILLISECONDS);
+            HashedWheelTimer.Timeout cancelled = timer.schedule(task, 50, TimeUnit.MILLISECONDS);
+            Assert.assertTrue(cancelled.cancel());
+            Assert.assertFalse(cancelled.cancel());
+
+            Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            Assert.assertTrue("Fired too early: " + elapsed, elapsed >= 200);
+            Thread.sleep(100);
+
+            Assert.assertEquals(2, fired.get());
+            Assert.assertTrue(shortOne.isExpired());
+            Assert.assertTrue(longOne.isExpired());
+            Assert.assertTrue(cancelled.isCancelled());
+            Assert.assertFalse(shortOne.cancel());
+            Assert.assertEquals(0, timer.getPendingTimeouts());
+            Assert.assertEquals(2, timer.getExpiredTimeouts());
+        } finally {
+            timer.stop();
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.utils.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+import junit.framework.TestCase;
+
+public class GenericDaoBaseBatchTest extends TestCase {
+
+    @Entity
+    @Table(name="batch_test")
+    public static class BatchTestVO {
+        @Id
+        @GeneratedValue(strategy=GenerationType.IDENTITY)
+        @Column(name="id")
+        private long id;
+
+        @Column(name="name")
+        private String name;
+
+        @Column(name="state")
+        private String state;
+
+        @Column(name="size")
+        private long size;
+
+        public BatchTestVO() {
+        }
+
+        public BatchTestVO(String name) {
+            this.name = name;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public String getState() {
+            return state;
+        }
+
+        public void setState(String state) {
+            this.state = state;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public void setSize(long size) {
+            this.size = size;
+        }
+    }
+
+    public static class BatchTestDaoImpl extends GenericDaoBase<BatchTestVO, Long> {
+    }
+
+    /**
+     * A batch the dao sent: the sql and the parameters of every row added to it.
+     */
+    static class ExecutedBatch {
+        final String _sql;
+        final List<Map<Integer, Object>> _rows = new ArrayList<Map<Integer, Object>>();
+
+        ExecutedBatch(String sql) {
+            _sql = sql;
+        }
+
+        Object get(int row, int index) {
+            return _rows.get(row).get(index);
+        }
+    }
+
+    final BatchTestDaoImpl _dao = new BatchTestDaoImpl();
+    final List<ExecutedBatch> _batches = new ArrayList<ExecutedBatch>();
+    long _nextKey = 1000;
+    // what the driver reports for every updated row
+    int _updateCount = 1;
+    Transaction _txn;
+
+    @Override
+    protected void setUp() {
+        // named after the test method, which is on the stack whenever the dao asks for the transaction
+        _txn = Transaction.open(getName());
+        _txn.transitToUserManagedConnection(connection());
+    }
+
+    @Override
+    protected void tearDown() {
+        _txn.close();
+    }
+
+    private Connection connection() {
+        return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("prepareStatement")) {
+                    return statement((String)args[0]);
+                }
+                if (method.getName().equals("getAutoCommit") || method.getName().equals("isClosed")) {
+                    return false;
+                }
+                // commit, rollback, setAutoCommit and close have nothing to do
+                return null;
+            }
+        });
+    }
+
+    private PreparedStatement statement(final String sql) {
+        return (PreparedStatement)Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class<?>[] { PreparedStatement.class }, new InvocationHandler() {
+            Map<Integer, Object> _params = new HashMap<Integer, Object>();
+            ExecutedBatch _batch;
+            final List<Long> _keys = new ArrayList<Long>();
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if (name.startsWith("set") && args.length == 2 && args[0] instanceof Integer) {
+                    _params.put((Integer)args[0], args[1] instanceof byte[] ? new String((byte[])args[1], "UTF-8") : args[1]);
+                    return null;
+                }
+                if (name.equals("addBatch")) {
+                    if (_batch == null) {
+                        _batch = new ExecutedBatch(sql);
+                    }
+                    _batch._rows.add(_params);
+                    _params = new HashMap<Integer, Object>();
+                    return null;
+                }
+                if (name.equals("executeBatch")) {
+                    _batches.add(_batch);
+                    int[] counts = new int[_batch._rows.size()];
+                    for (int i = 0; i < counts.length; i++) {
+                        if (sql.startsWith("INSERT")) {
+                            _keys.add(_nextKey++);
+                            counts[i] = 1;
+                        } else {
+                            counts[i] = _updateCount;
+                        }
+                    }
+                    return counts;
+                }
+                if (name.equals("getGeneratedKeys")) {
+                    return keys(_keys);
+                }
+                if (name.equals("getResultSet")) {
+                    return null;
+                }
+                if (name.equals("close")) {
+                    return null;
+                }
+                throw new UnsupportedOperationException(name + " " + sql);
+            }
+        });
+    }
+
+    private static ResultSet keys(final List<Long> keys) {
+        return (ResultSet)Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] { ResultSet.class }, new InvocationHandler() {
+            int _row = -1;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("next")) {
+                    return ++_row < keys.size();
+                }
+                if (method.getName().equals("getObject")) {
+                    return keys.get(_row);
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private List<Integer> batchSizes() {
+        List<Integer> sizes = new ArrayList<Integer>();
+        for (ExecutedBatch batch : _batches) {
+            sizes.add(batch._rows.size());
+        }
+        return sizes;
+    }
+
+    private int parameterOf(ExecutedBatch batch, String column) {
+        // the columns are listed in the order of their parameters
+        String columns = batch._sql.substring(batch._sql.indexOf('(') + 1, batch._sql.indexOf(')'));
+        return Arrays.asList(columns.replace("batch_test.", "").replace(" ", "").split(",")).indexOf(column) + 1;
+    }
+
+    public void testPersistBatchAssignsGeneratedKeys() {
+        List<BatchTestVO> vos = new ArrayList<BatchTestVO>();
+        for (int i = 0; i < 3; i++) {
+            vos.add(new BatchTestVO("vo-" + i));
+        }
+
+        assertEquals(3, _dao.persistBatch(vos));
+
+        assertEquals(Arrays.asList(3), batchSizes());
+        ExecutedBatch batch = _batches.get(0);
+        assertTrue(batch._sql, batch._sql.startsWith("INSERT INTO batch_test"));
+        int name = parameterOf(batch, "name");
+        for (int i = 0; i < 3; i++) {
+            assertEquals(1000 + i, vos.get(i).getId());
+            assertEquals("vo-" + i, batch.get(i, name));
+        }
+    }
+
+    public void testPersistBatchChunks() {
+        List<BatchTestVO> vos = new ArrayList<BatchTestVO>();
+        for (int i = 0; i < 2 * GenericDaoBase.s_batchSize + 1; i++) {
+            vos.add(new BatchTestVO("vo-" + i));
+        }
+
+        assertEquals(vos.size(), _dao.persistBatch(vos));
+
+        assertEquals(Arrays.asList(GenericDaoBase.s_batchSize, GenericDaoBase.s_batchSize, 1), batchSizes());
+        // every chunk hands its own generated keys to its own entities
+        for (int i = 0; i < vos.size(); i++) {
+            assertEquals(1000 + i, vos.get(i).getId());
+        }
+        ExecutedBatch last = _batches.get(2);
+        assertEquals("vo-" + (vos.size() - 1), last.get(0, parameterOf(last, "name")));
+    }
+
+    public void testUpdateBatchGroupsByChangedColumns() {
+        List<BatchTestVO> vos = new ArrayList<BatchTestVO>();
+        for (long id = 1; id <= 6; id++) {
+            BatchTestVO vo = _dao.createForUpdate(id);
+            if (id <= 3) {
+                vo.setName("name-" + id);
+            } else if (id <= 5) {
+                vo.setState("state-" + id);
+                vo.setSize(id * 10);
+            }
+            // the last one is unchanged and not updated
+            vos.add(vo);
+        }
+
+        assertEquals(5, _dao.updateBatch(vos));
+
+        assertEquals(Arrays.asList(3, 2), batchSizes());
+        ExecutedBatch names = _batches.get(0);
+        assertTrue(names._sql, names._sql.startsWith("UPDATE batch_test SET batch_test.name=?"));
+        for (int i = 0; i < 3; i++) {
+            assertEquals("name-" + (i + 1), names.get(i, 1));
+            assertEquals(Long.valueOf(i + 1), names.get(i, 2));
+        }
+
+        ExecutedBatch states = _batches.get(1);
+        assertTrue(states._sql, states._sql.contains("batch_test.state=?") && states._sql.contains("batch_test.size=?"));
+        assertFalse(states._sql, states._sql.contains("batch_test.name=?"));
+        for (int i = 0; i < 2; i++) {
+            assertEquals(3, states._rows.get(i).size());
+            assertEquals(Long.valueOf(i + 4), states.get(i, 3));
+        }
+
+        for (BatchTestVO vo : vos) {
+            assertFalse("Changes are cleared once they are written", _dao.getUpdateBuilder(vo).hasChanges());
+        }
+    }
+
+    public void testUpdateBatchChunks() {
+        // drivers that rewrite batches only report that each statement succeeded
+        _updateCount = Statement.SUCCESS_NO_INFO;
+        List<BatchTestVO> vos = new ArrayList<BatchTestVO>();
+        for (long id = 1; id <= GenericDaoBase.s_batchSize + 1; id++) {
+            BatchTestVO vo = _dao.createForUpdate(id);
+            vo.setSize(id);
+            vos.add(vo);
+        }
+
+        assertEquals(vos.size(), _dao.updateBatch(vos));
+
+        assertEquals(Arrays.asList(GenericDaoBase.s_batchSize, 1), batchSizes());
+        ExecutedBatch last = _batches.get(1);
+        assertEquals(Long.valueOf(vos.size()), last.get(0, 1));
+        assertEquals(Long.valueOf(vos.size()), last.get(0, 2));
+    }
+}
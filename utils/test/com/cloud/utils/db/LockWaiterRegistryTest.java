@@ -0,0 +1,103 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.utils.db;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class LockWaiterRegistryTest extends TestCase {
+
+    public void testReleaseBeforeWaitIsNotLost() throws Exception {
+        LockWaiterRegistry registry = new LockWaiterRegistry();
+        LockWaiterRegistry.Waiter waiter = registry.register("key");
+        long generation = waiter.getGeneration();
+
+        Assert.assertTrue(registry.signal("key"));
+        long start = System.currentTimeMillis();
+        Assert.assertTrue(registry.await(waiter, generation, 5000));
+        Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+
+        registry.unregister("key", waiter);
+        Assert.assertEquals(0, registry.getWaitingKeys());
+        Assert.assertFalse(registry.signal("key"));
+    }
+
+    public void testWaitTimesOut() throws Exception {
+        LockWaiterRegistry registry = new LockWaiterRegistry();
+        LockWaiterRegistry.Waiter waiter = registry.register("key");
+
+        registry.signal("other");
+        Assert.assertFalse(registry.await(waiter, waiter.getGeneration(), 50));
+        registry.unregister("key", waiter);
+    }
+
+    public void testReleaseWakesUpWaiters() throws Exception {
+        final LockWaiterRegistry registry = new LockWaiterRegistry();
+        final CountDownLatch registered = new CountDownLatch(2);
+        final CountDownLatch woken = new CountDownLatch(2);
+        final AtomicBoolean timedOut = new AtomicBoolean(false);
+
+        for (int i = 0; i < 2; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    LockWaiterRegistry.Waiter waiter = registry.register("key");
+                    try {
+                        long generation = waiter.getGeneration();
+                        registered.countDown();
+                        if (!registry.await(waiter, generation, 10000)) {
+                            timedOut.set(true);
+                        }
+                    } catch (InterruptedException e) {
+                        timedOut.set(true);
+                    } finally {
+                        registry.unregister("key", waiter);
+                        woken.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        Assert.assertTrue(registered.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, registry.getWaitingKeys());
+        registry.signalAll();
+        Assert.assertTrue(woken.await(5, TimeUnit.SECONDS));
+        Assert.assertFalse(timedOut.get());
+        Assert.assertEquals(0, registry.getWaitingKeys());
+    }
+
+    public void testWaitStatsBuckets() {
+        LockWaitStats stats = new LockWaitStats();
+        stats.record(5, true);
+        stats.record(50, true);
+        stats.record(40000, false);
+
+        long[] buckets = stats.getBuckets();
+        Assert.assertEquals(1, buckets[0]);
+        Assert.assertEquals(1, buckets[1]);
+        Assert.assertEquals(1, buckets[buckets.length - 1]);
+        Assert.assertEquals(3, stats.getCount());
+        Assert.assertEquals(1, stats.getTimeouts());
+        Assert.assertEquals("40000", stats.toMap("key").get("maxMs"));
+        Assert.assertEquals("1", stats.toMap("key").get(">=30000ms"));
+    }
+}
@@ -17,6 +17,9 @@
  */
 package com.cloud.utils.db;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import junit.framework.Assert;
 import junit.framework.TestCase;
 
@@ -74,5 +77,29 @@ public class Merovingian2Test extends TestCase {
         result = _lockMaster.release("first"+1234);
         Assert.assertTrue(result);
     }
+
+    @Test
+    public void testCleanupThreadNotifiesRelease() {
+        final List<String> released = new ArrayList<String>();
+        _lockMaster.setReleaseListener(new Merovingian2.ReleaseListener() {
+            @Override
+            public void onLockReleased(String key) {
+                released.add(key);
+            }
+        });
+        try {
+            Assert.assertTrue(_lockMaster.acquire("leaked"+1234, 5));
+            try {
+                _lockMaster.cleanupThread();
+            } catch (AssertionError e) {
+                // cleanupThread asserts on locks left behind, after it has cleared them
+            }
+            Assert.assertEquals(0, _lockMaster.owns("leaked"+1234));
+            Assert.assertEquals(1, released.size());
+            Assert.assertEquals("leaked"+1234, released.get(0));
+        } finally {
+            _lockMaster.setReleaseListener(null);
+        }
+    }
     
 }
@@ -0,0 +1,89 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.utils.nio;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class BufferPoolTest extends TestCase {
+
+    public void testAcquireFromSizeClass() {
+        BufferPool pool = new BufferPool("BufferPoolTest", 4, 1);
+        pool.addSizeClass(1024);
+        pool.addSizeClass(256);
+
+        ByteBuffer small = pool.acquire(100);
+        Assert.assertTrue(small.isDirect());
+        Assert.assertEquals(256, small.capacity());
+
+        ByteBuffer large = pool.acquire(1000);
+        Assert.assertEquals(1024, large.capacity());
+        Assert.assertEquals(2, pool.getHits());
+        Assert.assertEquals(256 + 1024, pool.getBytesInFlight());
+
+        pool.release(small);
+        pool.release(large);
+        Assert.assertEquals(0, pool.getBytesInFlight());
+        Assert.assertEquals(2, pool.getSlabCount());
+    }
+
+    public void testMissWhenExhausted() {
+        BufferPool pool = new BufferPool("BufferPoolTest", 2, 1);
+        pool.addSizeClass(512);
+
+        ByteBuffer first = pool.acquire(512);
+        ByteBuffer second = pool.acquire(512);
+        ByteBuffer third = pool.acquire(512);
+        Assert.assertTrue(first.isDirect());
+        Assert.assertTrue(second.isDirect());
+        Assert.assertFalse(third.isDirect());
+        Assert.assertEquals(1, pool.getMisses());
+
+        ByteBuffer oversized = pool.acquire(4096);
+        Assert.assertFalse(oversized.isDirect());
+        Assert.assertEquals(2, pool.getMisses());
+
+        pool.release(third);
+        pool.release(first);
+        ByteBuffer reused = pool.acquire(10);
+        Assert.assertTrue(reused.isDirect());
+        Assert.assertEquals(0, reused.position());
+        Assert.assertEquals(512, reused.limit());
+    }
+
+    public void testStopUnregistersPool() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("com.cloud:type=NioBufferPool, name=BufferPoolTestClient");
+
+        NioClient client = new NioClient("BufferPoolTestClient", "localhost", 0, 1, null);
+        Assert.assertTrue(server.isRegistered(name));
+        client.stop();
+        Assert.assertFalse(server.isRegistered(name));
+
+        // a reconnect registers the pool of the new connection
+        client = new NioClient("BufferPoolTestClient", "localhost", 0, 1, null);
+        Assert.assertTrue(server.isRegistered(name));
+        client.stop();
+    }
+}
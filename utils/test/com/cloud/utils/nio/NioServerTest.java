@@ -0,0 +1,50 @@
+/**
+ *  Copyright (C) 2010 Cloud.com, Inc.  All rights reserved.
+ * 
+ * This software is licensed under the GNU General Public License v3 or later.
+ * 
+ * It is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or any later version.
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package com.cloud.utils.nio;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class NioServerTest extends TestCase {
+
+    public void testStopUnregistersSelectorLoops() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        String[] names = new String[] { "NioServerTest", "NioServerTest-0", "NioServerTest-1", "NioServerTest-2" };
+
+        NioServer nio = new NioServer("NioServerTest", 0, 1, 3, null);
+        nio.start();
+        try {
+            for (String name : names) {
+                Assert.assertTrue(name, server.isRegistered(new ObjectName("com.cloud:type=NioBufferPool, name=" + name)));
+                Assert.assertTrue(name, server.isRegistered(new ObjectName("com.cloud:type=NioSelector, name=" + name)));
+            }
+        } finally {
+            nio.stop();
+        }
+
+        for (String name : names) {
+            Assert.assertFalse(name, server.isRegistered(new ObjectName("com.cloud:type=NioBufferPool, name=" + name)));
+            Assert.assertFalse(name, server.isRegistered(new ObjectName("com.cloud:type=NioSelector, name=" + name)));
+        }
+    }
+}
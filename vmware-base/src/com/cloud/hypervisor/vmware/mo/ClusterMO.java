@@ -86,25 +86,12 @@ public class ClusterMO extends BaseMO implements VmwareHypervisorHost {
 	
 	@Override
 	public VirtualMachineMO findVmOnHyperHost(String name) throws Exception {
-		ObjectContent[] ocs = getVmPropertiesOnHyperHost(new String[] { "name" });
-		return HypervisorHostHelper.findVmFromObjectContent(_context, ocs, name);
+		return HyperHostVmIndex.getIndex(_context, _mor).findVm(this, name);
 	}
 	
 	@Override
 	public VirtualMachineMO findVmOnPeerHyperHost(String name) throws Exception {
-		ObjectContent[] ocs = getVmPropertiesOnHyperHost(new String[] { "name" });
-		if(ocs != null && ocs.length > 0) {
-			for(ObjectContent oc : ocs) {
-				DynamicProperty[] props = oc.getPropSet();
-				if(props != null) {
-					for(DynamicProperty prop : props) {
-						if(prop.getVal().toString().equals(name))
-							return new VirtualMachineMO(_context, oc.getObj());
-					}
-				}
-			}
-		}
-		return null;
+		return findVmOnHyperHost(name);
 	}
 	
 	@Override
@@ -7,7 +7,6 @@ package com.cloud.hypervisor.vmware.mo;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import org.apache.log4j.Logger;
 
@@ -49,7 +48,6 @@ import com.vmware.vim25.VirtualNicManagerNetConfig;
 
 public class HostMO extends BaseMO implements VmwareHypervisorHost {
     private static final Logger s_logger = Logger.getLogger(HostMO.class);
-    Map<String, VirtualMachineMO> _vmCache = new HashMap<String, VirtualMachineMO>();
 	
 	public HostMO (VmwareContext context, ManagedObjectReference morHost) {
 		super(context, morHost);
@@ -443,40 +441,13 @@ public class HostMO extends BaseMO implements VmwareHypervisorHost {
 	}
 
     @Override
-    public synchronized VirtualMachineMO findVmOnHyperHost(String name) throws Exception {
+    public VirtualMachineMO findVmOnHyperHost(String name) throws Exception {
     	if(s_logger.isDebugEnabled())
     		s_logger.debug("find VM " + name + " on host");
     	
-        VirtualMachineMO vmMo = _vmCache.get(name);
-        if(vmMo != null) {
-        	if(s_logger.isDebugEnabled())
-        		s_logger.debug("VM " + name + " found in host cache");
-            return vmMo;
-        }
-        
-        loadVmCache();
-        return _vmCache.get(name);
+    	return HyperHostVmIndex.getIndex(_context, _mor).findVm(this, name);
     }
-    
-    private void loadVmCache() throws Exception {
-    	if(s_logger.isDebugEnabled())
-    		s_logger.debug("load VM cache on host");
-    	
-        _vmCache.clear();
-        
-        ObjectContent[] ocs = getVmPropertiesOnHyperHost(new String[] { "name" });
-        if(ocs != null && ocs.length > 0) {
-            for(ObjectContent oc : ocs) {
-                String vmName = oc.getPropSet()[0].getVal().toString();
-                
-                if(s_logger.isDebugEnabled())
-                	s_logger.debug("put " + vmName + " into host cache");
-                
-                _vmCache.put(vmName, new VirtualMachineMO(_context, oc.getObj()));
-            }
-        }
-    }
-	
+	
 	@Override
 	public VirtualMachineMO findVmOnPeerHyperHost(String name) throws Exception {
 		ManagedObjectReference morParent = getParentMor();
@@ -0,0 +1,191 @@
+/**
+ *  Copyright (C) 2011 Cloud.com, Inc.  All rights reserved.
+ */
+
+package com.cloud.hypervisor.vmware.mo;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.hypervisor.vmware.util.VmwareContext;
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+
+//
+// VM name to ManagedObjectReference index of a host or a cluster. It saves findVmOnHyperHost() from
+// retrieving the names of all VMs under the hyper host on every lookup. A hit is confirmed by reading the
+// properties of that one VM, so renamed, deleted or migrated VMs fall back to a reload. A cluster index
+// remembers the hosts of the cluster at reload time to tell whether a VM is still in the cluster.
+// Indexes are shared by all MO instances of a vCenter and not used past TTL, indexes that have not been
+// used for IDLE_MS, such as those of removed hosts, are dropped. No lock is held while talking to
+// vCenter: lookups read an immutable snapshot and a reload swaps in a new one.
+//
+public class HyperHostVmIndex {
+    private static final Logger s_logger = Logger.getLogger(HyperHostVmIndex.class);
+    
+    private static final Map<String, HyperHostVmIndex> s_indexes = new ConcurrentHashMap<String, HyperHostVmIndex>();
+    private static final long TTL_MS = 10*60*1000;
+    private static final long IDLE_MS = 6*TTL_MS;
+    private static volatile long s_lastSweep = System.currentTimeMillis();
+    
+    private static final AtomicLong s_hits = new AtomicLong();
+    private static final AtomicLong s_misses = new AtomicLong();
+    private static final AtomicLong s_reloads = new AtomicLong();
+    
+    private final ManagedObjectReference _morHyperHost;
+    private final boolean _hostScoped;
+    private volatile Snapshot _snapshot = new Snapshot(new HashMap<String, ManagedObjectReference>(), null, 0);
+    private volatile long _lastUsed = System.currentTimeMillis();
+    
+    private static class Snapshot {
+    	final Map<String, ManagedObjectReference> _vms;
+    	// hosts of a cluster, null for a host index
+    	final Set<String> _hosts;
+    	final long _loadTime;
+    	
+    	Snapshot(Map<String, ManagedObjectReference> vms, Set<String> hosts, long loadTime) {
+    		_vms = vms;
+    		_hosts = hosts;
+    		_loadTime = loadTime;
+    	}
+    }
+    
+    private HyperHostVmIndex(ManagedObjectReference morHyperHost) {
+    	_morHyperHost = morHyperHost;
+    	_hostScoped = morHyperHost.getType().equals("HostSystem");
+    }
+    
+    public static HyperHostVmIndex getIndex(VmwareContext context, ManagedObjectReference morHyperHost) {
+    	String key = context.getServerAddress() + "/" + morHyperHost.getType() + "/" + morHyperHost.get_value();
+    	long now = System.currentTimeMillis();
+    	HyperHostVmIndex index = s_indexes.get(key);
+    	if(index == null) {
+    		synchronized(s_indexes) {
+    			index = s_indexes.get(key);
+    			if(index == null) {
+    				index = new HyperHostVmIndex(morHyperHost);
+    				s_indexes.put(key, index);
+    			}
+    		}
+    	}
+    	index._lastUsed = now;
+    	
+    	if(now - s_lastSweep > TTL_MS) {
+    		s_lastSweep = now;
+    		sweep(now);
+    	}
+    	return index;
+    }
+    
+    private static void sweep(long now) {
+    	synchronized(s_indexes) {
+    		Iterator<Map.Entry<String, HyperHostVmIndex>> it = s_indexes.entrySet().iterator();
+    		while(it.hasNext()) {
+    			Map.Entry<String, HyperHostVmIndex> entry = it.next();
+    			if(now - entry.getValue()._lastUsed > IDLE_MS) {
+    				if(s_logger.isDebugEnabled())
+    					s_logger.debug("Dropping VM index of " + entry.getKey() + ", it has not been used for " + (now - entry.getValue()._lastUsed)/1000 + " seconds");
+    				it.remove();
+    			}
+    		}
+    	}
+    }
+    
+    public static long getHits() {
+    	return s_hits.get();
+    }
+    
+    public static long getMisses() {
+    	return s_misses.get();
+    }
+    
+    public static long getReloads() {
+    	return s_reloads.get();
+    }
+    
+    public VirtualMachineMO findVm(VmwareHypervisorHost hyperHost, String name) throws Exception {
+    	VmwareContext context = hyperHost.getContext();
+    	Snapshot snapshot = _snapshot;
+    	if(System.currentTimeMillis() - snapshot._loadTime < TTL_MS) {
+    		ManagedObjectReference morVm = snapshot._vms.get(name);
+    		if(morVm != null && isValid(context, snapshot, morVm, name)) {
+    			s_hits.incrementAndGet();
+    			return new VirtualMachineMO(context, morVm);
+    		}
+    	}
+    	
+    	s_misses.incrementAndGet();
+    	ManagedObjectReference morVm = reload(hyperHost).get(name);
+    	return morVm != null ? new VirtualMachineMO(context, morVm) : null;
+    }
+    
+    private Map<String, ManagedObjectReference> reload(VmwareHypervisorHost hyperHost) throws Exception {
+    	long loadTime = System.currentTimeMillis();
+    	Map<String, ManagedObjectReference> vms = new HashMap<String, ManagedObjectReference>();
+    	Set<String> hosts = null;
+    	if(!_hostScoped) {
+    		// read before the VMs, a VM that moves in from a host added in between just misses once more
+    		hosts = new HashSet<String>();
+    		ManagedObjectReference[] morHosts = (ManagedObjectReference[])hyperHost.getContext().getServiceUtil().getDynamicProperty(_morHyperHost, "host");
+    		if(morHosts != null) {
+    			for(ManagedObjectReference morHost : morHosts)
+    				hosts.add(morHost.get_value());
+    		}
+    	}
+    	
+    	ObjectContent[] ocs = hyperHost.getVmPropertiesOnHyperHost(new String[] { "name" });
+    	if(ocs != null) {
+    		for(ObjectContent oc : ocs) {
+    			DynamicProperty[] props = oc.getPropSet();
+    			if(props != null && props.length > 0)
+    				vms.put(props[0].getVal().toString(), oc.getObj());
+    		}
+    	}
+    	
+    	// concurrent misses may reload at the same time, keep the listing that started last
+    	synchronized(this) {
+    		if(loadTime >= _snapshot._loadTime)
+    			_snapshot = new Snapshot(vms, hosts, loadTime);
+    	}
+    	
+    	long reloads = s_reloads.incrementAndGet();
+    	if(s_logger.isDebugEnabled())
+    		s_logger.debug("Reloaded VM index of " + _morHyperHost.getType() + " " + _morHyperHost.get_value() + ", " + vms.size() + " VMs. hits: " 
+    			+ s_hits.get() + ", misses: " + s_misses.get() + ", reloads: " + reloads);
+    	return vms;
+    }
+    
+    private boolean isValid(VmwareContext context, Snapshot snapshot, ManagedObjectReference morVm, String name) {
+    	try {
+    		ObjectContent[] ocs = context.getServiceUtil().getObjectProperties(context.getServiceContent().getPropertyCollector(), 
+    			morVm, new String[] { "name", "runtime.host" });
+    		if(ocs == null || ocs.length == 0 || ocs[0].getPropSet() == null)
+    			return false;
+    		
+    		boolean nameMatches = false;
+    		boolean hostMatches = false;
+    		for(DynamicProperty prop : ocs[0].getPropSet()) {
+    			if(prop.getName().equals("name")) {
+    				nameMatches = name.equals(prop.getVal());
+    			} else if(prop.getName().equals("runtime.host") && prop.getVal() != null) {
+    				String host = ((ManagedObjectReference)prop.getVal()).get_value();
+    				hostMatches = _hostScoped ? _morHyperHost.get_value().equals(host) : snapshot._hosts.contains(host);
+    			}
+    		}
+    		return nameMatches && hostMatches;
+    	} catch(Exception e) {
+    		// most likely the VM is gone
+    		if(s_logger.isDebugEnabled())
+    			s_logger.debug("VM " + name + " in index is no longer valid: " + e.toString());
+    		return false;
+    	}
+    }
+}